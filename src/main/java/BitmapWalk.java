@@ -0,0 +1,162 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Lists the same objects as ObjectWalk, but from a pack's reachability bitmaps. The
+// uninteresting side is resolved first: each commit with a bitmap contributes it
+// whole, and only the commits and trees between the starting points and those
+// commits are walked. The interesting side is resolved the same way, stopping at
+// anything already known to be uninteresting, and the answer is the difference.
+// Objects outside the bitmapped pack (new loose objects, a pack fetched since the
+// last repack) are found by that frontier walk and listed after the bitmapped ones.
+//
+// The listed objects have no paths, since bitmaps do not record them. Walks that cut
+// history short (shallow repositories and fetches) need ObjectWalk.
+public class BitmapWalk {
+  private static final int MODE_GITLINK = 0160000;
+
+  private final PackBitmap bitmap;
+  private final RevCommit.Pool pool = new RevCommit.Pool();
+  private final List<String> starts = new ArrayList<>();
+  private final List<String> uninteresting = new ArrayList<>();
+
+  // Objects reached so far: bits in the pack, and the rest by id
+  private static class Reach {
+    final BitSet bits = new BitSet();
+    final Map<String, ObjectWalk.Entry> others = new LinkedHashMap<>();
+  }
+
+  private BitmapWalk(PackBitmap bitmap) {
+    this.bitmap = bitmap;
+  }
+
+  // A walk over the first pack with bitmaps, or null when there is none or the
+  // repository is shallow
+  public static BitmapWalk open() throws IOException {
+    if (!Config.snapshot().getBoolean("pack", null, "useBitmaps", true) || Shallow.isShallow()) {
+      return null;
+    }
+    for (PackFile pack : ObjectStore.packs()) {
+      PackBitmap bitmap = pack.getBitmap();
+      if (bitmap != null) {
+        return new BitmapWalk(bitmap);
+      }
+    }
+    return null;
+  }
+
+  // id may name a commit, an annotated tag, or a tree or blob
+  public void markStart(String id) {
+    starts.add(id);
+  }
+
+  public void markUninteresting(String id) {
+    uninteresting.add(id);
+  }
+
+  public List<ObjectWalk.Entry> objects() throws IOException {
+    Reach have = new Reach();
+    for (String id : uninteresting) {
+      add(id, have, null);
+    }
+    Reach want = new Reach();
+    for (String id : starts) {
+      add(id, want, have);
+    }
+    want.bits.andNot(have.bits);
+
+    List<ObjectWalk.Entry> result = new ArrayList<>(want.bits.cardinality() + want.others.size());
+    for (int bit = want.bits.nextSetBit(0); bit >= 0; bit = want.bits.nextSetBit(bit + 1)) {
+      result.add(new ObjectWalk.Entry(bitmap.objectAt(bit), bitmap.typeAt(bit), ""));
+    }
+    for (ObjectWalk.Entry entry : want.others.values()) {
+      if (!have.others.containsKey(entry.id)) {
+        result.add(entry);
+      }
+    }
+    return result;
+  }
+
+  // Adds everything id reaches to reach, stopping at what stop already has
+  private void add(String id, Reach reach, Reach stop) throws IOException {
+    String type = ObjectStore.readHeader(id).type;
+    while (type.equals("tag")) {
+      if (!mark(id, "tag", "", reach, stop)) {
+        return;
+      }
+      String content = new String(ObjectStore.parseObject(id).content, StandardCharsets.UTF_8);
+      if (!content.startsWith("object ")) {
+        throw new IOException("Malformed tag object: " + id);
+      }
+      id = content.substring(7, 47);
+      type = ObjectStore.readHeader(id).type;
+    }
+    switch (type) {
+      case "commit" -> addCommits(id, reach, stop);
+      case "tree" -> addTree(id, "", reach, stop);
+      default -> mark(id, type, "", reach, stop);
+    }
+  }
+
+  private void addCommits(String start, Reach reach, Reach stop) throws IOException {
+    List<RevCommit> fresh = new ArrayList<>();
+    Deque<String> pending = new ArrayDeque<>(List.of(start));
+    while (!pending.isEmpty()) {
+      String id = pending.pop();
+      if (contains(id, reach) || (stop != null && contains(id, stop))) {
+        continue;
+      }
+      BitSet stored = bitmap.reachableFrom(id);
+      if (stored != null) {
+        reach.bits.or(stored);
+        continue;
+      }
+      mark(id, "commit", "", reach, stop);
+      RevCommit commit = pool.parse(id);
+      fresh.add(commit);
+      for (RevCommit parent : commit.getParents()) {
+        pending.push(parent.id);
+      }
+    }
+    for (RevCommit commit : fresh) {
+      addTree(commit.getTree(), "", reach, stop);
+    }
+  }
+
+  private void addTree(String treeId, String path, Reach reach, Reach stop) throws IOException {
+    if (!mark(treeId, "tree", path, reach, stop)) {
+      return;
+    }
+    TreeIterator entries = TreeIterator.forTree(treeId);
+    while (entries.next()) {
+      if (entries.mode() == MODE_GITLINK) {
+        continue;
+      }
+      String name = path.isEmpty() ? entries.name() : path + "/" + entries.name();
+      if (entries.isTree()) {
+        addTree(entries.id(), name, reach, stop);
+      } else {
+        mark(entries.id(), "blob", name, reach, stop);
+      }
+    }
+  }
+
+  // Adds one object; false when reach or stop already has it
+  private boolean mark(String id, String type, String path, Reach reach, Reach stop) {
+    if (contains(id, reach) || (stop != null && contains(id, stop))) {
+      return false;
+    }
+    int bit = bitmap.bitOf(id);
+    if (bit >= 0) {
+      reach.bits.set(bit);
+    } else {
+      reach.others.put(id, new ObjectWalk.Entry(id, type, path));
+    }
+    return true;
+  }
+
+  private boolean contains(String id, Reach reach) {
+    int bit = bitmap.bitOf(id);
+    return bit >= 0 ? reach.bits.get(bit) : reach.others.containsKey(id);
+  }
+}
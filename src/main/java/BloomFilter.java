@@ -0,0 +1,117 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+// Changed-path Bloom filter in the commit-graph BDAT layout: murmur3 based double
+// hashing with 7 hashes and 10 bits per path
+public class BloomFilter {
+  public static final int HASH_VERSION = 2;
+  public static final int NUM_HASHES = 7;
+  public static final int BITS_PER_ENTRY = 10;
+  // Commits touching more paths get a single all-ones byte that matches everything
+  public static final int MAX_CHANGED_PATHS = 512;
+
+  private static final int SEED0 = 0x293ae76f;
+  private static final int SEED1 = 0x7e646e2c;
+
+  private final byte[] data;
+  private final int offset;
+  private final int length;
+
+  public BloomFilter(byte[] data, int offset, int length) {
+    this.data = data;
+    this.offset = offset;
+    this.length = length;
+  }
+
+  public static BloomFilter forPaths(Collection<String> paths) {
+    if (paths == null || paths.size() > MAX_CHANGED_PATHS) {
+      return new BloomFilter(new byte[] { (byte) 0xff }, 0, 1);
+    }
+    int length = Math.max(1, (paths.size() * BITS_PER_ENTRY + 7) / 8);
+    byte[] bits = new byte[length];
+    int bitCount = length * 8;
+    for (String path : paths) {
+      for (int hash : hashes(path)) {
+        int bit = Integer.remainderUnsigned(hash, bitCount);
+        bits[bit >> 3] |= 1 << (bit & 7);
+      }
+    }
+    return new BloomFilter(bits, 0, length);
+  }
+
+  public int length() {
+    return length;
+  }
+
+  public byte[] getBytes() {
+    byte[] copy = new byte[length];
+    System.arraycopy(data, offset, copy, 0, length);
+    return copy;
+  }
+
+  // False means the path was certainly not changed; true may be a false positive
+  public boolean mightContain(int[] keyHashes) {
+    if (length == 0) {
+      return true;
+    }
+    int bitCount = length * 8;
+    for (int hash : keyHashes) {
+      int bit = Integer.remainderUnsigned(hash, bitCount);
+      if ((data[offset + (bit >> 3)] & (1 << (bit & 7))) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public static int[] hashes(String path) {
+    byte[] key = path.getBytes(StandardCharsets.UTF_8);
+    int hash0 = murmur3(SEED0, key);
+    int hash1 = murmur3(SEED1, key);
+    int[] result = new int[NUM_HASHES];
+    for (int i = 0; i < NUM_HASHES; i++) {
+      result[i] = hash0 + i * hash1;
+    }
+    return result;
+  }
+
+  static int murmur3(int seed, byte[] data) {
+    final int c1 = 0xcc9e2d51;
+    final int c2 = 0x1b873593;
+    int hash = seed;
+    int blocks = data.length / 4;
+
+    for (int i = 0; i < blocks; i++) {
+      int pos = i * 4;
+      int k = (data[pos] & 0xff) | (data[pos + 1] & 0xff) << 8
+          | (data[pos + 2] & 0xff) << 16 | (data[pos + 3] & 0xff) << 24;
+      k *= c1;
+      k = Integer.rotateLeft(k, 15);
+      k *= c2;
+      hash ^= k;
+      hash = Integer.rotateLeft(hash, 13);
+      hash = hash * 5 + 0xe6546b64;
+    }
+
+    // The last one to three bytes, little-endian
+    int tail = blocks * 4;
+    if (tail < data.length) {
+      int k1 = 0;
+      for (int i = data.length - 1; i >= tail; i--) {
+        k1 = k1 << 8 | (data[i] & 0xff);
+      }
+      k1 *= c1;
+      k1 = Integer.rotateLeft(k1, 15);
+      k1 *= c2;
+      hash ^= k1;
+    }
+
+    hash ^= data.length;
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    hash ^= hash >>> 16;
+    return hash;
+  }
+}
@@ -0,0 +1,244 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Git's bundle file (version 2), a fetch written to a file: the "# v2 git bundle"
+// line, a "-<id> <subject>" line per prerequisite commit the receiving repository
+// must already have, an "<id> <refname>" line per ref, an empty line, and then a
+// pack of everything reachable from those refs but not from the prerequisites.
+//
+// The revisions are parsed by RevWalk, so "v1..main" or "--since=..." bundle only
+// the newer commits; their prerequisites are the boundary of that walk. The pack is
+// written straight to the file, and read back by IndexPack as it streams in, so
+// neither side holds the pack in memory. Packs from git's bundles may be thin
+// (deltas against prerequisite objects); unbundling completes them from this
+// repository.
+public class Bundle {
+  static final String SIGNATURE = "# v2 git bundle";
+
+  public static class Header {
+    // Prerequisite commit -> its subject line (informational only)
+    public final Map<String, String> prerequisites = new LinkedHashMap<>();
+    // Ref name -> id
+    public final Map<String, String> refs = new LinkedHashMap<>();
+  }
+
+  // ========== CREATE ==========
+
+  // Writes a bundle of the refs named by the revision arguments (or every ref with
+  // --all) to out; returns the number of objects in its pack
+  public static int create(OutputStream out, List<String> args) throws IOException {
+    RevCommit.Pool pool = new RevCommit.Pool();
+    RevWalk walk = new RevWalk(pool);
+    Header header = new Header();
+    List<String> revisions = new ArrayList<>();
+    for (String arg : args) {
+      if (arg.equals("--all")) {
+        String head = GitRepository.getHeadCommit();
+        if (head != null) {
+          header.refs.put("HEAD", head);
+        }
+        for (Map.Entry<String, String> ref : GitRepository.getAllRefs().entrySet()) {
+          if (!ref.getValue().startsWith("ref: ")) {
+            header.refs.put(ref.getKey(), ref.getValue());
+          }
+        }
+        continue;
+      }
+      revisions.add(arg);
+      String name = refName(arg);
+      if (name != null) {
+        header.refs.put(name, GitRepository.readRef(name));
+      }
+    }
+    // Starts come from the refs in the header; the revision arguments add the limits
+    List<String> rest = walk.parseArguments(revisions.toArray(new String[0]), 0);
+    if (!rest.isEmpty()) {
+      throw new IOException("Unknown bundle option: " + rest.get(0));
+    }
+    if (header.refs.isEmpty()) {
+      throw new IOException("Refusing to create empty bundle.");
+    }
+    for (String id : header.refs.values()) {
+      String commit = peel(id);
+      if (commit != null) {
+        walk.markStart(commit);
+      }
+    }
+    List<RevCommit> commits = new ArrayList<>();
+    Set<RevCommit> listed = new HashSet<>();
+    for (RevCommit commit = walk.next(); commit != null; commit = walk.next()) {
+      commits.add(commit);
+      listed.add(commit);
+    }
+    for (RevCommit commit : commits) {
+      for (RevCommit parent : commit.getParents()) {
+        if (!listed.contains(parent) && !header.prerequisites.containsKey(parent.id)) {
+          parent.parse(pool);
+          header.prerequisites.put(parent.id, subject(parent.id));
+        }
+      }
+    }
+
+    ObjectWalk objects = new ObjectWalk(pool);
+    objects.setUseBitmaps(true);
+    for (String id : header.refs.values()) {
+      objects.markStart(id);
+    }
+    for (String id : header.prerequisites.keySet()) {
+      objects.markUninteresting(id);
+    }
+    List<ObjectWalk.Entry> entries = objects.objects();
+
+    writeHeader(out, header);
+    PackWriter writer = new PackWriter(entries);
+    writer.write(out);
+    return writer.getObjectCount();
+  }
+
+  // The full ref name an argument names, from "main", "v1..main" or "refs/tags/v1";
+  // null for ids, exclusions and revisions such as "main~2"
+  private static String refName(String arg) throws IOException {
+    if (arg.startsWith("-") || arg.startsWith("^") || arg.contains("...")) {
+      return null;
+    }
+    String name = arg.contains("..") ? arg.substring(arg.indexOf("..") + 2) : arg;
+    if (name.isEmpty()) {
+      name = "HEAD";
+    }
+    if (name.equals("HEAD") || name.startsWith("refs/")) {
+      return GitRepository.readRef(name) != null ? name : null;
+    }
+    for (String prefix : List.of("refs/heads/", "refs/tags/", "refs/remotes/")) {
+      if (GitRepository.readRef(prefix + name) != null) {
+        return prefix + name;
+      }
+    }
+    return null;
+  }
+
+  private static void writeHeader(OutputStream out, Header header) throws IOException {
+    StringBuilder text = new StringBuilder(SIGNATURE).append('\n');
+    for (Map.Entry<String, String> prerequisite : header.prerequisites.entrySet()) {
+      text.append('-').append(prerequisite.getKey()).append(' ').append(prerequisite.getValue()).append('\n');
+    }
+    for (Map.Entry<String, String> ref : header.refs.entrySet()) {
+      String id = ref.getValue();
+      if (id.startsWith("ref: ")) {
+        id = GitRepository.resolveRef(ref.getKey());
+      }
+      text.append(id).append(' ').append(ref.getKey()).append('\n');
+    }
+    text.append('\n');
+    out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  // ========== READ ==========
+
+  // Reads the header up to the empty line, leaving in at the start of the pack
+  public static Header readHeader(InputStream in) throws IOException {
+    String signature = readLine(in);
+    if (!SIGNATURE.equals(signature)) {
+      throw new IOException("not a v2 bundle file");
+    }
+    Header header = new Header();
+    for (String line = readLine(in); ; line = readLine(in)) {
+      if (line == null) {
+        throw new IOException("bundle header ends early");
+      }
+      if (line.isEmpty()) {
+        return header;
+      }
+      boolean prerequisite = line.startsWith("-");
+      String text = prerequisite ? line.substring(1) : line;
+      if (text.length() < 40 || !text.substring(0, 40).matches("[0-9a-f]{40}")) {
+        throw new IOException("unrecognized bundle header line: " + line);
+      }
+      String rest = text.length() > 41 ? text.substring(41) : "";
+      if (prerequisite) {
+        header.prerequisites.put(text.substring(0, 40), rest);
+      } else {
+        header.refs.put(rest, text.substring(0, 40));
+      }
+    }
+  }
+
+  // One '\n'-terminated line, read a byte at a time so nothing past it is consumed
+  private static String readLine(InputStream in) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != '\n') {
+      if (b < 0) {
+        return line.size() > 0 ? line.toString(StandardCharsets.UTF_8) : null;
+      }
+      line.write(b);
+    }
+    return line.toString(StandardCharsets.UTF_8);
+  }
+
+  // The prerequisites this repository does not have as commits
+  public static List<String> missingPrerequisites(Header header) throws IOException {
+    List<String> missing = new ArrayList<>();
+    for (String id : header.prerequisites.keySet()) {
+      if (!ObjectStore.hasObject(id) || !ObjectStore.readHeader(id).type.equals("commit")) {
+        missing.add(id);
+      }
+    }
+    return missing;
+  }
+
+  // Checks the prerequisites, then indexes the pack as it is read; with store the pack
+  // is added to objects/pack, otherwise it is only checked. Returns the header.
+  public static Header read(InputStream in, boolean store) throws IOException {
+    Header header = readHeader(in);
+    List<String> missing = missingPrerequisites(header);
+    if (!missing.isEmpty()) {
+      StringBuilder message = new StringBuilder("Repository lacks these prerequisite commits:");
+      for (String id : missing) {
+        message.append("\n").append(id).append(' ').append(header.prerequisites.get(id));
+      }
+      throw new IOException(message.toString());
+    }
+    IndexPack indexPack = new IndexPack(in).setFixThin(true);
+    if (store) {
+      indexPack.run();
+    } else {
+      indexPack.verify();
+    }
+    return header;
+  }
+
+  // ========== HELPERS ==========
+
+  // The commit an id names, following annotated tags; null for trees and blobs
+  private static String peel(String id) throws IOException {
+    while (true) {
+      ObjectStore.ObjectInfo object = ObjectStore.parseObject(id);
+      switch (object.type) {
+        case "commit" -> {
+          return id;
+        }
+        case "tag" -> {
+          String content = new String(object.content, StandardCharsets.UTF_8);
+          if (!content.startsWith("object ")) {
+            throw new IOException("Malformed tag object: " + id);
+          }
+          id = content.substring(7, 47);
+        }
+        default -> {
+          return null;
+        }
+      }
+    }
+  }
+
+  private static String subject(String commitId) throws IOException {
+    String content = new String(ObjectStore.parseObject(commitId).content, StandardCharsets.UTF_8);
+    int body = content.indexOf("\n\n");
+    if (body < 0) {
+      return "";
+    }
+    int end = content.indexOf('\n', body + 2);
+    return content.substring(body + 2, end < 0 ? content.length() : end);
+  }
+}
@@ -0,0 +1,182 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+// cat-file --batch / --batch-check: one object name per input line, one response per
+// line in input order. --batch prints "<id> <type> <size>", the raw content and a
+// newline; --batch-check only the header line (from ObjectStore.readHeader, which does
+// not inflate the content). A custom format may use %(objectname), %(objecttype),
+// %(objectsize) and %(rest) (the text after the name on the input line).
+//
+// Output is buffered and flushed whenever no more input is waiting, so a caller
+// feeding one name at a time still gets each answer right away. With more than one
+// thread, lookups run on a pool while a bounded queue of futures keeps the output
+// in input order.
+public class CatFileBatch {
+  private static final String DEFAULT_FORMAT = "%(objectname) %(objecttype) %(objectsize)";
+
+  private final boolean contents;
+  private final String format;
+  private final int threads;
+  private final Repository repository = Repository.current();
+
+  public CatFileBatch(boolean contents, String format, int threads) throws IOException {
+    this.contents = contents;
+    this.format = format != null ? format : DEFAULT_FORMAT;
+    this.threads = threads;
+    for (int start = this.format.indexOf("%("); start >= 0; start = this.format.indexOf("%(", start + 2)) {
+      int end = this.format.indexOf(')', start);
+      String atom = end >= 0 ? this.format.substring(start + 2, end) : this.format.substring(start);
+      if (!List.of("objectname", "objecttype", "objectsize", "rest").contains(atom)) {
+        throw new IOException("unknown format element: " + atom);
+      }
+    }
+  }
+
+  public void run(InputStream input, OutputStream output) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+    OutputStream out = new BufferedOutputStream(output, 1 << 16);
+    if (threads <= 1) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        respond(line, out);
+        if (!reader.ready()) {
+          out.flush();
+        }
+      }
+    } else {
+      runConcurrently(reader, out);
+    }
+    out.flush();
+  }
+
+  // Input is read and submitted on a separate thread; this thread writes results in
+  // submission order and flushes when it has caught up with the input
+  private void runConcurrently(BufferedReader reader, OutputStream out) throws IOException {
+    ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable, "cat-file-batch");
+      thread.setDaemon(true);
+      return thread;
+    });
+    BlockingQueue<Future<byte[]>> pending = new ArrayBlockingQueue<>(threads * 16);
+    CompletableFuture<byte[]> end = CompletableFuture.completedFuture(null);
+
+    Thread submitter = new Thread(() -> {
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          String request = line;
+          pending.put(pool.submit(() -> repository.call(() -> {
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            respond(request, response);
+            return response.toByteArray();
+          })));
+        }
+        pending.put(end);
+      } catch (IOException e) {
+        // The queue may be full; wait for room so the writer is sure to see the failure
+        try {
+          pending.put(CompletableFuture.failedFuture(e));
+        } catch (InterruptedException interrupted) {
+          // The writer gave up
+        }
+      } catch (InterruptedException e) {
+        // The writer gave up
+      }
+    }, "cat-file-input");
+    submitter.setDaemon(true);
+    submitter.start();
+
+    try {
+      while (true) {
+        Future<byte[]> next = pending.poll();
+        if (next == null) {
+          out.flush();
+          next = pending.take();
+        }
+        if (next == end) {
+          break;
+        }
+        out.write(next.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while reading objects");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+    } finally {
+      submitter.interrupt();
+      pool.shutdownNow();
+    }
+  }
+
+  private void respond(String line, OutputStream out) throws IOException {
+    int space = line.indexOf(' ');
+    String name = space >= 0 ? line.substring(0, space) : line;
+    String rest = space >= 0 ? line.substring(space + 1) : "";
+
+    String id = resolve(name);
+    ObjectStore.ObjectHeader header = null;
+    ObjectStore.ObjectInfo object = null;
+    if (id != null) {
+      try {
+        if (contents) {
+          object = ObjectStore.parseObject(id);
+        } else {
+          header = ObjectStore.readHeader(id);
+        }
+      } catch (IOException e) {
+        id = null;
+      }
+    }
+    if (id == null) {
+      out.write((name + " missing\n").getBytes(StandardCharsets.UTF_8));
+      return;
+    }
+
+    String type = object != null ? object.type : header.type;
+    long size = object != null ? object.content.length : header.size;
+    out.write((expand(id, type, size, rest) + "\n").getBytes(StandardCharsets.UTF_8));
+    if (object != null) {
+      out.write(object.content);
+      out.write('\n');
+    }
+  }
+
+  // Full ids are used as given; anything else goes through revision parsing
+  private static String resolve(String name) {
+    if (name.length() == 40 && name.matches("[0-9a-f]{40}")) {
+      return name;
+    }
+    try {
+      return new RevWalk().resolve(name);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private String expand(String id, String type, long size, String rest) {
+    StringBuilder line = new StringBuilder();
+    int pos = 0;
+    while (pos < format.length()) {
+      int start = format.indexOf("%(", pos);
+      int end = start >= 0 ? format.indexOf(')', start) : -1;
+      if (start < 0 || end < 0) {
+        line.append(format, pos, format.length());
+        break;
+      }
+      line.append(format, pos, start);
+      String atom = format.substring(start + 2, end);
+      switch (atom) {
+        case "objectname" -> line.append(id);
+        case "objecttype" -> line.append(type);
+        case "objectsize" -> line.append(size);
+        default -> line.append(rest);
+      }
+      pos = end + 1;
+    }
+    return line.toString();
+  }
+}
@@ -0,0 +1,435 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+// Reader and writer for .git/objects/info/commit-graph: a sorted table of commit ids
+// with parents, root tree, commit time and generation, plus optional changed-path
+// Bloom filters (BIDX/BDAT), so walks can skip inflating commit and tree objects
+public class CommitGraph {
+  private static final int SIGNATURE = 0x43475048; // CGPH
+  private static final int CHUNK_OIDF = 0x4f494446;
+  private static final int CHUNK_OIDL = 0x4f49444c;
+  private static final int CHUNK_CDAT = 0x43444154;
+  private static final int CHUNK_EDGE = 0x45444745;
+  private static final int CHUNK_BIDX = 0x42494458;
+  private static final int CHUNK_BDAT = 0x42444154;
+
+  private static final int PARENT_NONE = 0x70000000;
+  private static final int EXTRA_EDGES = 0x80000000;
+  private static final int LAST_EDGE = 0x80000000;
+
+  private static final int CDAT_ENTRY_SIZE = 36;
+  private static final int BDAT_HEADER_SIZE = 12;
+
+  // The mapped graph of one repository, kept until the file changes
+  private static class Cache {
+    CommitGraph graph;
+    long modified;
+    long size;
+  }
+
+  private final ByteBuffer buffer;
+  private final int commitCount;
+  private int oidfOffset = -1;
+  private int oidlOffset = -1;
+  private int cdatOffset = -1;
+  private int edgeOffset = -1;
+  private int bidxOffset = -1;
+  private int bdatOffset = -1;
+
+  private CommitGraph(ByteBuffer buffer) throws IOException {
+    this.buffer = buffer;
+    if (buffer.getInt(0) != SIGNATURE || buffer.get(4) != 1 || buffer.get(5) != 1) {
+      throw new IOException("Unsupported commit-graph file");
+    }
+
+    int chunkCount = buffer.get(6) & 0xff;
+    for (int i = 0; i < chunkCount; i++) {
+      int entry = 8 + i * 12;
+      int id = buffer.getInt(entry);
+      int offset = (int) buffer.getLong(entry + 4);
+      switch (id) {
+        case CHUNK_OIDF -> oidfOffset = offset;
+        case CHUNK_OIDL -> oidlOffset = offset;
+        case CHUNK_CDAT -> cdatOffset = offset;
+        case CHUNK_EDGE -> edgeOffset = offset;
+        case CHUNK_BIDX -> bidxOffset = offset;
+        case CHUNK_BDAT -> bdatOffset = offset;
+        default -> { }
+      }
+    }
+    if (oidfOffset < 0 || oidlOffset < 0 || cdatOffset < 0) {
+      throw new IOException("Commit-graph is missing required chunks");
+    }
+    commitCount = buffer.getInt(oidfOffset + 255 * 4);
+  }
+
+  // Returns the current graph, re-mapping the file only when it has changed on disk
+  public static CommitGraph load() throws IOException {
+    Cache cache = Repository.current().state(Cache.class, Cache::new);
+    synchronized (cache) {
+      File file = graphFile();
+      if (!file.exists() || Shallow.isShallow()) {
+        cache.graph = null;
+        return null;
+      }
+      if (cache.graph != null && file.lastModified() == cache.modified && file.length() == cache.size) {
+        return cache.graph;
+      }
+
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        cache.graph = new CommitGraph(buffer);
+        cache.modified = file.lastModified();
+        cache.size = file.length();
+      }
+      return cache.graph;
+    }
+  }
+
+  private static File graphFile() {
+    return Repository.current().gitFile("objects/info/commit-graph");
+  }
+
+  public int getCommitCount() {
+    return commitCount;
+  }
+
+  public boolean hasBloomFilters() {
+    return bidxOffset >= 0 && bdatOffset >= 0;
+  }
+
+  public int findPosition(String id) {
+    byte[] key = ObjectStore.fromHex(id);
+    int first = key[0] & 0xff;
+    int low = first == 0 ? 0 : buffer.getInt(oidfOffset + (first - 1) * 4);
+    int high = buffer.getInt(oidfOffset + first * 4) - 1;
+
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = compareId(mid, key);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  private int compareId(int position, byte[] key) {
+    int base = oidlOffset + position * 20;
+    for (int i = 0; i < 20; i++) {
+      int cmp = Integer.compare(buffer.get(base + i) & 0xff, key[i] & 0xff);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return 0;
+  }
+
+  public String getId(int position) {
+    return idAt(oidlOffset + position * 20);
+  }
+
+  public String getTree(int position) {
+    return idAt(cdatOffset + position * CDAT_ENTRY_SIZE);
+  }
+
+  public int[] getParentPositions(int position) {
+    int base = cdatOffset + position * CDAT_ENTRY_SIZE;
+    int parent1 = buffer.getInt(base + 20);
+    int parent2 = buffer.getInt(base + 24);
+    if (parent1 == PARENT_NONE) {
+      return new int[0];
+    }
+    if (parent2 == PARENT_NONE) {
+      return new int[] { parent1 };
+    }
+    if ((parent2 & EXTRA_EDGES) == 0) {
+      return new int[] { parent1, parent2 };
+    }
+
+    // Octopus merge: parent2 points into the EDGE chunk list
+    List<Integer> parents = new ArrayList<>();
+    parents.add(parent1);
+    int edge = edgeOffset + (parent2 & ~EXTRA_EDGES) * 4;
+    while (true) {
+      int value = buffer.getInt(edge);
+      parents.add(value & ~LAST_EDGE);
+      if ((value & LAST_EDGE) != 0) {
+        break;
+      }
+      edge += 4;
+    }
+    int[] result = new int[parents.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = parents.get(i);
+    }
+    return result;
+  }
+
+  public long getCommitTime(int position) {
+    int base = cdatOffset + position * CDAT_ENTRY_SIZE;
+    long high = buffer.getInt(base + 28) & 0x3L;
+    long low = buffer.getInt(base + 32) & 0xffffffffL;
+    return (high << 32) | low;
+  }
+
+  public int getGeneration(int position) {
+    return buffer.getInt(cdatOffset + position * CDAT_ENTRY_SIZE + 28) >>> 2;
+  }
+
+  public BloomFilter getBloomFilter(int position) {
+    if (!hasBloomFilters()) {
+      return null;
+    }
+    int start = position == 0 ? 0 : buffer.getInt(bidxOffset + (position - 1) * 4);
+    int end = buffer.getInt(bidxOffset + position * 4);
+    byte[] bits = new byte[end - start];
+    buffer.get(bdatOffset + BDAT_HEADER_SIZE + start, bits);
+    return new BloomFilter(bits, 0, bits.length);
+  }
+
+  private String idAt(int offset) {
+    byte[] id = new byte[20];
+    buffer.get(offset, id);
+    return ObjectStore.toHex(id, 0);
+  }
+
+  // ========== WRITE ==========
+
+  // Rewrites the graph for every commit reachable from HEAD and the refs. Filters
+  // already present in the previous graph are copied rather than recomputed.
+  public static int write(boolean changedPaths) throws IOException {
+    if (Shallow.isShallow()) {
+      throw new IOException("commit-graph: not supported in a shallow repository");
+    }
+    CommitGraph previous = load();
+    RevCommit.Pool pool = new RevCommit.Pool();
+
+    List<String> tips = new ArrayList<>(GitRepository.getAllRefs().values());
+    String head = GitRepository.getHeadCommit();
+    if (head != null) {
+      tips.add(head);
+    }
+
+    // Collect reachable commits
+    Map<String, RevCommit> commits = new HashMap<>();
+    Deque<RevCommit> pending = new ArrayDeque<>();
+    for (String tip : tips) {
+      // Symbolic refs are covered by their targets; tags count as the commit they name
+      if (tip.startsWith("ref: ")) {
+        continue;
+      }
+      String peeled = PackedRefs.peel(tip);
+      if (peeled != null) {
+        tip = peeled;
+      }
+      if (commits.containsKey(tip) || !ObjectStore.readHeader(tip).type.equals("commit")) {
+        continue;
+      }
+      RevCommit commit = pool.parse(tip);
+      commits.put(commit.id, commit);
+      pending.push(commit);
+    }
+    while (!pending.isEmpty()) {
+      RevCommit commit = pending.pop();
+      for (RevCommit parent : commit.parents) {
+        if (!commits.containsKey(parent.id)) {
+          parent.parse(pool);
+          commits.put(parent.id, parent);
+          pending.push(parent);
+        }
+      }
+    }
+
+    List<RevCommit> sorted = new ArrayList<>(commits.values());
+    sorted.sort(Comparator.comparing(c -> c.id));
+    Map<RevCommit, Integer> positions = new HashMap<>(sorted.size() * 2);
+    for (int i = 0; i < sorted.size(); i++) {
+      positions.put(sorted.get(i), i);
+    }
+    int[] generations = computeGenerations(sorted, positions);
+
+    ByteArrayOutputStream oidf = new ByteArrayOutputStream();
+    ByteArrayOutputStream oidl = new ByteArrayOutputStream();
+    ByteArrayOutputStream cdat = new ByteArrayOutputStream();
+    ByteArrayOutputStream edge = new ByteArrayOutputStream();
+    ByteArrayOutputStream bidx = new ByteArrayOutputStream();
+    ByteArrayOutputStream bdat = new ByteArrayOutputStream();
+    DataOutputStream oidfOut = new DataOutputStream(oidf);
+    DataOutputStream cdatOut = new DataOutputStream(cdat);
+    DataOutputStream edgeOut = new DataOutputStream(edge);
+    DataOutputStream bidxOut = new DataOutputStream(bidx);
+    DataOutputStream bdatOut = new DataOutputStream(bdat);
+
+    // Fanout: number of ids whose first byte is <= i
+    int[] fanout = new int[256];
+    for (RevCommit commit : sorted) {
+      fanout[Integer.parseInt(commit.id.substring(0, 2), 16)]++;
+    }
+    int running = 0;
+    for (int i = 0; i < 256; i++) {
+      running += fanout[i];
+      oidfOut.writeInt(running);
+    }
+
+    int edgeCount = 0;
+    int filterEnd = 0;
+    if (changedPaths) {
+      bdatOut.writeInt(BloomFilter.HASH_VERSION);
+      bdatOut.writeInt(BloomFilter.NUM_HASHES);
+      bdatOut.writeInt(BloomFilter.BITS_PER_ENTRY);
+    }
+
+    for (int i = 0; i < sorted.size(); i++) {
+      RevCommit commit = sorted.get(i);
+      oidl.write(ObjectStore.fromHex(commit.id));
+
+      cdatOut.write(ObjectStore.fromHex(commit.tree));
+      RevCommit[] parents = commit.parents;
+      cdatOut.writeInt(parents.length > 0 ? positions.get(parents[0]) : PARENT_NONE);
+      if (parents.length <= 1) {
+        cdatOut.writeInt(PARENT_NONE);
+      } else if (parents.length == 2) {
+        cdatOut.writeInt(positions.get(parents[1]));
+      } else {
+        cdatOut.writeInt(EXTRA_EDGES | edgeCount);
+        for (int p = 1; p < parents.length; p++) {
+          int value = positions.get(parents[p]);
+          edgeOut.writeInt(p == parents.length - 1 ? value | LAST_EDGE : value);
+          edgeCount++;
+        }
+      }
+      long time = commit.commitTime;
+      cdatOut.writeInt(generations[i] << 2 | (int) ((time >>> 32) & 0x3));
+      cdatOut.writeInt((int) time);
+
+      if (changedPaths) {
+        BloomFilter filter = null;
+        if (previous != null) {
+          int oldPosition = previous.findPosition(commit.id);
+          if (oldPosition >= 0) {
+            filter = previous.getBloomFilter(oldPosition);
+          }
+        }
+        if (filter == null) {
+          filter = BloomFilter.forPaths(changedPaths(commit, pool));
+        }
+        bdatOut.write(filter.getBytes());
+        filterEnd += filter.length();
+        bidxOut.writeInt(filterEnd);
+      }
+    }
+
+    List<int[]> chunkIds = new ArrayList<>();
+    List<byte[]> chunks = new ArrayList<>();
+    chunkIds.add(new int[] { CHUNK_OIDF });
+    chunks.add(oidf.toByteArray());
+    chunkIds.add(new int[] { CHUNK_OIDL });
+    chunks.add(oidl.toByteArray());
+    chunkIds.add(new int[] { CHUNK_CDAT });
+    chunks.add(cdat.toByteArray());
+    if (edgeCount > 0) {
+      chunkIds.add(new int[] { CHUNK_EDGE });
+      chunks.add(edge.toByteArray());
+    }
+    if (changedPaths) {
+      chunkIds.add(new int[] { CHUNK_BIDX });
+      chunks.add(bidx.toByteArray());
+      chunkIds.add(new int[] { CHUNK_BDAT });
+      chunks.add(bdat.toByteArray());
+    }
+
+    File file = graphFile();
+    file.getParentFile().mkdirs();
+    File tmp = new File(file.getParentFile(), "commit-graph.tmp");
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-1");
+      try (DataOutputStream out = new DataOutputStream(new DigestOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tmp)), md))) {
+        out.writeInt(SIGNATURE);
+        out.writeByte(1); // version
+        out.writeByte(1); // SHA-1
+        out.writeByte(chunks.size());
+        out.writeByte(0); // base graphs
+
+        long offset = 8 + (chunks.size() + 1) * 12L;
+        for (int i = 0; i < chunks.size(); i++) {
+          out.writeInt(chunkIds.get(i)[0]);
+          out.writeLong(offset);
+          offset += chunks.get(i).length;
+        }
+        out.writeInt(0);
+        out.writeLong(offset);
+
+        for (byte[] chunk : chunks) {
+          out.write(chunk);
+        }
+        out.write(md.digest());
+      }
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("SHA-1 algorithm not available", e);
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return sorted.size();
+  }
+
+  // Topological levels: roots are 1, every other commit is one more than its highest parent
+  private static int[] computeGenerations(List<RevCommit> sorted, Map<RevCommit, Integer> positions) {
+    int[] generations = new int[sorted.size()];
+    Deque<RevCommit> stack = new ArrayDeque<>();
+    for (RevCommit start : sorted) {
+      if (generations[positions.get(start)] != 0) {
+        continue;
+      }
+      stack.push(start);
+      while (!stack.isEmpty()) {
+        RevCommit commit = stack.peek();
+        int max = 0;
+        boolean ready = true;
+        for (RevCommit parent : commit.parents) {
+          int generation = generations[positions.get(parent)];
+          if (generation == 0) {
+            stack.push(parent);
+            ready = false;
+          } else {
+            max = Math.max(max, generation);
+          }
+        }
+        if (ready) {
+          stack.pop();
+          generations[positions.get(commit)] = Math.min(max + 1, 0x3fffffff);
+        }
+      }
+    }
+    return generations;
+  }
+
+  // Paths (and their leading directories) that differ from the first parent, or
+  // null once there are too many for a useful filter
+  private static Set<String> changedPaths(RevCommit commit, RevCommit.Pool pool) throws IOException {
+    String parentTree = null;
+    if (commit.parents.length > 0) {
+      commit.parents[0].parse(pool);
+      parentTree = commit.parents[0].tree;
+    }
+    Set<String> paths = new HashSet<>();
+    boolean complete = TreeDiff.diff(parentTree, commit.tree, (path, oldMode, oldId, newMode, newId) -> {
+      paths.add(path);
+      return paths.size() <= BloomFilter.MAX_CHANGED_PATHS;
+    });
+    return complete ? paths : null;
+  }
+}
@@ -3,93 +3,515 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.util.*;
 
+// Parsed view of the system, global and repository config files, in that order, so a
+// later file overrides an earlier one. Every value is kept (multi-valued keys such as
+// remote.<name>.fetch); single lookups return the last one. Keys are stored as
+// "section.subsection.name" with section and name lowercased, since only
+// subsections are case-sensitive in git's format.
+//
+// The parsed snapshot is shared by the whole process and replaced when one of its
+// files (including include.path targets) changes on disk. Every snapshot() call
+// checks the files' timestamps and sizes, so a long-lived process such as the daemon
+// sees edits made elsewhere at once; callers reading several values keep the
+// snapshot in a local.
+//
+// Which files are read depends on the environment (GIT_CONFIG_GLOBAL, HOME, ...).
+// The daemon runs each command under its client's environment with
+// withEnvironment(), and a snapshot read under a different set of files is reloaded.
 public class Config {
-  
+  private static final int MAX_INCLUDE_DEPTH = 10;
+  private static final InheritableThreadLocal<Map<String, String>> ENVIRONMENT = new InheritableThreadLocal<>();
+
+  // Snapshot of one repository's configuration
+  private static class Cache {
+    Config config;
+  }
+
+  // One assignment of a key. A line with a name and no '=' is bare, which reads as
+  // boolean true and as an empty string.
+  private static class Value {
+    final String text;
+    final boolean bare;
+
+    Value(String text, boolean bare) {
+      this.text = text;
+      this.bare = bare;
+    }
+  }
+
+  private final Map<String, List<Value>> values;
+  // The files configFiles() named, and every file actually read including includes
+  private final List<File> files;
+  private final List<File> sources;
+  private final long[] modified;
+  private final long[] sizes;
+
+  private Config(Map<String, List<Value>> values, List<File> files, List<File> sources) {
+    this.values = values;
+    this.files = files;
+    this.sources = sources;
+    this.modified = new long[sources.size()];
+    this.sizes = new long[sources.size()];
+    for (int i = 0; i < sources.size(); i++) {
+      modified[i] = sources.get(i).lastModified();
+      sizes[i] = sources.get(i).length();
+    }
+  }
+
+  // The current repository's snapshot; callers reading several values should keep it
+  // in a local
+  public static Config snapshot() throws IOException {
+    Cache cache = Repository.current().state(Cache.class, Cache::new);
+    List<File> files = configFiles();
+    synchronized (cache) {
+      if (cache.config == null || !cache.config.files.equals(files) || cache.config.isStale()) {
+        cache.config = load(files);
+      }
+      return cache.config;
+    }
+  }
+
+  // Runs action with env standing in for System.getenv() and HOME for user.home
+  // when config files are looked up, on this thread and the threads it starts
+  public static <T> T withEnvironment(Map<String, String> env, Repository.Action<T> action) throws IOException {
+    Map<String, String> previous = ENVIRONMENT.get();
+    ENVIRONMENT.set(env);
+    try {
+      return action.run();
+    } finally {
+      ENVIRONMENT.set(previous);
+    }
+  }
+
+  private static String getenv(String name) {
+    Map<String, String> env = ENVIRONMENT.get();
+    return env != null ? env.get(name) : System.getenv(name);
+  }
+
+  private static String home() {
+    Map<String, String> env = ENVIRONMENT.get();
+    String home = env != null ? env.get("HOME") : null;
+    return home != null ? home : System.getProperty("user.home");
+  }
+
+  private static void invalidate() {
+    Cache cache = Repository.current().state(Cache.class, Cache::new);
+    synchronized (cache) {
+      cache.config = null;
+    }
+  }
+
+  private boolean isStale() {
+    for (int i = 0; i < sources.size(); i++) {
+      File file = sources.get(i);
+      if (file.lastModified() != modified[i] || file.length() != sizes[i]) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static Config load(List<File> files) throws IOException {
+    Map<String, List<Value>> values = new HashMap<>();
+    List<File> sources = new ArrayList<>();
+    for (File file : files) {
+      parse(file, 0, values, sources);
+    }
+    return new Config(values, files, sources);
+  }
+
+  // Lowest precedence first, following git's lookup of the same files and variables
+  private static List<File> configFiles() {
+    List<File> files = new ArrayList<>();
+    String home = home();
+    if (getenv("GIT_CONFIG_NOSYSTEM") == null) {
+      String system = getenv("GIT_CONFIG_SYSTEM");
+      files.add(new File(system != null ? system : "/etc/gitconfig"));
+    }
+    String global = getenv("GIT_CONFIG_GLOBAL");
+    if (global != null) {
+      files.add(new File(global));
+    } else {
+      String xdg = getenv("XDG_CONFIG_HOME");
+      files.add(xdg != null && !xdg.isEmpty() ? new File(xdg, "git/config") : new File(home, ".config/git/config"));
+      files.add(new File(home, ".gitconfig"));
+    }
+    files.add(Repository.current().gitFile("config"));
+    return files;
+  }
+
+  // ========== LOOKUPS ==========
+
+  // Last value of section[.subsection].name, or null if unset
+  public String getString(String section, String subsection, String name) {
+    Value value = getRaw(section, subsection, name);
+    return value != null ? value.text : null;
+  }
+
+  private Value getRaw(String section, String subsection, String name) {
+    List<Value> list = values.get(key(section, subsection, name));
+    return list == null ? null : list.get(list.size() - 1);
+  }
+
+  public List<String> getStringList(String section, String subsection, String name) {
+    List<Value> list = values.get(key(section, subsection, name));
+    if (list == null) {
+      return List.of();
+    }
+    List<String> texts = new ArrayList<>();
+    for (Value value : list) {
+      texts.add(value.text);
+    }
+    return texts;
+  }
+
+  public int getInt(String section, String subsection, String name, int defaultValue) throws IOException {
+    long value = getSize(section, subsection, name, defaultValue);
+    if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+      throw new IOException("bad numeric config value '" + getString(section, subsection, name) + "' for '"
+          + key(section, subsection, name) + "': out of range");
+    }
+    return (int) value;
+  }
+
+  // A number with an optional k, m or g suffix (powers of 1024), as in "32m"
+  public long getSize(String section, String subsection, String name, long defaultValue) throws IOException {
+    String value = getString(section, subsection, name);
+    if (value == null) {
+      return defaultValue;
+    }
+    String digits = value.trim();
+    long unit = 1;
+    char suffix = digits.isEmpty() ? 0 : Character.toLowerCase(digits.charAt(digits.length() - 1));
+    if (suffix == 'k' || suffix == 'm' || suffix == 'g') {
+      unit = suffix == 'k' ? 1L << 10 : suffix == 'm' ? 1L << 20 : 1L << 30;
+      digits = digits.substring(0, digits.length() - 1);
+    }
+    try {
+      return Math.multiplyExact(Long.parseLong(digits), unit);
+    } catch (NumberFormatException | ArithmeticException e) {
+      throw new IOException("bad numeric config value '" + value + "' for '" + key(section, subsection, name) + "'");
+    }
+  }
+
+  public boolean getBoolean(String section, String subsection, String name, boolean defaultValue) throws IOException {
+    Value raw = getRaw(section, subsection, name);
+    if (raw == null) {
+      return defaultValue;
+    }
+    if (raw.bare) {
+      return true;
+    }
+    String value = raw.text;
+    switch (value.toLowerCase()) {
+      case "true", "yes", "on":
+        return true;
+      case "false", "no", "off", "":
+        return false;
+      default:
+        try {
+          return getSize(section, subsection, name, 0) != 0;
+        } catch (IOException e) {
+          throw new IOException("bad boolean config value '" + value + "' for '" + key(section, subsection, name) + "'");
+        }
+    }
+  }
+
+  // Subsection names used under section, e.g. the configured remotes
+  public Set<String> getSubsections(String section) {
+    String prefix = section.toLowerCase() + ".";
+    Set<String> subsections = new TreeSet<>();
+    for (String key : values.keySet()) {
+      int last = key.lastIndexOf('.');
+      if (key.startsWith(prefix) && last > prefix.length()) {
+        subsections.add(key.substring(prefix.length(), last));
+      }
+    }
+    return subsections;
+  }
+
+  private static String key(String section, String subsection, String name) {
+    String key = section.toLowerCase();
+    if (subsection != null) {
+      key += "." + subsection;
+    }
+    return key + "." + name.toLowerCase();
+  }
+
+  // ========== PARSING ==========
+
+  private static void parse(File file, int depth, Map<String, List<Value>> values, List<File> sources) throws IOException {
+    if (depth > MAX_INCLUDE_DEPTH) {
+      throw new IOException("exceeded maximum include depth (" + MAX_INCLUDE_DEPTH + ") while including " + file);
+    }
+    sources.add(file);
+    if (!file.isFile()) {
+      return;
+    }
+
+    String text = Files.readString(file.toPath());
+    int[] pos = { 0 };
+    String section = null;
+    while (pos[0] < text.length()) {
+      char c = text.charAt(pos[0]);
+      if (Character.isWhitespace(c)) {
+        pos[0]++;
+      } else if (c == '#' || c == ';') {
+        skipLine(text, pos);
+      } else if (c == '[') {
+        section = parseSectionHeader(text, pos, file);
+      } else if (Character.isLetter(c)) {
+        int start = pos[0];
+        while (pos[0] < text.length() && (Character.isLetterOrDigit(text.charAt(pos[0])) || text.charAt(pos[0]) == '-')) {
+          pos[0]++;
+        }
+        String name = text.substring(start, pos[0]).toLowerCase();
+        while (pos[0] < text.length() && (text.charAt(pos[0]) == ' ' || text.charAt(pos[0]) == '\t')) {
+          pos[0]++;
+        }
+        Value value = new Value("", true);
+        if (pos[0] < text.length() && text.charAt(pos[0]) == '=') {
+          pos[0]++;
+          value = new Value(parseValue(text, pos, file), false);
+        } else if (pos[0] < text.length() && text.charAt(pos[0]) != '\n' && text.charAt(pos[0]) != '\r'
+            && text.charAt(pos[0]) != '#' && text.charAt(pos[0]) != ';') {
+          throw badLine(text, pos[0], file);
+        } else {
+          skipLine(text, pos);
+        }
+        if (section == null) {
+          throw badLine(text, start, file);
+        }
+
+        String key = section + "." + name;
+        values.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
+        if (key.equals("include.path") && !value.bare && !value.text.isEmpty()) {
+          parse(resolveInclude(value.text, file), depth + 1, values, sources);
+        }
+      } else {
+        throw badLine(text, pos[0], file);
+      }
+    }
+  }
+
+  // [section], [section "subsection"] or the legacy [section.subsection]; returns the
+  // key prefix with section (and a legacy subsection) lowercased
+  private static String parseSectionHeader(String text, int[] pos, File file) throws IOException {
+    int start = pos[0]++;
+    StringBuilder name = new StringBuilder();
+    while (pos[0] < text.length()) {
+      char c = text.charAt(pos[0]);
+      if (Character.isLetterOrDigit(c) || c == '-' || c == '.') {
+        name.append(Character.toLowerCase(c));
+        pos[0]++;
+      } else {
+        break;
+      }
+    }
+    if (name.length() == 0) {
+      throw badLine(text, start, file);
+    }
+
+    String section = name.toString();
+    while (pos[0] < text.length() && (text.charAt(pos[0]) == ' ' || text.charAt(pos[0]) == '\t')) {
+      pos[0]++;
+    }
+    if (pos[0] < text.length() && text.charAt(pos[0]) == '"') {
+      pos[0]++;
+      StringBuilder subsection = new StringBuilder();
+      while (true) {
+        if (pos[0] >= text.length() || text.charAt(pos[0]) == '\n') {
+          throw badLine(text, start, file);
+        }
+        char c = text.charAt(pos[0]++);
+        if (c == '"') {
+          break;
+        }
+        if (c == '\\' && pos[0] < text.length()) {
+          c = text.charAt(pos[0]++);
+        }
+        subsection.append(c);
+      }
+      section += "." + subsection;
+    }
+    if (pos[0] >= text.length() || text.charAt(pos[0]) != ']') {
+      throw badLine(text, start, file);
+    }
+    pos[0]++;
+    return section;
+  }
+
+  // Value after '=' up to the end of the line: double quotes keep whitespace and
+  // comment characters, backslash escapes \n \t \b \\ \" and joins continued lines,
+  // and unquoted surrounding whitespace is dropped
+  private static String parseValue(String text, int[] pos, File file) throws IOException {
+    StringBuilder value = new StringBuilder();
+    int pendingSpace = 0;
+    boolean quoted = false;
+    while (pos[0] < text.length()) {
+      char c = text.charAt(pos[0]++);
+      if (c == '\n') {
+        if (quoted) {
+          throw badLine(text, pos[0] - 1, file);
+        }
+        break;
+      }
+      if (c == '\r' && !quoted) {
+        continue;
+      }
+      if (!quoted && (c == ' ' || c == '\t')) {
+        if (value.length() > 0) {
+          pendingSpace++;
+        }
+        continue;
+      }
+      if (!quoted && (c == '#' || c == ';')) {
+        skipLine(text, pos);
+        break;
+      }
+      for (; pendingSpace > 0; pendingSpace--) {
+        value.append(' ');
+      }
+      if (c == '"') {
+        quoted = !quoted;
+      } else if (c == '\\') {
+        if (pos[0] >= text.length()) {
+          throw badLine(text, pos[0] - 1, file);
+        }
+        char escaped = text.charAt(pos[0]++);
+        switch (escaped) {
+          case '\n' -> { }
+          case 'n' -> value.append('\n');
+          case 't' -> value.append('\t');
+          case 'b' -> value.append('\b');
+          case '\\', '"' -> value.append(escaped);
+          default -> throw badLine(text, pos[0] - 2, file);
+        }
+      } else {
+        value.append(c);
+      }
+    }
+    return value.toString();
+  }
+
+  private static void skipLine(String text, int[] pos) {
+    while (pos[0] < text.length() && text.charAt(pos[0]) != '\n') {
+      pos[0]++;
+    }
+  }
+
+  private static IOException badLine(String text, int offset, File file) {
+    int line = 1;
+    for (int i = 0; i < offset && i < text.length(); i++) {
+      if (text.charAt(i) == '\n') {
+        line++;
+      }
+    }
+    return new IOException("bad config line " + line + " in file " + file.getPath());
+  }
+
+  // Relative include paths are relative to the including file; ~/ is the home directory
+  private static File resolveInclude(String path, File from) {
+    if (path.startsWith("~/")) {
+      return new File(home(), path.substring(2));
+    }
+    File file = new File(path);
+    return file.isAbsolute() ? file : new File(from.getAbsoluteFile().getParentFile(), path);
+  }
+
+  // ========== REPOSITORY CONFIG ==========
+
   public static void createDefaultConfig() throws IOException {
-    File configFile = new File(".git/config");
+    File configFile = Repository.current().gitFile("config");
     configFile.getParentFile().mkdirs();
-    
+
     StringBuilder config = new StringBuilder();
     config.append("[core]\n");
     config.append("\trepositoryformatversion = 0\n");
     config.append("\tfilemode = true\n");
     config.append("\tbare = false\n");
-    
+
     Files.write(configFile.toPath(), config.toString().getBytes());
+    invalidate();
   }
-  
+
   public static String getConfigValue(String section, String key) {
     try {
-      File configFile = new File(".git/config");
-      if (!configFile.exists()) {
-        return null;
-      }
-      
-      List<String> lines = Files.readAllLines(configFile.toPath());
-      String currentSection = null;
-      
-      for (String line : lines) {
-        line = line.trim();
-        if (line.startsWith("[") && line.endsWith("]")) {
-          currentSection = line.substring(1, line.length() - 1);
-        } else if (currentSection != null && currentSection.equals(section) && line.contains("=")) {
-          String[] parts = line.split("=", 2);
-          if (parts.length == 2 && parts[0].trim().equals(key)) {
-            return parts[1].trim();
-          }
-        }
-      }
-    } catch (Exception e) {
-      // Return null on error
+      return snapshot().getString(section, null, key);
+    } catch (IOException e) {
+      // Unreadable config behaves like an unset value here
+      return null;
     }
-    return null;
   }
-  
+
   public static void setConfigValue(String section, String key, String value) throws IOException {
-    File configFile = new File(".git/config");
+    setConfigValue(section, null, key, value);
+  }
+
+  // Sets the value in .git/config, replacing the last existing one or adding it to
+  // the section (creating [section "subsection"] when needed)
+  public static void setConfigValue(String section, String subsection, String key, String value) throws IOException {
+    File configFile = Repository.current().gitFile("config");
     configFile.getParentFile().mkdirs();
-    
+
     List<String> lines = new ArrayList<>();
     if (configFile.exists()) {
       lines = new ArrayList<>(Files.readAllLines(configFile.toPath()));
     }
-    
+
     // Find section and update or add value
+    String wanted = key(section, subsection, key);
+    String entry = "\t" + key + " = " + quote(value);
     String currentSection = null;
-    boolean found = false;
+    int found = -1;
     int insertIndex = -1;
-    
+
     for (int i = 0; i < lines.size(); i++) {
       String line = lines.get(i).trim();
       if (line.startsWith("[") && line.endsWith("]")) {
-        currentSection = line.substring(1, line.length() - 1);
-        if (currentSection.equals(section)) {
+        try {
+          currentSection = parseSectionHeader(line, new int[] { 0 }, configFile);
+        } catch (IOException e) {
+          currentSection = null;
+        }
+        if (wanted.equals(currentSection + "." + key.toLowerCase())) {
           insertIndex = i + 1;
         }
-      } else if (currentSection != null && currentSection.equals(section) && line.contains("=")) {
-        String[] parts = line.split("=", 2);
-        if (parts.length >= 1 && parts[0].trim().equals(key)) {
-          lines.set(i, "\t" + key + " = " + value);
-          found = true;
-          break;
+      } else if (currentSection != null && line.contains("=")) {
+        String name = line.split("=", 2)[0].trim();
+        if (wanted.equals(currentSection + "." + name.toLowerCase())) {
+          found = i;
+          insertIndex = i + 1;
         }
       }
     }
-    
-    if (!found) {
-      if (insertIndex == -1) {
-        // Section doesn't exist, add it
-        lines.add("[" + section + "]");
-        lines.add("\t" + key + " = " + value);
-      } else {
-        // Section exists, add key-value
-        lines.add(insertIndex, "\t" + key + " = " + value);
-      }
+
+    if (found >= 0) {
+      lines.set(found, entry);
+    } else if (insertIndex == -1) {
+      // Section doesn't exist, add it
+      lines.add(subsection != null ? "[" + section + " \"" + subsection.replace("\\", "\\\\").replace("\"", "\\\"") + "\"]"
+          : "[" + section + "]");
+      lines.add(entry);
+    } else {
+      // Section exists, add key-value
+      lines.add(insertIndex, entry);
     }
-    
+
     Files.write(configFile.toPath(), lines);
+    invalidate();
   }
-  
+
+  // Quotes a value that would not survive parseValue unchanged
+  private static String quote(String value) {
+    boolean plain = !value.isEmpty() && !value.startsWith(" ") && !value.endsWith(" ")
+        && value.chars().noneMatch(c -> c == '#' || c == ';' || c == '"' || c == '\\' || c == '\n' || c == '\t');
+    if (plain) {
+      return value;
+    }
+    return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n").replace("\t", "\\t") + "\"";
+  }
+
   public static String getUserName() {
     String name = getConfigValue("user", "name");
     if (name == null) {
@@ -97,7 +519,7 @@ public class Config {
     }
     return name;
   }
-  
+
   public static String getUserEmail() {
     String email = getConfigValue("user", "email");
     if (email == null) {
@@ -106,4 +528,3 @@ public class Config {
     return email;
   }
 }
-
@@ -0,0 +1,480 @@
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.HashMap;
+import java.util.Map;
+
+// A long-running process serving commands for one repository over the Unix socket
+// .git/daemon/sock, so repeated commands skip JVM startup and reuse the warm object,
+// index, ref and config caches. Every cache it relies on revalidates against the
+// files on disk, so commands run by other processes in between are picked up. The
+// socket and log sit in a directory only the owner can enter.
+//
+// Commands run one at a time (they share static state and System.out), in the
+// client's environment; a client whose working directory is not the daemon's worktree
+// is refused. Each connection carries one command in frames of a type byte, a 4-byte
+// big-endian length and the payload:
+//
+//   client -> daemon   'D' working directory, 'V' NUL-separated NAME=value environment,
+//                      'A' NUL-separated arguments, then one 'I' with stdin data for
+//                      each 'R' ('I' with an empty payload marks end of input)
+//   daemon -> client   'O' stdout data, 'E' stderr data, 'R' when the command reads
+//                      stdin, then 'X' with the 4-byte exit code
+public class Daemon {
+  static final int CWD = 'D';
+  static final int ENV = 'V';
+  static final int ARGS = 'A';
+  static final int STDIN = 'I';
+  static final int READ = 'R';
+  static final int STDOUT = 'O';
+  static final int STDERR = 'E';
+  static final int EXIT = 'X';
+
+  private static final Object COMMAND_LOCK = new Object();
+  private static ServerSocketChannel server;
+  private static long startTime;
+  private static long commandsServed;
+
+  // ========== CLIENT ==========
+
+  // Holds the socket and the log
+  private static File directory() {
+    return Repository.current().gitFile("daemon");
+  }
+
+  private static File socket() {
+    return new File(directory(), "sock");
+  }
+
+  private static File log() {
+    return new File(directory(), "log");
+  }
+
+  // Runs args on this repository's daemon and relays its output; returns -1 when no
+  // daemon is reachable, so the caller can run the command itself
+  public static int forward(String[] args) {
+    SocketChannel channel = connect();
+    if (channel == null) {
+      return -1;
+    }
+    try (channel) {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream(channel)));
+      DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream(channel)));
+      writeFrame(out, CWD, System.getProperty("user.dir").getBytes(StandardCharsets.UTF_8));
+      StringBuilder env = new StringBuilder();
+      for (Map.Entry<String, String> variable : System.getenv().entrySet()) {
+        env.append(variable.getKey()).append('=').append(variable.getValue()).append('\0');
+      }
+      writeFrame(out, ENV, env.toString().getBytes(StandardCharsets.UTF_8));
+      writeFrame(out, ARGS, String.join("\0", args).getBytes(StandardCharsets.UTF_8));
+      out.flush();
+
+      byte[] stdin = new byte[8192];
+      while (true) {
+        int type = in.read();
+        if (type < 0) {
+          throw new EOFException("daemon closed the connection");
+        }
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        if (type == STDOUT) {
+          System.out.write(payload, 0, payload.length);
+        } else if (type == STDERR) {
+          System.out.flush();
+          System.err.write(payload, 0, payload.length);
+          System.err.flush();
+        } else if (type == READ) {
+          // Whatever produces our stdin may be waiting for the output so far
+          System.out.flush();
+          int n = System.in.read(stdin);
+          writeFrame(out, STDIN, stdin, 0, Math.max(n, 0));
+          out.flush();
+        } else if (type == EXIT) {
+          System.out.flush();
+          return ByteBuffer.wrap(payload).getInt();
+        }
+      }
+    } catch (IOException e) {
+      // The command may have run partly; running it again here would not be safe
+      System.err.println("Error: lost connection to daemon: " + e.getMessage());
+      return 128;
+    }
+  }
+
+  private static SocketChannel connect() {
+    File socket = socket();
+    if (!socket.exists()) {
+      return null;
+    }
+    try {
+      return SocketChannel.open(address(socket));
+    } catch (IOException e) {
+      // Stale socket left by a daemon that was killed
+      return null;
+    }
+  }
+
+  private static boolean isRunning() {
+    SocketChannel channel = connect();
+    if (channel == null) {
+      return false;
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // Reachable is all we wanted to know
+    }
+    return true;
+  }
+
+  // A socket path is limited to about 100 bytes, so it is given relative to the
+  // working directory when that is shorter
+  private static UnixDomainSocketAddress address(File socket) {
+    Path path = socket.toPath().toAbsolutePath();
+    Path relative = Paths.get("").toAbsolutePath().relativize(path);
+    return UnixDomainSocketAddress.of(relative.toString().length() < path.toString().length() ? relative : path);
+  }
+
+  // Creates the daemon directory readable by the owner only, or tightens an existing
+  // one, before anything is put in it
+  private static void createDirectory() throws IOException {
+    Path dir = directory().toPath();
+    if (Files.isDirectory(dir)) {
+      Files.setPosixFilePermissions(dir, PosixFilePermissions.fromString("rwx------"));
+    } else {
+      Files.createDirectory(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+    }
+  }
+
+  // Launches "daemon run" as a background process logging to .git/daemon/log and
+  // waits until it accepts connections
+  public static void start() throws IOException {
+    Repository repository = Repository.current();
+    if (!repository.getGitDir().isDirectory()) {
+      throw new IOException("Not a git repository");
+    }
+    if (isRunning()) {
+      System.out.println("Daemon already running");
+      return;
+    }
+    createDirectory();
+    File log = log();
+    String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+    ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "Main", "daemon", "run");
+    builder.directory(repository.getWorkTree());
+    builder.redirectInput(ProcessBuilder.Redirect.from(new File("/dev/null")));
+    builder.redirectOutput(ProcessBuilder.Redirect.appendTo(log));
+    builder.redirectErrorStream(true);
+    Process process = builder.start();
+
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (!isRunning()) {
+      if (!process.isAlive() || System.currentTimeMillis() > deadline) {
+        process.destroy();
+        throw new IOException("Daemon failed to start; see " + log.getPath());
+      }
+      try {
+        Thread.sleep(20);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while starting daemon");
+      }
+    }
+    System.out.println("Daemon started (pid " + process.pid() + ")");
+  }
+
+  // ========== SERVER ==========
+
+  public static void serve() throws IOException {
+    Repository repository = Repository.current();
+    if (!repository.getGitDir().isDirectory()) {
+      throw new IOException("Not a git repository");
+    }
+    if (isRunning()) {
+      throw new IOException("A daemon is already running for this repository");
+    }
+    // Binding creates the socket with the umask's permissions, so nobody else may
+    // reach the directory it is created in
+    createDirectory();
+    File socket = socket();
+    Path path = socket.toPath();
+    Files.deleteIfExists(path);
+    try (ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+      channel.bind(address(socket));
+      Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"));
+      synchronized (Daemon.class) {
+        server = channel;
+        startTime = System.currentTimeMillis();
+      }
+      System.out.println("Daemon listening on " + path + " (pid " + ProcessHandle.current().pid() + ")");
+      System.out.flush();
+
+      while (true) {
+        SocketChannel client;
+        try {
+          client = channel.accept();
+        } catch (ClosedChannelException e) {
+          break;
+        }
+        Thread thread = new Thread(() -> handle(repository, client), "daemon-client");
+        thread.setDaemon(true);
+        thread.start();
+      }
+    } finally {
+      Files.deleteIfExists(path);
+    }
+    System.out.println("Daemon stopped");
+  }
+
+  private static void handle(Repository repository, SocketChannel channel) {
+    try (channel) {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream(channel)));
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream(channel)));
+      String cwd = null;
+      Map<String, String> env = new HashMap<>();
+      String[] args = null;
+      while (args == null) {
+        int type = in.read();
+        if (type < 0) {
+          return;
+        }
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        String text = new String(payload, StandardCharsets.UTF_8);
+        if (type == CWD) {
+          cwd = text;
+        } else if (type == ENV) {
+          for (String variable : text.split("\0")) {
+            int eq = variable.indexOf('=');
+            if (eq > 0) {
+              env.put(variable.substring(0, eq), variable.substring(eq + 1));
+            }
+          }
+        } else if (type == ARGS) {
+          args = text.split("\0", -1);
+        } else {
+          return;
+        }
+      }
+
+      boolean stop = args[0].equals("daemon") && args.length > 1 && args[1].equals("stop");
+      int code;
+      synchronized (COMMAND_LOCK) {
+        if (args[0].equals("daemon")) {
+          code = control(args, out);
+        } else if (cwd == null || !sameFile(new File(cwd), repository.getWorkTree())) {
+          code = refuse(repository, cwd, out);
+        } else {
+          String[] command = args;
+          code = repository.call(() -> Config.withEnvironment(env, () -> runCommand(command, in, out)));
+        }
+        synchronized (out) {
+          writeFrame(out, EXIT, ByteBuffer.allocate(4).putInt(code).array());
+          out.flush();
+        }
+        // Closing the listener while holding the lock lets a running command finish first
+        if (stop) {
+          server.close();
+        }
+      }
+    } catch (IOException e) {
+      System.out.println("Client connection failed: " + e.getMessage());
+    }
+  }
+
+  // Runs one command with System.in/out/err attached to the connection
+  private static int runCommand(String[] args, DataInputStream in, DataOutputStream out) throws IOException {
+    PrintStream savedOut = System.out;
+    PrintStream savedErr = System.err;
+    InputStream savedIn = System.in;
+    PrintStream stdout = new PrintStream(new BufferedOutputStream(new FrameOutputStream(out, STDOUT), 8192), false,
+        StandardCharsets.UTF_8);
+    PrintStream stderr = new PrintStream(new FrameOutputStream(out, STDERR), true, StandardCharsets.UTF_8);
+    System.setOut(stdout);
+    System.setErr(stderr);
+    System.setIn(new FrameInputStream(in, out));
+    try {
+      commandsServed++;
+      ObjectStore.reloadConfig();
+      return Main.run(args);
+    } catch (Throwable t) {
+      // Errors Main.run does not catch (out of memory, stack overflow) end only this command
+      stderr.println("Error: " + t);
+      return 1;
+    } finally {
+      stdout.flush();
+      stderr.flush();
+      System.setOut(savedOut);
+      System.setErr(savedErr);
+      System.setIn(savedIn);
+    }
+  }
+
+  private static boolean sameFile(File a, File b) {
+    try {
+      return a.getCanonicalFile().equals(b.getCanonicalFile());
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  // Relative paths in a command would resolve against the daemon's directory
+  private static int refuse(Repository repository, String cwd, DataOutputStream out) throws IOException {
+    byte[] bytes = ("Error: the daemon serves " + repository.getWorkTree() + ", not " + cwd + "\n")
+        .getBytes(StandardCharsets.UTF_8);
+    synchronized (out) {
+      writeFrame(out, STDERR, bytes, 0, bytes.length);
+    }
+    return 128;
+  }
+
+  private static int control(String[] args, DataOutputStream out) throws IOException {
+    String action = args.length > 1 ? args[1] : "";
+    String reply;
+    if (action.equals("status")) {
+      long uptime = (System.currentTimeMillis() - startTime) / 1000;
+      reply = "Daemon running (pid " + ProcessHandle.current().pid() + "), up " + uptime + "s, "
+          + commandsServed + " commands served\n";
+    } else if (action.equals("stop")) {
+      reply = "Daemon stopped\n";
+    } else {
+      reply = "Only 'daemon status' and 'daemon stop' are accepted by a running daemon\n";
+    }
+    byte[] bytes = reply.getBytes(StandardCharsets.UTF_8);
+    synchronized (out) {
+      writeFrame(out, STDOUT, bytes, 0, bytes.length);
+    }
+    return action.equals("status") || action.equals("stop") ? 0 : 1;
+  }
+
+  // ========== FRAMES ==========
+
+  private static void writeFrame(DataOutputStream out, int type, byte[] payload) throws IOException {
+    writeFrame(out, type, payload, 0, payload.length);
+  }
+
+  private static void writeFrame(DataOutputStream out, int type, byte[] payload, int offset, int length) throws IOException {
+    out.write(type);
+    out.writeInt(length);
+    out.write(payload, offset, length);
+  }
+
+  // Stdout or stderr of a command as frames of one type
+  private static class FrameOutputStream extends OutputStream {
+    private final DataOutputStream out;
+    private final int type;
+
+    FrameOutputStream(DataOutputStream out, int type) {
+      this.out = out;
+      this.type = type;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return;
+      }
+      synchronized (out) {
+        writeFrame(out, type, b, off, len);
+        out.flush();
+      }
+    }
+  }
+
+  // The client's stdin, asked for with an 'R' frame each time the buffer runs out, so
+  // the client only reads its terminal or pipe for commands that read stdin
+  private static class FrameInputStream extends InputStream {
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private byte[] buffer = new byte[0];
+    private int pos;
+    private boolean eof;
+
+    FrameInputStream(DataInputStream in, DataOutputStream out) {
+      this.in = in;
+      this.out = out;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] one = new byte[1];
+      return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      while (pos == buffer.length) {
+        if (eof) {
+          return -1;
+        }
+        // The client may only be given more input once it has seen the output so far
+        System.out.flush();
+        synchronized (out) {
+          writeFrame(out, READ, buffer, 0, 0);
+          out.flush();
+        }
+        int type = in.read();
+        if (type != STDIN) {
+          eof = true;
+          return -1;
+        }
+        buffer = new byte[in.readInt()];
+        in.readFully(buffer);
+        pos = 0;
+        eof = buffer.length == 0;
+      }
+      int n = Math.min(len, buffer.length - pos);
+      System.arraycopy(buffer, pos, b, off, n);
+      pos += n;
+      return n;
+    }
+  }
+
+  // Plain stream views of the channel. Channels.newInputStream/newOutputStream
+  // serialize on the channel's blocking lock, so a blocked read would stall writes.
+  private static InputStream inputStream(SocketChannel channel) {
+    return new InputStream() {
+      @Override
+      public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        return len == 0 ? 0 : channel.read(ByteBuffer.wrap(b, off, len));
+      }
+    };
+  }
+
+  private static OutputStream outputStream(SocketChannel channel) {
+    return new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,245 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+// Git's binary delta format, as stored in OFS_DELTA and REF_DELTA pack entries: the
+// base and result sizes as little-endian base-128 varints, then instructions that
+// either copy a range of the base (high bit set; the low seven bits say which offset
+// and size bytes follow) or insert up to 127 literal bytes.
+//
+// Deltas are made like git's diff-delta: the base's 16-byte blocks are hashed into an
+// Index, then a rolling hash of every 16 bytes of the target looks for the longest
+// match there. Matches become copies, extended backwards over bytes that would
+// otherwise be inserted, and everything between them becomes inserts.
+public class Delta {
+  private static final int BLOCK = 16;
+  private static final int PRIME = 31;
+  // PRIME^(BLOCK - 1), to take the outgoing byte out of the rolling hash
+  private static final int OUT_FACTOR;
+  static {
+    int factor = 1;
+    for (int i = 1; i < BLOCK; i++) {
+      factor *= PRIME;
+    }
+    OUT_FACTOR = factor;
+  }
+  // Copies are split at 64 KiB, the largest size older readers accept
+  private static final int MAX_COPY = 0x10000;
+  // Offsets kept per hash bucket, so repetitive content cannot make lookups quadratic
+  private static final int MAX_CHAIN = 64;
+
+  public static byte[] apply(byte[] base, byte[] delta) throws IOException {
+    int[] pos = { 0 };
+    long baseSize = readVarint(delta, pos);
+    long resultSize = readVarint(delta, pos);
+    if (baseSize != base.length) {
+      throw new IOException("Delta base size mismatch: expected " + baseSize + ", got " + base.length);
+    }
+    if (resultSize > Integer.MAX_VALUE) {
+      throw new IOException("Delta result too large: " + resultSize);
+    }
+
+    byte[] result = new byte[(int) resultSize];
+    int out = 0;
+    int p = pos[0];
+    while (p < delta.length) {
+      int op = delta[p++] & 0xff;
+      if ((op & 0x80) != 0) {
+        long offset = 0;
+        int size = 0;
+        for (int i = 0; i < 4; i++) {
+          if ((op & (1 << i)) != 0) {
+            offset |= (long) (delta[p++] & 0xff) << (8 * i);
+          }
+        }
+        for (int i = 0; i < 3; i++) {
+          if ((op & (0x10 << i)) != 0) {
+            size |= (delta[p++] & 0xff) << (8 * i);
+          }
+        }
+        if (size == 0) {
+          size = 0x10000;
+        }
+        if (offset + size > base.length || out + size > result.length) {
+          throw new IOException("Delta copy out of range");
+        }
+        System.arraycopy(base, (int) offset, result, out, size);
+        out += size;
+      } else if (op != 0) {
+        if (p + op > delta.length || out + op > result.length) {
+          throw new IOException("Delta insert out of range");
+        }
+        System.arraycopy(delta, p, result, out, op);
+        p += op;
+        out += op;
+      } else {
+        throw new IOException("Unexpected delta opcode 0");
+      }
+    }
+    if (out != result.length) {
+      throw new IOException("Delta result size mismatch");
+    }
+    return result;
+  }
+
+  // Size of the object a delta produces, from its header alone
+  public static long resultSize(byte[] deltaStart) {
+    int[] pos = { 0 };
+    readVarint(deltaStart, pos);
+    return readVarint(deltaStart, pos);
+  }
+
+  private static long readVarint(byte[] data, int[] pos) {
+    long value = 0;
+    int shift = 0;
+    int b;
+    do {
+      b = data[pos[0]++] & 0xff;
+      value |= (long) (b & 0x7f) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0 && pos[0] < data.length);
+    return value;
+  }
+
+  // ========== ENCODING ==========
+
+  // The blocks of one base, built once and used for every target tried against it
+  public static class Index {
+    private final byte[] base;
+    private final int mask;
+    private final int[] heads;
+    private final int[] next;
+    private final int[] offsets;
+
+    public Index(byte[] base) {
+      this.base = base;
+      int blocks = base.length / BLOCK;
+      int buckets = 16;
+      while (buckets < blocks) {
+        buckets <<= 1;
+      }
+      mask = buckets - 1;
+      heads = new int[buckets];
+      Arrays.fill(heads, -1);
+      int[] chain = new int[buckets];
+      next = new int[blocks];
+      offsets = new int[blocks];
+      int n = 0;
+      for (int offset = 0; offset + BLOCK <= base.length; offset += BLOCK) {
+        int bucket = bucket(hash(base, offset));
+        if (chain[bucket]++ < MAX_CHAIN) {
+          offsets[n] = offset;
+          next[n] = heads[bucket];
+          heads[bucket] = n++;
+        }
+      }
+    }
+
+    public int getBaseSize() {
+      return base.length;
+    }
+
+    // A delta turning the base into target, or null when it would be larger than maxSize
+    public byte[] encode(byte[] target, int maxSize) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(16, Math.min(maxSize, 1 << 16)));
+      writeVarint(out, base.length);
+      writeVarint(out, target.length);
+      int pending = 0;
+      int t = 0;
+      int h = target.length >= BLOCK ? hash(target, 0) : 0;
+      while (t + BLOCK <= target.length) {
+        int bestOffset = -1;
+        int bestLength = 0;
+        for (int i = heads[bucket(h)]; i >= 0; i = next[i]) {
+          int offset = offsets[i];
+          int length = 0;
+          int limit = Math.min(base.length - offset, target.length - t);
+          while (length < limit && base[offset + length] == target[t + length]) {
+            length++;
+          }
+          if (length > bestLength) {
+            bestOffset = offset;
+            bestLength = length;
+          }
+        }
+        if (bestLength < BLOCK) {
+          t++;
+          if (t + BLOCK <= target.length) {
+            h = (h - (target[t - 1] & 0xff) * OUT_FACTOR) * PRIME + (target[t + BLOCK - 1] & 0xff);
+          }
+          continue;
+        }
+        while (t > pending && bestOffset > 0 && base[bestOffset - 1] == target[t - 1]) {
+          t--;
+          bestOffset--;
+          bestLength++;
+        }
+        insert(out, target, pending, t);
+        for (int done = 0; done < bestLength; done += MAX_COPY) {
+          copy(out, bestOffset + done, Math.min(MAX_COPY, bestLength - done));
+        }
+        t += bestLength;
+        pending = t;
+        if (out.size() > maxSize) {
+          return null;
+        }
+        if (t + BLOCK <= target.length) {
+          h = hash(target, t);
+        }
+      }
+      insert(out, target, pending, target.length);
+      return out.size() <= maxSize ? out.toByteArray() : null;
+    }
+
+    private int bucket(int hash) {
+      return (hash ^ (hash >>> 15)) & mask;
+    }
+  }
+
+  private static int hash(byte[] data, int offset) {
+    int h = 0;
+    for (int i = 0; i < BLOCK; i++) {
+      h = h * PRIME + (data[offset + i] & 0xff);
+    }
+    return h;
+  }
+
+  private static void insert(ByteArrayOutputStream out, byte[] data, int from, int to) {
+    while (from < to) {
+      int n = Math.min(127, to - from);
+      out.write(n);
+      out.write(data, from, n);
+      from += n;
+    }
+  }
+
+  private static void copy(ByteArrayOutputStream out, int offset, int size) {
+    int op = 0x80;
+    byte[] args = new byte[7];
+    int n = 0;
+    for (int i = 0; i < 4; i++) {
+      int b = (offset >>> (8 * i)) & 0xff;
+      if (b != 0) {
+        op |= 1 << i;
+        args[n++] = (byte) b;
+      }
+    }
+    for (int i = 0; i < 3; i++) {
+      int b = (size >>> (8 * i)) & 0xff;
+      if (b != 0) {
+        op |= 0x10 << i;
+        args[n++] = (byte) b;
+      }
+    }
+    out.write(op);
+    out.write(args, 0, n);
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, long value) {
+    while (value >= 0x80) {
+      out.write((int) (value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+}
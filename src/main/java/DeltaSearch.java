@@ -0,0 +1,193 @@
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Picks delta bases for a pack the way git pack-objects does. Objects are sorted by
+// type, then by a hash of the last characters of their path (so versions of one file,
+// and then files with the same suffix, sit together), then largest first, since a
+// delta that removes bytes is smaller than one that adds them. Each object is tried
+// against the pack.window objects before it and stored as a delta against the base
+// that gives the smallest one, as long as that base's chain is shorter than
+// pack.depth. The sorted list is cut into one range per thread.
+public class DeltaSearch {
+  // Objects below this size are not worth the instructions a delta needs
+  private static final long MIN_SIZE = 50;
+  // Objects above this size are neither held in the window nor deltified
+  private static final long MAX_SIZE = 64 << 20;
+  // Below this many objects a range is not worth a thread of its own
+  private static final int MIN_RANGE = 1000;
+
+  public static class Result {
+    public final String baseId;
+    public final byte[] delta;
+
+    Result(String baseId, byte[] delta) {
+      this.baseId = baseId;
+      this.delta = delta;
+    }
+  }
+
+  private static class Candidate {
+    final String id;
+    final String type;
+    final int nameHash;
+    final long size;
+
+    Candidate(String id, String type, int nameHash, long size) {
+      this.id = id;
+      this.type = type;
+      this.nameHash = nameHash;
+      this.size = size;
+    }
+  }
+
+  // An object in the window, with its index built on first use as a base
+  private static class Slot {
+    final Candidate candidate;
+    final byte[] content;
+    final int depth;
+    Delta.Index index;
+
+    Slot(Candidate candidate, byte[] content, int depth) {
+      this.candidate = candidate;
+      this.content = content;
+      this.depth = depth;
+    }
+  }
+
+  private final int window;
+  private final int depth;
+  private final int threads;
+
+  public DeltaSearch(int window, int depth, int threads) {
+    this.window = window;
+    this.depth = depth;
+    this.threads = threads;
+  }
+
+  // The window, depth and threads in the pack section of the config, where unset
+  public static DeltaSearch fromConfig(int window, int depth, int threads) throws IOException {
+    Config config = Config.snapshot();
+    return new DeltaSearch(
+        window >= 0 ? window : config.getInt("pack", null, "window", 10),
+        depth >= 0 ? depth : config.getInt("pack", null, "depth", 50),
+        threads >= 0 ? threads : config.getInt("pack", null, "threads", 0));
+  }
+
+  // Object id -> its chosen base and delta, for the objects worth storing as deltas
+  public Map<String, Result> search(List<ObjectWalk.Entry> objects) throws IOException {
+    Map<String, Result> results = new ConcurrentHashMap<>();
+    if (window <= 0 || depth <= 0) {
+      return results;
+    }
+    List<Candidate> sorted = new ArrayList<>();
+    for (ObjectWalk.Entry entry : objects) {
+      long size = ObjectStore.readHeader(entry.id).size;
+      if (size >= MIN_SIZE && size <= MAX_SIZE) {
+        sorted.add(new Candidate(entry.id, entry.type, nameHash(entry.path), size));
+      }
+    }
+    sorted.sort(Comparator.comparing((Candidate c) -> c.type)
+        .thenComparingInt(c -> c.nameHash)
+        .thenComparing(Comparator.comparingLong((Candidate c) -> c.size).reversed()));
+
+    int ranges = Math.max(1, Math.min(threads(), sorted.size() / MIN_RANGE));
+    if (ranges == 1) {
+      searchRange(sorted, 0, sorted.size(), results);
+      return results;
+    }
+    Repository repository = Repository.current();
+    ExecutorService pool = Executors.newFixedThreadPool(ranges, runnable -> {
+      Thread thread = new Thread(runnable, "delta-search");
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      List<Future<Void>> done = new ArrayList<>();
+      for (int i = 0; i < ranges; i++) {
+        int from = (int) ((long) sorted.size() * i / ranges);
+        int to = (int) ((long) sorted.size() * (i + 1) / ranges);
+        done.add(pool.submit(() -> repository.call(() -> {
+          searchRange(sorted, from, to, results);
+          return null;
+        })));
+      }
+      for (Future<Void> future : done) {
+        future.get();
+      }
+      return results;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while searching for deltas");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private int threads() {
+    return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+  }
+
+  private void searchRange(List<Candidate> sorted, int from, int to, Map<String, Result> results)
+      throws IOException {
+    ArrayDeque<Slot> slots = new ArrayDeque<>();
+    for (int i = from; i < to; i++) {
+      Candidate target = sorted.get(i);
+      byte[] content = ObjectStore.loadObject(target.id).content;
+      byte[] best = null;
+      Slot bestBase = null;
+      for (Iterator<Slot> it = slots.descendingIterator(); it.hasNext(); ) {
+        Slot base = it.next();
+        if (!base.candidate.type.equals(target.type) || base.depth >= depth
+            || base.candidate.size < target.size / 32) {
+          continue;
+        }
+        // A delta must save at least half the object, less so deeper in a chain
+        long limit = (target.size / 2 - 20) * (depth - base.depth) / depth;
+        if (best != null) {
+          limit = Math.min(limit, best.length - 1);
+        }
+        if (limit <= 0 || target.size - base.candidate.size > limit) {
+          continue;
+        }
+        if (base.index == null) {
+          base.index = new Delta.Index(base.content);
+        }
+        byte[] delta = base.index.encode(content, (int) limit);
+        if (delta != null) {
+          best = delta;
+          bestBase = base;
+        }
+      }
+      int chain = 0;
+      if (best != null) {
+        results.put(target.id, new Result(bestBase.candidate.id, best));
+        chain = bestBase.depth + 1;
+      }
+      slots.addLast(new Slot(target, content, chain));
+      if (slots.size() > window) {
+        slots.removeFirst();
+      }
+    }
+  }
+
+  // Git's pack_name_hash: the last sixteen or so non-space characters, weighted
+  // towards the end, so paths sharing a suffix sort together
+  static int nameHash(String path) {
+    int hash = 0;
+    for (int i = 0; i < path.length(); i++) {
+      char c = path.charAt(i);
+      if (!Character.isWhitespace(c)) {
+        hash = (hash >>> 2) + (c << 24);
+      }
+    }
+    return hash;
+  }
+}
@@ -0,0 +1,90 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+// EWAH-compressed bitmaps as git serializes them in .bitmap files: the size in bits,
+// the number of 64-bit words, the words (big-endian), and the index of the last
+// marker word. Each marker word describes a run of all-zero or all-one words (bit 0
+// the run's value, bits 1-32 its length in words) followed by up to 2^31 - 1 literal
+// words copied as they are (bits 33-63). Bit i of the bitmap is bit i % 64 of word
+// i / 64, the layout of BitSet.toLongArray, so bitmaps are decoded into BitSets and
+// combined there.
+public class Ewah {
+  private static final long MAX_RUN = 0xffffffffL;
+  private static final long MAX_LITERALS = 0x7fffffffL;
+
+  public static void write(DataOutputStream out, BitSet bits) throws IOException {
+    long[] words = bits.toLongArray();
+    List<Long> encoded = new ArrayList<>();
+    int marker = 0;
+    int i = 0;
+    do {
+      marker = encoded.size();
+      encoded.add(0L);
+      long run = 0;
+      long runBit = i < words.length && words[i] == -1L ? 1 : 0;
+      while (i < words.length && run < MAX_RUN && words[i] == (runBit == 1 ? -1L : 0L)) {
+        run++;
+        i++;
+      }
+      long literals = 0;
+      while (i < words.length && literals < MAX_LITERALS && words[i] != 0 && words[i] != -1L) {
+        encoded.add(words[i++]);
+        literals++;
+      }
+      encoded.set(marker, runBit | run << 1 | literals << 33);
+    } while (i < words.length);
+
+    out.writeInt(bits.length());
+    out.writeInt(encoded.size());
+    for (long word : encoded) {
+      out.writeLong(word);
+    }
+    out.writeInt(marker);
+  }
+
+  // Reads the bitmap starting at pos[0] and advances pos[0] past it
+  public static BitSet read(ByteBuffer buffer, int[] pos) throws IOException {
+    int bitSize = buffer.getInt(pos[0]);
+    int count = buffer.getInt(pos[0] + 4);
+    int start = pos[0] + 8;
+    if (bitSize < 0 || count < 0 || start + (long) count * 8 + 4 > buffer.limit()) {
+      throw new IOException("Corrupt EWAH bitmap");
+    }
+    // Writers may pad with zero words past the size, so the words are counted first
+    long total = 0;
+    for (int i = 0; i < count; ) {
+      long marker = buffer.getLong(start + i * 8);
+      total += ((marker >>> 1) & MAX_RUN) + (marker >>> 33);
+      i += 1 + (int) (marker >>> 33);
+    }
+    if (total > Integer.MAX_VALUE / 64) {
+      throw new IOException("Corrupt EWAH bitmap");
+    }
+    long[] words = new long[(int) Math.max(total, (bitSize + 63L) / 64)];
+    int word = 0;
+    for (int i = 0; i < count; ) {
+      long marker = buffer.getLong(start + i++ * 8);
+      int run = (int) ((marker >>> 1) & MAX_RUN);
+      int literals = (int) (marker >>> 33);
+      if (i + literals > count) {
+        throw new IOException("Corrupt EWAH bitmap");
+      }
+      if ((marker & 1) != 0) {
+        Arrays.fill(words, word, word + run, -1L);
+      }
+      word += run;
+      for (int k = 0; k < literals; k++) {
+        words[word++] = buffer.getLong(start + i++ * 8);
+      }
+    }
+    pos[0] = start + count * 8 + 4;
+    BitSet bits = BitSet.valueOf(words);
+    bits.clear(bitSize, Math.max(bitSize, bits.length()));
+    return bits;
+  }
+}
@@ -0,0 +1,460 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.*;
+
+// Fetching side of fetch and clone, over any Transport (git:// or a local path). The
+// remote's refs are mapped through the remote.<name>.fetch refspecs; for the ones
+// that moved, the local history is offered newest first in rounds of
+// HAVES_PER_ROUND commits until the remote reports it is ready, i.e. has a common base
+// for everything wanted. Ancestors of an acknowledged commit are never offered, so a
+// mirror a few commits behind settles in the first round with its own tips. The pack
+// that follows is indexed by IndexPack while it streams in.
+//
+// A depth or a cutoff time makes the fetch shallow: the remote cuts the history it
+// sends and names the commits left without parents, which go into .git/shallow.
+// A filter (remote.<name>.partialclonefilter in a partial clone) makes the remote
+// leave out blobs; Promisor fetches them by id when they are first read.
+public class Fetch {
+  private static final int HAVES_PER_ROUND = 32;
+  // Give up negotiating after this many have lines in a row without an ack
+  private static final int MAX_IN_VAIN = 256;
+
+  // src:dst with an optional leading '+' (update even if not a fast-forward) and at
+  // most one '*' on each side
+  static class RefSpec {
+    final boolean force;
+    final String src;
+    final String dst;
+
+    RefSpec(String spec) throws IOException {
+      force = spec.startsWith("+");
+      String body = force ? spec.substring(1) : spec;
+      int colon = body.indexOf(':');
+      src = colon >= 0 ? body.substring(0, colon) : body;
+      dst = colon >= 0 ? body.substring(colon + 1) : "";
+      if (src.contains("*") != dst.contains("*")) {
+        throw new IOException("Invalid refspec '" + spec + "'");
+      }
+    }
+
+    // The local name for a remote ref, or null when this spec does not cover it
+    String map(String name) {
+      if (dst.isEmpty()) {
+        return null;
+      }
+      int star = src.indexOf('*');
+      if (star < 0) {
+        return name.equals(src) ? dst : null;
+      }
+      String prefix = src.substring(0, star);
+      String suffix = src.substring(star + 1);
+      if (!name.startsWith(prefix) || !name.endsWith(suffix) || name.length() < prefix.length() + suffix.length()) {
+        return null;
+      }
+      String matched = name.substring(prefix.length(), name.length() - suffix.length());
+      return dst.replace("*", matched);
+    }
+  }
+
+  static String defaultRefSpec(String remote) {
+    return "+refs/heads/*:refs/remotes/" + remote + "/*";
+  }
+
+  private final String url;
+  private final List<RefSpec> specs = new ArrayList<>();
+  private final PrintStream log;
+  private String capabilities = "";
+  private String headTarget;
+  private int objectsReceived;
+  private int depth;
+  private long shallowSince = -1;
+  private ObjectFilter filter;
+
+  public Fetch(String remote, PrintStream log) throws IOException {
+    Config config = Config.snapshot();
+    this.url = config.getString("remote", remote, "url");
+    this.log = log;
+    if (url == null) {
+      throw new IOException("'" + remote + "' does not appear to be a git repository");
+    }
+    List<String> configured = config.getStringList("remote", remote, "fetch");
+    for (String spec : configured.isEmpty() ? List.of(defaultRefSpec(remote)) : configured) {
+      specs.add(new RefSpec(spec));
+    }
+    String filterSpec = config.getString("remote", remote, "partialclonefilter");
+    if (filterSpec != null) {
+      filter = ObjectFilter.parse(filterSpec);
+    }
+  }
+
+  // The branch the remote's HEAD points at, from its symref capability
+  public String getHeadTarget() {
+    return headTarget;
+  }
+
+  public int getObjectsReceived() {
+    return objectsReceived;
+  }
+
+  // Fetch at most depth commits of history below each ref
+  public Fetch setDepth(int depth) {
+    this.depth = depth;
+    return this;
+  }
+
+  // Fetch only commits made at or after this time (epoch seconds)
+  public Fetch setShallowSince(long since) {
+    this.shallowSince = since;
+    return this;
+  }
+
+  // Ask the remote to leave out the objects this filter excludes
+  public Fetch setFilter(ObjectFilter filter) {
+    this.filter = filter;
+    return this;
+  }
+
+  private boolean isDeepening() {
+    return depth > 0 || shallowSince >= 0;
+  }
+
+  // Returns false when a ref could not be updated (a rejected non-fast-forward)
+  public boolean run() throws IOException {
+    Map<String, String> advertised;
+    Map<String, String> updates = new LinkedHashMap<>();
+    Map<String, Boolean> forced = new HashMap<>();
+    try (Transport.Connection connection = Transport.open(url, "git-upload-pack")) {
+      advertised = readAdvertisement(connection.in);
+      Set<String> wants = collectUpdates(advertised, updates, forced);
+      if (isDeepening()) {
+        // The limit applies to refs already present too, which may deepen them
+        for (Map.Entry<String, String> ref : advertised.entrySet()) {
+          if (specs.stream().anyMatch(spec -> spec.map(ref.getKey()) != null)) {
+            wants.add(ref.getValue());
+          }
+        }
+      }
+      if (wants.isEmpty()) {
+        PktLine.writeFlush(connection.out);
+        connection.out.flush();
+      } else {
+        fetchPack(connection, wants, true);
+      }
+    }
+    return updateRefs(updates, forced, advertised);
+  }
+
+  // Fetches objects by id rather than through refs, unfiltered and without offering
+  // haves, as a partial clone does for the objects its filter left out
+  public int fetchObjects(Collection<String> ids) throws IOException {
+    ObjectFilter configured = filter;
+    filter = null;
+    try (Transport.Connection connection = Transport.open(url, "git-upload-pack")) {
+      readAdvertisement(connection.in);
+      fetchPack(connection, new LinkedHashSet<>(ids), false);
+    } finally {
+      filter = configured;
+    }
+    return objectsReceived;
+  }
+
+  // Ref name -> id; the capabilities on the first line are kept
+  private Map<String, String> readAdvertisement(InputStream in) throws IOException {
+    Map<String, String> refs = new LinkedHashMap<>();
+    String line = Transport.checkError(PktLine.read(in));
+    capabilities = line != null ? PktLine.capabilities(line) : "";
+    for (; line != null; line = PktLine.read(in)) {
+      int nul = line.indexOf('\0');
+      String[] parts = (nul >= 0 ? line.substring(0, nul) : line).split(" ", 2);
+      if (parts.length == 2 && !parts[1].endsWith("^{}")) {
+        refs.put(parts[1], parts[0]);
+      }
+    }
+    for (String capability : capabilities.split(" ")) {
+      if (capability.startsWith("symref=HEAD:")) {
+        headTarget = capability.substring(12);
+      }
+    }
+    return refs;
+  }
+
+  // Local ref name -> remote ref name, for every ref that differs; returns the ids
+  // this repository is missing
+  private Set<String> collectUpdates(Map<String, String> advertised, Map<String, String> updates,
+      Map<String, Boolean> forced) throws IOException {
+    for (Map.Entry<String, String> ref : advertised.entrySet()) {
+      String name = ref.getKey();
+      for (RefSpec spec : specs) {
+        String local = spec.map(name);
+        if (local != null && !ref.getValue().equals(GitRepository.readRef(local))) {
+          updates.put(local, name);
+          forced.put(local, spec.force);
+          break;
+        }
+      }
+      // Tags come along like `fetch --tags`, but an existing tag is never moved
+      if (name.startsWith("refs/tags/") && !updates.containsKey(name) && GitRepository.readRef(name) == null) {
+        updates.put(name, name);
+        forced.put(name, false);
+      }
+    }
+
+    Set<String> wants = new LinkedHashSet<>();
+    for (String name : updates.values()) {
+      String id = advertised.get(name);
+      if (!ObjectStore.hasObject(id)) {
+        wants.add(id);
+      }
+    }
+    return wants;
+  }
+
+  // ========== NEGOTIATION ==========
+
+  private void fetchPack(Transport.Connection connection, Set<String> wants, boolean negotiate) throws IOException {
+    boolean multiAck = PktLine.hasCapability(capabilities, "multi_ack_detailed");
+    boolean sideBand = PktLine.hasCapability(capabilities, "side-band-64k");
+    StringBuilder requested = new StringBuilder();
+    if (multiAck) {
+      requested.append(" multi_ack_detailed");
+    }
+    if (sideBand) {
+      requested.append(" side-band-64k");
+    }
+    if (filter != null) {
+      requireCapability("filter");
+      requested.append(" filter");
+    }
+    requested.append(" agent=").append(UploadPack.AGENT);
+
+    boolean first = true;
+    for (String id : wants) {
+      PktLine.write(connection.out, "want " + id + (first ? requested : "") + "\n");
+      first = false;
+    }
+    Set<String> shallow = new TreeSet<>(Shallow.read());
+    for (String id : shallow) {
+      PktLine.write(connection.out, "shallow " + id + "\n");
+    }
+    if (depth > 0) {
+      requireCapability("shallow");
+      PktLine.write(connection.out, "deepen " + depth + "\n");
+    } else if (shallowSince >= 0) {
+      requireCapability("deepen-since");
+      PktLine.write(connection.out, "deepen-since " + shallowSince + "\n");
+    }
+    if (filter != null) {
+      PktLine.write(connection.out, "filter " + filter + "\n");
+    }
+    PktLine.writeFlush(connection.out);
+    connection.out.flush();
+    if (isDeepening()) {
+      readShallowUpdate(connection.in, shallow);
+    }
+
+    // Without multi_ack_detailed there is no way to learn the remote is ready, so
+    // nothing is offered and everything reachable from the wants comes back
+    if (multiAck && negotiate) {
+      negotiate(connection.in, connection.out);
+    }
+    PktLine.write(connection.out, "done\n");
+    connection.out.flush();
+    String last = Transport.checkError(PktLine.read(connection.in));
+    if (last == null || !(last.equals("NAK") || last.startsWith("ACK "))) {
+      throw new IOException("protocol error: expected ACK/NAK, got '" + last + "'");
+    }
+
+    InputStream pack = sideBand ? new PktLine.SideBandInputStream(connection.in, log) : connection.in;
+    IndexPack indexPack = new IndexPack(pack);
+    indexPack.run();
+    // Progress after the pack runs up to the flush that ends the response
+    pack.transferTo(OutputStream.nullOutputStream());
+    objectsReceived = indexPack.getObjectCount();
+    // Only now are the parents of unshallowed commits present
+    if (isDeepening()) {
+      Shallow.write(shallow);
+    }
+  }
+
+  private void requireCapability(String name) throws IOException {
+    if (!PktLine.hasCapability(capabilities, name)) {
+      throw new IOException("Server does not support " + name + " requests");
+    }
+  }
+
+  // "shallow <id>" and "unshallow <id>" lines up to a flush
+  private static void readShallowUpdate(InputStream in, Set<String> shallow) throws IOException {
+    for (String line = PktLine.read(in); line != null; line = PktLine.read(in)) {
+      if (line.startsWith("shallow ")) {
+        shallow.add(line.substring(8).trim());
+      } else if (line.startsWith("unshallow ")) {
+        shallow.remove(line.substring(10).trim());
+      } else {
+        throw new IOException("protocol error: expected shallow/unshallow, got '" + line + "'");
+      }
+    }
+  }
+
+  // The refs of the repositories whose objects this one borrows: what they reach is
+  // here already, so a clone with --reference only receives what the reference lacks
+  private static Set<String> alternateTips() throws IOException {
+    Set<String> tips = new LinkedHashSet<>();
+    for (File dir : ObjectStore.alternates()) {
+      File gitDir = dir.getParentFile();
+      if (!gitDir.getName().equals(".git")) {
+        continue;
+      }
+      Repository alternate = Repository.open(gitDir.getParentFile());
+      tips.addAll(alternate.getRefs("refs/").values());
+      String head = alternate.getHead();
+      if (head != null) {
+        tips.add(head);
+      }
+    }
+    return tips;
+  }
+
+  private void negotiate(InputStream in, OutputStream out) throws IOException {
+    RevCommit.Pool pool = new RevCommit.Pool();
+    PriorityQueue<RevCommit> queue = new PriorityQueue<>(
+        Comparator.comparingLong(RevCommit::getCommitTime).reversed());
+    Set<RevCommit> queued = new HashSet<>();
+    Set<RevCommit> common = new HashSet<>();
+
+    Set<String> tips = new LinkedHashSet<>(GitRepository.getAllRefs().values());
+    String head = GitRepository.getHeadCommit();
+    if (head != null) {
+      tips.add(head);
+    }
+    tips.addAll(alternateTips());
+    for (String tip : tips) {
+      if (!tip.startsWith("ref: ") && ObjectStore.hasObject(tip)
+          && ObjectStore.readHeader(tip).type.equals("commit")) {
+        RevCommit commit = pool.parse(tip);
+        if (queued.add(commit)) {
+          queue.add(commit);
+        }
+      }
+    }
+
+    int inVain = 0;
+    while (!queue.isEmpty() && inVain < MAX_IN_VAIN) {
+      List<String> round = new ArrayList<>();
+      Map<String, RevCommit> offered = new HashMap<>();
+      while (round.size() < HAVES_PER_ROUND && !queue.isEmpty()) {
+        RevCommit commit = queue.poll();
+        if (common.contains(commit)) {
+          // Everything below an acknowledged commit is known to the remote too
+          for (RevCommit parent : commit.getParents()) {
+            common.add(parent);
+          }
+          continue;
+        }
+        round.add(commit.id);
+        offered.put(commit.id, commit);
+        for (RevCommit parent : commit.getParents()) {
+          if (queued.add(parent)) {
+            parent.parse(pool);
+            queue.add(parent);
+          }
+        }
+      }
+      if (round.isEmpty()) {
+        break;
+      }
+      for (String id : round) {
+        PktLine.write(out, "have " + id + "\n");
+      }
+      PktLine.writeFlush(out);
+      out.flush();
+
+      // "ACK <id> common" per known commit, "ACK <id> ready" once the remote has
+      // enough, then NAK to close the round
+      boolean acked = false;
+      boolean ready = false;
+      String line;
+      while (!"NAK".equals(line = PktLine.read(in))) {
+        String[] parts = line != null ? line.split(" ") : new String[0];
+        if (parts.length < 2 || !parts[0].equals("ACK")) {
+          throw new IOException("protocol error: expected ACK/NAK, got '" + line + "'");
+        }
+        RevCommit commit = offered.get(parts[1]);
+        if (commit != null) {
+          common.add(commit);
+          Collections.addAll(common, commit.getParents());
+          acked = true;
+        }
+        ready |= parts.length > 2 && parts[2].equals("ready");
+      }
+      inVain = acked ? 0 : inVain + round.size();
+      if (ready) {
+        break;
+      }
+    }
+  }
+
+  // ========== REF UPDATES ==========
+
+  private boolean updateRefs(Map<String, String> updates, Map<String, Boolean> forced,
+      Map<String, String> advertised) throws IOException {
+    if (updates.isEmpty()) {
+      return true;
+    }
+    RefTransaction transaction = new RefTransaction();
+    List<String> report = new ArrayList<>();
+    boolean ok = true;
+    MergeBase mergeBase = new MergeBase(new RevCommit.Pool());
+
+    for (Map.Entry<String, String> update : updates.entrySet()) {
+      String local = update.getKey();
+      String name = update.getValue();
+      String newId = advertised.get(name);
+      String oldId = GitRepository.readRef(local);
+      String shortRemote = shortName(name);
+      String shortLocal = shortName(local);
+
+      if (oldId == null) {
+        String kind = local.startsWith("refs/tags/") ? "[new tag]" : "[new branch]";
+        report.add(String.format(" * %-17s %-10s -> %s", kind, shortRemote, shortLocal));
+        transaction.create(local, newId);
+      } else if (isCommit(oldId) && isCommit(newId) && mergeBase.isAncestor(oldId, newId)) {
+        report.add(String.format("   %-17s %-10s -> %s", abbrev(oldId) + ".." + abbrev(newId), shortRemote, shortLocal));
+        transaction.update(local, newId, oldId);
+      } else if (forced.get(local)) {
+        report.add(String.format(" + %-17s %-10s -> %s  (forced update)",
+            abbrev(oldId) + "..." + abbrev(newId), shortRemote, shortLocal));
+        transaction.update(local, newId, oldId);
+      } else {
+        report.add(String.format(" ! %-17s %-10s -> %s  (non-fast-forward)", "[rejected]", shortRemote, shortLocal));
+        ok = false;
+      }
+    }
+    transaction.commit();
+
+    log.println("From " + url);
+    for (String line : report) {
+      log.println(line);
+    }
+    return ok;
+  }
+
+  private static boolean isCommit(String id) throws IOException {
+    return ObjectStore.readHeader(id).type.equals("commit");
+  }
+
+  private static String shortName(String name) {
+    for (String prefix : List.of("refs/heads/", "refs/tags/", "refs/remotes/")) {
+      if (name.startsWith(prefix)) {
+        return name.substring(prefix.length());
+      }
+    }
+    return name;
+  }
+
+  private static String abbrev(String id) {
+    return id.substring(0, 7);
+  }
+}
@@ -0,0 +1,226 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+// The default ref backend: one loose file per ref under .git/refs, layered over
+// .git/packed-refs. Transactions lock each ref by exclusively creating <ref>.lock,
+// write the new value into the lock and rename all locks into place only after
+// every ref is locked and verified.
+public class FilesRefStore implements RefStore {
+  private final Repository repository;
+
+  public FilesRefStore(Repository repository) {
+    this.repository = repository;
+  }
+
+  @Override
+  public String read(String name) throws IOException {
+    return repository.call(() -> {
+      File file = repository.gitFile(name);
+      try {
+        return Files.readString(file.toPath()).trim();
+      } catch (NoSuchFileException e) {
+        return PackedRefs.load().get(name);
+      } catch (IOException e) {
+        // A directory of the same name (refs/heads/feature vs refs/heads/feature/x)
+        if (file.isDirectory()) {
+          return PackedRefs.load().get(name);
+        }
+        throw e;
+      }
+    });
+  }
+
+  // Packed refs under prefix with loose ones layered on top
+  @Override
+  public Map<String, String> getRefs(String prefix) throws IOException {
+    return repository.call(() -> {
+      Map<String, String> refs = PackedRefs.load().getRefs(prefix);
+      String dir = prefix.endsWith("/") ? prefix.substring(0, prefix.length() - 1) : prefix;
+      collectLooseRefs(repository.gitFile(dir), dir, refs);
+      return refs;
+    });
+  }
+
+  @Override
+  public void commit(Collection<RefTransaction.Update> updates) throws IOException {
+    repository.call(() -> {
+      commitLocked(updates);
+      return null;
+    });
+  }
+
+  private void commitLocked(Collection<RefTransaction.Update> updates) throws IOException {
+    List<File> locks = new ArrayList<>();
+    long timeout = Config.snapshot().getInt("core", null, "filesRefLockTimeout", 100);
+    try {
+      List<String> deletes = new ArrayList<>();
+      for (RefTransaction.Update update : updates) {
+        File lock = lockFile(update.name);
+        if (lock.getParentFile() != null) {
+          lock.getParentFile().mkdirs();
+        }
+        try (OutputStream out = createLock(lock, timeout)) {
+          locks.add(lock);
+          RefTransaction.checkOldValue(update, currentValue(update.name));
+          if (!update.isDelete() && !update.isVerify()) {
+            out.write((update.newValue + "\n").getBytes(StandardCharsets.UTF_8));
+          }
+        }
+        if (update.isDelete()) {
+          deletes.add(update.name);
+        }
+      }
+
+      // Deleted refs leave packed-refs first, so they cannot reappear from it. The
+      // file is read again under its lock: a pack-refs that ran after the ref locks
+      // were taken may have packed these refs, and its result must not be replaced.
+      // The lock is kept until the loose files are gone too, or a pack-refs in
+      // between would pack them again.
+      try (PackedRefs.Lock packedLock = deletes.isEmpty() ? null : PackedRefs.lock()) {
+        if (packedLock != null) {
+          Map<String, String> packed = packedLock.getRefs();
+          if (packed.keySet().removeAll(deletes)) {
+            packedLock.commit(packed);
+          }
+        }
+
+        for (RefTransaction.Update update : updates) {
+          File lock = lockFile(update.name);
+          File ref = repository.gitFile(update.name);
+          if (update.isDelete()) {
+            Files.deleteIfExists(ref.toPath());
+            Files.delete(lock.toPath());
+          } else if (update.isVerify()) {
+            Files.delete(lock.toPath());
+          } else {
+            Files.move(lock.toPath(), ref.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+          }
+        }
+      }
+      locks.clear();
+    } finally {
+      for (File lock : locks) {
+        lock.delete();
+      }
+    }
+  }
+
+  // Creates <ref>.lock, retrying for up to timeout milliseconds as git does
+  // (core.filesRefLockTimeout): pack-refs takes each ref's lock for a moment while
+  // pruning it
+  private static OutputStream createLock(File lock, long timeout) throws IOException {
+    long deadline = System.currentTimeMillis() + timeout;
+    for (long wait = 1; ; wait = Math.min(wait * 2, 20)) {
+      try {
+        return Files.newOutputStream(lock.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+      } catch (FileAlreadyExistsException e) {
+        if (System.currentTimeMillis() + wait > deadline) {
+          throw new IOException("Unable to create '" + lock.getPath() + "': File exists.\n"
+              + "Another git process seems to be running in this repository.");
+        }
+        try {
+          Thread.sleep(wait);
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while waiting for " + lock.getPath());
+        }
+      }
+    }
+  }
+
+  // Moves loose refs into packed-refs and deletes the loose files. Without all, only
+  // tags are packed (branches move too often to be worth it), like git pack-refs.
+  @Override
+  public int pack(boolean all) throws IOException {
+    return repository.call(() -> packLoose(all));
+  }
+
+  // As git pack-refs: the loose refs are read and packed under packed-refs.lock, then
+  // each loose file is pruned under its own <ref>.lock, and only if it still holds
+  // the packed value. A ref that is locked or changed meanwhile simply stays loose.
+  private int packLoose(boolean all) throws IOException {
+    Map<String, String> loose = new TreeMap<>();
+    try (PackedRefs.Lock packedLock = PackedRefs.lock()) {
+      collectLooseRefs(repository.gitFile("refs"), "refs", loose);
+      // Symbolic refs (refs/remotes/origin/HEAD) have no place in packed-refs
+      loose.values().removeIf(value -> value.startsWith("ref: "));
+      if (!all) {
+        loose.keySet().removeIf(name -> !name.startsWith("refs/tags/"));
+      }
+      Map<String, String> packed = packedLock.getRefs();
+      packed.putAll(loose);
+      packedLock.commit(packed);
+
+      for (Map.Entry<String, String> ref : loose.entrySet()) {
+        prune(ref.getKey(), ref.getValue());
+      }
+    }
+    return loose.size();
+  }
+
+  private void prune(String name, String packedValue) throws IOException {
+    File lock = lockFile(name);
+    try {
+      Files.createFile(lock.toPath());
+    } catch (FileAlreadyExistsException e) {
+      return;
+    }
+    try {
+      File file = repository.gitFile(name);
+      String value;
+      try {
+        value = Files.readString(file.toPath()).trim();
+      } catch (NoSuchFileException e) {
+        return;
+      }
+      if (!value.equals(packedValue)) {
+        return;
+      }
+      Files.delete(file.toPath());
+    } finally {
+      Files.delete(lock.toPath());
+    }
+    File dir = repository.gitFile(name).getParentFile();
+    while (!dir.getName().equals("refs") && !dir.getParentFile().getName().equals("refs") && dir.delete()) {
+      dir = dir.getParentFile();
+    }
+  }
+
+  // Current id of a ref, following a symbolic ref to its target
+  private String currentValue(String name) throws IOException {
+    String value = name.equals("HEAD") ? read(name) : GitRepository.readRef(name);
+    if (value != null && value.startsWith("ref: ")) {
+      return GitRepository.readRef(value.substring(5));
+    }
+    return value;
+  }
+
+  private File lockFile(String name) {
+    return repository.gitFile(name + ".lock");
+  }
+
+  private static void collectLooseRefs(File dir, String prefix, Map<String, String> refs) throws IOException {
+    File[] files = dir.listFiles();
+    if (files == null) return;
+
+    for (File file : files) {
+      String name = prefix + "/" + file.getName();
+      if (file.getName().endsWith(".lock")) {
+        continue;
+      }
+      if (file.isDirectory()) {
+        collectLooseRefs(file, name, refs);
+      } else {
+        refs.put(name, Files.readString(file.toPath()).trim());
+      }
+    }
+  }
+}
@@ -1,48 +1,86 @@
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 public class GitRepository {
   
   public static String getHeadCommit() throws IOException {
-    File headFile = new File(".git/HEAD");
+    File headFile = Repository.current().gitFile("HEAD");
     if (!headFile.exists()) {
       return null;
     }
     
     String headContent = Files.readString(headFile.toPath()).trim();
     if (headContent.startsWith("ref: ")) {
-      String refPath = headContent.substring(5);
-      File refFile = new File(".git/" + refPath);
-      if (refFile.exists()) {
-        return Files.readString(refFile.toPath()).trim();
+      return readRef(headContent.substring(5));
+    }
+    return headContent;
+  }
+
+  // Ref backends of one repository
+  private static class RefStores {
+    FilesRefStore files;
+    RefStore refs;
+    Config config;
+  }
+
+  // Backend holding refs/ (extensions.refstorage in .git/config); HEAD and other
+  // pseudo-refs are always plain files
+  public static RefStore refStore() throws IOException {
+    Repository repository = Repository.current();
+    RefStores stores = repository.state(RefStores.class, RefStores::new);
+    Config config = Config.snapshot();
+    synchronized (stores) {
+      if (stores.files == null) {
+        stores.files = new FilesRefStore(repository);
+      }
+      if (stores.refs == null || config != stores.config) {
+        String format = config.getString("extensions", null, "refstorage");
+        stores.refs = "reftable".equals(format) ? new ReftableRefStore(repository, stores.files) : stores.files;
+        stores.config = config;
       }
-    } else {
-      return headContent;
+      return stores.refs;
     }
-    
-    return null;
   }
 
-  public static void updateHead(String commitHash) throws IOException {
-    File headFile = new File(".git/HEAD");
-    String headContent = Files.readString(headFile.toPath()).trim();
-    
-    String branchName = "main";
-    if (headContent.startsWith("ref: ")) {
-      String refPath = headContent.substring(5);
-      if (refPath.startsWith("refs/heads/")) {
-        branchName = refPath.substring(11);
+  private static FilesRefStore filesRefStore() {
+    Repository repository = Repository.current();
+    RefStores stores = repository.state(RefStores.class, RefStores::new);
+    synchronized (stores) {
+      if (stores.files == null) {
+        stores.files = new FilesRefStore(repository);
       }
+      return stores.files;
     }
-    
-    File branchFile = new File(".git/refs/heads/" + branchName);
-    branchFile.getParentFile().mkdirs();
-    Files.write(branchFile.toPath(), (commitHash + "\n").getBytes());
+  }
+
+  // Value of a fully named ref (refs/heads/main), or null when it does not exist
+  public static String readRef(String name) throws IOException {
+    return name.startsWith("refs/") ? refStore().read(name) : filesRefStore().read(name);
+  }
+
+  public static void updateHead(String commitHash) throws IOException {
+    updateHead(commitHash, null);
+  }
+
+  // Moves the current branch (or a detached HEAD) to commitHash. When expectedOld is
+  // given the update only happens if the ref still has that value (null parent of a
+  // root commit is passed as RefTransaction.ZERO_ID).
+  public static void updateHead(String commitHash, String expectedOld) throws IOException {
+    String headContent = Files.readString(Repository.current().gitFile("HEAD").toPath()).trim();
+    String refName = headContent.startsWith("ref: ") ? headContent.substring(5) : "HEAD";
+    new RefTransaction().update(refName, commitHash, expectedOld).commit();
+  }
+
+  public static void detachHead(String commitHash) throws IOException {
+    new RefTransaction().update("HEAD", commitHash, null).commit();
   }
 
   public static String getCurrentBranch() throws IOException {
-    File headFile = new File(".git/HEAD");
+    File headFile = Repository.current().gitFile("HEAD");
     if (!headFile.exists()) {
       return null;
     }
@@ -61,25 +99,26 @@ public class GitRepository {
   }
   
   public static String resolveRef(String ref) throws IOException {
-    // Check if it's a branch name
-    File branchFile = new File(".git/refs/heads/" + ref);
-    if (branchFile.exists()) {
-      return Files.readString(branchFile.toPath()).trim();
+    if (ref.equals("HEAD")) {
+      return getHeadCommit();
     }
     
-    // Check if it's a tag name
-    File tagFile = new File(".git/refs/tags/" + ref);
-    if (tagFile.exists()) {
-      return Files.readString(tagFile.toPath()).trim();
+    // git rev-parse's order: a full ref name, then refs/, tags, branches, remote
+    // branches and a remote's default branch
+    for (String name : new String[] { ref, "refs/" + ref, "refs/tags/" + ref, "refs/heads/" + ref,
+        "refs/remotes/" + ref, "refs/remotes/" + ref + "/HEAD" }) {
+      if (name.startsWith("refs/")) {
+        String id = peelSymbolic(readRef(name));
+        if (id != null) {
+          return id;
+        }
+      }
     }
     
     // Check if it's already a commit hash (40 chars hex)
     if (ref.length() == 40 && ref.matches("[0-9a-f]{40}")) {
-      // Verify it exists
-      String dirHash = ref.substring(0, 2);
-      String fileHash = ref.substring(2);
-      File objectFile = new File(".git/objects/" + dirHash + "/" + fileHash);
-      if (objectFile.exists()) {
+      // Verify it exists, loose or packed
+      if (ObjectStore.hasObject(ref)) {
         return ref;
       }
     }
@@ -87,9 +126,91 @@ public class GitRepository {
     return null;
   }
   
+  // Follows symbolic refs (refs/remotes/origin/HEAD -> refs/remotes/origin/main)
+  private static String peelSymbolic(String value) throws IOException {
+    for (int depth = 0; value != null && value.startsWith("ref: "); depth++) {
+      if (depth == 5) {
+        throw new IOException("Too many levels of symbolic refs: " + value.substring(5));
+      }
+      value = readRef(value.substring(5));
+    }
+    return value;
+  }
+
   public static void updateHeadToBranch(String branchName) throws IOException {
-    File headFile = new File(".git/HEAD");
-    Files.write(headFile.toPath(), ("ref: refs/heads/" + branchName + "\n").getBytes());
+    new RefTransaction().setSymbolic("HEAD", "refs/heads/" + branchName).commit();
+  }
+
+  // Every ref, keyed by full name (refs/heads/main, refs/tags/v1, ...)
+  public static Map<String, String> getAllRefs() throws IOException {
+    return getRefs("refs/");
+  }
+  
+  public static Map<String, String> getRefs(String prefix) throws IOException {
+    return refStore().getRefs(prefix);
+  }
+
+  // Removes a ref from the ref store; false if it did not exist
+  public static boolean deleteRef(String name) throws IOException {
+    String current = readRef(name);
+    if (current == null) {
+      return false;
+    }
+    new RefTransaction().delete(name, current).commit();
+    return true;
+  }
+
+  // Consolidates ref storage (packed-refs, or one compacted reftable); returns the
+  // number of refs moved
+  public static int packRefs(boolean all) throws IOException {
+    return refStore().pack(all);
+  }
+
+  // A stopped merge leaves MERGE_HEAD and MERGE_MSG like git does. The index has no
+  // conflict stages, so the paths still needing resolution are listed in MERGE_CONFLICTS.
+  public static void writeMergeState(String mergeHead, String message, List<String> conflicts) throws IOException {
+    Files.write(Repository.current().gitFile("MERGE_HEAD").toPath(), (mergeHead + "\n").getBytes());
+    Files.write(Repository.current().gitFile("MERGE_MSG").toPath(), (message + "\n").getBytes());
+    writeUnmergedPaths(conflicts);
   }
-}
 
+  public static String readMergeHead() throws IOException {
+    File file = Repository.current().gitFile("MERGE_HEAD");
+    return file.exists() ? Files.readString(file.toPath()).trim() : null;
+  }
+
+  public static String readMergeMessage() throws IOException {
+    File file = Repository.current().gitFile("MERGE_MSG");
+    return file.exists() ? Files.readString(file.toPath()).trim() : null;
+  }
+
+  public static void clearMergeState() throws IOException {
+    Files.deleteIfExists(Repository.current().gitFile("MERGE_HEAD").toPath());
+    Files.deleteIfExists(Repository.current().gitFile("MERGE_MSG").toPath());
+    Files.deleteIfExists(Repository.current().gitFile("MERGE_CONFLICTS").toPath());
+  }
+
+  public static List<String> getUnmergedPaths() throws IOException {
+    File file = Repository.current().gitFile("MERGE_CONFLICTS");
+    return file.exists() ? new ArrayList<>(Files.readAllLines(file.toPath())) : new ArrayList<>();
+  }
+
+  // Called by add: the given file, or everything under the given directory, is resolved
+  public static void markResolved(String path) throws IOException {
+    List<String> unmerged = getUnmergedPaths();
+    if (unmerged.isEmpty()) {
+      return;
+    }
+    String prefix = path.equals(".") ? "" : path.endsWith("/") ? path : path + "/";
+    unmerged.removeIf(p -> p.equals(path) || p.startsWith(prefix));
+    writeUnmergedPaths(unmerged);
+  }
+
+  public static void writeUnmergedPaths(List<String> paths) throws IOException {
+    StringBuilder content = new StringBuilder();
+    for (String path : paths) {
+      content.append(path).append("\n");
+    }
+    Files.write(Repository.current().gitFile("MERGE_CONFLICTS").toPath(), content.toString().getBytes());
+  }
+}
@@ -0,0 +1,133 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Serves the repositories under a base directory over git:// on TCP, as `git daemon`
+// does. Each connection starts with a "git-upload-pack /path\0host=...\0" request
+// line and then runs that service to completion on its own thread. Threads are
+// virtual where the runtime has them, so hundreds of slow clients cost little; older
+// runtimes fall back to a cached pool of platform threads.
+//
+// Repository handles are shared between connections, so concurrent fetches of one
+// repository reuse its caches and open packs.
+public class GitServer {
+  // A client that sends nothing for this long is dropped
+  private static final int READ_TIMEOUT = 60_000;
+
+  private final File basePath;
+  private final boolean receivePack;
+  private final Map<File, Repository> repositories = new ConcurrentHashMap<>();
+
+  public GitServer(File basePath, boolean receivePack) {
+    this.basePath = basePath;
+    this.receivePack = receivePack;
+  }
+
+  public void run(InetSocketAddress address) throws IOException {
+    ExecutorService executor = newExecutor();
+    try (ServerSocketChannel server = ServerSocketChannel.open()) {
+      server.bind(address, 256);
+      System.err.println("Serving " + basePath + " on " + server.getLocalAddress());
+      while (true) {
+        SocketChannel channel = server.accept();
+        executor.execute(() -> handle(channel));
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static ExecutorService newExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "git-server");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+  }
+
+  private void handle(SocketChannel channel) {
+    String peer = "?";
+    try (channel) {
+      Socket socket = channel.socket();
+      peer = String.valueOf(socket.getRemoteSocketAddress());
+      socket.setSoTimeout(READ_TIMEOUT);
+      socket.setTcpNoDelay(true);
+      // The socket's own streams honour the read timeout; the channel's do not
+      InputStream in = new BufferedInputStream(socket.getInputStream(), 1 << 16);
+      OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+
+      String request = PktLine.read(in);
+      if (request == null) {
+        return;
+      }
+      int space = request.indexOf(' ');
+      int nul = request.indexOf('\0');
+      if (space < 0) {
+        sendError(out, "invalid request");
+        return;
+      }
+      String service = request.substring(0, space);
+      String path = request.substring(space + 1, nul >= 0 ? nul : request.length());
+
+      Repository repository;
+      try {
+        repository = resolve(path);
+      } catch (IOException e) {
+        sendError(out, "repository not exported: " + path);
+        return;
+      }
+      switch (service) {
+        case "git-upload-pack" -> new UploadPack(repository).serve(in, out);
+        case "git-receive-pack" -> {
+          if (!receivePack) {
+            sendError(out, "service not enabled: receive-pack");
+            return;
+          }
+          new ReceivePack(repository).serve(in, out);
+        }
+        default -> sendError(out, "service not enabled: " + service);
+      }
+    } catch (IOException | RuntimeException e) {
+      System.err.println("[" + peer + "] " + e.getMessage());
+    }
+  }
+
+  // Paths are confined to the base path; "/repo" and "/repo.git" both name base/repo
+  private Repository resolve(String path) throws IOException {
+    File base = basePath.getCanonicalFile();
+    File dir = new File(base, path).getCanonicalFile();
+    if (!dir.toPath().startsWith(base.toPath())) {
+      throw new IOException("outside base path");
+    }
+    if (!new File(dir, ".git").isDirectory() && dir.getName().endsWith(".git")) {
+      dir = new File(dir.getParentFile(), dir.getName().substring(0, dir.getName().length() - 4));
+    }
+    if (!new File(dir, ".git").isDirectory()) {
+      throw new IOException("not a repository");
+    }
+    Repository repository = repositories.get(dir);
+    if (repository == null) {
+      Repository opened = Repository.open(dir);
+      repository = repositories.putIfAbsent(dir, opened);
+      if (repository == null) {
+        repository = opened;
+      }
+    }
+    return repository;
+  }
+
+  private static void sendError(OutputStream out, String message) throws IOException {
+    PktLine.write(out, "ERR " + message + "\n");
+    out.flush();
+  }
+}
@@ -1,8 +1,12 @@
 import java.io.*;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 public class Index {
   private static final String INDEX_SIGNATURE = "DIRC";
@@ -24,13 +28,45 @@ public class Index {
     writeIndex(new LinkedHashMap<>());
   }
   
+  // Last index read or written in a repository, kept until the file's mtime, size or
+  // inode changes
+  private static class Cache {
+    Map<String, IndexEntry> entries;
+    Object stamp;
+  }
+
+  private static File indexFile() {
+    return Repository.current().gitFile("index");
+  }
+
+  // Entries in path order; the map is the caller's to modify
   public static Map<String, IndexEntry> readIndex() throws IOException {
-    Map<String, IndexEntry> entries = new LinkedHashMap<>();
-    File indexFile = new File(".git/index");
-    
-    if (!indexFile.exists()) {
-      return entries;
+    Cache cache = Repository.current().state(Cache.class, Cache::new);
+    synchronized (cache) {
+      Object stamp = stamp();
+      if (stamp == null) {
+        return new LinkedHashMap<>();
+      }
+      if (!stamp.equals(cache.stamp)) {
+        cache.entries = parseIndex();
+        cache.stamp = stamp;
+      }
+      return new LinkedHashMap<>(cache.entries);
     }
+  }
+
+  private static Object stamp() throws IOException {
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(indexFile().toPath(), BasicFileAttributes.class);
+      return Arrays.asList(attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS), attributes.size(), attributes.fileKey());
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+  }
+
+  private static Map<String, IndexEntry> parseIndex() throws IOException {
+    Map<String, IndexEntry> entries = new LinkedHashMap<>();
+    File indexFile = indexFile();
     
     try (DataInputStream dis = new DataInputStream(new FileInputStream(indexFile))) {
       // Read header
@@ -106,7 +142,8 @@ public class Index {
   }
   
   public static void writeIndex(Map<String, IndexEntry> entries) throws IOException {
-    File indexFile = new File(".git/index");
+    Cache cache = Repository.current().state(Cache.class, Cache::new);
+    File indexFile = indexFile();
     indexFile.getParentFile().mkdirs();
     
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -133,7 +170,18 @@ public class Index {
     }
     
     dos.close();
-    Files.write(indexFile.toPath(), baos.toByteArray());
+    // Renamed into place so a concurrent reader sees the old or the new index, never half
+    File tmp = File.createTempFile("index", ".tmp", indexFile.getParentFile());
+    synchronized (cache) {
+      try {
+        Files.write(tmp.toPath(), baos.toByteArray());
+        Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } finally {
+        tmp.delete();
+      }
+      cache.entries = new LinkedHashMap<>(entries);
+      cache.stamp = stamp();
+    }
   }
   
   private static void writeIndexEntry(DataOutputStream dos, IndexEntry entry) throws IOException {
@@ -0,0 +1,524 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+// Stores a pack arriving on a stream in objects/pack, like git index-pack. Bytes are
+// written to a temporary file and fed to the pack checksum as they are read; whole
+// objects are hashed while they inflate, so they are never held in memory. Deltas
+// only have their position recorded on the way through. Once the stream has ended
+// they are resolved from the file, starting at each whole object and applying the
+// deltas that name it as a base, depth first; the trees of deltas under different
+// whole objects are resolved on a pool of pack.threads threads. Then the version 2
+// .idx is written and both files are renamed to pack-<checksum>.
+//
+// With fix-thin, deltas against objects that are not in the pack but are in this
+// repository (a thin pack, as incremental bundles carry) are completed the way git
+// index-pack --fix-thin does it: those bases are appended to the pack as whole objects,
+// so the stored pack does not depend on anything outside it.
+public class IndexPack {
+  static class Entry {
+    long offset;
+    int type;
+    long size;
+    long dataOffset;
+    long baseOffset = -1;
+    String baseId;
+    String id;
+    int crc;
+  }
+
+  private final InputStream in;
+  private final byte[] buffer = new byte[1 << 16];
+  private int pos;
+  private int limit;
+  private long consumed;
+
+  private OutputStream packOut;
+  private MessageDigest packDigest;
+  private final CRC32 crc = new CRC32();
+  private final Inflater inflater = new Inflater();
+
+  private final List<Entry> entries = new ArrayList<>();
+  private String checksum;
+
+  private int threads = -1;
+  private boolean fixThin;
+
+  public IndexPack(InputStream in) {
+    this.in = in;
+  }
+
+  // Threads resolving deltas; by default pack.threads, or one per processor
+  public IndexPack setThreads(int threads) {
+    this.threads = threads;
+    return this;
+  }
+
+  // Accept deltas whose base is only in this repository
+  public IndexPack setFixThin(boolean fixThin) {
+    this.fixThin = fixThin;
+    return this;
+  }
+
+  public int getObjectCount() {
+    return entries.size();
+  }
+
+  public List<String> getObjectIds() {
+    List<String> ids = new ArrayList<>();
+    for (Entry entry : entries) {
+      ids.add(entry.id);
+    }
+    return ids;
+  }
+
+  // Name of the stored pack, or null when the pack held no objects
+  public String getChecksum() {
+    return checksum;
+  }
+
+  public String run() throws IOException {
+    return index(true);
+  }
+
+  // Reads the pack and resolves every object as run does, but stores nothing
+  public String verify() throws IOException {
+    return index(false);
+  }
+
+  private String index(boolean keep) throws IOException {
+    File dir = Repository.current().gitFile("objects/pack");
+    dir.mkdirs();
+    File tmpPack = File.createTempFile("tmp_pack_", null, dir);
+    try {
+      packDigest = sha1();
+      try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmpPack), 1 << 16)) {
+        packOut = out;
+        readStream();
+      } finally {
+        inflater.end();
+      }
+      if (entries.isEmpty()) {
+        return null;
+      }
+      resolveDeltas(tmpPack);
+      if (keep) {
+        store(tmpPack, dir, entries, checksum);
+      }
+      return checksum;
+    } finally {
+      tmpPack.delete();
+    }
+  }
+
+  // ========== STREAM ==========
+
+  private void readStream() throws IOException {
+    byte[] header = readBytes(12);
+    if (header[0] != 'P' || header[1] != 'A' || header[2] != 'C' || header[3] != 'K') {
+      throw new IOException("Protocol error: expected a pack");
+    }
+    int version = readInt(header, 4);
+    if (version != 2 && version != 3) {
+      throw new IOException("Unsupported pack version " + version);
+    }
+    long count = readInt(header, 8) & 0xffffffffL;
+
+    for (long i = 0; i < count; i++) {
+      Entry entry = new Entry();
+      entry.offset = consumed;
+      crc.reset();
+
+      int c = readByte();
+      entry.type = (c >> 4) & 7;
+      long size = c & 0x0f;
+      int shift = 4;
+      while ((c & 0x80) != 0) {
+        c = readByte();
+        size |= (long) (c & 0x7f) << shift;
+        shift += 7;
+      }
+      entry.size = size;
+
+      MessageDigest objectDigest = null;
+      if (entry.type == PackFile.OBJ_OFS_DELTA) {
+        c = readByte();
+        long distance = c & 0x7f;
+        while ((c & 0x80) != 0) {
+          c = readByte();
+          distance = ((distance + 1) << 7) | (c & 0x7f);
+        }
+        entry.baseOffset = entry.offset - distance;
+        if (entry.baseOffset < 0) {
+          throw new IOException("Delta base offset out of range at " + entry.offset);
+        }
+      } else if (entry.type == PackFile.OBJ_REF_DELTA) {
+        entry.baseId = ObjectStore.toHex(readBytes(20), 0);
+      } else {
+        objectDigest = sha1();
+        objectDigest.update((PackFile.typeName(entry.type) + " " + size + "\0").getBytes(StandardCharsets.US_ASCII));
+      }
+      entry.dataOffset = consumed;
+      inflateEntry(size, objectDigest);
+      if (objectDigest != null) {
+        entry.id = ObjectStore.toHex(objectDigest.digest(), 0);
+      }
+      entry.crc = (int) crc.getValue();
+      entries.add(entry);
+    }
+
+    byte[] expected = packDigest.digest();
+    byte[] trailer = new byte[20];
+    for (int i = 0; i < 20; i++) {
+      if (pos == limit) {
+        fill();
+      }
+      trailer[i] = buffer[pos++];
+    }
+    packOut.write(trailer);
+    if (!Arrays.equals(expected, trailer)) {
+      throw new IOException("Pack is corrupted (SHA1 mismatch)");
+    }
+    checksum = ObjectStore.toHex(trailer, 0);
+  }
+
+  // Runs the zlib stream of one entry through the inflater, feeding the object
+  // digest when there is one, and consumes exactly the compressed bytes
+  private void inflateEntry(long size, MessageDigest objectDigest) throws IOException {
+    byte[] out = new byte[8192];
+    long total = 0;
+    inflater.reset();
+    try {
+      while (true) {
+        if (inflater.needsInput()) {
+          if (pos == limit) {
+            fill();
+          }
+          inflater.setInput(buffer, pos, limit - pos);
+        }
+        int start = limit - inflater.getRemaining();
+        int n = inflater.inflate(out);
+        total += n;
+        if (objectDigest != null && n > 0) {
+          objectDigest.update(out, 0, n);
+        }
+        int used = (limit - inflater.getRemaining()) - start;
+        consume(used);
+        if (inflater.finished()) {
+          break;
+        }
+        if (n == 0 && inflater.needsDictionary()) {
+          throw new IOException("Corrupt object at " + consumed);
+        }
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt object at " + consumed + ": " + e.getMessage());
+    }
+    if (total != size) {
+      throw new IOException("Object size mismatch at " + consumed + ": expected " + size + ", got " + total);
+    }
+  }
+
+  // Marks buffer[pos, pos + n) as read: into the file, the pack digest and the CRC
+  private void consume(int n) throws IOException {
+    if (n <= 0) {
+      return;
+    }
+    packOut.write(buffer, pos, n);
+    packDigest.update(buffer, pos, n);
+    crc.update(buffer, pos, n);
+    pos += n;
+    consumed += n;
+  }
+
+  private void fill() throws IOException {
+    int n = in.read(buffer, 0, buffer.length);
+    if (n <= 0) {
+      throw new EOFException("Early EOF: the pack ended after " + consumed + " bytes");
+    }
+    pos = 0;
+    limit = n;
+  }
+
+  private int readByte() throws IOException {
+    if (pos == limit) {
+      fill();
+    }
+    int b = buffer[pos] & 0xff;
+    consume(1);
+    return b;
+  }
+
+  private byte[] readBytes(int n) throws IOException {
+    byte[] data = new byte[n];
+    for (int i = 0; i < n; i++) {
+      data[i] = (byte) readByte();
+    }
+    return data;
+  }
+
+  // ========== DELTAS ==========
+
+  private void resolveDeltas(File packFile) throws IOException {
+    Map<Long, List<Entry>> byOffset = new HashMap<>();
+    Map<String, List<Entry>> byId = new HashMap<>();
+    int deltas = 0;
+    for (Entry entry : entries) {
+      if (entry.baseOffset >= 0) {
+        byOffset.computeIfAbsent(entry.baseOffset, k -> new ArrayList<>()).add(entry);
+        deltas++;
+      } else if (entry.baseId != null) {
+        byId.computeIfAbsent(entry.baseId, k -> new ArrayList<>()).add(entry);
+        deltas++;
+      }
+    }
+    if (deltas == 0) {
+      return;
+    }
+
+    List<Entry> roots = new ArrayList<>();
+    for (Entry entry : entries) {
+      if (entry.id != null && entry.baseOffset < 0 && entry.baseId == null
+          && (byOffset.containsKey(entry.offset) || byId.containsKey(entry.id))) {
+        roots.add(entry);
+      }
+    }
+    int resolved = resolve(packFile, roots, byOffset, byId);
+    if (resolved < deltas && fixThin) {
+      resolved += resolve(packFile, appendBases(packFile, byId), byOffset, byId);
+    }
+    if (resolved != deltas) {
+      throw new IOException("Pack has " + (deltas - resolved) + " unresolved deltas");
+    }
+  }
+
+  // Resolves the deltas under each root; returns how many were resolved
+  private int resolve(File packFile, List<Entry> roots, Map<Long, List<Entry>> byOffset,
+      Map<String, List<Entry>> byId) throws IOException {
+    try (FileChannel channel = FileChannel.open(packFile.toPath(), StandardOpenOption.READ)) {
+      MappedByteBuffer pack = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+      // Every delta has exactly one base, so the trees under different roots share
+      // nothing and can be resolved on separate threads
+      int resolved = 0;
+      int threads = Math.min(threads(), roots.size());
+      if (threads <= 1) {
+        for (Entry root : roots) {
+          resolved += resolveRoot(pack, root, byOffset, byId);
+        }
+        return resolved;
+      }
+      ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+        Thread thread = new Thread(runnable, "index-pack");
+        thread.setDaemon(true);
+        return thread;
+      });
+      try {
+        List<Future<Integer>> results = new ArrayList<>();
+        for (Entry root : roots) {
+          results.add(pool.submit(() -> resolveRoot(pack, root, byOffset, byId)));
+        }
+        for (Future<Integer> result : results) {
+          resolved += result.get();
+        }
+        return resolved;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while resolving deltas");
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+      } finally {
+        pool.shutdownNow();
+      }
+    }
+  }
+
+  // Appends the bases that deltas still wait for, read from this repository, as
+  // whole entries; the object count and the trailing checksum are rewritten to match
+  private List<Entry> appendBases(File packFile, Map<String, List<Entry>> byId) throws IOException {
+    Set<String> inPack = new HashSet<>();
+    for (Entry entry : entries) {
+      if (entry.id != null) {
+        inPack.add(entry.id);
+      }
+    }
+    List<Entry> added = new ArrayList<>();
+    try (RandomAccessFile file = new RandomAccessFile(packFile, "rw")) {
+      long end = file.length() - 20;
+      file.seek(end);
+      for (String id : byId.keySet()) {
+        if (inPack.contains(id) || !ObjectStore.hasObject(id)) {
+          continue;
+        }
+        ObjectStore.ObjectInfo object = ObjectStore.loadObject(id);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PackWriter.writeEntryHeader(bytes, PackFile.typeCode(object.type), object.content.length);
+        Entry entry = new Entry();
+        entry.offset = end;
+        entry.type = PackFile.typeCode(object.type);
+        entry.size = object.content.length;
+        entry.dataOffset = end + bytes.size();
+        entry.id = id;
+        try (DeflaterOutputStream deflate = new DeflaterOutputStream(bytes)) {
+          deflate.write(object.content);
+        }
+        crc.reset();
+        crc.update(bytes.toByteArray());
+        entry.crc = (int) crc.getValue();
+        file.write(bytes.toByteArray());
+        end += bytes.size();
+        added.add(entry);
+      }
+      if (added.isEmpty()) {
+        return added;
+      }
+      entries.addAll(added);
+      file.seek(8);
+      file.writeInt(entries.size());
+
+      MessageDigest md = sha1();
+      file.seek(0);
+      byte[] chunk = new byte[1 << 16];
+      for (long left = end; left > 0; ) {
+        int n = file.read(chunk, 0, (int) Math.min(chunk.length, left));
+        md.update(chunk, 0, n);
+        left -= n;
+      }
+      byte[] trailer = md.digest();
+      file.write(trailer);
+      file.setLength(end + 20);
+      checksum = ObjectStore.toHex(trailer, 0);
+    }
+    return added;
+  }
+
+  // pack.threads, where 0 (the default) means one per processor
+  private int threads() throws IOException {
+    int threads = this.threads >= 0 ? this.threads : Config.snapshot().getInt("pack", null, "threads", 0);
+    return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+  }
+
+  private int resolveRoot(MappedByteBuffer pack, Entry root, Map<Long, List<Entry>> byOffset,
+      Map<String, List<Entry>> byId) throws IOException {
+    byte[] data = PackFile.inflate(pack, root.dataOffset, root.size, "pack");
+    return resolveChildren(pack, root, PackFile.typeName(root.type), data, byOffset, byId);
+  }
+
+  private int resolveChildren(MappedByteBuffer pack, Entry base, String type, byte[] baseData,
+      Map<Long, List<Entry>> byOffset, Map<String, List<Entry>> byId) throws IOException {
+    List<Entry> children = new ArrayList<>();
+    children.addAll(byOffset.getOrDefault(base.offset, List.of()));
+    children.addAll(byId.getOrDefault(base.id, List.of()));
+    int resolved = 0;
+    for (Entry child : children) {
+      byte[] delta = PackFile.inflate(pack, child.dataOffset, child.size, "pack");
+      byte[] data = Delta.apply(baseData, delta);
+      child.id = ObjectStore.sha1Hash(objectBytes(type, data));
+      resolved += 1 + resolveChildren(pack, child, type, data, byOffset, byId);
+    }
+    return resolved;
+  }
+
+  private static byte[] objectBytes(String type, byte[] content) {
+    byte[] header = (type + " " + content.length + "\0").getBytes(StandardCharsets.US_ASCII);
+    byte[] data = Arrays.copyOf(header, header.length + content.length);
+    System.arraycopy(content, 0, data, header.length, content.length);
+    return data;
+  }
+
+  // ========== INDEX ==========
+
+  // Writes the .idx for entries and renames both files to pack-<checksum>; also used
+  // by repack for the packs PackWriter writes
+  static void store(File tmpPack, File dir, List<Entry> entries, String checksum) throws IOException {
+    File pack = new File(dir, "pack-" + checksum + ".pack");
+    File idx = new File(dir, "pack-" + checksum + ".idx");
+    if (idx.exists()) {
+      return;
+    }
+    File tmpIdx = File.createTempFile("tmp_idx_", null, dir);
+    try {
+      writeIndex(tmpIdx, entries, checksum);
+      // The pack goes first: readers only look for packs through their .idx
+      Files.move(tmpPack.toPath(), pack.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      Files.move(tmpIdx.toPath(), idx.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      tmpIdx.delete();
+    }
+    ObjectStore.rescanPacks();
+  }
+
+  private static void writeIndex(File file, List<Entry> entries, String checksum) throws IOException {
+    List<Entry> sorted = new ArrayList<>(entries);
+    sorted.sort(Comparator.comparing(entry -> entry.id));
+
+    MessageDigest md = sha1();
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new DigestOutputStream(new FileOutputStream(file), md), 1 << 16))) {
+      out.writeInt(0xff744f63);
+      out.writeInt(2);
+      int[] fanout = new int[256];
+      for (Entry entry : sorted) {
+        fanout[Integer.parseInt(entry.id.substring(0, 2), 16)]++;
+      }
+      int total = 0;
+      for (int i = 0; i < 256; i++) {
+        total += fanout[i];
+        out.writeInt(total);
+      }
+      for (Entry entry : sorted) {
+        out.write(ObjectStore.fromHex(entry.id));
+      }
+      for (Entry entry : sorted) {
+        out.writeInt(entry.crc);
+      }
+      List<Long> large = new ArrayList<>();
+      for (Entry entry : sorted) {
+        if (entry.offset < 0x80000000L) {
+          out.writeInt((int) entry.offset);
+        } else {
+          out.writeInt(0x80000000 | large.size());
+          large.add(entry.offset);
+        }
+      }
+      for (long offset : large) {
+        out.writeLong(offset);
+      }
+      out.write(ObjectStore.fromHex(checksum));
+      out.flush();
+      // The idx checksum covers everything above, so it is written past the digest
+      byte[] idxChecksum = md.digest();
+      out.write(idxChecksum);
+    }
+  }
+
+  private static MessageDigest sha1() throws IOException {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static int readInt(byte[] data, int offset) {
+    return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16
+        | (data[offset + 2] & 0xff) << 8 | (data[offset + 3] & 0xff);
+  }
+}
@@ -0,0 +1,161 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Myers O(ND) diff over sequences of line ids, using the linear-space bisection
+// variant so large files do not need the full edit graph in memory
+public class LineDiff {
+
+  // Replaces a[beginA, endA) with b[beginB, endB); either range may be empty
+  public static class Edit {
+    public int beginA;
+    public int endA;
+    public int beginB;
+    public int endB;
+
+    Edit(int beginA, int endA, int beginB, int endB) {
+      this.beginA = beginA;
+      this.endA = endA;
+      this.beginB = beginB;
+      this.endB = endB;
+    }
+  }
+
+  private final int[] a;
+  private final int[] b;
+  private final List<Edit> edits = new ArrayList<>();
+
+  private LineDiff(int[] a, int[] b) {
+    this.a = a;
+    this.b = b;
+  }
+
+  public static List<Edit> diff(int[] a, int[] b) {
+    LineDiff diff = new LineDiff(a, b);
+    diff.diffRange(0, a.length, 0, b.length);
+    return diff.edits;
+  }
+
+  private void diffRange(int aStart, int aEnd, int bStart, int bEnd) {
+    while (aStart < aEnd && bStart < bEnd && a[aStart] == b[bStart]) {
+      aStart++;
+      bStart++;
+    }
+    while (aStart < aEnd && bStart < bEnd && a[aEnd - 1] == b[bEnd - 1]) {
+      aEnd--;
+      bEnd--;
+    }
+    if (aStart == aEnd || bStart == bEnd) {
+      if (aStart != aEnd || bStart != bEnd) {
+        addEdit(aStart, aEnd, bStart, bEnd);
+      }
+      return;
+    }
+    bisect(aStart, aEnd, bStart, bEnd);
+  }
+
+  // Finds the middle snake by running the search forward from the start and
+  // backward from the end until the two frontiers overlap, then recurses on each half
+  private void bisect(int aStart, int aEnd, int bStart, int bEnd) {
+    int aLength = aEnd - aStart;
+    int bLength = bEnd - bStart;
+    int maxD = (aLength + bLength + 1) / 2;
+    int offset = maxD;
+    int size = 2 * maxD + 2;
+    int[] forward = new int[size];
+    int[] backward = new int[size];
+    Arrays.fill(forward, -1);
+    Arrays.fill(backward, -1);
+    forward[offset + 1] = 0;
+    backward[offset + 1] = 0;
+    int delta = aLength - bLength;
+    boolean front = (delta & 1) != 0;
+    int k1Start = 0;
+    int k1End = 0;
+    int k2Start = 0;
+    int k2End = 0;
+
+    for (int d = 0; d < maxD; d++) {
+      for (int k1 = -d + k1Start; k1 <= d - k1End; k1 += 2) {
+        int k1Offset = offset + k1;
+        int x1;
+        if (k1 == -d || (k1 != d && forward[k1Offset - 1] < forward[k1Offset + 1])) {
+          x1 = forward[k1Offset + 1];
+        } else {
+          x1 = forward[k1Offset - 1] + 1;
+        }
+        int y1 = x1 - k1;
+        while (x1 < aLength && y1 < bLength && a[aStart + x1] == b[bStart + y1]) {
+          x1++;
+          y1++;
+        }
+        forward[k1Offset] = x1;
+        if (x1 > aLength) {
+          k1End += 2;
+        } else if (y1 > bLength) {
+          k1Start += 2;
+        } else if (front) {
+          int k2Offset = offset + delta - k1;
+          if (k2Offset >= 0 && k2Offset < size && backward[k2Offset] != -1) {
+            int x2 = aLength - backward[k2Offset];
+            if (x1 >= x2) {
+              split(aStart, aEnd, bStart, bEnd, x1, y1);
+              return;
+            }
+          }
+        }
+      }
+
+      for (int k2 = -d + k2Start; k2 <= d - k2End; k2 += 2) {
+        int k2Offset = offset + k2;
+        int x2;
+        if (k2 == -d || (k2 != d && backward[k2Offset - 1] < backward[k2Offset + 1])) {
+          x2 = backward[k2Offset + 1];
+        } else {
+          x2 = backward[k2Offset - 1] + 1;
+        }
+        int y2 = x2 - k2;
+        while (x2 < aLength && y2 < bLength && a[aEnd - x2 - 1] == b[bEnd - y2 - 1]) {
+          x2++;
+          y2++;
+        }
+        backward[k2Offset] = x2;
+        if (x2 > aLength) {
+          k2End += 2;
+        } else if (y2 > bLength) {
+          k2Start += 2;
+        } else if (!front) {
+          int k1Offset = offset + delta - k2;
+          if (k1Offset >= 0 && k1Offset < size && forward[k1Offset] != -1) {
+            int x1 = forward[k1Offset];
+            int y1 = offset + x1 - k1Offset;
+            if (x1 >= aLength - x2) {
+              split(aStart, aEnd, bStart, bEnd, x1, y1);
+              return;
+            }
+          }
+        }
+      }
+    }
+
+    // No common subsequence at all
+    addEdit(aStart, aEnd, bStart, bEnd);
+  }
+
+  private void split(int aStart, int aEnd, int bStart, int bEnd, int x, int y) {
+    diffRange(aStart, aStart + x, bStart, bStart + y);
+    diffRange(aStart + x, aEnd, bStart + y, bEnd);
+  }
+
+  private void addEdit(int beginA, int endA, int beginB, int endB) {
+    if (!edits.isEmpty()) {
+      Edit last = edits.get(edits.size() - 1);
+      if (last.endA == beginA && last.endB == beginB) {
+        last.endA = endA;
+        last.endB = endB;
+        return;
+      }
+    }
+    edits.add(new Edit(beginA, endA, beginB, endB));
+  }
+}
@@ -0,0 +1,192 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Line-based three-way content merge (diff3): changes from each side relative to
+// the base are applied together, and overlapping changes that disagree become
+// conflict hunks wrapped in markers
+public class LineMerger {
+  private static final int BINARY_CHECK_BYTES = 8000;
+
+  public static class Result {
+    public final byte[] content;
+    public final boolean conflict;
+
+    Result(byte[] content, boolean conflict) {
+      this.content = content;
+      this.conflict = conflict;
+    }
+  }
+
+  public static boolean isBinary(byte[] data) {
+    int limit = Math.min(data.length, BINARY_CHECK_BYTES);
+    for (int i = 0; i < limit; i++) {
+      if (data[i] == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public static Result merge(byte[] base, byte[] ours, byte[] theirs, String oursLabel, String theirsLabel) {
+    if (isBinary(base) || isBinary(ours) || isBinary(theirs)) {
+      return new Result(ours, true);
+    }
+
+    // Lines are compared through small ids; ISO-8859-1 keeps the bytes intact
+    Map<String, Integer> ids = new HashMap<>();
+    List<String> baseLines = splitLines(base);
+    List<String> oursLines = splitLines(ours);
+    List<String> theirsLines = splitLines(theirs);
+    int[] baseIds = toIds(baseLines, ids);
+    List<LineDiff.Edit> oursEdits = LineDiff.diff(baseIds, toIds(oursLines, ids));
+    List<LineDiff.Edit> theirsEdits = LineDiff.diff(baseIds, toIds(theirsLines, ids));
+
+    MergeOutput out = new MergeOutput(Math.max(ours.length, theirs.length));
+    boolean conflict = false;
+    int basePos = 0;
+    int oursDelta = 0;
+    int theirsDelta = 0;
+    int i = 0;
+    int j = 0;
+
+    while (i < oursEdits.size() || j < theirsEdits.size()) {
+      // Start a region at the earliest change and grow it while hunks from either
+      // side overlap or touch it
+      int regionStart;
+      int regionEnd;
+      if (j >= theirsEdits.size() || (i < oursEdits.size() && oursEdits.get(i).beginA <= theirsEdits.get(j).beginA)) {
+        regionStart = oursEdits.get(i).beginA;
+        regionEnd = oursEdits.get(i).endA;
+      } else {
+        regionStart = theirsEdits.get(j).beginA;
+        regionEnd = theirsEdits.get(j).endA;
+      }
+
+      int oursFirst = i;
+      int theirsFirst = j;
+      boolean grown = true;
+      while (grown) {
+        grown = false;
+        while (i < oursEdits.size() && oursEdits.get(i).beginA <= regionEnd) {
+          regionEnd = Math.max(regionEnd, oursEdits.get(i).endA);
+          i++;
+          grown = true;
+        }
+        while (j < theirsEdits.size() && theirsEdits.get(j).beginA <= regionEnd) {
+          regionEnd = Math.max(regionEnd, theirsEdits.get(j).endA);
+          j++;
+          grown = true;
+        }
+      }
+
+      writeLines(out, baseLines, basePos, regionStart);
+
+      int oursStart = regionStart + oursDelta;
+      for (int e = oursFirst; e < i; e++) {
+        LineDiff.Edit edit = oursEdits.get(e);
+        oursDelta += (edit.endB - edit.beginB) - (edit.endA - edit.beginA);
+      }
+      int oursEnd = regionEnd + oursDelta;
+
+      int theirsStart = regionStart + theirsDelta;
+      for (int e = theirsFirst; e < j; e++) {
+        LineDiff.Edit edit = theirsEdits.get(e);
+        theirsDelta += (edit.endB - edit.beginB) - (edit.endA - edit.beginA);
+      }
+      int theirsEnd = regionEnd + theirsDelta;
+
+      if (theirsFirst == j) {
+        writeLines(out, oursLines, oursStart, oursEnd);
+      } else if (oursFirst == i) {
+        writeLines(out, theirsLines, theirsStart, theirsEnd);
+      } else if (sameLines(oursLines, oursStart, oursEnd, theirsLines, theirsStart, theirsEnd)) {
+        writeLines(out, oursLines, oursStart, oursEnd);
+      } else {
+        conflict = true;
+        writeMarker(out, "<<<<<<< " + oursLabel);
+        writeLines(out, oursLines, oursStart, oursEnd);
+        terminateLine(out);
+        writeMarker(out, "=======");
+        writeLines(out, theirsLines, theirsStart, theirsEnd);
+        terminateLine(out);
+        writeMarker(out, ">>>>>>> " + theirsLabel);
+      }
+      basePos = regionEnd;
+    }
+    writeLines(out, baseLines, basePos, baseLines.size());
+
+    return new Result(out.toByteArray(), conflict);
+  }
+
+  private static List<String> splitLines(byte[] data) {
+    List<String> lines = new ArrayList<>();
+    int start = 0;
+    for (int i = 0; i < data.length; i++) {
+      if (data[i] == '\n') {
+        lines.add(new String(data, start, i + 1 - start, StandardCharsets.ISO_8859_1));
+        start = i + 1;
+      }
+    }
+    if (start < data.length) {
+      lines.add(new String(data, start, data.length - start, StandardCharsets.ISO_8859_1));
+    }
+    return lines;
+  }
+
+  private static int[] toIds(List<String> lines, Map<String, Integer> ids) {
+    int[] result = new int[lines.size()];
+    for (int i = 0; i < result.length; i++) {
+      Integer id = ids.get(lines.get(i));
+      if (id == null) {
+        id = ids.size();
+        ids.put(lines.get(i), id);
+      }
+      result[i] = id;
+    }
+    return result;
+  }
+
+  private static boolean sameLines(List<String> a, int aStart, int aEnd, List<String> b, int bStart, int bEnd) {
+    if (aEnd - aStart != bEnd - bStart) {
+      return false;
+    }
+    for (int i = 0; i < aEnd - aStart; i++) {
+      if (!a.get(aStart + i).equals(b.get(bStart + i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void writeLines(ByteArrayOutputStream out, List<String> lines, int start, int end) {
+    for (int i = start; i < end; i++) {
+      byte[] bytes = lines.get(i).getBytes(StandardCharsets.ISO_8859_1);
+      out.write(bytes, 0, bytes.length);
+    }
+  }
+
+  private static void terminateLine(MergeOutput out) {
+    if (out.endsWithoutNewline()) {
+      out.write('\n');
+    }
+  }
+
+  private static void writeMarker(ByteArrayOutputStream out, String marker) {
+    byte[] bytes = (marker + "\n").getBytes(StandardCharsets.UTF_8);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  private static class MergeOutput extends ByteArrayOutputStream {
+    MergeOutput(int size) {
+      super(size);
+    }
+
+    boolean endsWithoutNewline() {
+      return count > 0 && buf[count - 1] != '\n';
+    }
+  }
+}
@@ -0,0 +1,479 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+// Streams commits for log/rev-list through one large byte buffer. Commit objects are
+// only inflated when the format asks for a field the walker does not already have,
+// and only the header lines that field needs are located.
+//
+// Output goes through a PrintStream, so a reader that went away (a pager or head
+// quitting) shows up as checkError() rather than an exception; callers stop the walk
+// once isStopped() says so, as git does.
+public class LogPrinter implements Closeable {
+  private static final int BUFFER_SIZE = 1 << 16;
+  // Push output through at least this often so a pager shows the first page quickly,
+  // even while the walk is slow to produce the next commit
+  private static final long FLUSH_INTERVAL_MS = 100;
+  private static final Set<String> PRESETS = Set.of("medium", "oneline", "short", "full", "fuller");
+
+  private static final DateTimeFormatter DEFAULT_DATE =
+      DateTimeFormatter.ofPattern("EEE MMM d HH:mm:ss yyyy Z", Locale.ROOT);
+  private static final DateTimeFormatter ISO_DATE =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss Z", Locale.ROOT);
+
+  private static final byte[] NEWLINE = { '\n' };
+  private static final byte[] INDENT = { ' ', ' ', ' ', ' ' };
+
+  private enum Style { MEDIUM, ONELINE, SHORT, FULL, FULLER, FORMAT }
+
+  private final PrintStream target;
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private int count;
+  private final Style style;
+  // Compiled --format: byte[] literals interleaved with String placeholder names
+  private final List<Object> format = new ArrayList<>();
+  private int printed;
+  // Set once a flush finds the reader gone
+  private boolean stopped;
+  private final Timer timer = new Timer("log-flush", true);
+
+  public LogPrinter(OutputStream target, String pretty) {
+    this.target = target instanceof PrintStream stream ? stream : new PrintStream(target, false);
+    if (pretty == null || PRESETS.contains(pretty)) {
+      style = pretty == null ? Style.MEDIUM : Style.valueOf(pretty.toUpperCase(Locale.ROOT));
+    } else {
+      style = Style.FORMAT;
+      compile(pretty.startsWith("format:") || pretty.startsWith("tformat:")
+          ? pretty.substring(pretty.indexOf(':') + 1) : pretty);
+    }
+    timer.schedule(new TimerTask() {
+      @Override
+      public void run() {
+        flush();
+      }
+    }, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS);
+  }
+
+  // Pulls --oneline / --format=... / --pretty=... out of the leftover walk arguments
+  public static String parsePretty(List<String> options) throws IOException {
+    String pretty = null;
+    for (String option : options) {
+      if (option.equals("--oneline")) {
+        pretty = "oneline";
+      } else if (option.startsWith("--format=")) {
+        pretty = "format:" + option.substring(9);
+      } else if (option.startsWith("--pretty=")) {
+        pretty = option.substring(9);
+        // Like git, a string with placeholders is a format even without "format:"
+        if (!PRESETS.contains(pretty) && !pretty.startsWith("format:") && !pretty.startsWith("tformat:")
+            && !pretty.contains("%")) {
+          throw new IOException("invalid --pretty format: " + pretty);
+        }
+      } else if (!option.equals("--count")) {
+        throw new IOException("Unknown option: " + option);
+      }
+    }
+    return pretty;
+  }
+
+  // The reader went away; nothing more will be shown
+  public synchronized boolean isStopped() {
+    return stopped;
+  }
+
+  // Formats one commit into the buffer; the timer pushes it out
+  public synchronized void print(RevCommit commit) throws IOException {
+    switch (style) {
+      case MEDIUM -> printMedium(commit);
+      case ONELINE -> printOneline(commit);
+      case SHORT, FULL, FULLER -> printPreset(commit);
+      case FORMAT -> printFormat(commit);
+    }
+    printed++;
+  }
+
+  // A line of other walk output, such as rev-list --objects
+  public synchronized void printLine(String line) throws IOException {
+    write(line.getBytes(StandardCharsets.UTF_8));
+    write(NEWLINE);
+  }
+
+  public synchronized void flush() {
+    if (count > 0) {
+      target.write(buffer, 0, count);
+      count = 0;
+    }
+    stopped |= target.checkError();
+  }
+
+  @Override
+  public void close() {
+    timer.cancel();
+    flush();
+  }
+
+  private void printMedium(RevCommit commit) throws IOException {
+    CommitText text = new CommitText(commit);
+    text.load();
+    if (printed > 0) {
+      write(NEWLINE);
+    }
+    writeAscii("commit ");
+    writeAscii(commit.id);
+    write(NEWLINE);
+
+    byte[] raw = text.raw;
+    int pos = 0;
+    while (pos < text.headerEnd) {
+      int lineEnd = text.lineEnd(pos);
+      if (startsWith(raw, pos, "tree ") || startsWith(raw, pos, "parent ")
+          || startsWith(raw, pos, "author ") || startsWith(raw, pos, "committer ")) {
+        write(raw, pos, lineEnd - pos + 1);
+      }
+      pos = lineEnd + 1;
+    }
+
+    int bodyEnd = text.messageEnd();
+    pos = text.messageStart();
+    while (pos < bodyEnd) {
+      int lineEnd = Math.min(text.lineEnd(pos), bodyEnd);
+      write(INDENT);
+      write(raw, pos, lineEnd - pos);
+      write(NEWLINE);
+      pos = lineEnd + 1;
+    }
+  }
+
+  // git's short, full and fuller: named headers, then the subject (short) or the
+  // whole message indented
+  private void printPreset(RevCommit commit) throws IOException {
+    CommitText text = new CommitText(commit);
+    text.load();
+    if (printed > 0) {
+      write(NEWLINE);
+    }
+    writeAscii("commit ");
+    writeAscii(commit.id);
+    write(NEWLINE);
+    RevCommit[] parents = commit.getParents();
+    if (parents.length > 1) {
+      writeAscii("Merge:");
+      for (RevCommit parent : parents) {
+        writeAscii(" " + parent.id.substring(0, 7));
+      }
+      write(NEWLINE);
+    }
+
+    boolean fuller = style == Style.FULLER;
+    writeIdentity(text, fuller ? "Author:     " : "Author: ", "author ");
+    if (fuller) {
+      writeAscii("AuthorDate: ");
+      writePerson(text, "author ", 'd');
+      write(NEWLINE);
+    }
+    if (style != Style.SHORT) {
+      writeIdentity(text, fuller ? "Commit:     " : "Commit: ", "committer ");
+    }
+    if (fuller) {
+      writeAscii("CommitDate: ");
+      writePerson(text, "committer ", 'd');
+      write(NEWLINE);
+    }
+
+    write(NEWLINE);
+    byte[] raw = text.raw;
+    int bodyEnd = text.messageEnd();
+    int pos = text.messageStart();
+    while (pos < bodyEnd) {
+      int lineEnd = Math.min(text.lineEnd(pos), bodyEnd);
+      if (style == Style.SHORT && lineEnd == pos) {
+        break;
+      }
+      write(INDENT);
+      write(raw, pos, lineEnd - pos);
+      write(NEWLINE);
+      pos = lineEnd + 1;
+    }
+  }
+
+  private void writeIdentity(CommitText text, String label, String header) throws IOException {
+    writeAscii(label);
+    writePerson(text, header, 'n');
+    writeAscii(" <");
+    writePerson(text, header, 'e');
+    writeAscii(">");
+    write(NEWLINE);
+  }
+
+  private void printOneline(RevCommit commit) throws IOException {
+    CommitText text = new CommitText(commit);
+    writeAscii(commit.id.substring(0, 7));
+    write(' ');
+    text.writeSubject();
+    write(NEWLINE);
+  }
+
+  private void printFormat(RevCommit commit) throws IOException {
+    CommitText text = new CommitText(commit);
+    for (Object part : format) {
+      if (part instanceof byte[] literal) {
+        write(literal);
+      } else {
+        writePlaceholder((String) part, commit, text);
+      }
+    }
+    write(NEWLINE);
+  }
+
+  private void writePlaceholder(String placeholder, RevCommit commit, CommitText text) throws IOException {
+    switch (placeholder) {
+      case "H" -> writeAscii(commit.id);
+      case "h" -> writeAscii(commit.id.substring(0, 7));
+      case "T" -> writeAscii(text.tree());
+      case "t" -> writeAscii(text.tree().substring(0, 7));
+      case "P", "p" -> {
+        RevCommit[] parents = commit.getParents();
+        for (int i = 0; i < parents.length; i++) {
+          if (i > 0) {
+            write(' ');
+          }
+          writeAscii(placeholder.equals("P") ? parents[i].id : parents[i].id.substring(0, 7));
+        }
+      }
+      case "an", "ae", "at", "ad", "ai" -> writePerson(text, "author ", placeholder.charAt(1));
+      case "cn", "ce", "ct", "cd", "ci" -> writePerson(text, "committer ", placeholder.charAt(1));
+      case "s" -> text.writeSubject();
+      case "b" -> text.writeBody();
+      case "B" -> {
+        text.load();
+        write(text.raw, text.messageStart(), text.messageEnd() - text.messageStart());
+      }
+      case "n" -> write(NEWLINE);
+      case "%" -> write('%');
+      default -> writeAscii("%" + placeholder);
+    }
+  }
+
+  // "Name <email> 1700000000 +0000"
+  private void writePerson(CommitText text, String header, char field) throws IOException {
+    text.load();
+    int start = text.findHeader(header);
+    if (start < 0) {
+      return;
+    }
+    byte[] raw = text.raw;
+    start += header.length();
+    int end = text.lineEnd(start);
+    int emailStart = start;
+    while (emailStart < end && raw[emailStart] != '<') {
+      emailStart++;
+    }
+    int emailEnd = emailStart;
+    while (emailEnd < end && raw[emailEnd] != '>') {
+      emailEnd++;
+    }
+
+    switch (field) {
+      case 'n' -> write(raw, start, Math.max(0, emailStart - 1 - start));
+      case 'e' -> write(raw, emailStart + 1, Math.max(0, emailEnd - emailStart - 1));
+      default -> {
+        String[] when = new String(raw, emailEnd + 1, end - emailEnd - 1, StandardCharsets.US_ASCII).trim().split(" ");
+        if (field == 't') {
+          writeAscii(when[0]);
+        } else {
+          ZoneOffset zone = when.length > 1 ? ZoneOffset.of(when[1]) : ZoneOffset.UTC;
+          DateTimeFormatter formatter = field == 'i' ? ISO_DATE : DEFAULT_DATE;
+          writeAscii(formatter.format(Instant.ofEpochSecond(Long.parseLong(when[0])).atOffset(zone)));
+        }
+      }
+    }
+  }
+
+  private void compile(String pattern) {
+    StringBuilder literal = new StringBuilder();
+    int i = 0;
+    while (i < pattern.length()) {
+      char c = pattern.charAt(i);
+      if (c != '%' || i + 1 >= pattern.length()) {
+        literal.append(c);
+        i++;
+        continue;
+      }
+      if (literal.length() > 0) {
+        format.add(literal.toString().getBytes(StandardCharsets.UTF_8));
+        literal.setLength(0);
+      }
+      char next = pattern.charAt(i + 1);
+      if ((next == 'a' || next == 'c') && i + 2 < pattern.length()) {
+        format.add(pattern.substring(i + 1, i + 3));
+        i += 3;
+      } else {
+        format.add(String.valueOf(next));
+        i += 2;
+      }
+    }
+    if (literal.length() > 0) {
+      format.add(literal.toString().getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  private void write(byte[] data) throws IOException {
+    write(data, 0, data.length);
+  }
+
+  private void write(byte[] data, int offset, int length) throws IOException {
+    if (length > buffer.length - count) {
+      flushBuffer();
+      if (length > buffer.length) {
+        target.write(data, offset, length);
+        return;
+      }
+    }
+    System.arraycopy(data, offset, buffer, count, length);
+    count += length;
+  }
+
+  private void write(int b) throws IOException {
+    if (count == buffer.length) {
+      flushBuffer();
+    }
+    buffer[count++] = (byte) b;
+  }
+
+  private void writeAscii(String value) throws IOException {
+    int length = value.length();
+    if (length > buffer.length - count) {
+      flushBuffer();
+    }
+    for (int i = 0; i < length; i++) {
+      if (count == buffer.length) {
+        flushBuffer();
+      }
+      buffer[count++] = (byte) value.charAt(i);
+    }
+  }
+
+  private void flushBuffer() {
+    target.write(buffer, 0, count);
+    count = 0;
+    stopped |= target.checkError();
+  }
+
+  // Raw commit bytes, read on first use; field offsets are found by scanning on demand
+  private class CommitText {
+    final RevCommit commit;
+    byte[] raw;
+    int headerEnd;
+
+    CommitText(RevCommit commit) {
+      this.commit = commit;
+    }
+
+    void load() throws IOException {
+      if (raw != null) {
+        return;
+      }
+      raw = ObjectStore.parseObject(commit.id).content;
+      int pos = 0;
+      while (pos < raw.length && raw[pos] != '\n') {
+        pos = lineEnd(pos) + 1;
+      }
+      headerEnd = Math.min(pos, raw.length);
+    }
+
+    String tree() throws IOException {
+      if (commit.getTree() != null) {
+        return commit.getTree();
+      }
+      load();
+      return new String(raw, 5, 40, StandardCharsets.US_ASCII);
+    }
+
+    int lineEnd(int pos) {
+      while (pos < raw.length && raw[pos] != '\n') {
+        pos++;
+      }
+      return pos;
+    }
+
+    int findHeader(String name) {
+      int pos = 0;
+      while (pos < headerEnd) {
+        if (startsWith(raw, pos, name)) {
+          return pos;
+        }
+        pos = lineEnd(pos) + 1;
+      }
+      return -1;
+    }
+
+    int messageStart() {
+      return Math.min(headerEnd + 1, raw.length);
+    }
+
+    // End of the message with trailing newlines dropped
+    int messageEnd() {
+      int end = raw.length;
+      while (end > messageStart() && raw[end - 1] == '\n') {
+        end--;
+      }
+      return end;
+    }
+
+    // First paragraph, lines joined with spaces
+    void writeSubject() throws IOException {
+      load();
+      int pos = messageStart();
+      int end = messageEnd();
+      boolean first = true;
+      while (pos < end) {
+        int lineEnd = Math.min(lineEnd(pos), end);
+        if (lineEnd == pos) {
+          break;
+        }
+        if (!first) {
+          write(' ');
+        }
+        write(raw, pos, lineEnd - pos);
+        first = false;
+        pos = lineEnd + 1;
+      }
+    }
+
+    void writeBody() throws IOException {
+      load();
+      int pos = messageStart();
+      int end = messageEnd();
+      while (pos < end && raw[pos] != '\n') {
+        pos = lineEnd(pos) + 1;
+      }
+      while (pos < end && raw[pos] == '\n') {
+        pos++;
+      }
+      if (pos < end) {
+        write(raw, pos, end - pos);
+        write('\n');
+      }
+    }
+  }
+
+  private static boolean startsWith(byte[] data, int pos, String prefix) {
+    if (pos + prefix.length() > data.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length(); i++) {
+      if (data[pos + i] != prefix.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -1,19 +1,42 @@
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 
 public class Main {
   public static void main(String[] args) {
+    int code;
+    // Background maintenance runs in its own process rather than holding up a daemon
+    if (args.length > 0 && (args[0].equals("daemon") || args[0].equals("serve") || args[0].equals("maintenance"))) {
+      code = run(args);
+    } else {
+      // A running daemon for this repository answers with warm caches; otherwise
+      // the command runs in this process
+      code = Daemon.forward(args);
+      if (code < 0) {
+        code = run(args);
+      }
+    }
+    System.out.flush();
+    if (code != 0) {
+      System.exit(code);
+    }
+  }
+
+  // Runs one command and returns its exit code. Commands stop early with a non-zero
+  // code by throwing Exit, never by calling System.exit, so the daemon can run them.
+  public static int run(String[] args) {
     if (args.length == 0) {
       System.out.println("Usage: git <command> [options]");
-      return;
+      return 0;
     }
     
     final String command = args[0];
     
     try {
       switch (command) {
-        case "init" -> init();
+        case "init" -> init(args);
         case "cat-file" -> catFile(args);
         case "hash-object" -> hashObject(args);
         case "ls-tree" -> lsTree(args);
@@ -21,26 +44,91 @@ public class Main {
         case "commit-tree" -> commitTree(args);
         case "commit" -> commit(args);
         case "log" -> log(args);
+        case "rev-list" -> revList(args);
+        case "rev-parse" -> revParse(args);
+        case "commit-graph" -> commitGraph(args);
+        case "multi-pack-index" -> multiPackIndex(args);
         case "add" -> add(args);
         case "checkout" -> checkout(args);
         case "status" -> status();
         case "branch" -> branch(args);
         case "tag" -> tag(args);
+        case "pack-refs" -> packRefs(args);
+        case "update-ref" -> updateRef(args);
         case "merge" -> merge(args);
+        case "merge-base" -> mergeBase(args);
+        case "cherry-pick" -> cherryPick(args);
+        case "rebase" -> rebase(args);
         case "diff" -> diff(args);
         case "reset" -> reset(args);
+        case "daemon" -> daemon(args);
+        case "clone" -> clone(args);
+        case "fetch" -> fetch(args);
+        case "remote" -> remote(args);
+        case "push" -> push(args);
+        case "serve" -> serve(args);
+        case "bundle" -> bundle(args);
+        case "repack" -> repack(args);
+        case "gc" -> gc(args);
+        case "maintenance" -> maintenance(args);
         default -> System.out.println("Unknown command: " + command);
       }
+      if (AUTO_MAINTENANCE.contains(command)) {
+        Maintenance.auto();
+      }
+      return 0;
+    } catch (Exit e) {
+      return e.code;
     } catch (Exception e) {
       System.err.println("Error: " + e.getMessage());
       e.printStackTrace();
-      System.exit(1);
+      return 1;
+    }
+  }
+
+  // Commands that add objects or refs, after which maintenance may be due
+  private static final Set<String> AUTO_MAINTENANCE = Set.of("add", "commit", "merge", "cherry-pick", "rebase", "fetch");
+
+  private static final PrintStream PROCESS_OUT = System.out;
+
+  // Raw stdout for bulk output, which also surfaces broken pipes that PrintStream
+  // swallows; System.out itself when the daemon has redirected it to a client
+  private static OutputStream stdout() {
+    return System.out == PROCESS_OUT ? new FileOutputStream(FileDescriptor.out) : System.out;
+  }
+
+  // Ends the current command with an exit code after it has printed its own message
+  public static class Exit extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    final int code;
+
+    public Exit(int code) {
+      super(null, null, false, false);
+      this.code = code;
     }
   }
 
   // ========== INIT ==========
-  private static void init() throws IOException {
-    final File root = new File(".git");
+  private static void init(String[] args) throws IOException {
+    String refFormat = "files";
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].startsWith("--ref-format=")) {
+        refFormat = args[i].substring(13);
+      } else {
+        throw new IOException("Unknown init option: " + args[i]);
+      }
+    }
+    if (!refFormat.equals("files") && !refFormat.equals("reftable")) {
+      throw new IOException("Unknown ref storage format '" + refFormat + "'");
+    }
+
+    initRepository(refFormat);
+    System.out.println("Initialized git directory");
+  }
+
+  private static void initRepository(String refFormat) throws IOException {
+    final File root = Repository.current().getGitDir();
     new File(root, "objects").mkdirs();
     new File(root, "refs/heads").mkdirs();
     new File(root, "refs/tags").mkdirs();
@@ -51,15 +139,22 @@ public class Main {
     
     // Create config file
     Config.createDefaultConfig();
-    
-    System.out.println("Initialized git directory");
+    if (refFormat.equals("reftable")) {
+      Config.setConfigValue("core", "repositoryformatversion", "1");
+      Config.setConfigValue("extensions", "refstorage", "reftable");
+      ReftableRefStore.init();
+    }
   }
 
 
   // ========== CAT-FILE ==========
   private static void catFile(String[] args) throws IOException {
+    if (args.length >= 2 && args[1].startsWith("--batch")) {
+      catFileBatch(args);
+      return;
+    }
     if (args.length < 3) {
-      System.out.println("Usage: git cat-file -p <hash>");
+      System.out.println("Usage: git cat-file -p <hash> | --batch[=<format>] | --batch-check[=<format>] [--threads=<n>]");
       return;
     }
     
@@ -81,36 +176,31 @@ public class Main {
     }
   }
 
-  private static void printTree(byte[] treeData) {
-    int pos = 0;
-    while (pos < treeData.length) {
-      // Read mode
-      int modeEnd = pos;
-      while (modeEnd < treeData.length && treeData[modeEnd] != ' ') {
-        modeEnd++;
-      }
-      String mode = new String(treeData, pos, modeEnd - pos);
-      pos = modeEnd + 1;
-      
-      // Read name
-      int nameEnd = pos;
-      while (nameEnd < treeData.length && treeData[nameEnd] != 0) {
-        nameEnd++;
-      }
-      String name = new String(treeData, pos, nameEnd - pos);
-      pos = nameEnd + 1;
-      
-      // Read hash (20 bytes)
-      StringBuilder hash = new StringBuilder();
-      for (int i = 0; i < 20; i++) {
-        hash.append(String.format("%02x", treeData[pos + i]));
+  private static void catFileBatch(String[] args) throws IOException {
+    boolean contents = false;
+    String format = null;
+    int threads = 1;
+    for (int i = 1; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.equals("--batch") || arg.equals("--batch-check")) {
+        contents = arg.equals("--batch");
+      } else if (arg.startsWith("--batch=") || arg.startsWith("--batch-check=")) {
+        contents = arg.startsWith("--batch=");
+        format = arg.substring(arg.indexOf('=') + 1);
+      } else if (arg.startsWith("--threads=")) {
+        threads = Integer.parseInt(arg.substring(10));
+      } else {
+        throw new IOException("Unknown cat-file option: " + arg);
       }
-      pos += 20;
-      
-      // Determine type
-      String type = mode.equals("40000") ? "tree" : "blob";
-      
-      System.out.println(mode + " " + type + " " + hash + "\t" + name);
+    }
+    new CatFileBatch(contents, format, threads).run(System.in, stdout());
+  }
+
+  private static void printTree(byte[] treeData) throws IOException {
+    TreeIterator entries = new TreeIterator(treeData);
+    while (entries.next()) {
+      String type = entries.isTree() ? "tree" : "blob";
+      System.out.println(entries.modeString() + " " + type + " " + entries.id() + "\t" + entries.name());
     }
   }
 
@@ -154,33 +244,16 @@ public class Main {
     }
   }
 
-  private static void printTreeNames(byte[] treeData) {
-    int pos = 0;
-    while (pos < treeData.length) {
-      // Skip mode
-      while (pos < treeData.length && treeData[pos] != ' ') {
-        pos++;
-      }
-      pos++; // Skip space
-      
-      // Read name
-      int nameEnd = pos;
-      while (nameEnd < treeData.length && treeData[nameEnd] != 0) {
-        nameEnd++;
-      }
-      String name = new String(treeData, pos, nameEnd - pos);
-      pos = nameEnd + 1;
-      
-      // Skip hash (20 bytes)
-      pos += 20;
-      
-      System.out.println(name);
+  private static void printTreeNames(byte[] treeData) throws IOException {
+    TreeIterator entries = new TreeIterator(treeData);
+    while (entries.next()) {
+      System.out.println(entries.name());
     }
   }
 
   // ========== WRITE-TREE ==========
   private static String writeTree() throws IOException {
-    return writeTreeRecursive(new File("."), "");
+    return writeTreeRecursive(Repository.current().getWorkTree(), "");
   }
 
   private static String writeTreeRecursive(File dir, String prefix) throws IOException {
@@ -199,8 +272,8 @@ public class Main {
       }
     }
     
-    // Sort entries
-    filteredFiles.sort(Comparator.comparing(File::getName));
+    // Sort entries in git tree order (directories compare as if they end in '/')
+    filteredFiles.sort(Comparator.comparing(file -> file.isDirectory() ? file.getName() + "/" : file.getName()));
     
     for (File file : filteredFiles) {
       String name = file.getName();
@@ -283,6 +356,18 @@ public class Main {
       }
     }
     
+    // Concluding a stopped merge: every conflict must have been added first
+    String mergeHead = GitRepository.readMergeHead();
+    if (mergeHead != null) {
+      List<String> unmerged = GitRepository.getUnmergedPaths();
+      if (!unmerged.isEmpty()) {
+        throw new IOException("Committing is not possible because you have unmerged files: " + String.join(", ", unmerged));
+      }
+      if (message == null) {
+        message = GitRepository.readMergeMessage();
+      }
+    }
+    
     if (message == null) {
       throw new IOException("Commit message required (-m)");
     }
@@ -294,10 +379,16 @@ public class Main {
     String parentHash = GitRepository.getHeadCommit();
     
     // Create commit
-    String commitHash = createCommit(treeHash, parentHash, message);
+    String commitHash;
+    if (mergeHead != null) {
+      commitHash = createMergeCommit(treeHash, parentHash, mergeHead, message);
+      GitRepository.clearMergeState();
+    } else {
+      commitHash = createCommit(treeHash, parentHash, message);
+    }
     
-    // Update HEAD
-    GitRepository.updateHead(commitHash);
+    // Update HEAD, unless another process moved it since we read the parent
+    GitRepository.updateHead(commitHash, parentHash != null ? parentHash : RefTransaction.ZERO_ID);
     
     System.out.println(commitHash);
   }
@@ -358,7 +449,7 @@ public class Main {
             // Direct child directory
             String treeHash = treeHashes.get(subDir);
             if (treeHash != null) {
-              treeEntries.put(relative, new TreeEntry("40000", relative, treeHash));
+              treeEntries.put(relative + "/", new TreeEntry("40000", relative, treeHash));
             }
           }
         }
@@ -402,74 +493,142 @@ public class Main {
 
   // ========== LOG ==========
   private static void log(String[] args) throws IOException {
-    String startHash = null;
-    
-    if (args.length > 1) {
-      startHash = args[1];
-    } else {
-      startHash = GitRepository.getHeadCommit();
-    }
+    RevWalk walk = new RevWalk();
+    String pretty = LogPrinter.parsePretty(walk.parseArguments(args, 1));
     
-    if (startHash == null) {
+    RevCommit commit = walk.next();
+    if (commit == null) {
       System.out.println("No commits found");
       return;
     }
     
-    String currentHash = startHash;
-    while (currentHash != null) {
-      printCommit(currentHash);
-      currentHash = getParentCommit(currentHash);
-      if (currentHash != null) {
-        System.out.println();
+    // The reader (e.g. a pager or head) may go away; stop quietly like git does
+    try (LogPrinter printer = new LogPrinter(stdout(), pretty)) {
+      while (commit != null && !printer.isStopped()) {
+        printer.print(commit);
+        commit = walk.next();
       }
     }
   }
 
-  private static void printCommit(String hash) throws IOException {
-    ObjectStore.ObjectInfo obj = ObjectStore.parseObject(hash);
-    if (!obj.type.equals("commit")) {
-      throw new IOException("Not a commit object: " + hash);
+  // ========== REV-LIST ==========
+  private static void revList(String[] args) throws IOException {
+    RevWalk walk = new RevWalk();
+    List<String> rest = new ArrayList<>(walk.parseArguments(args, 1));
+    boolean objects = rest.remove("--objects");
+    boolean useBitmapIndex = rest.remove("--use-bitmap-index");
+    String pretty = LogPrinter.parsePretty(rest);
+    if (objects) {
+      revListObjects(walk, useBitmapIndex, rest.contains("--count"));
+      return;
     }
     
-    String content = new String(obj.content);
-    String[] lines = content.split("\n");
-    
-    System.out.println("commit " + hash);
+    if (rest.contains("--count")) {
+      System.out.println(walk.count());
+      return;
+    }
     
-    boolean inMessage = false;
-    for (String line : lines) {
-      if (line.startsWith("tree ") || line.startsWith("parent ") || 
-          line.startsWith("author ") || line.startsWith("committer ")) {
-        System.out.println(line);
-      } else if (line.isEmpty() && !inMessage) {
-        inMessage = true;
-      } else if (inMessage || !line.isEmpty()) {
-        if (!inMessage) {
-          System.out.println();
-          inMessage = true;
+    try (LogPrinter printer = new LogPrinter(stdout(), pretty != null ? pretty : "format:%H")) {
+      RevCommit commit;
+      while (!printer.isStopped() && (commit = walk.next()) != null) {
+        printer.print(commit);
+      }
+    }
+  }
+
+  // rev-list --objects: every object the range reaches, commits first, then tags,
+  // trees and blobs with their paths; --use-bitmap-index answers from reachability
+  // bitmaps when there are any, without paths
+  private static void revListObjects(RevWalk walk, boolean useBitmaps, boolean count) throws IOException {
+    ObjectWalk objects = new ObjectWalk(walk.getPool());
+    objects.setUseBitmaps(useBitmaps);
+    for (String id : walk.getStarts()) {
+      objects.markStart(id);
+    }
+    for (String id : walk.getUninteresting()) {
+      objects.markUninteresting(id);
+    }
+    List<ObjectWalk.Entry> entries = objects.objects();
+    if (count) {
+      System.out.println(entries.size());
+      return;
+    }
+    try (LogPrinter printer = new LogPrinter(stdout(), null)) {
+      for (ObjectWalk.Entry entry : entries) {
+        if (printer.isStopped()) {
+          break;
         }
-        System.out.println("    " + line);
+        printer.printLine(entry.path.isEmpty() ? entry.id : entry.id + " " + entry.path);
       }
     }
   }
-  
-  private static String getParentCommit(String commitHash) throws IOException {
-    ObjectStore.ObjectInfo obj = ObjectStore.parseObject(commitHash);
-    String content = new String(obj.content);
-    String[] lines = content.split("\n");
+
+  // ========== COMMIT-GRAPH ==========
+  private static void commitGraph(String[] args) throws IOException {
+    if (args.length < 2 || !args[1].equals("write")) {
+      System.out.println("Usage: git commit-graph write [--changed-paths]");
+      return;
+    }
     
-    // Return first parent (for merge commits, there can be multiple)
-    for (String line : lines) {
-      if (line.startsWith("parent ")) {
-        return line.substring(7);
+    boolean changedPaths = false;
+    for (int i = 2; i < args.length; i++) {
+      if (args[i].equals("--changed-paths")) {
+        changedPaths = true;
+      }
+    }
+    CommitGraph.write(changedPaths);
+  }
+
+  // ========== MULTI-PACK-INDEX ==========
+  private static void multiPackIndex(String[] args) throws IOException {
+    String action = args.length > 1 ? args[1] : "";
+    switch (action) {
+      case "write" -> {
+        int read = MultiPackIndex.write();
+        MultiPackIndex midx = MultiPackIndex.open(Repository.current().gitFile("objects/pack"));
+        if (midx != null) {
+          System.out.println("Wrote multi-pack-index: " + midx.getObjectCount() + " objects in "
+              + midx.getPackNames().size() + " packs (" + read + " read from their .idx)");
+        }
+      }
+      case "verify" -> {
+        MultiPackIndex midx = MultiPackIndex.open(Repository.current().gitFile("objects/pack"));
+        if (midx == null) {
+          System.out.println("No multi-pack-index");
+          return;
+        }
+        List<String> problems = midx.verify();
+        for (String problem : problems) {
+          System.err.println("error: " + problem);
+        }
+        if (!problems.isEmpty()) {
+          throw new Exit(1);
+        }
+        System.out.println("multi-pack-index is okay: " + midx.getObjectCount() + " objects in "
+            + midx.getPackNames().size() + " packs");
       }
+      default -> System.out.println("Usage: git multi-pack-index (write | verify)");
+    }
+  }
+
+  // ========== REV-PARSE ==========
+  private static void revParse(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.out.println("Usage: git rev-parse <rev>...");
+      return;
     }
     
-    return null;
+    RevWalk walk = new RevWalk();
+    for (int i = 1; i < args.length; i++) {
+      System.out.println(walk.resolve(args[i]));
+    }
   }
-  
+
   private static List<String> getParentCommits(String commitHash) throws IOException {
     List<String> parents = new ArrayList<>();
+    if (Shallow.read().contains(commitHash)) {
+      return parents;
+    }
     ObjectStore.ObjectInfo obj = ObjectStore.parseObject(commitHash);
     String content = new String(obj.content);
     String[] lines = content.split("\n");
@@ -506,6 +665,7 @@ public class Main {
       String hash = ObjectStore.storeObject("blob", content);
       Index.updateIndex(filePath, hash, "100644");
     }
+    GitRepository.markResolved(filePath);
   }
   
   private static void addDirectory(File dir, String prefix) throws IOException {
@@ -555,68 +715,65 @@ public class Main {
         }
       }
       if (treeHash != null) {
-        checkoutTree(treeHash, new File("."));
+        checkoutTree(treeHash, Repository.current().getWorkTree());
+        loadIndexFromTree(treeHash);
         
         // Check if ref is a branch name
-        File branchFile = new File(".git/refs/heads/" + ref);
-        if (branchFile.exists()) {
+        if (GitRepository.readRef("refs/heads/" + ref) != null) {
           // Update HEAD to point to branch
           GitRepository.updateHeadToBranch(ref);
         } else {
           // Detached HEAD - point directly to commit
-          Files.write(new File(".git/HEAD").toPath(), (commitHash + "\n").getBytes());
+          GitRepository.detachHead(commitHash);
         }
       }
     } else if (obj.type.equals("tree")) {
-      checkoutTree(commitHash, new File("."));
-      Files.write(new File(".git/HEAD").toPath(), (commitHash + "\n").getBytes());
+      checkoutTree(commitHash, Repository.current().getWorkTree());
+      GitRepository.detachHead(commitHash);
     } else {
       throw new IOException("Cannot checkout non-commit/tree object");
     }
   }
 
+  // Makes the index match a tree, so later merges see a clean starting point
+  private static void loadIndexFromTree(String treeHash) throws IOException {
+    Map<String, Index.IndexEntry> entries = new TreeMap<>();
+    TreeDiff.diff(null, treeHash, (path, oldMode, oldId, newMode, newId) -> {
+      if (newMode != TreeIterator.MODE_TREE) {
+        entries.put(path, new Index.IndexEntry(Integer.toOctalString(newMode), newId, path));
+      }
+      return true;
+    });
+    Index.writeIndex(entries);
+  }
+
+  // A partial clone first fetches every blob it lacks, in one request
   private static void checkoutTree(String treeHash, File destDir) throws IOException {
+    if (Promisor.isPartial()) {
+      Map<String, String> files = new TreeMap<>();
+      getTreeFilesRecursive(treeHash, "", files);
+      Promisor.prefetch(files.values());
+    }
+    writeTree(treeHash, destDir);
+  }
+
+  private static void writeTree(String treeHash, File destDir) throws IOException {
     ObjectStore.ObjectInfo treeObj = ObjectStore.parseObject(treeHash);
     if (!treeObj.type.equals("tree")) {
       throw new IOException("Not a tree object");
     }
     
-    byte[] treeData = treeObj.content;
-    int pos = 0;
-    
-    while (pos < treeData.length) {
-      // Read mode
-      int modeEnd = pos;
-      while (modeEnd < treeData.length && treeData[modeEnd] != ' ') {
-        modeEnd++;
-      }
-      String mode = new String(treeData, pos, modeEnd - pos);
-      pos = modeEnd + 1;
+    TreeIterator entries = new TreeIterator(treeObj.content);
+    while (entries.next()) {
+      File targetFile = new File(destDir, entries.name());
       
-      // Read name
-      int nameEnd = pos;
-      while (nameEnd < treeData.length && treeData[nameEnd] != 0) {
-        nameEnd++;
-      }
-      String name = new String(treeData, pos, nameEnd - pos);
-      pos = nameEnd + 1;
-      
-      // Read hash
-      StringBuilder hash = new StringBuilder();
-      for (int i = 0; i < 20; i++) {
-        hash.append(String.format("%02x", treeData[pos + i]));
-      }
-      pos += 20;
-      
-      File targetFile = new File(destDir, name);
-      
-      if (mode.equals("40000")) {
+      if (entries.isTree()) {
         // Tree (directory)
         targetFile.mkdirs();
-        checkoutTree(hash.toString(), targetFile);
+        writeTree(entries.id(), targetFile);
       } else {
         // Blob (file)
-        ObjectStore.ObjectInfo blobObj = ObjectStore.parseObject(hash.toString());
+        ObjectStore.ObjectInfo blobObj = ObjectStore.parseObject(entries.id());
         targetFile.getParentFile().mkdirs();
         Files.write(targetFile.toPath(), blobObj.content);
       }
@@ -698,6 +855,20 @@ public class Main {
     }
     
     // Print status
+    List<String> unmerged = GitRepository.getUnmergedPaths();
+    if (!unmerged.isEmpty()) {
+      System.out.println("You have unmerged paths.");
+      System.out.println("  (fix conflicts and run \"git commit\")\n");
+      System.out.println("Unmerged paths:");
+      System.out.println("  (use \"git add <file>...\" to mark resolution)");
+      for (String file : unmerged) {
+        System.out.println("\tboth modified:   " + file);
+      }
+      System.out.println();
+      staged.removeAll(unmerged);
+      modified.removeAll(unmerged);
+    }
+    
     if (!staged.isEmpty()) {
       System.out.println("Changes to be committed:");
       System.out.println("  (use \"git restore --staged <file>...\" to unstage)");
@@ -729,7 +900,7 @@ public class Main {
       System.out.println();
     }
     
-    if (staged.isEmpty() && modified.isEmpty() && deleted.isEmpty() && untracked.isEmpty()) {
+    if (unmerged.isEmpty() && staged.isEmpty() && modified.isEmpty() && deleted.isEmpty() && untracked.isEmpty()) {
       System.out.println("nothing to commit, working tree clean");
     }
   }
@@ -769,48 +940,24 @@ public class Main {
       return;
     }
     
-    byte[] treeData = treeObj.content;
-    int pos = 0;
-    
-    while (pos < treeData.length) {
-      // Read mode
-      int modeEnd = pos;
-      while (modeEnd < treeData.length && treeData[modeEnd] != ' ') {
-        modeEnd++;
-      }
-      String mode = new String(treeData, pos, modeEnd - pos);
-      pos = modeEnd + 1;
-      
-      // Read name
-      int nameEnd = pos;
-      while (nameEnd < treeData.length && treeData[nameEnd] != 0) {
-        nameEnd++;
-      }
-      String name = new String(treeData, pos, nameEnd - pos);
-      pos = nameEnd + 1;
-      
-      // Read hash
-      StringBuilder hash = new StringBuilder();
-      for (int i = 0; i < 20; i++) {
-        hash.append(String.format("%02x", treeData[pos + i]));
-      }
-      pos += 20;
-      
+    TreeIterator entries = new TreeIterator(treeObj.content);
+    while (entries.next()) {
+      String name = entries.name();
       String path = prefix.isEmpty() ? name : prefix + "/" + name;
       
-      if (mode.equals("40000")) {
+      if (entries.isTree()) {
         // Tree (directory)
-        getTreeFilesRecursive(hash.toString(), path, files);
+        getTreeFilesRecursive(entries.id(), path, files);
       } else {
         // Blob (file)
-        files.put(path, hash.toString());
+        files.put(path, entries.id());
       }
     }
   }
   
   private static Map<String, String> getWorkingTreeFiles() throws IOException {
     Map<String, String> files = new HashMap<>();
-    getWorkingTreeFilesRecursive(new File("."), "", files);
+    getWorkingTreeFilesRecursive(Repository.current().getWorkTree(), "", files);
     return files;
   }
   
@@ -842,18 +989,12 @@ public class Main {
   // ========== BRANCH ==========
   private static void branch(String[] args) throws IOException {
     if (args.length == 1) {
-      // List branches
-      File headsDir = new File(".git/refs/heads");
-      if (headsDir.exists()) {
-        File[] branchFiles = headsDir.listFiles();
-        if (branchFiles != null) {
-          String currentBranch = GitRepository.getCurrentBranch();
-          for (File branchFile : branchFiles) {
-            String branchName = branchFile.getName();
-            String prefix = (currentBranch != null && branchName.equals(currentBranch)) ? "* " : "  ";
-            System.out.println(prefix + branchName);
-          }
-        }
+      // List branches (packed and loose)
+      String currentBranch = GitRepository.getCurrentBranch();
+      for (String ref : GitRepository.getRefs("refs/heads/").keySet()) {
+        String branchName = ref.substring(11);
+        String prefix = (currentBranch != null && branchName.equals(currentBranch)) ? "* " : "  ";
+        System.out.println(prefix + branchName);
       }
     } else if (args.length == 2) {
       // Create branch
@@ -862,9 +1003,14 @@ public class Main {
       if (headCommit == null) {
         throw new IOException("Cannot create branch: no commits yet");
       }
-      File branchFile = new File(".git/refs/heads/" + branchName);
-      branchFile.getParentFile().mkdirs();
-      Files.write(branchFile.toPath(), (headCommit + "\n").getBytes());
+      try {
+        new RefTransaction().create("refs/heads/" + branchName, headCommit).commit();
+      } catch (IOException e) {
+        if (GitRepository.readRef("refs/heads/" + branchName) != null) {
+          throw new IOException("A branch named '" + branchName + "' already exists.");
+        }
+        throw e;
+      }
     } else if (args.length == 3 && args[1].equals("-d")) {
       // Delete branch
       String branchName = args[2];
@@ -872,10 +1018,7 @@ public class Main {
       if (currentBranch != null && branchName.equals(currentBranch)) {
         throw new IOException("Cannot delete current branch");
       }
-      File branchFile = new File(".git/refs/heads/" + branchName);
-      if (branchFile.exists()) {
-        branchFile.delete();
-      } else {
+      if (!GitRepository.deleteRef("refs/heads/" + branchName)) {
         throw new IOException("Branch not found: " + branchName);
       }
     }
@@ -884,15 +1027,9 @@ public class Main {
   // ========== TAG ==========
   private static void tag(String[] args) throws IOException {
     if (args.length == 1) {
-      // List tags
-      File tagsDir = new File(".git/refs/tags");
-      if (tagsDir.exists()) {
-        File[] tagFiles = tagsDir.listFiles();
-        if (tagFiles != null) {
-          for (File tagFile : tagFiles) {
-            System.out.println(tagFile.getName());
-          }
-        }
+      // List tags (packed and loose)
+      for (String ref : GitRepository.getRefs("refs/tags/").keySet()) {
+        System.out.println(ref.substring(10));
       }
     } else if (args.length == 2) {
       // Create tag
@@ -901,10 +1038,87 @@ public class Main {
       if (headCommit == null) {
         throw new IOException("Cannot create tag: no commits yet");
       }
-      File tagFile = new File(".git/refs/tags/" + tagName);
-      tagFile.getParentFile().mkdirs();
-      Files.write(tagFile.toPath(), (headCommit + "\n").getBytes());
+      try {
+        new RefTransaction().create("refs/tags/" + tagName, headCommit).commit();
+      } catch (IOException e) {
+        if (GitRepository.readRef("refs/tags/" + tagName) != null) {
+          throw new IOException("tag '" + tagName + "' already exists");
+        }
+        throw e;
+      }
+    }
+  }
+
+  // ========== PACK-REFS ==========
+  private static void packRefs(String[] args) throws IOException {
+    boolean all = false;
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].equals("--all")) {
+        all = true;
+      }
     }
+    GitRepository.packRefs(all);
+  }
+
+  // ========== UPDATE-REF ==========
+  // update-ref <ref> <new> [<old>], update-ref -d <ref> [<old>], or a batch on stdin:
+  //   update <ref> <new> [<old>] / create <ref> <new> / delete <ref> [<old>] / verify <ref> [<old>]
+  // All stdin commands form one transaction: either every ref changes or none does.
+  private static void updateRef(String[] args) throws IOException {
+    RefTransaction transaction = new RefTransaction();
+    
+    if (args.length >= 2 && args[1].equals("--stdin")) {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isBlank()) continue;
+        String[] parts = line.trim().split(" +");
+        if (parts.length < 2) {
+          throw new IOException("Malformed command: " + line);
+        }
+        checkStdinArgs(parts);
+        switch (parts[0]) {
+          case "update" -> transaction.update(parts[1], refValue(parts[2]), parts.length > 3 ? refValue(parts[3]) : null);
+          case "create" -> transaction.create(parts[1], refValue(parts[2]));
+          case "delete" -> transaction.delete(parts[1], parts.length > 2 ? refValue(parts[2]) : null);
+          case "verify" -> transaction.verify(parts[1], parts.length > 2 ? refValue(parts[2]) : null);
+          default -> throw new IOException("Unknown command: " + line);
+        }
+      }
+    } else if (args.length >= 3 && args[1].equals("-d")) {
+      transaction.delete(args[2], args.length > 3 ? refValue(args[3]) : null);
+    } else if (args.length >= 3) {
+      transaction.update(args[1], refValue(args[2]), args.length > 3 ? refValue(args[3]) : null);
+    } else {
+      System.out.println("Usage: git update-ref <ref> <new> [<old>] | -d <ref> [<old>] | --stdin");
+      return;
+    }
+    transaction.commit();
+  }
+  
+  // Each stdin verb takes a ref, the values it needs and at most one old value
+  private static void checkStdinArgs(String[] parts) throws IOException {
+    int required;
+    int allowed;
+    switch (parts[0]) {
+      case "update" -> { required = 3; allowed = 4; }
+      case "create" -> { required = 3; allowed = 3; }
+      case "delete", "verify" -> { required = 2; allowed = 3; }
+      default -> { return; }
+    }
+    if (parts.length < required) {
+      throw new IOException(parts[0] + " " + parts[1] + ": missing <newvalue>");
+    }
+    if (parts.length > allowed) {
+      throw new IOException(parts[0] + " " + parts[1] + ": extra input: " + parts[allowed]);
+    }
+  }
+
+  private static String refValue(String value) throws IOException {
+    if (value.matches("[0-9a-f]{40}")) {
+      return value;
+    }
+    return new RevWalk().resolve(value);
   }
 
   // ========== MERGE ==========
@@ -931,44 +1145,97 @@ public class Main {
       return;
     }
     
-    // Find merge base (simplified - just use first common ancestor)
-    findMergeBase(currentCommit, branchCommit);
+    if (GitRepository.readMergeHead() != null) {
+      throw new IOException("You have not concluded your merge (MERGE_HEAD exists).");
+    }
+    if (Sequencer.inProgress()) {
+      throw new IOException("A cherry-pick or rebase is in progress (try --continue or --abort)");
+    }
     
-    // Create merge commit with two parents
-    String treeHash = writeTreeFromIndex();
-    String commitHash = createMergeCommit(treeHash, currentCommit, branchCommit, "Merge branch '" + branchName + "'");
+    RevCommit.Pool pool = new RevCommit.Pool();
+    MergeBase mergeBase = new MergeBase(pool);
+    if (mergeBase.isAncestor(branchCommit, currentCommit)) {
+      System.out.println("Already up to date.");
+      return;
+    }
     
-    // Update HEAD
-    GitRepository.updateHead(commitHash);
+    String currentTree = pool.parse(currentCommit).getTree();
+    if (mergeBase.isAncestor(currentCommit, branchCommit)) {
+      // Fast-forward: only the paths that differ between the two trees are rewritten
+      WorkTreeUpdater.update(currentTree, pool.parse(branchCommit).getTree(), Set.of());
+      GitRepository.updateHead(branchCommit, currentCommit);
+      System.out.println("Updating " + currentCommit.substring(0, 7) + ".." + branchCommit.substring(0, 7));
+      System.out.println("Fast-forward");
+      return;
+    }
+    
+    // Three-way merge in the object database; the worktree and index are only
+    // touched once the result tree is known
+    WorkTreeUpdater.checkIndexMatches(currentTree);
+    TreeMerger merger = new TreeMerger(pool, "HEAD", branchName);
+    String treeHash = merger.mergeCommits(currentCommit, branchCommit);
+    WorkTreeUpdater.update(currentTree, treeHash, merger.getConflicts().keySet());
+    
+    String message = "Merge branch '" + branchName + "'";
+    if (merger.hasConflicts()) {
+      for (String conflict : merger.getConflicts().values()) {
+        System.out.println(conflict);
+      }
+      GitRepository.writeMergeState(branchCommit, message, new ArrayList<>(merger.getConflicts().keySet()));
+      System.out.println("Automatic merge failed; fix conflicts and then commit the result.");
+      throw new Exit(1);
+    }
+    
+    String commitHash = createMergeCommit(treeHash, currentCommit, branchCommit, message);
+    GitRepository.updateHead(commitHash, currentCommit);
     
-    System.out.println("Merge made by recursive strategy.");
+    System.out.println("Merge made by the 'ort' strategy.");
     System.out.println(commitHash);
   }
   
-  private static String findMergeBase(String commit1, String commit2) throws IOException {
-    // Simplified: return the older commit (in real Git, would find common ancestor)
-    // For now, just return commit1 as a placeholder
-    Set<String> ancestors1 = getAncestors(commit1);
-    Set<String> ancestors2 = getAncestors(commit2);
+  // ========== MERGE-BASE ==========
+  private static void mergeBase(String[] args) throws IOException {
+    boolean all = false;
+    boolean octopus = false;
+    List<String> commits = new ArrayList<>();
     
-    // Find common ancestor
-    for (String ancestor : ancestors1) {
-      if (ancestors2.contains(ancestor)) {
-        return ancestor;
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].equals("--all")) {
+        all = true;
+      } else if (args[i].equals("--octopus")) {
+        octopus = true;
+      } else {
+        String commitHash = GitRepository.resolveRef(args[i]);
+        if (commitHash == null) {
+          throw new IOException("Not a valid commit: " + args[i]);
+        }
+        commits.add(commitHash);
       }
     }
     
-    return null; // No common ancestor found
-  }
-  
-  private static Set<String> getAncestors(String commitHash) throws IOException {
-    Set<String> ancestors = new HashSet<>();
-    String current = commitHash;
-    while (current != null) {
-      ancestors.add(current);
-      current = getParentCommit(current);
+    if (commits.size() < (octopus ? 1 : 2)) {
+      System.out.println("Usage: git merge-base [--all] [--octopus] <commit> <commit>...");
+      return;
+    }
+    
+    MergeBase mergeBase = new MergeBase(new RevCommit.Pool());
+    List<String> bases;
+    if (octopus) {
+      bases = mergeBase.findOctopusMergeBases(commits);
+    } else {
+      // Extra commits act as a hypothetical merge of everything after the first
+      bases = mergeBase.findMergeBases(commits.get(0), commits.subList(1, commits.size()), all);
+    }
+    
+    if (bases.isEmpty()) {
+      throw new Exit(1);
+    }
+    for (String base : bases) {
+      System.out.println(base);
+      if (!all) {
+        break;
+      }
     }
-    return ancestors;
   }
   
   private static String createMergeCommit(String treeHash, String parent1, String parent2, String message) throws IOException {
@@ -988,6 +1255,73 @@ public class Main {
     return ObjectStore.storeObject("commit", commitContent.toString().getBytes());
   }
 
+  // ========== CHERRY-PICK ==========
+  private static void cherryPick(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.out.println("Usage: git cherry-pick [--ff] <commit>... | --continue | --abort");
+      return;
+    }
+    if (args[1].equals("--continue")) {
+      Sequencer.resume(Sequencer.CHERRY_PICK, writeTreeFromIndex());
+      return;
+    }
+    if (args[1].equals("--abort")) {
+      Sequencer.abort(Sequencer.CHERRY_PICK);
+      return;
+    }
+    
+    // Single commits are picked as given; A..B picks the range oldest first
+    List<String> commits = new ArrayList<>();
+    RevWalk walk = new RevWalk();
+    boolean fastForward = false;
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].equals("--ff")) {
+        fastForward = true;
+      } else if (args[i].contains("..")) {
+        RevWalk range = new RevWalk(walk.getPool());
+        range.parseArguments(new String[] { args[i] }, 0);
+        range.setTopoOrder(true);
+        range.setReverse(true);
+        RevCommit commit;
+        while ((commit = range.next()) != null) {
+          commits.add(commit.id);
+        }
+      } else {
+        commits.add(walk.resolve(args[i]));
+      }
+    }
+    Sequencer.cherryPick(commits, fastForward);
+  }
+  
+  // ========== REBASE ==========
+  private static void rebase(String[] args) throws IOException {
+    String upstream = null;
+    String onto = null;
+    
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].equals("--continue")) {
+        Sequencer.resume(Sequencer.REBASE, writeTreeFromIndex());
+        return;
+      } else if (args[i].equals("--abort")) {
+        Sequencer.abort(Sequencer.REBASE);
+        return;
+      } else if (args[i].equals("--onto") && i + 1 < args.length) {
+        onto = args[++i];
+      } else {
+        upstream = args[i];
+      }
+    }
+    
+    if (upstream == null) {
+      System.out.println("Usage: git rebase [--onto <newbase>] <upstream> | --continue | --abort");
+      return;
+    }
+    
+    RevWalk walk = new RevWalk();
+    String upstreamCommit = walk.resolve(upstream);
+    Sequencer.rebase(upstreamCommit, onto != null ? walk.resolve(onto) : upstreamCommit);
+  }
+
   // ========== DIFF ==========
   private static void diff(String[] args) throws IOException {
     String commit1 = null;
@@ -1065,17 +1399,8 @@ public class Main {
       throw new IOException("Invalid commit: " + commitRef);
     }
     
-    // Update HEAD
-    String currentBranch = GitRepository.getCurrentBranch();
-    if (currentBranch != null) {
-      // On a branch - update branch ref
-      File branchFile = new File(".git/refs/heads/" + currentBranch);
-      Files.write(branchFile.toPath(), (commitHash + "\n").getBytes());
-    } else {
-      // Detached HEAD - update HEAD directly
-      File headFile = new File(".git/HEAD");
-      Files.write(headFile.toPath(), (commitHash + "\n").getBytes());
-    }
+    // Update HEAD (the current branch, or HEAD itself when detached)
+    GitRepository.updateHead(commitHash);
     
     if (mode.equals("--hard")) {
       // Reset working directory and index
@@ -1090,7 +1415,7 @@ public class Main {
         }
       }
       if (treeHash != null) {
-        checkoutTree(treeHash, new File("."));
+        checkoutTree(treeHash, Repository.current().getWorkTree());
       }
       Index.clearIndex();
     } else if (mode.equals("--mixed")) {
@@ -1100,6 +1425,497 @@ public class Main {
     // --soft: don't reset index or working directory
   }
 
+  // ========== DAEMON ==========
+  private static void daemon(String[] args) throws IOException {
+    String action = args.length > 1 ? args[1] : "";
+    switch (action) {
+      case "run" -> Daemon.serve();
+      case "start" -> Daemon.start();
+      case "stop", "status" -> {
+        if (Daemon.forward(args) < 0) {
+          System.out.println("No daemon running");
+        }
+      }
+      default -> System.out.println("Usage: git daemon (start|stop|status|run)");
+    }
+  }
+
+  // ========== CLONE / FETCH ==========
+  // clone [--depth <n>] [--shallow-since <date>] [--filter <spec>] <url> [<dir>]: a new
+  // repository with the source as remote "origin", its branches under
+  // refs/remotes/origin and a checked out branch for the source's HEAD. The URL is
+  // git://host[:port]/path or a path to another worktree. With a filter, origin
+  // becomes the promisor remote that supplies the left-out blobs on demand.
+  private static void clone(String[] args) throws IOException {
+    List<String> positional = new ArrayList<>();
+    int depth = 0;
+    long since = -1;
+    ObjectFilter filter = null;
+    boolean shared = false;
+    List<String> references = new ArrayList<>();
+    for (int i = 1; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.equals("--shared") || arg.equals("-s")) {
+        shared = true;
+      } else if (arg.equals("--reference") && i + 1 < args.length) {
+        references.add(args[++i]);
+      } else if (arg.startsWith("--reference=")) {
+        references.add(arg.substring(12));
+      } else if (arg.equals("--filter") && i + 1 < args.length) {
+        filter = ObjectFilter.parse(args[++i]);
+      } else if (arg.startsWith("--filter=")) {
+        filter = ObjectFilter.parse(arg.substring(9));
+      } else if (arg.equals("--depth") && i + 1 < args.length) {
+        depth = parseDepth(args[++i]);
+      } else if (arg.startsWith("--depth=")) {
+        depth = parseDepth(arg.substring(8));
+      } else if (arg.equals("--shallow-since") && i + 1 < args.length) {
+        since = RevWalk.parseDate(args[++i]);
+      } else if (arg.startsWith("--shallow-since=")) {
+        since = RevWalk.parseDate(arg.substring(16));
+      } else if (arg.startsWith("-")) {
+        throw new IOException("Unknown clone option: " + arg);
+      } else {
+        positional.add(arg);
+      }
+    }
+    if (positional.isEmpty()) {
+      System.out.println("Usage: git clone [--depth <n>] [--shallow-since <date>] [--filter <spec>] [--shared] [--reference <repo>] <url> [<directory>]");
+      return;
+    }
+    String url = positional.get(0);
+    if (shared && Transport.isNetwork(url)) {
+      throw new IOException("--shared needs a local repository: " + url);
+    }
+    // Object directories to borrow from, written to objects/info/alternates
+    List<String> alternates = new ArrayList<>();
+    if (!Transport.isNetwork(url)) {
+      Repository source = Transport.openLocalRepository(url);
+      url = source.getWorkTree().getPath();
+      if (shared) {
+        alternates.add(source.gitFile("objects").getCanonicalPath());
+      }
+    }
+    for (String reference : references) {
+      alternates.add(Transport.openLocalRepository(reference).gitFile("objects").getCanonicalPath());
+    }
+    String name = positional.size() > 1 ? positional.get(1) : humanishName(url);
+    File dir = new File(name);
+    if (!dir.isAbsolute()) {
+      dir = new File(Repository.current().getWorkTree(), name);
+    }
+    String[] existing = dir.list();
+    if (existing != null && existing.length > 0) {
+      throw new IOException("destination path '" + name + "' already exists and is not an empty directory");
+    }
+
+    System.err.println("Cloning into '" + name + "'...");
+    new File(dir, ".git").mkdirs();
+    Repository repository = Repository.open(dir);
+    String origin = url;
+    int cloneDepth = depth;
+    long cloneSince = since;
+    ObjectFilter cloneFilter = filter;
+    try {
+      repository.call(() -> {
+        initRepository("files");
+        Config.setConfigValue("remote", "origin", "url", origin);
+        Config.setConfigValue("remote", "origin", "fetch", Fetch.defaultRefSpec("origin"));
+        if (!alternates.isEmpty()) {
+          File info = Repository.current().gitFile("objects/info");
+          info.mkdirs();
+          Files.writeString(new File(info, "alternates").toPath(), String.join("\n", alternates) + "\n");
+        }
+        if (cloneFilter != null) {
+          Config.setConfigValue("core", "repositoryformatversion", "1");
+          Config.setConfigValue("remote", "origin", "promisor", "true");
+          Config.setConfigValue("remote", "origin", "partialclonefilter", cloneFilter.toString());
+          Config.setConfigValue("extensions", "partialClone", "origin");
+        }
+        Fetch fetch = new Fetch("origin", new PrintStream(OutputStream.nullOutputStream()))
+            .setDepth(cloneDepth)
+            .setShallowSince(cloneSince);
+        fetch.run();
+        checkoutRemoteHead(fetch.getHeadTarget());
+        return null;
+      });
+    } catch (IOException | RuntimeException e) {
+      deleteRecursively(dir);
+      throw e;
+    }
+  }
+
+  private static int parseDepth(String value) throws IOException {
+    try {
+      int depth = Integer.parseInt(value);
+      if (depth > 0) {
+        return depth;
+      }
+    } catch (NumberFormatException e) {
+      // Reported below
+    }
+    throw new IOException("depth " + value + " is not a positive number");
+  }
+
+  // git://host/path/repo.git -> repo
+  private static String humanishName(String url) {
+    String name = url.replaceAll("/+$", "");
+    name = name.substring(name.lastIndexOf('/') + 1);
+    return name.endsWith(".git") ? name.substring(0, name.length() - 4) : name;
+  }
+
+  // Creates the local branch HEAD should be on, tracking its remote counterpart
+  private static void checkoutRemoteHead(String headTarget) throws IOException {
+    String id = headTarget != null && headTarget.startsWith("refs/heads/")
+        ? GitRepository.readRef("refs/remotes/origin/" + headTarget.substring(11))
+        : null;
+    if (id == null) {
+      System.err.println("warning: You appear to have cloned an empty repository.");
+      return;
+    }
+    String branch = headTarget.substring(11);
+    new RefTransaction().create(headTarget, id).setSymbolic("HEAD", headTarget).commit();
+    Config.setConfigValue("branch", branch, "remote", "origin");
+    Config.setConfigValue("branch", branch, "merge", headTarget);
+
+    String tree = new RevCommit.Pool().parse(id).getTree();
+    checkoutTree(tree, Repository.current().getWorkTree());
+    loadIndexFromTree(tree);
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+
+  // fetch [--depth <n> | --shallow-since <date> | --unshallow] [<remote>]: the current
+  // branch's remote, or origin
+  private static void fetch(String[] args) throws IOException {
+    String remote = null;
+    int depth = 0;
+    long since = -1;
+    for (int i = 1; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.equals("--depth") && i + 1 < args.length) {
+        depth = parseDepth(args[++i]);
+      } else if (arg.startsWith("--depth=")) {
+        depth = parseDepth(arg.substring(8));
+      } else if (arg.equals("--shallow-since") && i + 1 < args.length) {
+        since = RevWalk.parseDate(args[++i]);
+      } else if (arg.startsWith("--shallow-since=")) {
+        since = RevWalk.parseDate(arg.substring(16));
+      } else if (arg.equals("--unshallow")) {
+        if (!Shallow.isShallow()) {
+          throw new IOException("--unshallow on a complete repository does not make sense");
+        }
+        depth = Integer.MAX_VALUE;
+      } else if (arg.startsWith("-")) {
+        throw new IOException("Unknown fetch option: " + arg);
+      } else {
+        remote = arg;
+      }
+    }
+    if (remote == null) {
+      String branch = GitRepository.getCurrentBranch();
+      remote = branch != null ? Config.snapshot().getString("branch", branch, "remote") : null;
+    }
+    Fetch fetch = new Fetch(remote != null ? remote : "origin", System.err)
+        .setDepth(depth)
+        .setShallowSince(since);
+    if (!fetch.run()) {
+      throw new Exit(1);
+    }
+  }
+
+  // push [--force] [--atomic] [<remote>] [<refspec>...]: the current branch to the
+  // same name when no refspec is given
+  private static void push(String[] args) throws IOException {
+    boolean force = false;
+    boolean atomic = false;
+    String remote = null;
+    List<String> specs = new ArrayList<>();
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].equals("-f") || args[i].equals("--force")) {
+        force = true;
+      } else if (args[i].equals("--atomic")) {
+        atomic = true;
+      } else if (args[i].startsWith("-")) {
+        throw new IOException("Unknown push option: " + args[i]);
+      } else if (remote == null) {
+        remote = args[i];
+      } else {
+        specs.add(args[i]);
+      }
+    }
+    String branch = GitRepository.getCurrentBranch();
+    if (remote == null) {
+      remote = branch != null ? Config.snapshot().getString("branch", branch, "remote") : null;
+      remote = remote != null ? remote : "origin";
+    }
+    if (specs.isEmpty()) {
+      if (branch == null) {
+        throw new IOException("You are not currently on a branch.");
+      }
+      specs.add("refs/heads/" + branch);
+    }
+    if (!new Push(remote, specs, force, atomic, System.err).run()) {
+      System.err.println("error: failed to push some refs to '" + remote + "'");
+      throw new Exit(1);
+    }
+  }
+
+  // serve [--port=<n>] [--listen=<addr>] [--base-path=<dir>] [--enable=receive-pack]:
+  // serves every repository under the base path (default: the current directory)
+  // over git://
+  private static void serve(String[] args) throws IOException {
+    int port = Transport.DEFAULT_PORT;
+    String listen = "0.0.0.0";
+    File basePath = new File(System.getProperty("user.dir"));
+    boolean receivePack = false;
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].startsWith("--port=")) {
+        port = Integer.parseInt(args[i].substring(7));
+      } else if (args[i].startsWith("--listen=")) {
+        listen = args[i].substring(9);
+      } else if (args[i].startsWith("--base-path=")) {
+        basePath = new File(args[i].substring(12));
+      } else if (args[i].equals("--enable=receive-pack")) {
+        receivePack = true;
+      } else {
+        throw new IOException("Unknown serve option: " + args[i]);
+      }
+    }
+    new GitServer(basePath, receivePack).run(new InetSocketAddress(listen, port));
+  }
+
+  // ========== BUNDLE ==========
+  // bundle create <file> <rev-list-args>... | verify <file> | list-heads <file> |
+  // unbundle <file>; "-" as the file of create writes the bundle to stdout
+  private static void bundle(String[] args) throws IOException {
+    if (args.length < 3) {
+      System.out.println("Usage: git bundle (create <file> <rev-list-args>... | verify | list-heads | unbundle <file>)");
+      return;
+    }
+    String action = args[1];
+    switch (action) {
+      case "create" -> createBundle(args[2], Arrays.asList(args).subList(3, args.length));
+      case "verify" -> {
+        Bundle.Header header;
+        try (InputStream in = openBundle(args[2])) {
+          header = Bundle.read(in, false);
+        }
+        System.out.println("The bundle contains " + (header.refs.size() == 1 ? "this ref:" : "these " + header.refs.size() + " refs:"));
+        for (Map.Entry<String, String> ref : header.refs.entrySet()) {
+          System.out.println(ref.getValue() + " " + ref.getKey());
+        }
+        if (header.prerequisites.isEmpty()) {
+          System.out.println("The bundle records a complete history.");
+        } else {
+          int count = header.prerequisites.size();
+          System.out.println("The bundle requires " + (count == 1 ? "this ref:" : "these " + count + " refs:"));
+          for (Map.Entry<String, String> prerequisite : header.prerequisites.entrySet()) {
+            System.out.println(prerequisite.getKey() + " " + prerequisite.getValue());
+          }
+        }
+        System.err.println(args[2] + " is okay");
+      }
+      case "list-heads", "unbundle" -> {
+        Bundle.Header header;
+        try (InputStream in = openBundle(args[2])) {
+          header = action.equals("unbundle") ? Bundle.read(in, true) : Bundle.readHeader(in);
+        }
+        for (Map.Entry<String, String> ref : header.refs.entrySet()) {
+          System.out.println(ref.getValue() + " " + ref.getKey());
+        }
+      }
+      default -> throw new IOException("Unknown bundle subcommand: " + action);
+    }
+  }
+
+  // The pack goes straight to the file; it is written under a temporary name and
+  // renamed, so a failed create leaves no partial bundle behind
+  private static void createBundle(String name, List<String> revisions) throws IOException {
+    if (name.equals("-")) {
+      OutputStream out = new BufferedOutputStream(stdout(), 1 << 16);
+      Bundle.create(out, revisions);
+      out.flush();
+      return;
+    }
+    File file = bundleFile(name);
+    File tmp = File.createTempFile("bundle", ".tmp", file.getAbsoluteFile().getParentFile());
+    try {
+      try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16)) {
+        Bundle.create(out, revisions);
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      tmp.delete();
+    }
+  }
+
+  private static InputStream openBundle(String name) throws IOException {
+    File file = bundleFile(name);
+    if (!file.isFile()) {
+      throw new IOException("could not open '" + name + "'");
+    }
+    return new BufferedInputStream(new FileInputStream(file), 1 << 16);
+  }
+
+  private static File bundleFile(String name) {
+    File file = new File(name);
+    return file.isAbsolute() ? file : new File(Repository.current().getWorkTree(), name);
+  }
+
+  // ========== REPACK / GC ==========
+  // repack [-a | -A] [-d] [-b | --no-write-bitmap-index] [--window=<n>] [--depth=<n>] [--threads=<n>]
+  private static void repack(String[] args) throws IOException {
+    Repack repack = new Repack();
+    int[] search = { -1, -1, -1 };
+    for (int i = 1; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.equals("-a")) {
+        repack.setAll(true);
+      } else if (arg.equals("-A")) {
+        repack.setKeepUnreachable(true);
+      } else if (arg.equals("-d")) {
+        repack.setDelete(true);
+      } else if (arg.equals("-b") || arg.equals("--write-bitmap-index")) {
+        repack.setWriteBitmaps(true);
+      } else if (arg.equals("--no-write-bitmap-index")) {
+        repack.setWriteBitmaps(false);
+      } else if (!parseDeltaOption(arg, search)) {
+        throw new IOException("Unknown repack option: " + arg);
+      }
+    }
+    repack.setDeltaSearch(DeltaSearch.fromConfig(search[0], search[1], search[2]));
+    if (repack.run() == null) {
+      System.out.println("Nothing new to pack.");
+      return;
+    }
+    System.err.println("Total " + repack.getObjectCount() + " (delta " + repack.getDeltaCount() + ")");
+  }
+
+  // --window=<n>, --depth=<n> and --threads=<n> into search; false for anything else
+  private static boolean parseDeltaOption(String arg, int[] search) throws IOException {
+    String[] names = { "--window=", "--depth=", "--threads=" };
+    for (int i = 0; i < names.length; i++) {
+      if (arg.startsWith(names[i])) {
+        try {
+          search[i] = Integer.parseInt(arg.substring(names[i].length()));
+        } catch (NumberFormatException e) {
+          throw new IOException("Invalid number: " + arg);
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // gc [--aggressive] [--prune=<date> | --no-prune]: packs the refs, repacks
+  // everything reachable into one pack, deletes unreachable loose objects older than
+  // the expiry (gc.pruneExpire, two weeks by default) and rewrites the commit-graph
+  private static void gc(String[] args) throws IOException {
+    Config config = Config.snapshot();
+    String prune = config.getString("gc", null, "pruneExpire");
+    if (prune == null) {
+      prune = "2.weeks.ago";
+    }
+    int[] search = { -1, -1, -1 };
+    for (int i = 1; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.startsWith("--prune=")) {
+        prune = arg.substring(8);
+      } else if (arg.equals("--no-prune")) {
+        prune = "never";
+      } else if (arg.equals("--aggressive")) {
+        search[0] = config.getInt("gc", null, "aggressiveWindow", 250);
+        search[1] = config.getInt("gc", null, "aggressiveDepth", 50);
+      } else {
+        throw new IOException("Unknown gc option: " + arg);
+      }
+    }
+    long expire = switch (prune) {
+      case "now" -> Long.MAX_VALUE;
+      case "never" -> Long.MIN_VALUE;
+      default -> RevWalk.parseDate(prune) * 1000;
+    };
+
+    GitRepository.packRefs(true);
+    // Unreachable objects that would be pruned straight away are not worth unpacking
+    Repack repack = new Repack()
+        .setAll(true)
+        .setKeepUnreachable(expire != Long.MAX_VALUE)
+        .setDelete(true)
+        .setDeltaSearch(DeltaSearch.fromConfig(search[0], search[1], search[2]));
+    if (repack.run() != null) {
+      System.err.println("Total " + repack.getObjectCount() + " (delta " + repack.getDeltaCount() + ")");
+    }
+    if (expire != Long.MIN_VALUE) {
+      Repack.prune(repack.getReachable(), expire);
+    }
+    if (config.getBoolean("gc", null, "writeCommitGraph", true)) {
+      Maintenance.writeCommitGraph();
+    }
+  }
+
+  // maintenance run [--auto] [--task=<name>]...: runs the named tasks, or all of them;
+  // with --auto only those whose thresholds have been reached
+  private static void maintenance(String[] args) throws IOException {
+    if (args.length < 2 || !args[1].equals("run")) {
+      System.out.println("Usage: git maintenance run [--auto] [--task=<task>]...");
+      return;
+    }
+    boolean auto = false;
+    List<String> tasks = new ArrayList<>();
+    for (int i = 2; i < args.length; i++) {
+      if (args[i].equals("--auto")) {
+        auto = true;
+      } else if (args[i].startsWith("--task=") && Maintenance.TASKS.contains(args[i].substring(7))) {
+        tasks.add(args[i].substring(7));
+      } else {
+        throw new IOException("Unknown maintenance option: " + args[i]);
+      }
+    }
+    if (tasks.isEmpty()) {
+      tasks.addAll(Maintenance.TASKS);
+    }
+    if (auto) {
+      tasks.retainAll(Maintenance.dueTasks());
+    }
+    if (!tasks.isEmpty() && !Maintenance.run(tasks)) {
+      System.err.println("Another maintenance run is in progress; skipping.");
+    }
+  }
+
+  // remote [-v] lists remotes; remote add <name> <url> adds one with the default refspec
+  private static void remote(String[] args) throws IOException {
+    Config config = Config.snapshot();
+    if (args.length >= 4 && args[1].equals("add")) {
+      String name = args[2];
+      if (config.getString("remote", name, "url") != null) {
+        throw new IOException("remote " + name + " already exists.");
+      }
+      Config.setConfigValue("remote", name, "url", args[3]);
+      Config.setConfigValue("remote", name, "fetch", Fetch.defaultRefSpec(name));
+    } else if (args.length == 1 || args[1].equals("-v")) {
+      for (String name : new TreeSet<>(config.getSubsections("remote"))) {
+        if (args.length == 1) {
+          System.out.println(name);
+        } else {
+          System.out.println(name + "\t" + config.getString("remote", name, "url") + " (fetch)");
+          System.out.println(name + "\t" + config.getString("remote", name, "url") + " (push)");
+        }
+      }
+    } else {
+      System.out.println("Usage: git remote [-v] | git remote add <name> <url>");
+    }
+  }
+
   // ========== HELPER CLASSES ==========
   private static class TreeEntry {
     String mode;
@@ -0,0 +1,375 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+// Background upkeep, like git maintenance run --auto. After commands that add
+// objects or refs, auto() makes cheap checks: how many loose objects, packs and loose
+// tags there are, and whether a ref has moved since the commit-graph was written (or
+// last found current enough). Only those checks run in the command itself. If any
+// of them fires, a detached `maintenance run --auto` process re-checks under the
+// lock, counting the commits the graph is missing, and does the work while the
+// command returns at once.
+//
+// A run holds .git/maintenance.lock, so a second one started meanwhile exits without
+// doing anything; a lock older than an hour was left by a run that died and is taken
+// over. Every task is incremental and does a bounded amount of work (at most
+// batchSize loose objects, packs up to batchSize bytes), so a run stays short and
+// whatever is left over is picked up by the next one.
+public class Maintenance {
+  public static final String LOOSE_OBJECTS = "loose-objects";
+  public static final String INCREMENTAL_REPACK = "incremental-repack";
+  public static final String COMMIT_GRAPH = "commit-graph";
+  public static final String PACK_REFS = "pack-refs";
+  public static final List<String> TASKS = List.of(LOOSE_OBJECTS, INCREMENTAL_REPACK, COMMIT_GRAPH, PACK_REFS);
+
+  private static final String LOCK = "maintenance.lock";
+  private static final String LOG = "maintenance.log";
+  // Touched when the commit-graph was found to be missing too few commits to rewrite
+  private static final String GRAPH_CHECKED = "maintenance.graph-checked";
+  private static final long STALE_LOCK = 60 * 60 * 1000;
+  private static final int MODE_GITLINK = 0160000;
+
+  // ========== AUTO ==========
+
+  // Called after commit, add, fetch and the like; starts a background run if a task
+  // is due. Problems are only reported, since the command itself has succeeded.
+  public static void auto() {
+    try {
+      Config config = Config.snapshot();
+      if (!config.getBoolean("maintenance", null, "auto", true)
+          || Repository.current().gitFile(LOCK).exists() || !mayBeDue(config)) {
+        return;
+      }
+      if (config.getBoolean("maintenance", null, "autoDetach", true)) {
+        detach();
+      } else {
+        run(dueTasks());
+      }
+    } catch (IOException e) {
+      System.err.println("warning: auto-maintenance failed: " + e.getMessage());
+    }
+  }
+
+  // The tasks whose thresholds have been reached, in the order they run. Counting
+  // the commits missing from the commit-graph reads them, so this belongs in the
+  // background run.
+  public static List<String> dueTasks() throws IOException {
+    List<String> due = new ArrayList<>();
+    Config config = Config.snapshot();
+    if (looseObjectsDue(config)) {
+      due.add(LOOSE_OBJECTS);
+    }
+    if (packsDue(config)) {
+      due.add(INCREMENTAL_REPACK);
+    }
+    int graphLimit = config.getInt("maintenance", COMMIT_GRAPH, "auto", 100);
+    if (graphLimit > 0 && !Shallow.isShallow()) {
+      if (commitsMissingFromGraph(graphLimit) >= graphLimit) {
+        due.add(COMMIT_GRAPH);
+      } else {
+        touch(Repository.current().gitFile(GRAPH_CHECKED));
+      }
+    }
+    if (refsDue(config)) {
+      due.add(PACK_REFS);
+    }
+    return due;
+  }
+
+  // What auto() checks: dueTasks() with the commit-graph count replaced by whether any
+  // ref moved since the graph was last written or checked, which takes only stats
+  private static boolean mayBeDue(Config config) throws IOException {
+    if (looseObjectsDue(config) || packsDue(config) || refsDue(config)) {
+      return true;
+    }
+    if (config.getInt("maintenance", COMMIT_GRAPH, "auto", 100) <= 0 || Shallow.isShallow()) {
+      return false;
+    }
+    Repository repository = Repository.current();
+    long since = Math.max(repository.gitFile("objects/info/commit-graph").lastModified(),
+        repository.gitFile(GRAPH_CHECKED).lastModified());
+    return repository.gitFile("HEAD").lastModified() > since
+        || repository.gitFile("packed-refs").lastModified() > since
+        || repository.gitFile("reftable/tables.list").lastModified() > since
+        || changedSince(repository.gitFile("refs"), since);
+  }
+
+  private static boolean looseObjectsDue(Config config) throws IOException {
+    int limit = config.getInt("maintenance", LOOSE_OBJECTS, "auto", 100);
+    return limit > 0 && countLooseObjects(limit) >= limit;
+  }
+
+  private static boolean packsDue(Config config) throws IOException {
+    int limit = config.getInt("maintenance", INCREMENTAL_REPACK, "auto", 10);
+    return limit > 0 && ObjectStore.packs().size() > limit;
+  }
+
+  // Only tags are packed, so only loose tags count
+  private static boolean refsDue(Config config) throws IOException {
+    int limit = config.getInt("maintenance", PACK_REFS, "auto", 100);
+    return limit > 0 && countLooseRefs(Repository.current().gitFile("refs/tags"), limit) >= limit;
+  }
+
+  private static void touch(File file) throws IOException {
+    if (!file.createNewFile()) {
+      file.setLastModified(System.currentTimeMillis());
+    }
+  }
+
+  // Starts `maintenance run --auto` in a process of its own, which re-checks the
+  // thresholds once it has the lock; its output goes to .git/maintenance.log
+  private static void detach() throws IOException {
+    Repository repository = Repository.current();
+    String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+    ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+        "Main", "maintenance", "run", "--auto");
+    builder.directory(repository.getWorkTree());
+    builder.redirectInput(ProcessBuilder.Redirect.from(new File("/dev/null")));
+    builder.redirectOutput(ProcessBuilder.Redirect.appendTo(repository.gitFile(LOG)));
+    builder.redirectErrorStream(true);
+    builder.start();
+  }
+
+  // Stops counting at limit, so a large backlog costs no more than a small one
+  private static int countLooseObjects(int limit) {
+    File[] dirs = Repository.current().gitFile("objects").listFiles(
+        (dir, name) -> name.length() == 2 && name.matches("[0-9a-f]{2}"));
+    int count = 0;
+    if (dirs != null) {
+      for (File dir : dirs) {
+        String[] names = dir.list((d, name) -> name.length() == 38);
+        count += names != null ? names.length : 0;
+        if (count >= limit) {
+          break;
+        }
+      }
+    }
+    return count;
+  }
+
+  // Whether a loose ref under dir was written after since; stops at the first one
+  private static boolean changedSince(File dir, long since) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.isDirectory() ? changedSince(file, since) : file.lastModified() > since) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static int countLooseRefs(File dir, int limit) {
+    File[] files = dir.listFiles();
+    int count = 0;
+    if (files != null) {
+      for (File file : files) {
+        count += file.isDirectory() ? countLooseRefs(file, limit - count) : 1;
+        if (count >= limit) {
+          break;
+        }
+      }
+    }
+    return count;
+  }
+
+  // Commits reachable from HEAD and the refs that the commit-graph lacks, up to limit.
+  // The walk stops at commits the graph has, so it only covers what is new.
+  private static int commitsMissingFromGraph(int limit) throws IOException {
+    CommitGraph graph = CommitGraph.load();
+    Deque<String> pending = new ArrayDeque<>();
+    String head = GitRepository.getHeadCommit();
+    if (head != null) {
+      pending.add(head);
+    }
+    for (String id : GitRepository.getAllRefs().values()) {
+      if (!id.startsWith("ref: ")) {
+        pending.add(id);
+      }
+    }
+    Set<String> seen = new HashSet<>();
+    int missing = 0;
+    while (!pending.isEmpty() && missing < limit) {
+      String id = pending.pop();
+      if (!seen.add(id) || (graph != null && graph.findPosition(id) >= 0)) {
+        continue;
+      }
+      ObjectStore.ObjectInfo object = ObjectStore.parseObject(id);
+      if (!object.type.equals("commit")) {
+        continue;
+      }
+      missing++;
+      for (String line : new String(object.content, StandardCharsets.UTF_8).split("\n")) {
+        if (line.isEmpty()) {
+          break;
+        }
+        if (line.startsWith("parent ")) {
+          pending.push(line.substring(7));
+        }
+      }
+    }
+    return missing;
+  }
+
+  // ========== RUN ==========
+
+  // Runs the tasks under the lock; false when another run holds it
+  public static boolean run(List<String> tasks) throws IOException {
+    File lock = Repository.current().gitFile(LOCK);
+    if (!acquire(lock)) {
+      return false;
+    }
+    try {
+      for (String task : tasks) {
+        switch (task) {
+          case LOOSE_OBJECTS -> packLooseObjects();
+          case INCREMENTAL_REPACK -> incrementalRepack();
+          case COMMIT_GRAPH -> writeCommitGraph();
+          // Branches move all the time, so packing them would only rewrite
+          // packed-refs again and again; tags rarely do
+          case PACK_REFS -> GitRepository.packRefs(false);
+          default -> throw new IOException("Unknown maintenance task: " + task);
+        }
+      }
+      return true;
+    } finally {
+      lock.delete();
+    }
+  }
+
+  private static boolean acquire(File lock) throws IOException {
+    for (int attempt = 0; attempt < 2; attempt++) {
+      try {
+        Files.writeString(Files.createFile(lock.toPath()), ProcessHandle.current().pid() + "\n");
+        return true;
+      } catch (FileAlreadyExistsException e) {
+        if (System.currentTimeMillis() - lock.lastModified() < STALE_LOCK) {
+          return false;
+        }
+        lock.delete();
+      }
+    }
+    return false;
+  }
+
+  // Packs up to maintenance.loose-objects.batchSize reachable loose objects and
+  // deletes them once the pack is in place. Unreachable ones are left loose with
+  // their own dates, so the prune grace period still counts from when they were
+  // written.
+  private static void packLooseObjects() throws IOException {
+    int batchSize = Config.snapshot().getInt("maintenance", LOOSE_OBJECTS, "batchSize", 50000);
+    List<ObjectWalk.Entry> objects = reachableLooseObjects(batchSize);
+    if (objects.isEmpty()) {
+      return;
+    }
+    Repack.writePack(objects, DeltaSearch.fromConfig(-1, -1, -1));
+    List<String> packed = new ArrayList<>();
+    for (ObjectWalk.Entry entry : objects) {
+      packed.add(entry.id);
+    }
+    Repack.prunePacked(packed);
+  }
+
+  // Loose objects reachable from the repack roots, up to limit. The walk goes down
+  // only through loose objects: an object already packed was packed with what it
+  // refers to, so the cost follows the loose objects rather than the history.
+  private static List<ObjectWalk.Entry> reachableLooseObjects(int limit) throws IOException {
+    List<ObjectWalk.Entry> objects = new ArrayList<>();
+    Set<String> seen = new HashSet<>();
+    Deque<String[]> pending = new ArrayDeque<>();
+    for (String id : Repack.roots()) {
+      pending.push(new String[] { id, "" });
+    }
+    while (!pending.isEmpty() && objects.size() < limit) {
+      String[] next = pending.pop();
+      String id = next[0];
+      if (!seen.add(id) || !ObjectStore.objectFile(id).isFile()) {
+        continue;
+      }
+      ObjectStore.ObjectInfo object = ObjectStore.parseObject(id);
+      objects.add(new ObjectWalk.Entry(id, object.type, next[1]));
+      switch (object.type) {
+        case "commit", "tag" -> {
+          for (String line : new String(object.content, StandardCharsets.UTF_8).split("\n")) {
+            if (line.isEmpty()) {
+              break;
+            }
+            if (line.startsWith("tree ") || line.startsWith("parent ") || line.startsWith("object ")) {
+              pending.push(new String[] { line.substring(line.indexOf(' ') + 1), "" });
+            }
+          }
+        }
+        case "tree" -> {
+          TreeIterator entries = TreeIterator.forTree(id);
+          while (entries.next()) {
+            if (entries.mode() != MODE_GITLINK) {
+              String name = next[1].isEmpty() ? entries.name() : next[1] + "/" + entries.name();
+              pending.push(new String[] { entries.id(), name });
+            }
+          }
+        }
+        default -> { }
+      }
+    }
+    return objects;
+  }
+
+  // Combines the smallest packs, up to maintenance.incremental-repack.batchSize bytes
+  // in all but always at least two, into one. The largest pack is never included, so
+  // the work stays proportional to what was added since the last full repack. The
+  // multi-pack-index is then brought up to date, so lookups stay one binary search
+  // however many packs remain.
+  private static void incrementalRepack() throws IOException {
+    combineSmallPacks();
+    MultiPackIndex.write();
+  }
+
+  private static void combineSmallPacks() throws IOException {
+    long batchSize = Config.snapshot().getSize("maintenance", INCREMENTAL_REPACK, "batchSize", 64L << 20);
+    List<PackFile> packs = new ArrayList<>(ObjectStore.packs());
+    packs.sort(Comparator.comparingLong(pack -> pack.getPackFile().length()));
+    List<PackFile> batch = new ArrayList<>();
+    long total = 0;
+    for (PackFile pack : packs.subList(0, Math.max(0, packs.size() - 1))) {
+      total += pack.getPackFile().length();
+      if (total > batchSize && batch.size() >= 2) {
+        break;
+      }
+      batch.add(pack);
+    }
+    if (batch.size() < 2) {
+      return;
+    }
+    Set<String> seen = new HashSet<>();
+    List<ObjectWalk.Entry> objects = new ArrayList<>();
+    for (PackFile pack : batch) {
+      for (int i = 0; i < pack.getObjectCount(); i++) {
+        String id = pack.getObjectId(i);
+        if (seen.add(id)) {
+          objects.add(new ObjectWalk.Entry(id, pack.readHeader(pack.getOffset(i)).type, ""));
+        }
+      }
+    }
+    String name = Repack.writePack(objects, DeltaSearch.fromConfig(-1, -1, -1)).getChecksum();
+    for (PackFile pack : batch) {
+      if (!pack.getChecksum().equals(name)) {
+        Repack.deletePack(pack);
+      }
+    }
+    ObjectStore.rescanPacks();
+  }
+
+  // Rewrites the commit-graph, keeping changed-path filters if it had them
+  static void writeCommitGraph() throws IOException {
+    if (Shallow.isShallow()) {
+      return;
+    }
+    CommitGraph previous = CommitGraph.load();
+    CommitGraph.write(previous != null && previous.hasBloomFilters());
+  }
+}
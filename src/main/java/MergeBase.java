@@ -0,0 +1,222 @@
+import java.io.IOException;
+import java.util.*;
+
+public class MergeBase {
+  private static final int PARENT1 = 1;
+  private static final int PARENT2 = 1 << 1;
+  private static final int STALE = 1 << 2;
+  private static final int RESULT = 1 << 3;
+  private static final int REACHED = 1 << 4;
+
+  // Newest commit first; ties broken by pool order so the walk is deterministic
+  private static final Comparator<RevCommit> BY_DATE = (a, b) -> {
+    int cmp = Long.compare(b.commitTime, a.commitTime);
+    return cmp != 0 ? cmp : Integer.compare(a.index, b.index);
+  };
+
+  private final RevCommit.Pool pool;
+  // Flags for the current walk, indexed by RevCommit.index
+  private int[] flags = new int[64];
+
+  public MergeBase(RevCommit.Pool pool) {
+    this.pool = pool;
+  }
+
+  public List<String> findMergeBases(String one, List<String> twos, boolean all) throws IOException {
+    RevCommit oneCommit = pool.parse(one);
+    List<RevCommit> twoCommits = new ArrayList<>();
+    for (String two : twos) {
+      twoCommits.add(pool.parse(two));
+    }
+
+    List<RevCommit> bases = mergeBases(oneCommit, twoCommits);
+    List<String> result = new ArrayList<>();
+    for (RevCommit base : bases) {
+      result.add(base.id);
+      if (!all) {
+        break;
+      }
+    }
+    return result;
+  }
+
+  public String findMergeBase(String one, String two) throws IOException {
+    List<String> bases = findMergeBases(one, List.of(two), false);
+    return bases.isEmpty() ? null : bases.get(0);
+  }
+
+  // Folds the commits pairwise, keeping every base found along the way
+  public List<String> findOctopusMergeBases(List<String> commits) throws IOException {
+    if (commits.isEmpty()) {
+      return new ArrayList<>();
+    }
+    List<RevCommit> bases = new ArrayList<>();
+    bases.add(pool.parse(commits.get(0)));
+
+    for (int i = 1; i < commits.size(); i++) {
+      RevCommit next = pool.parse(commits.get(i));
+      Set<RevCommit> newBases = new LinkedHashSet<>();
+      for (RevCommit base : bases) {
+        newBases.addAll(mergeBases(base, List.of(next)));
+      }
+      bases = new ArrayList<>(newBases);
+      if (bases.isEmpty()) {
+        break;
+      }
+    }
+
+    bases.sort(BY_DATE);
+    List<String> result = new ArrayList<>();
+    for (RevCommit base : bases) {
+      result.add(base.id);
+    }
+    return result;
+  }
+
+  public boolean isAncestor(String ancestor, String descendant) throws IOException {
+    RevCommit target = pool.parse(ancestor);
+    return reachesAny(List.of(pool.parse(descendant)), target);
+  }
+
+  private List<RevCommit> mergeBases(RevCommit one, List<RevCommit> twos) throws IOException {
+    for (RevCommit two : twos) {
+      if (two == one) {
+        return new ArrayList<>(List.of(one));
+      }
+    }
+
+    List<RevCommit> candidates = paintDownToCommon(one, twos);
+    if (candidates.size() > 1) {
+      candidates = removeRedundant(candidates);
+    }
+    candidates.sort(BY_DATE);
+    return candidates;
+  }
+
+  // Paints PARENT1 down from one and PARENT2 down from twos; a commit carrying both
+  // is a candidate and everything below it is marked STALE. The walk ends as soon
+  // as only stale commits remain queued.
+  private List<RevCommit> paintDownToCommon(RevCommit one, List<RevCommit> twos) throws IOException {
+    resetFlags();
+    PriorityQueue<RevCommit> queue = new PriorityQueue<>(BY_DATE);
+    List<RevCommit> result = new ArrayList<>();
+
+    addFlags(one, PARENT1);
+    queue.add(one);
+    for (RevCommit two : twos) {
+      addFlags(two, PARENT2);
+      queue.add(two);
+    }
+
+    while (hasNonStale(queue)) {
+      RevCommit commit = queue.poll();
+      int paint = getFlags(commit) & (PARENT1 | PARENT2 | STALE);
+      if (paint == (PARENT1 | PARENT2)) {
+        if ((getFlags(commit) & RESULT) == 0) {
+          addFlags(commit, RESULT);
+          result.add(commit);
+        }
+        paint |= STALE;
+      }
+
+      for (RevCommit parent : commit.parents) {
+        if ((getFlags(parent) & paint) == paint) {
+          continue;
+        }
+        parent.parse(pool);
+        addFlags(parent, paint);
+        queue.add(parent);
+      }
+    }
+
+    // A candidate reached again from a newer candidate is an ancestor of it
+    List<RevCommit> bases = new ArrayList<>();
+    for (RevCommit commit : result) {
+      if ((getFlags(commit) & STALE) == 0) {
+        bases.add(commit);
+      }
+    }
+    return bases;
+  }
+
+  private List<RevCommit> removeRedundant(List<RevCommit> candidates) throws IOException {
+    List<RevCommit> kept = new ArrayList<>();
+    for (RevCommit candidate : candidates) {
+      List<RevCommit> others = new ArrayList<>();
+      for (RevCommit other : candidates) {
+        if (other != candidate) {
+          others.add(other);
+        }
+      }
+      if (!reachesAny(others, candidate)) {
+        kept.add(candidate);
+      }
+    }
+    return kept;
+  }
+
+  // With a commit-graph, a commit whose generation is not above the target's cannot
+  // reach it and is not expanded; commits outside the graph always are. A target
+  // outside the graph is looked for by painting down to the common commits, which
+  // only stops once every queued commit is stale, so clock skew cannot end it early.
+  private boolean reachesAny(List<RevCommit> tips, RevCommit target) throws IOException {
+    if (target.generation == 0) {
+      paintDownToCommon(target, tips);
+      return (getFlags(target) & PARENT2) != 0;
+    }
+
+    resetFlags();
+    PriorityQueue<RevCommit> queue = new PriorityQueue<>(BY_DATE);
+    for (RevCommit tip : tips) {
+      addFlags(tip, REACHED);
+      queue.add(tip);
+    }
+    while (!queue.isEmpty()) {
+      RevCommit commit = queue.poll();
+      if (commit == target) {
+        return true;
+      }
+      if (commit.generation > 0 && commit.generation <= target.generation) {
+        continue;
+      }
+      for (RevCommit parent : commit.parents) {
+        if ((getFlags(parent) & REACHED) != 0) {
+          continue;
+        }
+        parent.parse(pool);
+        addFlags(parent, REACHED);
+        queue.add(parent);
+      }
+    }
+    return false;
+  }
+
+  private boolean hasNonStale(PriorityQueue<RevCommit> queue) {
+    for (RevCommit commit : queue) {
+      if ((getFlags(commit) & STALE) == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void resetFlags() {
+    int size = Math.max(64, pool.size() * 2);
+    if (flags.length < size) {
+      flags = new int[size];
+    } else {
+      Arrays.fill(flags, 0);
+    }
+  }
+
+  private int getFlags(RevCommit commit) {
+    return commit.index < flags.length ? flags[commit.index] : 0;
+  }
+
+  private void addFlags(RevCommit commit, int bits) {
+    if (commit.index >= flags.length) {
+      flags = Arrays.copyOf(flags, Math.max(commit.index + 1, flags.length * 2));
+    }
+    flags[commit.index] |= bits;
+  }
+}
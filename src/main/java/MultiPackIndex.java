@@ -0,0 +1,429 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+// Reader and writer for objects/pack/multi-pack-index, git's MIDX format (version 1):
+// the names of the .idx files it covers (PNAM), a fanout by first id byte (OIDF), the
+// sorted ids of every object in those packs (OIDL), and per object the pack it is
+// read from and its offset there (OOFF, with offsets past 2 GiB in LOFF). One binary
+// search then finds an object however many packs there are. An object stored in
+// several packs is listed once, from the newest of them.
+//
+// Writing is incremental: entries for packs the current index already covers are
+// copied from it, and only the .idx files of packs added since are read, merged in
+// id order. Once a covered pack is gone, the index is built again from every .idx.
+public class MultiPackIndex {
+  private static final int SIGNATURE = 0x4d494458; // MIDX
+  private static final int CHUNK_PNAM = 0x504e414d;
+  private static final int CHUNK_OIDF = 0x4f494446;
+  private static final int CHUNK_OIDL = 0x4f49444c;
+  private static final int CHUNK_OOFF = 0x4f4f4646;
+  private static final int CHUNK_LOFF = 0x4c4f4646;
+  private static final int LARGE_OFFSET = 0x80000000;
+  private static final int HEADER_SIZE = 12;
+
+  private final File file;
+  private final ByteBuffer buffer;
+  private final List<String> packNames = new ArrayList<>();
+  private final int objectCount;
+  private int oidfOffset = -1;
+  private int oidlOffset = -1;
+  private int ooffOffset = -1;
+  private int loffOffset = -1;
+
+  private MultiPackIndex(File file, ByteBuffer buffer) throws IOException {
+    this.file = file;
+    this.buffer = buffer;
+    if (buffer.limit() < HEADER_SIZE + 20 || buffer.getInt(0) != SIGNATURE || buffer.get(4) != 1
+        || buffer.get(5) != 1) {
+      throw new IOException("Unsupported multi-pack-index: " + file);
+    }
+    if (buffer.get(7) != 0) {
+      throw new IOException("Multi-pack-index chains are not supported: " + file);
+    }
+    int chunkCount = buffer.get(6) & 0xff;
+    int packCount = buffer.getInt(8);
+    int pnamOffset = -1;
+    int pnamEnd = -1;
+    for (int i = 0; i < chunkCount; i++) {
+      int entry = HEADER_SIZE + i * 12;
+      int offset = (int) buffer.getLong(entry + 4);
+      switch (buffer.getInt(entry)) {
+        case CHUNK_PNAM -> {
+          pnamOffset = offset;
+          pnamEnd = (int) buffer.getLong(entry + 16);
+        }
+        case CHUNK_OIDF -> oidfOffset = offset;
+        case CHUNK_OIDL -> oidlOffset = offset;
+        case CHUNK_OOFF -> ooffOffset = offset;
+        case CHUNK_LOFF -> loffOffset = offset;
+        default -> { }
+      }
+    }
+    if (pnamOffset < 0 || oidfOffset < 0 || oidlOffset < 0 || ooffOffset < 0) {
+      throw new IOException("Multi-pack-index is missing required chunks: " + file);
+    }
+    int start = pnamOffset;
+    for (int i = pnamOffset; i < pnamEnd && packNames.size() < packCount; i++) {
+      if (buffer.get(i) == 0) {
+        byte[] name = new byte[i - start];
+        buffer.get(start, name);
+        packNames.add(new String(name, StandardCharsets.UTF_8));
+        start = i + 1;
+      }
+    }
+    if (packNames.size() != packCount) {
+      throw new IOException("Multi-pack-index has a bad pack name chunk: " + file);
+    }
+    objectCount = buffer.getInt(oidfOffset + 255 * 4);
+  }
+
+  // The index in dir (objects/pack), or null when there is none or core.multiPackIndex
+  // is off
+  static MultiPackIndex open(File dir) throws IOException {
+    File file = new File(dir, "multi-pack-index");
+    if (!file.exists() || !Config.snapshot().getBoolean("core", null, "multiPackIndex", true)) {
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return new MultiPackIndex(file, buffer);
+    }
+  }
+
+  static File indexFile() {
+    return Repository.current().gitFile("objects/pack/multi-pack-index");
+  }
+
+  // The .idx file names, sorted; an entry's pack is a position in this list
+  public List<String> getPackNames() {
+    return packNames;
+  }
+
+  public int getObjectCount() {
+    return objectCount;
+  }
+
+  public int findPosition(String id) {
+    byte[] key = ObjectStore.fromHex(id);
+    int first = key[0] & 0xff;
+    int low = first == 0 ? 0 : buffer.getInt(oidfOffset + (first - 1) * 4);
+    int high = buffer.getInt(oidfOffset + first * 4) - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = compareId(mid, key);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  private int compareId(int position, byte[] key) {
+    int base = oidlOffset + position * 20;
+    for (int i = 0; i < 20; i++) {
+      int cmp = Integer.compare(buffer.get(base + i) & 0xff, key[i] & 0xff);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return 0;
+  }
+
+  public String getObjectId(int position) {
+    byte[] id = new byte[20];
+    buffer.get(oidlOffset + position * 20, id);
+    return ObjectStore.toHex(id, 0);
+  }
+
+  public int getPackId(int position) {
+    return buffer.getInt(ooffOffset + position * 8);
+  }
+
+  public long getOffset(int position) {
+    int offset = buffer.getInt(ooffOffset + position * 8 + 4);
+    if ((offset & LARGE_OFFSET) == 0 || loffOffset < 0) {
+      return offset & 0xffffffffL;
+    }
+    return buffer.getLong(loffOffset + (offset & ~LARGE_OFFSET) * 8);
+  }
+
+  // ========== WRITE ==========
+
+  // Objects in id order from one source: a pack's .idx, or the current index
+  private static class Cursor {
+    final PackFile pack;
+    final MultiPackIndex midx;
+    // Old pack id -> new pack id
+    final int[] packIds;
+    final int count;
+    int position = -1;
+    String id;
+    int packId;
+    long offset;
+
+    Cursor(PackFile pack, int packId) {
+      this.pack = pack;
+      this.midx = null;
+      this.packIds = null;
+      this.count = pack.getObjectCount();
+      this.packId = packId;
+    }
+
+    Cursor(MultiPackIndex midx, int[] packIds) {
+      this.pack = null;
+      this.midx = midx;
+      this.packIds = packIds;
+      this.count = midx.getObjectCount();
+    }
+
+    boolean next() {
+      if (++position >= count) {
+        return false;
+      }
+      if (pack != null) {
+        id = pack.getObjectId(position);
+        offset = pack.getOffset(position);
+      } else {
+        id = midx.getObjectId(position);
+        packId = packIds[midx.getPackId(position)];
+        offset = midx.getOffset(position);
+      }
+      return true;
+    }
+  }
+
+  // Writes the index for the packs in objects/pack, or deletes it when there are
+  // none. Returns how many packs had to be read from their .idx.
+  public static int write() throws IOException {
+    ObjectStore.rescanPacks();
+    List<PackFile> packs = ObjectStore.packs();
+    File file = indexFile();
+    File dir = file.getParentFile();
+    if (packs.isEmpty()) {
+      file.delete();
+      return 0;
+    }
+    List<String> names = new ArrayList<>();
+    long[] modified = new long[packs.size()];
+    for (int i = 0; i < packs.size(); i++) {
+      names.add(packs.get(i).getIndexFile().getName());
+      modified[i] = packs.get(i).getPackFile().lastModified();
+    }
+
+    MultiPackIndex previous = null;
+    try {
+      previous = open(dir);
+    } catch (IOException e) {
+      // Rebuilt from the .idx files below
+    }
+    // An object listed from a pack that is gone may be in another covered pack too,
+    // so once a pack is gone everything is read again
+    Set<String> covered = new HashSet<>();
+    PriorityQueue<Cursor> queue = new PriorityQueue<>((a, b) -> a.id.compareTo(b.id));
+    if (previous != null && names.containsAll(previous.getPackNames())) {
+      int[] packIds = new int[previous.getPackNames().size()];
+      for (int i = 0; i < packIds.length; i++) {
+        packIds[i] = names.indexOf(previous.getPackNames().get(i));
+        covered.add(previous.getPackNames().get(i));
+      }
+      Cursor cursor = new Cursor(previous, packIds);
+      if (cursor.next()) {
+        queue.add(cursor);
+      }
+    }
+    int read = 0;
+    for (int i = 0; i < packs.size(); i++) {
+      if (!covered.contains(names.get(i))) {
+        read++;
+        Cursor cursor = new Cursor(packs.get(i), i);
+        if (cursor.next()) {
+          queue.add(cursor);
+        }
+      }
+    }
+
+    ByteArrayOutputStream oidl = new ByteArrayOutputStream();
+    ByteArrayOutputStream ooff = new ByteArrayOutputStream();
+    ByteArrayOutputStream loff = new ByteArrayOutputStream();
+    DataOutputStream ooffOut = new DataOutputStream(ooff);
+    DataOutputStream loffOut = new DataOutputStream(loff);
+    int[] fanout = new int[256];
+    int count = 0;
+    int largeCount = 0;
+    while (!queue.isEmpty()) {
+      // Of the copies of one object, the newest pack's wins
+      Cursor best = queue.poll();
+      String id = best.id;
+      int packId = best.packId;
+      long offset = best.offset;
+      advance(queue, best);
+      while (!queue.isEmpty() && queue.peek().id.equals(id)) {
+        Cursor other = queue.poll();
+        if (modified[other.packId] > modified[packId]) {
+          packId = other.packId;
+          offset = other.offset;
+        }
+        advance(queue, other);
+      }
+      oidl.write(ObjectStore.fromHex(id));
+      ooffOut.writeInt(packId);
+      if (offset > 0x7fffffffL) {
+        ooffOut.writeInt(LARGE_OFFSET | largeCount++);
+        loffOut.writeLong(offset);
+      } else {
+        ooffOut.writeInt((int) offset);
+      }
+      fanout[Integer.parseInt(id.substring(0, 2), 16)]++;
+      count++;
+    }
+
+    ByteArrayOutputStream pnam = new ByteArrayOutputStream();
+    for (String name : names) {
+      pnam.write(name.getBytes(StandardCharsets.UTF_8));
+      pnam.write(0);
+    }
+    while (pnam.size() % 4 != 0) {
+      pnam.write(0);
+    }
+    ByteArrayOutputStream oidf = new ByteArrayOutputStream();
+    DataOutputStream oidfOut = new DataOutputStream(oidf);
+    int total = 0;
+    for (int i = 0; i < 256; i++) {
+      total += fanout[i];
+      oidfOut.writeInt(total);
+    }
+
+    List<Integer> chunkIds = new ArrayList<>(List.of(CHUNK_PNAM, CHUNK_OIDF, CHUNK_OIDL, CHUNK_OOFF));
+    List<byte[]> chunks = new ArrayList<>(List.of(pnam.toByteArray(), oidf.toByteArray(),
+        oidl.toByteArray(), ooff.toByteArray()));
+    if (largeCount > 0) {
+      chunkIds.add(CHUNK_LOFF);
+      chunks.add(loff.toByteArray());
+    }
+
+    File tmp = File.createTempFile("tmp_midx_", null, dir);
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-1");
+      try (DataOutputStream out = new DataOutputStream(new DigestOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16), md))) {
+        out.writeInt(SIGNATURE);
+        out.writeByte(1); // version
+        out.writeByte(1); // SHA-1
+        out.writeByte(chunks.size());
+        out.writeByte(0); // base files
+        out.writeInt(names.size());
+
+        long offset = HEADER_SIZE + (chunks.size() + 1) * 12L;
+        for (int i = 0; i < chunks.size(); i++) {
+          out.writeInt(chunkIds.get(i));
+          out.writeLong(offset);
+          offset += chunks.get(i).length;
+        }
+        out.writeInt(0);
+        out.writeLong(offset);
+
+        for (byte[] chunk : chunks) {
+          out.write(chunk);
+        }
+        out.write(md.digest());
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("SHA-1 algorithm not available", e);
+    } finally {
+      tmp.delete();
+    }
+    ObjectStore.rescanPacks();
+    return read;
+  }
+
+  private static void advance(PriorityQueue<Cursor> queue, Cursor cursor) {
+    if (cursor.next()) {
+      queue.add(cursor);
+    }
+  }
+
+  // ========== VERIFY ==========
+
+  // Checks the trailing checksum, the pack names and id order, and that every object
+  // is at the recorded offset of its pack. Returns the problems found.
+  public List<String> verify() throws IOException {
+    List<String> problems = new ArrayList<>();
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("SHA-1 algorithm not available", e);
+    }
+    int end = buffer.limit() - 20;
+    md.update(buffer.duplicate().position(0).limit(end));
+    byte[] trailer = new byte[20];
+    buffer.get(end, trailer);
+    if (!MessageDigest.isEqual(md.digest(), trailer)) {
+      problems.add("incorrect checksum");
+    }
+
+    List<PackFile> packs = new ArrayList<>();
+    for (int i = 0; i < packNames.size(); i++) {
+      String name = packNames.get(i);
+      if (i > 0 && packNames.get(i - 1).compareTo(name) >= 0) {
+        problems.add("pack names out of order: '" + packNames.get(i - 1) + "' before '" + name + "'");
+      }
+      File idx = new File(file.getParentFile(), name);
+      try {
+        packs.add(idx.exists() ? new PackFile(idx) : null);
+      } catch (IOException e) {
+        packs.add(null);
+      }
+      if (packs.get(i) == null) {
+        problems.add("failed to load pack " + name);
+      }
+    }
+
+    int previousCount = 0;
+    for (int i = 0; i < 256; i++) {
+      int bucket = buffer.getInt(oidfOffset + i * 4);
+      if (bucket < previousCount) {
+        problems.add("oid fanout out of order: fanout[" + (i - 1) + "] = " + previousCount
+            + " > " + bucket + " = fanout[" + i + "]");
+      }
+      previousCount = bucket;
+    }
+    String previousId = null;
+    for (int position = 0; position < objectCount; position++) {
+      String id = getObjectId(position);
+      if (previousId != null && previousId.compareTo(id) >= 0) {
+        problems.add("oid lookup out of order: " + previousId + " before " + id);
+      }
+      previousId = id;
+      int packId = getPackId(position);
+      if (packId < 0 || packId >= packs.size()) {
+        problems.add("bad pack id " + packId + " for " + id);
+        continue;
+      }
+      PackFile pack = packs.get(packId);
+      if (pack == null) {
+        continue;
+      }
+      long offset = pack.findOffset(id);
+      if (offset != getOffset(position)) {
+        problems.add("incorrect object offset for " + id + ": " + getOffset(position) + " != " + offset);
+      }
+    }
+    return problems;
+  }
+}
@@ -0,0 +1,52 @@
+import java.io.IOException;
+
+// A partial clone filter as git spells it: blob:none leaves out every blob, and
+// blob:limit=<n>[kmg] leaves out blobs of n bytes or more. Commits, trees and tags
+// are always sent, as is any object the fetcher asked for by id.
+public class ObjectFilter {
+  private final String spec;
+  // Blobs of at least this many bytes are left out; 0 leaves out all of them
+  private final long blobLimit;
+
+  private ObjectFilter(String spec, long blobLimit) {
+    this.spec = spec;
+    this.blobLimit = blobLimit;
+  }
+
+  public static ObjectFilter parse(String spec) throws IOException {
+    if (spec.equals("blob:none")) {
+      return new ObjectFilter(spec, 0);
+    }
+    if (spec.startsWith("blob:limit=")) {
+      String digits = spec.substring(11).trim();
+      long unit = 1;
+      char suffix = digits.isEmpty() ? 0 : Character.toLowerCase(digits.charAt(digits.length() - 1));
+      if (suffix == 'k' || suffix == 'm' || suffix == 'g') {
+        unit = suffix == 'k' ? 1L << 10 : suffix == 'm' ? 1L << 20 : 1L << 30;
+        digits = digits.substring(0, digits.length() - 1);
+      }
+      try {
+        long limit = Math.multiplyExact(Long.parseLong(digits), unit);
+        if (limit >= 0) {
+          return new ObjectFilter(spec, limit);
+        }
+      } catch (NumberFormatException | ArithmeticException e) {
+        // Reported below
+      }
+    }
+    throw new IOException("invalid filter-spec '" + spec + "'");
+  }
+
+  public boolean omitsAllBlobs() {
+    return blobLimit == 0;
+  }
+
+  public boolean includesBlob(long size) {
+    return size < blobLimit;
+  }
+
+  @Override
+  public String toString() {
+    return spec;
+  }
+}
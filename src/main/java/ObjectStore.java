@@ -1,59 +1,160 @@
 import java.io.*;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
-import java.util.Arrays;
+import java.util.*;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.InflaterInputStream;
 
 public class ObjectStore {
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
   
   public static String sha1Hash(byte[] data) {
     try {
       MessageDigest md = MessageDigest.getInstance("SHA-1");
-      byte[] hash = md.digest(data);
-      StringBuilder sb = new StringBuilder();
-      for (byte b : hash) {
-        sb.append(String.format("%02x", b));
-      }
-      return sb.toString();
+      return toHex(md.digest(data), 0);
     } catch (Exception e) {
       throw new RuntimeException(e);
     }
   }
 
+  // Formats the 20-byte binary id starting at offset as 40 hex characters
+  public static String toHex(byte[] data, int offset) {
+    char[] chars = new char[40];
+    for (int i = 0; i < 20; i++) {
+      int b = data[offset + i] & 0xff;
+      chars[i * 2] = HEX[b >>> 4];
+      chars[i * 2 + 1] = HEX[b & 0xf];
+    }
+    return new String(chars);
+  }
+
+  public static byte[] fromHex(String hex) {
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) (Character.digit(hex.charAt(i * 2), 16) << 4 | Character.digit(hex.charAt(i * 2 + 1), 16));
+    }
+    return bytes;
+  }
+
+  static File objectFile(String hash) {
+    return Repository.current().gitFile("objects/" + hash.substring(0, 2) + "/" + hash.substring(2));
+  }
+
+  // The loose object here or in an alternate, or null when neither has it loose
+  private static File looseFile(String hash) {
+    File file = objectFile(hash);
+    if (file.exists()) {
+      return file;
+    }
+    for (File dir : alternates()) {
+      file = new File(dir, hash.substring(0, 2) + "/" + hash.substring(2));
+      if (file.exists()) {
+        return file;
+      }
+    }
+    return null;
+  }
+
+  // The object as stored loose: "<type> <size>\0" followed by the content
   public static byte[] readObject(String hash) throws IOException {
-    String dirHash = hash.substring(0, 2);
-    String fileHash = hash.substring(2);
-    File objectFile = new File(".git/objects/" + dirHash + "/" + fileHash);
+    File objectFile = looseFile(hash);
     
-    if (!objectFile.exists()) {
-      throw new IOException("Object not found: " + hash);
+    if (objectFile != null) {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      try (InflaterInputStream iis = new InflaterInputStream(Files.newInputStream(objectFile.toPath()))) {
+        byte[] buffer = new byte[8192];
+        int len;
+        while ((len = iis.read(buffer)) != -1) {
+          baos.write(buffer, 0, len);
+        }
+        return baos.toByteArray();
+      } catch (NoSuchFileException e) {
+        // Maintenance packed and pruned it since looseFile() saw it
+        rescanPacks();
+      }
     }
     
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    try (InflaterInputStream iis = new InflaterInputStream(new FileInputStream(objectFile))) {
-      byte[] buffer = new byte[8192];
-      int len;
-      while ((len = iis.read(buffer)) != -1) {
-        baos.write(buffer, 0, len);
+    ObjectInfo packed = readPacked(hash);
+    byte[] header = (packed.type + " " + packed.content.length + "\0").getBytes();
+    byte[] data = Arrays.copyOf(header, header.length + packed.content.length);
+    System.arraycopy(packed.content, 0, data, header.length, packed.content.length);
+    return data;
+  }
+
+  // Objects are immutable, so an existing file is kept. A new one is written under a
+  // temporary name and renamed, so concurrent readers never see a partial object.
+  public static void writeObject(String hash, byte[] data) throws IOException {
+    if (hasObject(hash)) {
+      return;
+    }
+    writeLooseObject(hash, compress(data));
+  }
+
+  // Writes a packed object out as a loose one, for repack to keep objects it drops
+  // from a pack; the file gets the given modification time so pruning still sees
+  // how old the object is
+  static void unpackObject(String hash, long modified) throws IOException {
+    writeLooseObject(hash, compress(readObject(hash)));
+    objectFile(hash).setLastModified(modified);
+  }
+
+  // Every loose object's id, from the objects/xx/ directories
+  static List<String> looseObjects() {
+    List<String> ids = new ArrayList<>();
+    File[] dirs = Repository.current().gitFile("objects").listFiles(
+        (dir, name) -> name.length() == 2 && name.matches("[0-9a-f]{2}"));
+    if (dirs == null) {
+      return ids;
+    }
+    Arrays.sort(dirs);
+    for (File dir : dirs) {
+      String[] names = dir.list((d, name) -> name.length() == 38 && name.matches("[0-9a-f]{38}"));
+      if (names != null) {
+        Arrays.sort(names);
+        for (String name : names) {
+          ids.add(dir.getName() + name);
+        }
       }
     }
-    return baos.toByteArray();
+    return ids;
   }
 
-  public static void writeObject(String hash, byte[] data) throws IOException {
-    String dirHash = hash.substring(0, 2);
-    String fileHash = hash.substring(2);
-    File dir = new File(".git/objects/" + dirHash);
-    dir.mkdirs();
-    File objectFile = new File(dir, fileHash);
-    
+  private static byte[] compress(byte[] data) throws IOException {
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
     try (DeflaterOutputStream dos = new DeflaterOutputStream(baos)) {
       dos.write(data);
     }
-    
-    Files.write(objectFile.toPath(), baos.toByteArray());
+    return baos.toByteArray();
+  }
+
+  public static boolean hasObject(String hash) {
+    if (looseFile(hash) != null) {
+      return true;
+    }
+    try {
+      return findPacked(hash) != null;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static void writeLooseObject(String hash, byte[] compressed) throws IOException {
+    File objectFile = objectFile(hash);
+    if (objectFile.exists()) {
+      return;
+    }
+    File dir = objectFile.getParentFile();
+    dir.mkdirs();
+
+    File tmp = File.createTempFile("tmp_obj_", null, dir);
+    try {
+      Files.write(tmp.toPath(), compressed);
+      Files.move(tmp.toPath(), objectFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      tmp.delete();
+    }
   }
 
   public static String storeObject(String type, byte[] content) throws IOException {
@@ -67,7 +168,78 @@ public class ObjectStore {
     return hash;
   }
 
+  // Parsed objects of one repository by id, most recently used last. Objects never
+  // change, so entries only leave when the total content size exceeds
+  // core.objectCacheLimit; this is what keeps a daemon's repeated commands from
+  // inflating the same objects again. The limit is read once per command rather than
+  // once per object, since every Config.snapshot() stats the config files.
+  private static class Cache {
+    final LinkedHashMap<String, ObjectInfo> objects = new LinkedHashMap<>(1024, 0.75f, true);
+    long bytes;
+    long limit = -1;
+  }
+
+  private static final long DEFAULT_CACHE_LIMIT = 16 << 20;
+
+  private static Cache cache() {
+    return Repository.current().state(Cache.class, Cache::new);
+  }
+
+  // Makes the next cached read pick up core.objectCacheLimit again; called by the
+  // daemon before each command
+  static void reloadConfig() {
+    Cache cache = cache();
+    synchronized (cache) {
+      cache.limit = -1;
+    }
+  }
+
   public static ObjectInfo parseObject(String hash) throws IOException {
+    Cache cache = cache();
+    synchronized (cache) {
+      ObjectInfo cached = cache.objects.get(hash);
+      if (cached != null) {
+        return cached;
+      }
+    }
+    ObjectInfo info = loadObject(hash);
+    remember(cache, hash, info);
+    return info;
+  }
+
+  // Reads an object without going through the cache, for callers such as PackWriter
+  // that touch each object once
+  static ObjectInfo loadObject(String hash) throws IOException {
+    return looseFile(hash) != null ? parseLooseObject(hash) : readPacked(hash);
+  }
+
+  private static void remember(Cache cache, String hash, ObjectInfo info) throws IOException {
+    long limit;
+    synchronized (cache) {
+      limit = cache.limit;
+    }
+    if (limit < 0) {
+      limit = Config.snapshot().getSize("core", null, "objectCacheLimit", DEFAULT_CACHE_LIMIT);
+      synchronized (cache) {
+        cache.limit = limit;
+      }
+    }
+    if (info.content.length > limit / 4) {
+      return;
+    }
+    synchronized (cache) {
+      if (cache.objects.put(hash, info) == null) {
+        cache.bytes += info.content.length;
+      }
+      Iterator<ObjectInfo> eldest = cache.objects.values().iterator();
+      while (cache.bytes > limit && eldest.hasNext()) {
+        cache.bytes -= eldest.next().content.length;
+        eldest.remove();
+      }
+    }
+  }
+
+  private static ObjectInfo parseLooseObject(String hash) throws IOException {
     byte[] data = readObject(hash);
     int nullIndex = -1;
     for (int i = 0; i < data.length; i++) {
@@ -88,6 +260,301 @@ public class ObjectStore {
     return new ObjectInfo(type, content);
   }
   
+  // Type and size from the object header alone. Only the first inflated bytes are
+  // read, so checking a large blob costs the same as a small one.
+  public static ObjectHeader readHeader(String hash) throws IOException {
+    Cache cache = cache();
+    synchronized (cache) {
+      ObjectInfo cached = cache.objects.get(hash);
+      if (cached != null) {
+        return new ObjectHeader(cached.type, cached.content.length);
+      }
+    }
+    File objectFile = looseFile(hash);
+    if (objectFile != null) {
+      try {
+        return readLooseHeader(hash, objectFile);
+      } catch (NoSuchFileException e) {
+        // Maintenance packed and pruned it since looseFile() saw it
+        rescanPacks();
+      }
+    }
+    PackedObject packed = findPackedOrFail(hash);
+    return packed.pack.readHeader(packed.offset);
+  }
+
+  private static ObjectHeader readLooseHeader(String hash, File objectFile) throws IOException {
+    byte[] header = new byte[64];
+    int length = 0;
+    try (InflaterInputStream iis = new InflaterInputStream(Files.newInputStream(objectFile.toPath()))) {
+      int n;
+      while (length < header.length && (n = iis.read(header, length, header.length - length)) > 0) {
+        int end = length + n;
+        for (int i = length; i < end; i++) {
+          if (header[i] == 0) {
+            String[] parts = new String(header, 0, i).split(" ");
+            if (parts.length != 2) {
+              break;
+            }
+            return new ObjectHeader(parts[0], Long.parseLong(parts[1]));
+          }
+        }
+        length = end;
+      }
+    } catch (NumberFormatException e) {
+      // Reported as a bad header below
+    }
+    throw new IOException("Invalid object format: " + hash);
+  }
+
+  // ========== PACKS ==========
+
+  // The packs of one repository, listed again when objects/pack changes
+  private static class Packs {
+    PackSet set = new PackSet(List.of(), null, null, List.of());
+    long modified = -1;
+  }
+
+  // The packs with the multi-pack-index, if any: midxPacks are the packs it names, in
+  // its order, and others the packs it does not cover, which are searched one by one
+  private static class PackSet {
+    final List<PackFile> list;
+    final MultiPackIndex midx;
+    final PackFile[] midxPacks;
+    final List<PackFile> others;
+
+    PackSet(List<PackFile> list, MultiPackIndex midx, PackFile[] midxPacks, List<PackFile> others) {
+      this.list = list;
+      this.midx = midx;
+      this.midxPacks = midxPacks;
+      this.others = others;
+    }
+  }
+
+  static class PackedObject {
+    final PackFile pack;
+    final long offset;
+
+    PackedObject(PackFile pack, long offset) {
+      this.pack = pack;
+      this.offset = offset;
+    }
+  }
+
+  public static List<PackFile> packs() throws IOException {
+    return packSet().list;
+  }
+
+  private static PackSet packSet() throws IOException {
+    Repository repository = Repository.current();
+    return packSet(repository.state(Packs.class, Packs::new), repository.gitFile("objects/pack"));
+  }
+
+  private static PackSet packSet(Packs packs, File dir) throws IOException {
+    synchronized (packs) {
+      long modified = dir.lastModified();
+      if (modified == packs.modified) {
+        return packs.set;
+      }
+      Map<String, PackFile> open = new HashMap<>();
+      for (PackFile pack : packs.set.list) {
+        open.put(pack.getIndexFile().getName(), pack);
+      }
+      Map<String, PackFile> listed = new LinkedHashMap<>();
+      File[] files = dir.listFiles((d, name) -> name.startsWith("pack-") && name.endsWith(".idx"));
+      if (files != null) {
+        Arrays.sort(files);
+        for (File idx : files) {
+          PackFile pack = open.get(idx.getName());
+          listed.put(idx.getName(), pack != null ? pack : new PackFile(idx));
+        }
+      }
+      packs.set = withMultiPackIndex(dir, listed);
+      packs.modified = modified;
+      return packs.set;
+    }
+  }
+
+  // A multi-pack-index naming a pack that is gone is ignored until it is rewritten
+  private static PackSet withMultiPackIndex(File dir, Map<String, PackFile> listed) {
+    List<PackFile> list = List.copyOf(listed.values());
+    MultiPackIndex midx;
+    try {
+      midx = MultiPackIndex.open(dir);
+    } catch (IOException e) {
+      System.err.println("warning: ignoring multi-pack-index: " + e.getMessage());
+      midx = null;
+    }
+    if (midx == null || !listed.keySet().containsAll(midx.getPackNames())) {
+      return new PackSet(list, null, null, list);
+    }
+    PackFile[] midxPacks = new PackFile[midx.getPackNames().size()];
+    Map<String, PackFile> others = new LinkedHashMap<>(listed);
+    for (int i = 0; i < midxPacks.length; i++) {
+      midxPacks[i] = others.remove(midx.getPackNames().get(i));
+    }
+    return new PackSet(list, midx, midxPacks, List.copyOf(others.values()));
+  }
+
+  // Called after this process adds or removes a pack, in case the directory's
+  // modification time did not visibly change
+  public static void rescanPacks() {
+    Repository repository = Repository.current();
+    List<Packs> all = new ArrayList<>(List.of(repository.state(Packs.class, Packs::new)));
+    Alternates alternates = repository.state(Alternates.class, Alternates::new);
+    synchronized (alternates) {
+      all.addAll(alternates.packs.values());
+    }
+    for (Packs packs : all) {
+      synchronized (packs) {
+        packs.modified = -1;
+      }
+    }
+  }
+
+  // Searches this repository's packs, then those of its alternates
+  static PackedObject findPacked(String hash) throws IOException {
+    PackedObject packed = findPacked(packSet(), hash);
+    if (packed != null) {
+      return packed;
+    }
+    for (File dir : alternates()) {
+      packed = findPacked(alternatePackSet(dir), hash);
+      if (packed != null) {
+        return packed;
+      }
+    }
+    return null;
+  }
+
+  // Whether an alternate has the object, loose or packed; such objects need not be
+  // stored here
+  static boolean inAlternates(String hash) throws IOException {
+    for (File dir : alternates()) {
+      if (new File(dir, hash.substring(0, 2) + "/" + hash.substring(2)).exists()
+          || findPacked(alternatePackSet(dir), hash) != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // One binary search in the multi-pack-index, then the packs it does not cover
+  private static PackedObject findPacked(PackSet set, String hash) {
+    if (set.midx != null) {
+      int position = set.midx.findPosition(hash);
+      if (position >= 0) {
+        return new PackedObject(set.midxPacks[set.midx.getPackId(position)], set.midx.getOffset(position));
+      }
+    }
+    for (PackFile pack : set.others) {
+      long offset = pack.findOffset(hash);
+      if (offset >= 0) {
+        return new PackedObject(pack, offset);
+      }
+    }
+    return null;
+  }
+
+  // A miss lists the pack directory once more before giving up, since another
+  // process may just have replaced loose objects with a pack. A partial clone then
+  // asks its promisor remote for the object.
+  private static PackedObject findPackedOrFail(String hash) throws IOException {
+    PackedObject packed = findPacked(hash);
+    if (packed == null) {
+      rescanPacks();
+      packed = findPacked(hash);
+    }
+    if (packed == null && Promisor.fetchMissing(hash)) {
+      packed = findPacked(hash);
+    }
+    if (packed == null) {
+      throw new IOException("Object not found: " + hash);
+    }
+    return packed;
+  }
+
+  private static ObjectInfo readPacked(String hash) throws IOException {
+    PackedObject packed = findPackedOrFail(hash);
+    return packed.pack.read(packed.offset);
+  }
+
+  // ========== ALTERNATES ==========
+
+  // The object directories listed in objects/info/alternates, and the packs of each.
+  // The list is read again when the file changes.
+  private static class Alternates {
+    List<File> dirs = List.of();
+    long modified = -1;
+    final Map<File, Packs> packs = new HashMap<>();
+  }
+
+  // Alternates of alternates are followed this deep
+  private static final int MAX_ALTERNATE_DEPTH = 5;
+
+  // Object directories whose objects this repository may read but never writes to,
+  // one per line of objects/info/alternates, relative paths against objects/; their
+  // own alternates count too. An unreadable list is reported and ignored.
+  public static List<File> alternates() {
+    Repository repository = Repository.current();
+    Alternates alternates = repository.state(Alternates.class, Alternates::new);
+    File file = repository.gitFile("objects/info/alternates");
+    synchronized (alternates) {
+      long modified = file.lastModified();
+      if (modified != alternates.modified) {
+        List<File> dirs = new ArrayList<>();
+        try {
+          readAlternates(repository.gitFile("objects").getCanonicalFile(), dirs, 0);
+        } catch (IOException e) {
+          System.err.println("warning: ignoring alternates: " + e.getMessage());
+        }
+        alternates.dirs = List.copyOf(dirs);
+        alternates.modified = modified;
+      }
+      return alternates.dirs;
+    }
+  }
+
+  private static void readAlternates(File objects, List<File> dirs, int depth) throws IOException {
+    File file = new File(objects, "info/alternates");
+    if (depth >= MAX_ALTERNATE_DEPTH || !file.exists()) {
+      return;
+    }
+    for (String line : Files.readAllLines(file.toPath())) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      File dir = new File(line);
+      dir = (dir.isAbsolute() ? dir : new File(objects, line)).getCanonicalFile();
+      if (!dir.isDirectory()) {
+        System.err.println("warning: alternate object store does not exist: " + line);
+      } else if (!dirs.contains(dir) && !dir.equals(Repository.current().gitFile("objects").getCanonicalFile())) {
+        dirs.add(dir);
+        readAlternates(dir, dirs, depth + 1);
+      }
+    }
+  }
+
+  private static PackSet alternatePackSet(File dir) throws IOException {
+    Alternates alternates = Repository.current().state(Alternates.class, Alternates::new);
+    Packs packs;
+    synchronized (alternates) {
+      packs = alternates.packs.computeIfAbsent(dir, d -> new Packs());
+    }
+    return packSet(packs, new File(dir, "pack"));
+  }
+
+  public static class ObjectHeader {
+    public final String type;
+    public final long size;
+
+    public ObjectHeader(String type, long size) {
+      this.type = type;
+      this.size = size;
+    }
+  }
+
   public static class ObjectInfo {
     public String type;
     public byte[] content;
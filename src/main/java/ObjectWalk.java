@@ -0,0 +1,181 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Lists every object reachable from the start points but not from the uninteresting
+// ones: the commits of `rev-list starts --not uninteresting` (via RevWalk), then the
+// trees and blobs those commits introduce. Trees of the boundary commits (the
+// uninteresting parents of listed commits) are marked first, so a commit that
+// changes one file costs a walk of its boundary's trees, not of the whole history.
+//
+// With setUseBitmaps, a pack's reachability bitmaps answer instead when there are
+// any (see BitmapWalk); the objects then come without paths.
+public class ObjectWalk {
+  public static class Entry {
+    public final String id;
+    public final String type;
+    // Path of a tree or blob in the first commit that introduced it, "" otherwise
+    public final String path;
+
+    Entry(String id, String type, String path) {
+      this.id = id;
+      this.type = type;
+      this.path = path;
+    }
+  }
+
+  private static final int MODE_GITLINK = 0160000;
+
+  private final RevCommit.Pool pool;
+  private final List<String> starts = new ArrayList<>();
+  private final List<String> uninteresting = new ArrayList<>();
+  private final List<Entry> tags = new ArrayList<>();
+  private final List<Entry> looseTrees = new ArrayList<>();
+  // The ids as given, for a BitmapWalk
+  private final List<String> startIds = new ArrayList<>();
+  private final List<String> uninterestingIds = new ArrayList<>();
+  private boolean useBitmaps;
+
+  public ObjectWalk(RevCommit.Pool pool) {
+    this.pool = pool;
+  }
+
+  // Whether reachability bitmaps may answer; the walk must not stop at shallow commits
+  public void setUseBitmaps(boolean useBitmaps) {
+    this.useBitmaps = useBitmaps;
+  }
+
+  // id may name a commit, an annotated tag (listed itself, then followed) or a tree or blob
+  public void markStart(String id) throws IOException {
+    startIds.add(id);
+    String target = peel(id, tags);
+    String type = ObjectStore.readHeader(target).type;
+    if (type.equals("commit")) {
+      starts.add(target);
+    } else {
+      looseTrees.add(new Entry(target, type, ""));
+    }
+  }
+
+  public void markUninteresting(String id) throws IOException {
+    uninterestingIds.add(id);
+    String target = peel(id, null);
+    if (ObjectStore.readHeader(target).type.equals("commit")) {
+      uninteresting.add(target);
+    }
+  }
+
+  public List<Entry> objects() throws IOException {
+    BitmapWalk bitmaps = useBitmaps ? BitmapWalk.open() : null;
+    if (bitmaps != null) {
+      startIds.forEach(bitmaps::markStart);
+      uninterestingIds.forEach(bitmaps::markUninteresting);
+      return bitmaps.objects();
+    }
+    RevWalk walk = new RevWalk(pool);
+    for (String id : starts) {
+      walk.markStart(id);
+    }
+    for (String id : uninteresting) {
+      walk.markUninteresting(id);
+    }
+    List<RevCommit> commits = new ArrayList<>();
+    Set<RevCommit> listed = new HashSet<>();
+    for (RevCommit commit = walk.next(); commit != null; commit = walk.next()) {
+      commits.add(commit);
+      listed.add(commit);
+    }
+
+    Set<String> seen = new HashSet<>();
+    Set<RevCommit> boundary = new LinkedHashSet<>();
+    for (String id : uninteresting) {
+      boundary.add(pool.parse(id));
+    }
+    for (RevCommit commit : commits) {
+      for (RevCommit parent : commit.getParents()) {
+        if (!listed.contains(parent)) {
+          boundary.add(parent);
+        }
+      }
+    }
+    for (RevCommit commit : boundary) {
+      commit.parse(pool);
+      markTree(commit.getTree(), seen);
+    }
+
+    List<Entry> result = new ArrayList<>();
+    for (RevCommit commit : commits) {
+      result.add(new Entry(commit.id, "commit", ""));
+    }
+    for (Entry tag : tags) {
+      if (seen.add(tag.id)) {
+        result.add(tag);
+      }
+    }
+    for (RevCommit commit : commits) {
+      addTree(commit.getTree(), "", seen, result);
+    }
+    for (Entry entry : looseTrees) {
+      if (entry.type.equals("tree")) {
+        addTree(entry.id, "", seen, result);
+      } else if (seen.add(entry.id)) {
+        result.add(entry);
+      }
+    }
+    return result;
+  }
+
+  // Follows annotated tags down to the object they point at, collecting the tag objects
+  private static String peel(String id, List<Entry> tagObjects) throws IOException {
+    while (true) {
+      ObjectStore.ObjectInfo obj = ObjectStore.parseObject(id);
+      if (!obj.type.equals("tag")) {
+        return id;
+      }
+      if (tagObjects != null) {
+        tagObjects.add(new Entry(id, "tag", ""));
+      }
+      String content = new String(obj.content, StandardCharsets.UTF_8);
+      if (!content.startsWith("object ")) {
+        throw new IOException("Malformed tag object: " + id);
+      }
+      id = content.substring(7, 47);
+    }
+  }
+
+  private static void markTree(String treeId, Set<String> seen) throws IOException {
+    if (!seen.add(treeId)) {
+      return;
+    }
+    TreeIterator entries = TreeIterator.forTree(treeId);
+    while (entries.next()) {
+      if (entries.mode() == MODE_GITLINK) {
+        continue;
+      }
+      if (entries.isTree()) {
+        markTree(entries.id(), seen);
+      } else {
+        seen.add(entries.id());
+      }
+    }
+  }
+
+  private static void addTree(String treeId, String path, Set<String> seen, List<Entry> result) throws IOException {
+    if (!seen.add(treeId)) {
+      return;
+    }
+    result.add(new Entry(treeId, "tree", path));
+    TreeIterator entries = TreeIterator.forTree(treeId);
+    while (entries.next()) {
+      if (entries.mode() == MODE_GITLINK) {
+        continue;
+      }
+      String name = path.isEmpty() ? entries.name() : path + "/" + entries.name();
+      if (entries.isTree()) {
+        addTree(entries.id(), name, seen, result);
+      } else if (seen.add(entries.id())) {
+        result.add(new Entry(entries.id(), "blob", name));
+      }
+    }
+  }
+}
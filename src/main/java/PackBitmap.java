@@ -0,0 +1,280 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+// Reachability bitmaps for one pack, in git's .bitmap format (version 1): "BITM", the
+// version, options, the number of bitmapped commits and the pack checksum; EWAH
+// bitmaps of the pack's commits, trees, blobs and tags; then per selected commit its
+// .idx position, an XOR offset, flags and the EWAH bitmap of every object it reaches;
+// and a trailing SHA-1. Bit i stands for the i-th object in pack order (by offset).
+// A bitmap with an XOR offset k is stored XORed with the bitmap k entries earlier.
+//
+// Bitmaps are only written for a pack that holds everything reachable from its
+// commits, as repack -a makes, so a commit's bitmap is the full answer to what it
+// reaches. They are written for the ref tips and every 100th commit further back,
+// oldest first, so each one starts from the bitmaps of the commits below it and
+// only walks the trees the commits since then introduced.
+public class PackBitmap {
+  private static final int SIGNATURE = 0x4249544d; // BITM
+  private static final int VERSION = 1;
+  private static final int OPT_FULL_DAG = 1;
+  // Selected commits are this far apart, counting back from the newest
+  private static final int SPACING = 100;
+  private static final int MODE_GITLINK = 0160000;
+
+  private final PackFile pack;
+  private final ByteBuffer buffer;
+  // Bit -> .idx position, and back
+  private final int[] packOrder;
+  private final int[] bits;
+  private final BitSet commits;
+  private final BitSet trees;
+  private final BitSet blobs;
+  private final BitSet tags;
+  // Commit id -> entry, and each entry's bitmap offset and XOR offset
+  private final Map<String, Integer> entries = new HashMap<>();
+  private final int[] entryOffsets;
+  private final int[] xorOffsets;
+
+  private PackBitmap(PackFile pack, ByteBuffer buffer) throws IOException {
+    this.pack = pack;
+    this.buffer = buffer;
+    if (buffer.limit() < 32 + 20 || buffer.getInt(0) != SIGNATURE || buffer.getShort(4) != VERSION) {
+      throw new IOException("Unsupported bitmap index: " + pack.getPackFile());
+    }
+    int options = buffer.getShort(6);
+    if ((options & OPT_FULL_DAG) == 0) {
+      throw new IOException("Bitmap index lacks the full DAG option: " + pack.getPackFile());
+    }
+    byte[] checksum = new byte[20];
+    buffer.get(12, checksum);
+    if (!ObjectStore.toHex(checksum, 0).equals(pack.getChecksum())) {
+      throw new IOException("Bitmap index does not match its pack: " + pack.getPackFile());
+    }
+    packOrder = pack.packOrder();
+    bits = new int[packOrder.length];
+    for (int bit = 0; bit < packOrder.length; bit++) {
+      bits[packOrder[bit]] = bit;
+    }
+
+    int count = buffer.getInt(8);
+    int[] pos = { 32 };
+    commits = Ewah.read(buffer, pos);
+    trees = Ewah.read(buffer, pos);
+    blobs = Ewah.read(buffer, pos);
+    tags = Ewah.read(buffer, pos);
+    entryOffsets = new int[count];
+    xorOffsets = new int[count];
+    for (int i = 0; i < count; i++) {
+      int position = buffer.getInt(pos[0]);
+      xorOffsets[i] = buffer.get(pos[0] + 4) & 0xff;
+      entryOffsets[i] = pos[0] + 6;
+      if (position < 0 || position >= packOrder.length || xorOffsets[i] > i) {
+        throw new IOException("Corrupt bitmap index: " + pack.getPackFile());
+      }
+      entries.put(pack.getObjectId(position), i);
+      pos[0] = entryOffsets[i] + 8 + buffer.getInt(entryOffsets[i] + 4) * 8 + 4;
+    }
+  }
+
+  // The bitmap next to the pack, or null when it has none
+  static PackBitmap open(PackFile pack) throws IOException {
+    File file = bitmapFile(pack.getPackFile());
+    if (!file.exists()) {
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      return new PackBitmap(pack, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  static File bitmapFile(File packFile) {
+    String name = packFile.getName();
+    return new File(packFile.getParentFile(), name.substring(0, name.length() - 5) + ".bitmap");
+  }
+
+  public PackFile getPack() {
+    return pack;
+  }
+
+  public int getObjectCount() {
+    return packOrder.length;
+  }
+
+  public int getCommitCount() {
+    return entryOffsets.length;
+  }
+
+  // The object's bit, or -1 when it is not in this pack
+  public int bitOf(String id) {
+    int position = pack.findPosition(id);
+    return position < 0 ? -1 : bits[position];
+  }
+
+  public String objectAt(int bit) {
+    return pack.getObjectId(packOrder[bit]);
+  }
+
+  public String typeAt(int bit) {
+    return commits.get(bit) ? "commit" : trees.get(bit) ? "tree" : blobs.get(bit) ? "blob" : "tag";
+  }
+
+  // Everything the commit reaches, or null when it has no bitmap; the caller may modify it
+  public BitSet reachableFrom(String commitId) throws IOException {
+    Integer entry = entries.get(commitId);
+    return entry == null ? null : decode(entry);
+  }
+
+  private BitSet decode(int entry) throws IOException {
+    BitSet result = Ewah.read(buffer, new int[] { entryOffsets[entry] });
+    if (xorOffsets[entry] > 0) {
+      result.xor(decode(entry - xorOffsets[entry]));
+    }
+    return result;
+  }
+
+  // ========== WRITE ==========
+
+  // Writes pack-<checksum>.bitmap for a pack holding everything its commits reach.
+  // objects are the pack's objects with their commits newest first, as ObjectWalk
+  // lists them; the tips (ref targets) always get a bitmap. Returns how many did.
+  static int write(PackFile pack, List<ObjectWalk.Entry> objects, Collection<String> tips) throws IOException {
+    int[] packOrder = pack.packOrder();
+    int[] bits = new int[packOrder.length];
+    for (int bit = 0; bit < packOrder.length; bit++) {
+      bits[packOrder[bit]] = bit;
+    }
+    BitSet[] types = { new BitSet(), new BitSet(), new BitSet(), new BitSet() };
+    List<String> commits = new ArrayList<>();
+    for (ObjectWalk.Entry entry : objects) {
+      int bit = bit(pack, bits, entry.id);
+      types[PackFile.typeCode(entry.type) - 1].set(bit);
+      if (entry.type.equals("commit")) {
+        commits.add(entry.id);
+      }
+    }
+
+    Set<String> tipSet = new HashSet<>(tips);
+    List<String> selected = new ArrayList<>();
+    for (int i = commits.size() - 1; i >= 0; i--) {
+      if (i % SPACING == 0 || tipSet.contains(commits.get(i))) {
+        selected.add(commits.get(i));
+      }
+    }
+    RevCommit.Pool pool = new RevCommit.Pool();
+    Map<String, byte[]> built = new LinkedHashMap<>();
+    for (String id : selected) {
+      built.put(id, encode(reach(pool, pack, bits, id, built)));
+    }
+
+    File file = bitmapFile(pack.getPackFile());
+    File tmp = File.createTempFile("tmp_bitmap_", null, file.getParentFile());
+    try {
+      MessageDigest md = sha1();
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          new DigestOutputStream(new FileOutputStream(tmp), md), 1 << 16))) {
+        out.writeInt(SIGNATURE);
+        out.writeShort(VERSION);
+        out.writeShort(OPT_FULL_DAG);
+        out.writeInt(built.size());
+        out.write(ObjectStore.fromHex(pack.getChecksum()));
+        for (BitSet type : types) {
+          Ewah.write(out, type);
+        }
+        for (Map.Entry<String, byte[]> entry : built.entrySet()) {
+          out.writeInt(pack.findPosition(entry.getKey()));
+          out.writeByte(0);
+          out.writeByte(0);
+          out.write(entry.getValue());
+        }
+        out.flush();
+        out.write(md.digest());
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      tmp.delete();
+    }
+    return built.size();
+  }
+
+  // The commit's closure: ancestors with a bitmap already contribute theirs, so only
+  // the commits since them are walked, and only trees they do not reach are read
+  private static BitSet reach(RevCommit.Pool pool, PackFile pack, int[] bits, String commitId,
+      Map<String, byte[]> built) throws IOException {
+    BitSet result = new BitSet(bits.length);
+    List<RevCommit> fresh = new ArrayList<>();
+    Deque<String> pending = new ArrayDeque<>(List.of(commitId));
+    while (!pending.isEmpty()) {
+      String id = pending.pop();
+      int bit = bit(pack, bits, id);
+      if (result.get(bit)) {
+        continue;
+      }
+      byte[] stored = built.get(id);
+      if (stored != null) {
+        result.or(Ewah.read(ByteBuffer.wrap(stored), new int[] { 0 }));
+        continue;
+      }
+      result.set(bit);
+      RevCommit commit = pool.parse(id);
+      fresh.add(commit);
+      for (RevCommit parent : commit.getParents()) {
+        pending.push(parent.id);
+      }
+    }
+    for (RevCommit commit : fresh) {
+      markTree(pack, bits, commit.getTree(), result);
+    }
+    return result;
+  }
+
+  private static void markTree(PackFile pack, int[] bits, String treeId, BitSet result) throws IOException {
+    int bit = bit(pack, bits, treeId);
+    if (result.get(bit)) {
+      return;
+    }
+    result.set(bit);
+    TreeIterator entries = TreeIterator.forTree(treeId);
+    while (entries.next()) {
+      if (entries.mode() == MODE_GITLINK) {
+        continue;
+      }
+      if (entries.isTree()) {
+        markTree(pack, bits, entries.id(), result);
+      } else {
+        result.set(bit(pack, bits, entries.id()));
+      }
+    }
+  }
+
+  private static int bit(PackFile pack, int[] bits, String id) throws IOException {
+    int position = pack.findPosition(id);
+    if (position < 0) {
+      throw new IOException("Cannot write bitmaps: " + id + " is not in " + pack.getPackFile().getName());
+    }
+    return bits[position];
+  }
+
+  private static byte[] encode(BitSet bits) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      Ewah.write(out, bits);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static MessageDigest sha1() throws IOException {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+  }
+}
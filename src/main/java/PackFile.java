@@ -0,0 +1,368 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// One objects/pack/pack-<checksum>.pack with its version 2 .idx, both memory-mapped.
+// The idx holds a 256-entry fanout by first id byte, the sorted ids, a CRC-32 and an
+// offset per object (offsets past 2 GiB go through a 64-bit table). Pack entries
+// start with a type and size header; OFS_DELTA entries name their base by a
+// backwards offset, REF_DELTA entries by id, and both are resolved with Delta.apply.
+public class PackFile {
+  public static final int OBJ_COMMIT = 1;
+  public static final int OBJ_TREE = 2;
+  public static final int OBJ_BLOB = 3;
+  public static final int OBJ_TAG = 4;
+  public static final int OBJ_OFS_DELTA = 6;
+  public static final int OBJ_REF_DELTA = 7;
+
+  private static final int IDX_MAGIC = 0xff744f63;
+  private static final int FANOUT_OFFSET = 8;
+  private static final int NAMES_OFFSET = FANOUT_OFFSET + 256 * 4;
+  // Resolved delta bases kept per pack, so walking a chain does not redo its prefix
+  private static final long BASE_CACHE_LIMIT = 8 << 20;
+
+  private final File packFile;
+  private final File idxFile;
+  private final MappedByteBuffer idx;
+  private final MappedByteBuffer pack;
+  private final int objectCount;
+  private final int crcOffset;
+  private final int offsetsOffset;
+  private final int largeOffsetsOffset;
+  private long[] sortedOffsets;
+  private int[] packOrder;
+  private PackBitmap bitmap;
+
+  private final LinkedHashMap<Long, ObjectStore.ObjectInfo> baseCache = new LinkedHashMap<>(64, 0.75f, true);
+  private long baseCacheBytes;
+
+  public PackFile(File idxFile) throws IOException {
+    this.idxFile = idxFile;
+    String name = idxFile.getName();
+    this.packFile = new File(idxFile.getParentFile(), name.substring(0, name.length() - 4) + ".pack");
+    this.idx = map(idxFile);
+    this.pack = map(packFile);
+
+    if (idx.getInt(0) != IDX_MAGIC || idx.getInt(4) != 2) {
+      throw new IOException("Unsupported pack index version: " + idxFile);
+    }
+    if (pack.getInt(0) != 0x5041434b || pack.getInt(4) != 2) {
+      throw new IOException("Not a version 2 pack: " + packFile);
+    }
+    objectCount = idx.getInt(FANOUT_OFFSET + 255 * 4);
+    if (pack.getInt(8) != objectCount) {
+      throw new IOException("Pack and index disagree on object count: " + packFile);
+    }
+    crcOffset = NAMES_OFFSET + objectCount * 20;
+    offsetsOffset = crcOffset + objectCount * 4;
+    largeOffsetsOffset = offsetsOffset + objectCount * 4;
+  }
+
+  private static MappedByteBuffer map(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Pack files over 2 GiB are not supported: " + file);
+      }
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+  }
+
+  public File getPackFile() {
+    return packFile;
+  }
+
+  public File getIndexFile() {
+    return idxFile;
+  }
+
+  public int getObjectCount() {
+    return objectCount;
+  }
+
+  // Hex checksum of the pack contents, which is also its name
+  public String getChecksum() {
+    byte[] checksum = new byte[20];
+    idx.get(largeOffsetsOffset + countLargeOffsets() * 8, checksum);
+    return ObjectStore.toHex(checksum, 0);
+  }
+
+  public String getObjectId(int position) {
+    byte[] id = new byte[20];
+    idx.get(NAMES_OFFSET + position * 20, id);
+    return ObjectStore.toHex(id, 0);
+  }
+
+  public long getOffset(int position) {
+    int offset = idx.getInt(offsetsOffset + position * 4);
+    if (offset >= 0) {
+      return offset;
+    }
+    return idx.getLong(largeOffsetsOffset + (offset & 0x7fffffff) * 8);
+  }
+
+  public int getCrc(int position) {
+    return idx.getInt(crcOffset + position * 4);
+  }
+
+  private int countLargeOffsets() {
+    int count = 0;
+    for (int i = 0; i < objectCount; i++) {
+      if (idx.getInt(offsetsOffset + i * 4) < 0) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  // Binary search within the fanout bucket of the id's first byte; -1 when absent
+  public int findPosition(String id) {
+    byte[] key = ObjectStore.fromHex(id);
+    int first = key[0] & 0xff;
+    int low = first == 0 ? 0 : idx.getInt(FANOUT_OFFSET + (first - 1) * 4);
+    int high = idx.getInt(FANOUT_OFFSET + first * 4) - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = compareId(NAMES_OFFSET + mid * 20, key);
+      if (cmp == 0) {
+        return mid;
+      } else if (cmp < 0) {
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return -1;
+  }
+
+  private int compareId(int at, byte[] key) {
+    for (int i = 0; i < 20; i++) {
+      int cmp = Integer.compare(idx.get(at + i) & 0xff, key[i] & 0xff);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return 0;
+  }
+
+  public boolean contains(String id) {
+    return findPosition(id) >= 0;
+  }
+
+  public long findOffset(String id) {
+    int position = findPosition(id);
+    return position < 0 ? -1 : getOffset(position);
+  }
+
+  // ========== ENTRIES ==========
+
+  // Type, inflated size and where the data starts, plus the base of a delta
+  static class EntryHeader {
+    int type;
+    long size;
+    long dataOffset;
+    long baseOffset = -1;
+    String baseId;
+  }
+
+  EntryHeader readEntryHeader(long offset) {
+    EntryHeader header = new EntryHeader();
+    int pos = (int) offset;
+    int c = pack.get(pos++) & 0xff;
+    header.type = (c >> 4) & 7;
+    long size = c & 0x0f;
+    int shift = 4;
+    while ((c & 0x80) != 0) {
+      c = pack.get(pos++) & 0xff;
+      size |= (long) (c & 0x7f) << shift;
+      shift += 7;
+    }
+    header.size = size;
+
+    if (header.type == OBJ_OFS_DELTA) {
+      c = pack.get(pos++) & 0xff;
+      long distance = c & 0x7f;
+      while ((c & 0x80) != 0) {
+        c = pack.get(pos++) & 0xff;
+        distance = ((distance + 1) << 7) | (c & 0x7f);
+      }
+      header.baseOffset = offset - distance;
+    } else if (header.type == OBJ_REF_DELTA) {
+      byte[] base = new byte[20];
+      pack.get(pos, base);
+      header.baseId = ObjectStore.toHex(base, 0);
+      pos += 20;
+    }
+    header.dataOffset = pos;
+    return header;
+  }
+
+  public ObjectStore.ObjectInfo read(long offset) throws IOException {
+    EntryHeader header = readEntryHeader(offset);
+    if (header.type != OBJ_OFS_DELTA && header.type != OBJ_REF_DELTA) {
+      return new ObjectStore.ObjectInfo(typeName(header.type), inflate(header.dataOffset, header.size));
+    }
+
+    ObjectStore.ObjectInfo base = readBase(header);
+    byte[] delta = inflate(header.dataOffset, header.size);
+    return new ObjectStore.ObjectInfo(base.type, Delta.apply(base.content, delta));
+  }
+
+  private ObjectStore.ObjectInfo readBase(EntryHeader header) throws IOException {
+    long baseOffset = header.baseOffset;
+    if (baseOffset < 0) {
+      baseOffset = findOffset(header.baseId);
+      if (baseOffset < 0) {
+        return ObjectStore.parseObject(header.baseId);
+      }
+    }
+    synchronized (baseCache) {
+      ObjectStore.ObjectInfo cached = baseCache.get(baseOffset);
+      if (cached != null) {
+        return cached;
+      }
+    }
+    ObjectStore.ObjectInfo base = read(baseOffset);
+    synchronized (baseCache) {
+      if (base.content.length <= BASE_CACHE_LIMIT / 4 && baseCache.put(baseOffset, base) == null) {
+        baseCacheBytes += base.content.length;
+        Iterator<ObjectStore.ObjectInfo> eldest = baseCache.values().iterator();
+        while (baseCacheBytes > BASE_CACHE_LIMIT && eldest.hasNext()) {
+          baseCacheBytes -= eldest.next().content.length;
+          eldest.remove();
+        }
+      }
+    }
+    return base;
+  }
+
+  // Type and size without inflating more than the start of a delta
+  public ObjectStore.ObjectHeader readHeader(long offset) throws IOException {
+    EntryHeader header = readEntryHeader(offset);
+    if (header.type != OBJ_OFS_DELTA && header.type != OBJ_REF_DELTA) {
+      return new ObjectStore.ObjectHeader(typeName(header.type), header.size);
+    }
+    long size = Delta.resultSize(inflate(header.dataOffset, Math.min(header.size, 32)));
+    String type;
+    if (header.baseOffset >= 0) {
+      type = readHeader(header.baseOffset).type;
+    } else {
+      long baseOffset = findOffset(header.baseId);
+      type = baseOffset >= 0 ? readHeader(baseOffset).type : ObjectStore.readHeader(header.baseId).type;
+    }
+    return new ObjectStore.ObjectHeader(type, size);
+  }
+
+  private byte[] inflate(long dataOffset, long size) throws IOException {
+    return inflate(pack, dataOffset, size, packFile.getName());
+  }
+
+  // Inflates the first `size` bytes of the zlib stream at dataOffset in a mapped pack
+  static byte[] inflate(ByteBuffer pack, long dataOffset, long size, String name) throws IOException {
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException("Object too large: " + size + " bytes");
+    }
+    byte[] out = new byte[(int) size];
+    Inflater inflater = new Inflater();
+    try {
+      ByteBuffer input = pack.duplicate();
+      input.position((int) dataOffset);
+      inflater.setInput(input);
+      int n = 0;
+      while (n < out.length) {
+        int read = inflater.inflate(out, n, out.length - n);
+        if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IOException("Truncated object in " + name + " at " + dataOffset);
+        }
+        n += read;
+      }
+      return out;
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt object in " + name + " at " + dataOffset + ": " + e.getMessage());
+    } finally {
+      inflater.end();
+    }
+  }
+
+  // Copies a whole (non-delta) entry exactly as stored, header and compressed data,
+  // so it can go into another pack without inflating it. False for deltas.
+  public boolean copyRawEntry(long offset, OutputStream out) throws IOException {
+    EntryHeader header = readEntryHeader(offset);
+    if (header.type == OBJ_OFS_DELTA || header.type == OBJ_REF_DELTA) {
+      return false;
+    }
+    long end = nextOffset(offset);
+    byte[] raw = new byte[(int) (end - offset)];
+    pack.get((int) offset, raw);
+    out.write(raw);
+    return true;
+  }
+
+  // Start of the entry after the one at offset, or the trailer
+  private synchronized long nextOffset(long offset) {
+    if (sortedOffsets == null) {
+      long[] offsets = new long[objectCount];
+      for (int i = 0; i < objectCount; i++) {
+        offsets[i] = getOffset(i);
+      }
+      Arrays.sort(offsets);
+      sortedOffsets = offsets;
+    }
+    int i = Arrays.binarySearch(sortedOffsets, offset);
+    return i + 1 < sortedOffsets.length ? sortedOffsets[i + 1] : pack.capacity() - 20;
+  }
+
+  // .idx positions in the order their entries appear in the pack
+  public synchronized int[] packOrder() {
+    if (packOrder == null) {
+      long[] keys = new long[objectCount];
+      for (int i = 0; i < objectCount; i++) {
+        keys[i] = getOffset(i) << 32 | i;
+      }
+      Arrays.sort(keys);
+      int[] order = new int[objectCount];
+      for (int i = 0; i < objectCount; i++) {
+        order[i] = (int) keys[i];
+      }
+      packOrder = order;
+    }
+    return packOrder;
+  }
+
+  // The pack's reachability bitmaps, or null when it has none; one written after the
+  // pack was opened is still picked up
+  public synchronized PackBitmap getBitmap() throws IOException {
+    if (bitmap == null) {
+      bitmap = PackBitmap.open(this);
+    }
+    return bitmap;
+  }
+
+  public static String typeName(int type) throws IOException {
+    return switch (type) {
+      case OBJ_COMMIT -> "commit";
+      case OBJ_TREE -> "tree";
+      case OBJ_BLOB -> "blob";
+      case OBJ_TAG -> "tag";
+      default -> throw new IOException("Bad object type in pack: " + type);
+    };
+  }
+
+  public static int typeCode(String type) throws IOException {
+    return switch (type) {
+      case "commit" -> OBJ_COMMIT;
+      case "tree" -> OBJ_TREE;
+      case "blob" -> OBJ_BLOB;
+      case "tag" -> OBJ_TAG;
+      default -> throw new IOException("Bad object type: " + type);
+    };
+  }
+}
@@ -0,0 +1,198 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// Streams a version 2 pack of the given objects: the "PACK" header with the object
+// count, one entry per object, then the SHA-1 of everything before it. Objects that
+// are already whole entries in a local pack are copied as stored, compressed bytes
+// and all; loose objects are inflated and compressed again as entries. Nothing is
+// staged, so the first bytes go out as soon as enumeration has finished.
+//
+// With a DeltaSearch (as repack uses) objects it finds a good base for are written
+// as OFS_DELTA entries instead, each after its base. The offset and CRC of every
+// entry are recorded, so the .idx can be written without reading the pack back.
+public class PackWriter {
+  private final List<ObjectWalk.Entry> objects;
+  private DeltaSearch deltaSearch;
+  private Map<String, DeltaSearch.Result> deltas = Map.of();
+  private final Map<String, IndexPack.Entry> written = new LinkedHashMap<>();
+  private String checksum;
+  private int reused;
+
+  public PackWriter(List<ObjectWalk.Entry> objects) {
+    this.objects = objects;
+  }
+
+  public int getObjectCount() {
+    return objects.size();
+  }
+
+  // Objects copied straight from an existing pack
+  public int getReusedCount() {
+    return reused;
+  }
+
+  // Objects written as deltas
+  public int getDeltaCount() {
+    return deltas.size();
+  }
+
+  public PackWriter setDeltaSearch(DeltaSearch deltaSearch) {
+    this.deltaSearch = deltaSearch;
+    return this;
+  }
+
+  // Offset, CRC and id of each entry, once write has returned
+  List<IndexPack.Entry> getEntries() {
+    return new ArrayList<>(written.values());
+  }
+
+  // The pack's trailing checksum in hex, once write has returned
+  public String getChecksum() {
+    return checksum;
+  }
+
+  public void write(OutputStream output) throws IOException {
+    // A partial clone asks its promisor for everything it lacks at once
+    if (Promisor.isPartial()) {
+      List<String> ids = new ArrayList<>();
+      for (ObjectWalk.Entry entry : objects) {
+        ids.add(entry.id);
+      }
+      Promisor.prefetch(ids);
+    }
+    if (deltaSearch != null) {
+      deltas = deltaSearch.search(objects);
+    }
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+    DigestOutputStream digest = new DigestOutputStream(output, md);
+    EntryOutputStream out = new EntryOutputStream(digest);
+    out.write(new byte[] { 'P', 'A', 'C', 'K', 0, 0, 0, 2 });
+    writeInt(out, objects.size());
+
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    try {
+      for (ObjectWalk.Entry entry : objects) {
+        writeObject(entry.id, out, deflater);
+      }
+    } finally {
+      deflater.end();
+    }
+    digest.on(false);
+    byte[] sum = md.digest();
+    checksum = ObjectStore.toHex(sum, 0);
+    output.write(sum);
+    output.flush();
+  }
+
+  // Writes the object unless it is already in the pack, its delta base first
+  private void writeObject(String id, EntryOutputStream out, Deflater deflater) throws IOException {
+    if (written.containsKey(id)) {
+      return;
+    }
+    DeltaSearch.Result delta = deltas.get(id);
+    if (delta != null) {
+      writeObject(delta.baseId, out, deflater);
+    }
+    IndexPack.Entry entry = new IndexPack.Entry();
+    entry.id = id;
+    entry.offset = out.count;
+    out.crc.reset();
+    if (delta != null) {
+      writeEntryHeader(out, PackFile.OBJ_OFS_DELTA, delta.delta.length);
+      writeBaseOffset(out, entry.offset - written.get(delta.baseId).offset);
+      deflate(out, deflater, delta.delta);
+    } else if (copyFromPack(id, out)) {
+      reused++;
+    } else {
+      ObjectStore.ObjectInfo object = ObjectStore.loadObject(id);
+      writeEntryHeader(out, PackFile.typeCode(object.type), object.content.length);
+      deflate(out, deflater, object.content);
+    }
+    entry.crc = (int) out.crc.getValue();
+    written.put(id, entry);
+  }
+
+  private static void deflate(OutputStream out, Deflater deflater, byte[] data) throws IOException {
+    byte[] buffer = new byte[8192];
+    deflater.reset();
+    deflater.setInput(data);
+    deflater.finish();
+    while (!deflater.finished()) {
+      int n = deflater.deflate(buffer);
+      out.write(buffer, 0, n);
+    }
+  }
+
+  private static boolean copyFromPack(String id, OutputStream out) throws IOException {
+    ObjectStore.PackedObject packed = ObjectStore.findPacked(id);
+    return packed != null && packed.pack.copyRawEntry(packed.offset, out);
+  }
+
+  // Type in bits 4-6 of the first byte, size in its low four bits and then seven
+  // bits per following byte, least significant first
+  static void writeEntryHeader(OutputStream out, int type, long size) throws IOException {
+    int c = (type << 4) | (int) (size & 0x0f);
+    size >>>= 4;
+    while (size != 0) {
+      out.write(c | 0x80);
+      c = (int) (size & 0x7f);
+      size >>>= 7;
+    }
+    out.write(c);
+  }
+
+  // How far back the base starts: big-endian seven bits per byte, each continuation
+  // adding one to the bytes before it so that no value has two encodings
+  private static void writeBaseOffset(OutputStream out, long distance) throws IOException {
+    byte[] buf = new byte[10];
+    int pos = buf.length - 1;
+    buf[pos] = (byte) (distance & 0x7f);
+    while ((distance >>>= 7) != 0) {
+      buf[--pos] = (byte) (0x80 | (--distance & 0x7f));
+    }
+    out.write(buf, pos, buf.length - pos);
+  }
+
+  private static void writeInt(OutputStream out, int value) throws IOException {
+    out.write(value >>> 24);
+    out.write(value >>> 16);
+    out.write(value >>> 8);
+    out.write(value);
+  }
+
+  // Counts the bytes written and keeps a CRC of the current entry's
+  private static class EntryOutputStream extends FilterOutputStream {
+    final CRC32 crc = new CRC32();
+    long count;
+
+    EntryOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      crc.update(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      crc.update(b, off, len);
+      count += len;
+    }
+  }
+}
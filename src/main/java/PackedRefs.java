@@ -0,0 +1,258 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+// Reader and writer for .git/packed-refs in git's format:
+//
+//   # pack-refs with: peeled fully-peeled sorted
+//   <id> refs/heads/main
+//   <id> refs/tags/v1.0
+//   ^<peeled id>            (only after refs to annotated tag objects)
+//
+// The file is parsed once into sorted arrays and kept until its mtime, size or
+// inode changes; lookups are binary searches. Loose refs always take precedence
+// and are layered on top by GitRepository.
+public class PackedRefs {
+  private static final String HEADER = "# pack-refs with: peeled fully-peeled sorted \n";
+
+  // Last parsed file of one repository with the attributes it was read with
+  private static class Cache {
+    PackedRefs refs;
+    Object key;
+    long modified;
+    long size;
+  }
+
+  private final String[] names;
+  private final String[] ids;
+  // Peeled target for annotated tags, null otherwise
+  private final String[] peeled;
+
+  private PackedRefs(String[] names, String[] ids, String[] peeled) {
+    this.names = names;
+    this.ids = ids;
+    this.peeled = peeled;
+  }
+
+  // Current snapshot of the file; an empty one when there is no packed-refs
+  public static PackedRefs load() throws IOException {
+    File file = Repository.current().gitFile("packed-refs");
+    Cache cache = Repository.current().state(Cache.class, Cache::new);
+    synchronized (cache) {
+      BasicFileAttributes attributes;
+      try {
+        attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+      } catch (NoSuchFileException e) {
+        cache.refs = null;
+        return new PackedRefs(new String[0], new String[0], new String[0]);
+      }
+
+      long modified = attributes.lastModifiedTime().toMillis();
+      if (cache.refs == null || modified != cache.modified || attributes.size() != cache.size
+          || !Objects.equals(attributes.fileKey(), cache.key)) {
+        cache.refs = parse(Files.readAllBytes(file.toPath()));
+        cache.modified = modified;
+        cache.size = attributes.size();
+        cache.key = attributes.fileKey();
+      }
+      return cache.refs;
+    }
+  }
+
+  private static PackedRefs parse(byte[] data) throws IOException {
+    List<String> names = new ArrayList<>();
+    List<String> ids = new ArrayList<>();
+    List<String> peeled = new ArrayList<>();
+    boolean sorted = false;
+
+    int pos = 0;
+    while (pos < data.length) {
+      int end = pos;
+      while (end < data.length && data[end] != '\n') {
+        end++;
+      }
+      String line = new String(data, pos, end - pos, StandardCharsets.UTF_8);
+      pos = end + 1;
+
+      if (line.startsWith("#")) {
+        sorted = line.startsWith("# pack-refs with:") && (" " + line.substring(17) + " ").contains(" sorted ");
+      } else if (line.startsWith("^")) {
+        if (peeled.isEmpty()) {
+          throw new IOException("Peeled line without a ref in packed-refs");
+        }
+        peeled.set(peeled.size() - 1, line.substring(1));
+      } else if (line.length() > 41 && line.charAt(40) == ' ') {
+        ids.add(line.substring(0, 40));
+        names.add(line.substring(41));
+        peeled.add(null);
+      } else if (!line.isEmpty()) {
+        throw new IOException("Unexpected line in packed-refs: " + line);
+      }
+    }
+
+    PackedRefs refs = new PackedRefs(names.toArray(new String[0]), ids.toArray(new String[0]),
+        peeled.toArray(new String[0]));
+    return sorted ? refs : refs.sorted();
+  }
+
+  private PackedRefs sorted() {
+    Integer[] order = new Integer[names.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> names[a].compareTo(names[b]));
+    String[] sortedNames = new String[names.length];
+    String[] sortedIds = new String[names.length];
+    String[] sortedPeeled = new String[names.length];
+    for (int i = 0; i < order.length; i++) {
+      sortedNames[i] = names[order[i]];
+      sortedIds[i] = ids[order[i]];
+      sortedPeeled[i] = peeled[order[i]];
+    }
+    return new PackedRefs(sortedNames, sortedIds, sortedPeeled);
+  }
+
+  public String get(String name) {
+    int index = Arrays.binarySearch(names, name);
+    return index >= 0 ? ids[index] : null;
+  }
+
+  public String getPeeled(String name) {
+    int index = Arrays.binarySearch(names, name);
+    return index >= 0 ? peeled[index] : null;
+  }
+
+  // All refs starting with prefix, in name order
+  public Map<String, String> getRefs(String prefix) {
+    Map<String, String> refs = new TreeMap<>();
+    int index = Arrays.binarySearch(names, prefix);
+    for (int i = index >= 0 ? index : -index - 1; i < names.length && names[i].startsWith(prefix); i++) {
+      refs.put(names[i], ids[i]);
+    }
+    return refs;
+  }
+
+  public int size() {
+    return names.length;
+  }
+
+  // ========== LOCKING ==========
+
+  // Held packed-refs.lock. getRefs() is the file as read once the lock was taken, so
+  // a rewrite based on it cannot overwrite what another writer committed meanwhile.
+  // The lock stays held after commit() until close(), so a writer can finish what
+  // goes with the new file (pruning or deleting loose refs) before anyone else
+  // reads the loose refs to pack them.
+  public static class Lock implements Closeable {
+    private final File lock;
+    private PackedRefs current;
+
+    private Lock(File lock, PackedRefs current) {
+      this.lock = lock;
+      this.current = current;
+    }
+
+    public Map<String, String> getRefs() {
+      return current.getRefs("");
+    }
+
+    // Replaces the file with the given refs. They are written into packed-refs.new,
+    // which is then renamed into place, so readers never see a partial file.
+    public void commit(Map<String, String> refs) throws IOException {
+      File file = Repository.current().gitFile("packed-refs");
+      File tmp = Repository.current().gitFile("packed-refs.new");
+      try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp.toPath()))) {
+        out.write(HEADER.getBytes(StandardCharsets.UTF_8));
+        for (Map.Entry<String, String> ref : new TreeMap<>(refs).entrySet()) {
+          out.write((ref.getValue() + " " + ref.getKey() + "\n").getBytes(StandardCharsets.UTF_8));
+          // Only tags can point at tag objects; reuse what the old file knew when unchanged
+          String peeledId = null;
+          if (ref.getValue().equals(current.get(ref.getKey()))) {
+            peeledId = current.getPeeled(ref.getKey());
+          } else if (ref.getKey().startsWith("refs/tags/")) {
+            peeledId = peel(ref.getValue());
+          }
+          if (peeledId != null) {
+            out.write(("^" + peeledId + "\n").getBytes(StandardCharsets.UTF_8));
+          }
+        }
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      current = parse(Files.readAllBytes(file.toPath()));
+      Cache cache = Repository.current().state(Cache.class, Cache::new);
+      synchronized (cache) {
+        cache.refs = null;
+      }
+    }
+
+    @Override
+    public void close() {
+      lock.delete();
+    }
+  }
+
+  // Takes packed-refs.lock, retrying for a while as git does (core.packedRefsTimeout),
+  // since other writers only hold it briefly
+  public static Lock lock() throws IOException {
+    File file = Repository.current().gitFile("packed-refs");
+    File lock = Repository.current().gitFile("packed-refs.lock");
+    long timeout = Config.snapshot().getInt("core", null, "packedRefsTimeout", 1000);
+    long deadline = System.currentTimeMillis() + timeout;
+    for (long wait = 1; ; wait = Math.min(wait * 2, 100)) {
+      try {
+        Files.newOutputStream(lock.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE).close();
+        break;
+      } catch (FileAlreadyExistsException e) {
+        if (System.currentTimeMillis() + wait > deadline) {
+          throw new IOException("Unable to create '" + lock.getPath() + "': File exists. Another git process seems to be running.");
+        }
+        try {
+          Thread.sleep(wait);
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while waiting for " + lock.getPath());
+        }
+      }
+    }
+    try {
+      // Read from disk, not the cache: the file may have been replaced within the
+      // cache's timestamp resolution
+      PackedRefs current = file.exists()
+          ? parse(Files.readAllBytes(file.toPath()))
+          : new PackedRefs(new String[0], new String[0], new String[0]);
+      return new Lock(lock, current);
+    } catch (IOException | RuntimeException e) {
+      lock.delete();
+      throw e;
+    }
+  }
+
+  // Final non-tag object an annotated tag points to, or null for anything else
+  static String peel(String id) throws IOException {
+    String peeledId = null;
+    String current = id;
+    while (true) {
+      ObjectStore.ObjectInfo obj;
+      try {
+        obj = ObjectStore.parseObject(current);
+      } catch (IOException e) {
+        return peeledId;
+      }
+      if (!obj.type.equals("tag")) {
+        return peeledId;
+      }
+      String content = new String(obj.content, StandardCharsets.UTF_8);
+      if (!content.startsWith("object ")) {
+        return peeledId;
+      }
+      current = content.substring(7, 47);
+      peeledId = current;
+    }
+  }
+}
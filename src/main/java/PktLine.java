@@ -0,0 +1,227 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+// Git's pkt-line framing: four hex digits giving the length of the line including
+// themselves, then the payload. "0000" is a flush packet that ends a section.
+// After negotiation, side-band-64k splits the pack stream into packets whose first
+// payload byte is the band: 1 for pack data, 2 for progress text, 3 for a fatal error.
+public class PktLine {
+  static final int MAX_PACKET = 65520;
+  static final int MAX_SIDEBAND_DATA = MAX_PACKET - 5;
+
+  public static void write(OutputStream out, String line) throws IOException {
+    writePacket(out, line.getBytes(StandardCharsets.UTF_8), 0, -1);
+  }
+
+  public static void writeFlush(OutputStream out) throws IOException {
+    out.write(new byte[] { '0', '0', '0', '0' });
+  }
+
+  // band -1 writes the data as is; otherwise the band byte goes first
+  static void writePacket(OutputStream out, byte[] data, int offset, int band, int length) throws IOException {
+    int total = 4 + length + (band >= 0 ? 1 : 0);
+    if (total > MAX_PACKET) {
+      throw new IOException("Packet too long: " + total);
+    }
+    out.write(String.format("%04x", total).getBytes(StandardCharsets.US_ASCII));
+    if (band >= 0) {
+      out.write(band);
+    }
+    out.write(data, offset, length);
+  }
+
+  private static void writePacket(OutputStream out, byte[] data, int offset, int band) throws IOException {
+    writePacket(out, data, offset, band, data.length - offset);
+  }
+
+  // The payload of the next packet, or null for a flush packet
+  public static byte[] readPacket(InputStream in) throws IOException {
+    byte[] header = readFully(in, 4);
+    int length;
+    try {
+      length = Integer.parseInt(new String(header, StandardCharsets.US_ASCII), 16);
+    } catch (NumberFormatException e) {
+      throw new IOException("Protocol error: bad line length " + new String(header, StandardCharsets.US_ASCII));
+    }
+    if (length == 0) {
+      return null;
+    }
+    if (length < 4 || length > MAX_PACKET) {
+      throw new IOException("Protocol error: bad line length " + length);
+    }
+    return readFully(in, length - 4);
+  }
+
+  // A text packet without its trailing newline, or null for a flush packet
+  public static String read(InputStream in) throws IOException {
+    byte[] payload = readPacket(in);
+    if (payload == null) {
+      return null;
+    }
+    int length = payload.length;
+    if (length > 0 && payload[length - 1] == '\n') {
+      length--;
+    }
+    return new String(payload, 0, length, StandardCharsets.UTF_8);
+  }
+
+  private static byte[] readFully(InputStream in, int length) throws IOException {
+    byte[] data = new byte[length];
+    int n = 0;
+    while (n < length) {
+      int read = in.read(data, n, length - n);
+      if (read < 0) {
+        throw new EOFException("The remote end hung up unexpectedly");
+      }
+      n += read;
+    }
+    return data;
+  }
+
+  // Wraps pack data written to it into band 1 packets
+  static class SideBandOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final byte[] buffer = new byte[MAX_SIDEBAND_DATA];
+    private int count;
+
+    SideBandOutputStream(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (count == buffer.length) {
+        flushBuffer();
+      }
+      buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+      while (length > 0) {
+        if (count == buffer.length) {
+          flushBuffer();
+        }
+        int n = Math.min(length, buffer.length - count);
+        System.arraycopy(data, offset, buffer, count, n);
+        count += n;
+        offset += n;
+        length -= n;
+      }
+    }
+
+    private void flushBuffer() throws IOException {
+      if (count > 0) {
+        writePacket(out, buffer, 0, 1, count);
+        count = 0;
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      flushBuffer();
+      out.flush();
+    }
+
+    static void progress(OutputStream out, String message) throws IOException {
+      writePacket(out, message.getBytes(StandardCharsets.UTF_8), 0, 2);
+    }
+
+    static void error(OutputStream out, String message) throws IOException {
+      writePacket(out, message.getBytes(StandardCharsets.UTF_8), 0, 3);
+    }
+  }
+
+  // Reads band 1 as a plain stream until the flush packet; progress goes to the
+  // given stream prefixed with "remote: ", and an error band becomes an IOException
+  static class SideBandInputStream extends InputStream {
+    private final InputStream in;
+    private final OutputStream progress;
+    private byte[] packet = new byte[0];
+    private int pos = 1;
+    private boolean eof;
+
+    SideBandInputStream(InputStream in, OutputStream progress) {
+      this.in = in;
+      this.progress = progress;
+    }
+
+    private boolean fill() throws IOException {
+      while (!eof && pos >= packet.length) {
+        byte[] next = readPacket(in);
+        if (next == null) {
+          eof = true;
+          break;
+        }
+        if (next.length == 0) {
+          continue;
+        }
+        switch (next[0]) {
+          case 1 -> {
+            packet = next;
+            pos = 1;
+          }
+          case 2 -> {
+            if (progress != null) {
+              writeProgress(next);
+            }
+          }
+          case 3 -> throw new IOException("remote error: " + new String(next, 1, next.length - 1, StandardCharsets.UTF_8).trim());
+          default -> throw new IOException("Protocol error: bad band #" + next[0]);
+        }
+      }
+      return pos < packet.length;
+    }
+
+    // Each line, or each \r-terminated progress update, gets its own prefix
+    private void writeProgress(byte[] message) throws IOException {
+      int start = 1;
+      for (int i = 1; i < message.length; i++) {
+        if (message[i] == '\n' || message[i] == '\r' || i == message.length - 1) {
+          if (i > start || message[i] > ' ') {
+            progress.write("remote: ".getBytes(StandardCharsets.UTF_8));
+          }
+          progress.write(message, start, i + 1 - start);
+          start = i + 1;
+        }
+      }
+      progress.flush();
+    }
+
+    @Override
+    public int read() throws IOException {
+      return fill() ? packet[pos++] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] data, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+      if (!fill()) {
+        return -1;
+      }
+      int n = Math.min(length, packet.length - pos);
+      System.arraycopy(packet, pos, data, offset, n);
+      pos += n;
+      return n;
+    }
+  }
+
+  static String capabilities(String line) {
+    int nul = line.indexOf('\0');
+    return nul >= 0 ? line.substring(nul + 1) : "";
+  }
+
+  static boolean hasCapability(String capabilities, String name) {
+    for (String capability : capabilities.split(" ")) {
+      if (capability.equals(name) || capability.startsWith(name + "=")) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
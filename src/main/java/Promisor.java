@@ -0,0 +1,58 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.*;
+
+// Lazy fetching for a partial clone. `clone --filter` records the remote it cloned
+// from as the promisor (extensions.partialClone) and the filter it used
+// (remote.<name>.partialclonefilter, which later fetches apply too). An object the
+// filter left out is fetched from that remote the first time something reads it.
+// Callers that are about to read many objects, such as a checkout, call prefetch
+// first, so whatever is missing arrives in one request instead of one per file.
+public class Promisor {
+  // Set while this thread fetches, so an object missing during the fetch itself is
+  // reported instead of starting another one
+  private static final ThreadLocal<Boolean> FETCHING = ThreadLocal.withInitial(() -> false);
+
+  // The promisor remote's name, or null when this is not a partial clone
+  public static String remote() throws IOException {
+    return Config.snapshot().getString("extensions", null, "partialClone");
+  }
+
+  public static boolean isPartial() throws IOException {
+    return remote() != null;
+  }
+
+  // Fetches those of ids this repository lacks in one request; returns how many were missing
+  public static int prefetch(Collection<String> ids) throws IOException {
+    String remote = remote();
+    if (remote == null || FETCHING.get()) {
+      return 0;
+    }
+    Set<String> missing = new LinkedHashSet<>();
+    for (String id : ids) {
+      if (!ObjectStore.hasObject(id)) {
+        missing.add(id);
+      }
+    }
+    if (missing.isEmpty()) {
+      return 0;
+    }
+    FETCHING.set(true);
+    try {
+      new Fetch(remote, new PrintStream(OutputStream.nullOutputStream())).fetchObjects(missing);
+    } finally {
+      FETCHING.set(false);
+    }
+    ObjectStore.rescanPacks();
+    return missing.size();
+  }
+
+  // Called by ObjectStore for an object it cannot find; true once it is present
+  static boolean fetchMissing(String id) throws IOException {
+    if (!id.matches("[0-9a-f]{40}")) {
+      return false;
+    }
+    return prefetch(List.of(id)) > 0 && ObjectStore.hasObject(id);
+  }
+}
@@ -0,0 +1,301 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.*;
+
+// Sending side of push. The remote's receive-pack advertises its refs; each refspec
+// becomes an "<old> <new> <ref>" command against the advertised value, and a pack of
+// the objects reachable from the new values but not from any advertised ref this
+// repository has is streamed after them. Updates that are not fast-forwards are
+// refused here unless forced, since the remote would lose commits it alone has.
+// An atomic push sends nothing unless every ref can be updated, and asks the remote
+// to update them all in one transaction.
+public class Push {
+  private static class Command {
+    final String src;
+    final String ref;
+    final String oldId;
+    final String newId;
+    final boolean force;
+    String status;
+
+    Command(String src, String ref, String oldId, String newId, boolean force) {
+      this.src = src;
+      this.ref = ref;
+      this.oldId = oldId;
+      this.newId = newId;
+      this.force = force;
+    }
+
+    boolean isDelete() {
+      return newId.equals(RefTransaction.ZERO_ID);
+    }
+  }
+
+  private final String remote;
+  private final String url;
+  private final List<String> refSpecs;
+  private final boolean force;
+  private final boolean atomic;
+  private final PrintStream log;
+
+  // remote is a configured remote's name, or a URL or path
+  public Push(String remote, List<String> refSpecs, boolean force, boolean atomic, PrintStream log)
+      throws IOException {
+    String configured = Config.snapshot().getString("remote", remote, "url");
+    if (configured == null && !Transport.isNetwork(remote) && !new File(remote).isDirectory()) {
+      throw new IOException("'" + remote + "' does not appear to be a git repository");
+    }
+    this.remote = configured != null ? remote : null;
+    this.url = configured != null ? configured : remote;
+    this.refSpecs = refSpecs;
+    this.force = force;
+    this.atomic = atomic;
+    this.log = log;
+  }
+
+  // Returns false when any ref was rejected, here or by the remote
+  public boolean run() throws IOException {
+    List<Command> commands = new ArrayList<>();
+    List<Command> rejected = new ArrayList<>();
+    boolean upToDate = true;
+    try (Transport.Connection connection = Transport.open(url, "git-receive-pack")) {
+      Map<String, String> advertised = new HashMap<>();
+      String capabilities = readAdvertisement(connection.in, advertised);
+
+      for (String spec : refSpecs) {
+        Command command = parse(spec, advertised);
+        if (command.newId.equals(command.oldId)) {
+          continue;
+        }
+        upToDate = false;
+        String reason = checkUpdate(command);
+        if (reason != null) {
+          command.status = reason;
+          rejected.add(command);
+        } else {
+          commands.add(command);
+        }
+      }
+
+      if (atomic && !PktLine.hasCapability(capabilities, "atomic")) {
+        throw new IOException("the receiving end does not support --atomic push");
+      }
+      if (atomic && !rejected.isEmpty()) {
+        for (Command command : commands) {
+          command.status = "atomic push failed";
+        }
+        rejected.addAll(0, commands);
+        commands.clear();
+      }
+
+      if (!commands.isEmpty()) {
+        sendCommands(connection, commands, capabilities, advertised);
+        readStatus(connection.in, commands, capabilities);
+      } else {
+        PktLine.writeFlush(connection.out);
+        connection.out.flush();
+      }
+    }
+
+    if (upToDate) {
+      log.println("Everything up-to-date");
+      return true;
+    }
+    boolean ok = rejected.isEmpty();
+    log.println("To " + url);
+    for (Command command : commands) {
+      ok &= command.status == null;
+      log.println(report(command));
+      if (command.status == null) {
+        updateTrackingRef(command);
+      }
+    }
+    for (Command command : rejected) {
+      log.println(String.format(" ! %-17s %s -> %s (%s)", "[rejected]",
+          shortName(command.src), shortName(command.ref), command.status));
+    }
+    return ok;
+  }
+
+  private static String readAdvertisement(InputStream in, Map<String, String> refs) throws IOException {
+    String line = Transport.checkError(PktLine.read(in));
+    String capabilities = line != null ? PktLine.capabilities(line) : "";
+    for (; line != null; line = PktLine.read(in)) {
+      int nul = line.indexOf('\0');
+      String[] parts = (nul >= 0 ? line.substring(0, nul) : line).split(" ", 2);
+      if (parts.length == 2 && !parts[1].endsWith("^{}")) {
+        refs.put(parts[1], parts[0]);
+      }
+    }
+    return capabilities;
+  }
+
+  // [+]<src>[:<dst>]; an empty src deletes dst, and a short dst takes src's namespace
+  private Command parse(String spec, Map<String, String> advertised) throws IOException {
+    boolean forced = force || spec.startsWith("+");
+    String body = spec.startsWith("+") ? spec.substring(1) : spec;
+    int colon = body.indexOf(':');
+    String src = colon >= 0 ? body.substring(0, colon) : body;
+    String dst = colon >= 0 ? body.substring(colon + 1) : body;
+
+    String newId = RefTransaction.ZERO_ID;
+    String srcRef = "";
+    if (!src.isEmpty()) {
+      srcRef = fullName(src);
+      if (srcRef == null) {
+        throw new IOException("src refspec " + src + " does not match any");
+      }
+      newId = GitRepository.readRef(srcRef);
+    }
+    String ref = dst.startsWith("refs/") ? dst
+        : srcRef.startsWith("refs/tags/") ? "refs/tags/" + dst : "refs/heads/" + dst;
+    RefTransaction.checkRefName(ref);
+    String oldId = advertised.getOrDefault(ref, RefTransaction.ZERO_ID);
+    if (src.isEmpty() && oldId.equals(RefTransaction.ZERO_ID)) {
+      throw new IOException("unable to delete '" + dst + "': remote ref does not exist");
+    }
+    return new Command(srcRef, ref, oldId, newId, forced);
+  }
+
+  private static String fullName(String name) throws IOException {
+    if (name.startsWith("refs/")) {
+      return GitRepository.readRef(name) != null ? name : null;
+    }
+    for (String prefix : List.of("refs/heads/", "refs/tags/")) {
+      if (GitRepository.readRef(prefix + name) != null) {
+        return prefix + name;
+      }
+    }
+    return null;
+  }
+
+  // The reason a command is refused before anything is sent, or null
+  private static String checkUpdate(Command command) throws IOException {
+    if (command.force || command.isDelete() || command.oldId.equals(RefTransaction.ZERO_ID)) {
+      return null;
+    }
+    if (!ObjectStore.hasObject(command.oldId)) {
+      return "fetch first";
+    }
+    if (command.ref.startsWith("refs/tags/")) {
+      return "already exists";
+    }
+    boolean commits = ObjectStore.readHeader(command.oldId).type.equals("commit")
+        && ObjectStore.readHeader(command.newId).type.equals("commit");
+    if (!commits || !new MergeBase(new RevCommit.Pool()).isAncestor(command.oldId, command.newId)) {
+      return "non-fast-forward";
+    }
+    return null;
+  }
+
+  private void sendCommands(Transport.Connection connection, List<Command> commands, String capabilities,
+      Map<String, String> advertised) throws IOException {
+    String requested = (PktLine.hasCapability(capabilities, "report-status") ? "report-status " : "")
+        + (atomic ? "atomic " : "") + "agent=" + UploadPack.AGENT;
+    boolean first = true;
+    for (Command command : commands) {
+      String line = command.oldId + " " + command.newId + " " + command.ref;
+      PktLine.write(connection.out, (first ? line + "\0" + requested : line) + "\n");
+      first = false;
+    }
+    PktLine.writeFlush(connection.out);
+
+    if (commands.stream().anyMatch(command -> !command.isDelete())) {
+      ObjectWalk walk = new ObjectWalk(new RevCommit.Pool());
+      for (Command command : commands) {
+        if (!command.isDelete()) {
+          walk.markStart(command.newId);
+        }
+      }
+      for (String id : new HashSet<>(advertised.values())) {
+        if (ObjectStore.hasObject(id)) {
+          walk.markUninteresting(id);
+        }
+      }
+      new PackWriter(walk.objects()).write(connection.out);
+    }
+    connection.out.flush();
+  }
+
+  // "unpack ok", then "ok <ref>" or "ng <ref> <reason>" per command
+  private static void readStatus(InputStream in, List<Command> commands, String capabilities) throws IOException {
+    if (!PktLine.hasCapability(capabilities, "report-status")) {
+      return;
+    }
+    String unpack = PktLine.read(in);
+    if (unpack == null || !unpack.startsWith("unpack ")) {
+      throw new IOException("protocol error: expected unpack status, got '" + unpack + "'");
+    }
+    if (!unpack.equals("unpack ok")) {
+      throw new IOException("remote unpack failed: " + unpack.substring(7));
+    }
+    Map<String, Command> byRef = new HashMap<>();
+    for (Command command : commands) {
+      command.status = "no report";
+      byRef.put(command.ref, command);
+    }
+    for (String line = PktLine.read(in); line != null; line = PktLine.read(in)) {
+      String[] parts = line.split(" ", 3);
+      Command command = parts.length >= 2 ? byRef.get(parts[1]) : null;
+      if (command != null) {
+        command.status = parts[0].equals("ok") ? null : parts.length > 2 ? parts[2] : "failed";
+      }
+    }
+  }
+
+  private static String report(Command command) {
+    String src = shortName(command.src);
+    String dst = shortName(command.ref);
+    if (command.status != null) {
+      return String.format(" ! %-17s %s -> %s (%s)", "[remote rejected]", src, dst, command.status);
+    }
+    if (command.isDelete()) {
+      return String.format(" - %-17s %s", "[deleted]", dst);
+    }
+    if (command.oldId.equals(RefTransaction.ZERO_ID)) {
+      String kind = command.ref.startsWith("refs/tags/") ? "[new tag]" : "[new branch]";
+      return String.format(" * %-17s %s -> %s", kind, src, dst);
+    }
+    String oldShort = command.oldId.substring(0, 7);
+    String newShort = command.newId.substring(0, 7);
+    try {
+      if (ObjectStore.hasObject(command.oldId)
+          && new MergeBase(new RevCommit.Pool()).isAncestor(command.oldId, command.newId)) {
+        return String.format("   %-17s %s -> %s", oldShort + ".." + newShort, src, dst);
+      }
+    } catch (IOException e) {
+      // Reported as a forced update below
+    }
+    return String.format(" + %-17s %s -> %s (forced update)", oldShort + "..." + newShort, src, dst);
+  }
+
+  // Moves refs/remotes/<remote>/<branch> as a fetch would have
+  private void updateTrackingRef(Command command) throws IOException {
+    if (remote == null) {
+      return;
+    }
+    List<String> configured = Config.snapshot().getStringList("remote", remote, "fetch");
+    for (String spec : configured.isEmpty() ? List.of(Fetch.defaultRefSpec(remote)) : configured) {
+      String local = new Fetch.RefSpec(spec).map(command.ref);
+      if (local != null) {
+        if (command.isDelete()) {
+          GitRepository.deleteRef(local);
+        } else {
+          new RefTransaction().update(local, command.newId, null).commit();
+        }
+        return;
+      }
+    }
+  }
+
+  private static String shortName(String name) {
+    for (String prefix : List.of("refs/heads/", "refs/tags/")) {
+      if (name.startsWith(prefix)) {
+        return name.substring(prefix.length());
+      }
+    }
+    return name;
+  }
+}
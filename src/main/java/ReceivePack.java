@@ -0,0 +1,219 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.*;
+
+// Receiving side of a push, in git's protocol v0. After the advertisement the pusher
+// sends one "<old> <new> <ref>" command per ref and, unless every command is a
+// delete, a pack that goes straight into IndexPack as it arrives. Each ref is then
+// moved only if it still holds <old>, and the result goes back as report-status lines:
+// "unpack ok", then "ok <ref>" or "ng <ref> <reason>" for each command.
+//
+// Before any ref moves, everything reachable from the new values must be present.
+// That walk stops at commits reachable from the refs advertised to the pusher, which
+// were complete already, so pushing a few commits onto a long history checks only
+// those commits and what they introduce. With the atomic capability all refs are
+// updated in one RefTransaction or none are.
+//
+// Like git's receive.denyCurrentBranch, the branch checked out in this worktree is
+// never updated, since its index and files would silently go stale.
+public class ReceivePack {
+  private static final String CAPABILITIES = "report-status delete-refs atomic no-thin";
+
+  static class Command {
+    final String oldId;
+    final String newId;
+    final String ref;
+    String error;
+
+    Command(String oldId, String newId, String ref) {
+      this.oldId = oldId;
+      this.newId = newId;
+      this.ref = ref;
+    }
+
+    boolean isDelete() {
+      return newId.equals(RefTransaction.ZERO_ID);
+    }
+  }
+
+  private final Repository repository;
+  private final Map<String, String> advertised = new TreeMap<>();
+
+  public ReceivePack(Repository repository) {
+    this.repository = repository;
+  }
+
+  public void serve(InputStream in, OutputStream out) throws IOException {
+    repository.call(() -> {
+      advertise(out);
+      List<Command> commands = new ArrayList<>();
+      String capabilities = readCommands(in, commands);
+      if (commands.isEmpty()) {
+        return null;
+      }
+
+      String unpackError = null;
+      if (commands.stream().anyMatch(command -> !command.isDelete())) {
+        try {
+          new IndexPack(in).run();
+        } catch (IOException e) {
+          unpackError = e.getMessage();
+        }
+      }
+      for (Command command : commands) {
+        if (unpackError != null) {
+          command.error = "unpacker error";
+        } else {
+          validate(command);
+        }
+      }
+      if (unpackError == null) {
+        checkConnectivity(commands);
+      }
+      if (PktLine.hasCapability(capabilities, "atomic")) {
+        updateAtomically(commands);
+      } else {
+        for (Command command : commands) {
+          if (command.error == null) {
+            commit(List.of(command));
+          }
+        }
+      }
+
+      if (PktLine.hasCapability(capabilities, "report-status")) {
+        PktLine.write(out, "unpack " + (unpackError != null ? unpackError : "ok") + "\n");
+        for (Command command : commands) {
+          PktLine.write(out, (command.error == null ? "ok " + command.ref : "ng " + command.ref + " " + command.error) + "\n");
+        }
+        PktLine.writeFlush(out);
+        out.flush();
+      }
+      return null;
+    });
+  }
+
+  private void advertise(OutputStream out) throws IOException {
+    advertised.putAll(GitRepository.getAllRefs());
+    advertised.values().removeIf(value -> value.startsWith("ref: "));
+    String capabilities = CAPABILITIES + " agent=" + UploadPack.AGENT;
+    boolean first = true;
+    for (Map.Entry<String, String> ref : advertised.entrySet()) {
+      String line = ref.getValue() + " " + ref.getKey();
+      PktLine.write(out, (first ? line + "\0" + capabilities : line) + "\n");
+      first = false;
+    }
+    if (first) {
+      PktLine.write(out, RefTransaction.ZERO_ID + " capabilities^{}\0" + capabilities + "\n");
+    }
+    PktLine.writeFlush(out);
+    out.flush();
+  }
+
+  // Returns the capabilities sent with the first command
+  private String readCommands(InputStream in, List<Command> commands) throws IOException {
+    String capabilities = "";
+    String line;
+    while ((line = UploadPack.readLineOrEnd(in)) != null) {
+      if (commands.isEmpty()) {
+        capabilities = PktLine.capabilities(line);
+        int nul = line.indexOf('\0');
+        if (nul >= 0) {
+          line = line.substring(0, nul);
+        }
+      }
+      String[] parts = line.split(" ");
+      if (parts.length != 3 || parts[0].length() != 40 || parts[1].length() != 40) {
+        throw new IOException("protocol error: expected old/new/ref, got '" + line + "'");
+      }
+      commands.add(new Command(parts[0], parts[1], parts[2]));
+    }
+    return capabilities;
+  }
+
+  private void validate(Command command) throws IOException {
+    if (!command.ref.startsWith("refs/")) {
+      command.error = "funny refname";
+      return;
+    }
+    String current = GitRepository.getCurrentBranch();
+    if (current != null && command.ref.equals("refs/heads/" + current)) {
+      command.error = "branch is currently checked out";
+    } else if (!command.isDelete() && !ObjectStore.hasObject(command.newId)) {
+      command.error = "missing necessary objects";
+    }
+  }
+
+  // ========== CONNECTIVITY ==========
+
+  // Checks all new values in one walk; only if that fails is each one walked alone,
+  // to tell the pusher which refs were incomplete
+  private void checkConnectivity(List<Command> commands) throws IOException {
+    List<Command> updates = new ArrayList<>();
+    for (Command command : commands) {
+      if (command.error == null && !command.isDelete()) {
+        updates.add(command);
+      }
+    }
+    if (updates.isEmpty() || isConnected(updates)) {
+      return;
+    }
+    for (Command command : updates) {
+      if (!isConnected(List.of(command))) {
+        command.error = "missing necessary objects";
+      }
+    }
+  }
+
+  private boolean isConnected(List<Command> updates) throws IOException {
+    ObjectWalk walk = new ObjectWalk(new RevCommit.Pool());
+    try {
+      for (Command command : updates) {
+        walk.markStart(command.newId);
+      }
+      for (String id : new HashSet<>(advertised.values())) {
+        if (ObjectStore.hasObject(id)) {
+          walk.markUninteresting(id);
+        }
+      }
+      // Commits and trees were read by the walk itself; blobs only need to exist
+      for (ObjectWalk.Entry entry : walk.objects()) {
+        if (!ObjectStore.hasObject(entry.id)) {
+          return false;
+        }
+      }
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  // ========== REF UPDATES ==========
+
+  private void updateAtomically(List<Command> commands) {
+    if (commands.stream().noneMatch(command -> command.error != null)) {
+      commit(commands);
+      return;
+    }
+    for (Command command : commands) {
+      if (command.error == null) {
+        command.error = "atomic push failure";
+      }
+    }
+  }
+
+  // One transaction for the batch; if it fails, every command in it failed
+  private void commit(List<Command> batch) {
+    RefTransaction transaction = new RefTransaction();
+    try {
+      for (Command command : batch) {
+        transaction.update(command.ref, command.newId, command.oldId);
+      }
+      transaction.commit();
+    } catch (IOException e) {
+      for (Command command : batch) {
+        command.error = "failed to update ref";
+      }
+    }
+  }
+}
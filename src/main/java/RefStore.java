@@ -0,0 +1,20 @@
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+// Storage backend for refs. HEAD and the other pseudo-refs are always plain files
+// under .git; a backend only decides how the refs/ namespace is stored.
+public interface RefStore {
+
+  // Raw value of a ref: an id, "ref: <target>" for a symbolic ref, or null
+  String read(String name) throws IOException;
+
+  // Refs whose names start with prefix, keyed by full name in name order
+  Map<String, String> getRefs(String prefix) throws IOException;
+
+  // Applies the updates all-or-nothing, checking each expected old value first
+  void commit(Collection<RefTransaction.Update> updates) throws IOException;
+
+  // Consolidates storage (pack-refs); returns the number of refs moved
+  int pack(boolean all) throws IOException;
+}
@@ -0,0 +1,121 @@
+import java.io.IOException;
+import java.util.*;
+
+// Applies a batch of ref changes all-or-nothing. The active RefStore locks every ref
+// involved, checks each current value against the expected old value, and only
+// then makes the new values visible; any failure before that point leaves every
+// ref untouched.
+public class RefTransaction {
+  public static final String ZERO_ID = "0000000000000000000000000000000000000000";
+
+  static class Update {
+    final String name;
+    // New id, "ref: <target>" for a symbolic ref, "" to only verify, or null to delete
+    final String newValue;
+    // Expected current id; ZERO_ID means the ref must not exist, null means any value
+    final String oldId;
+
+    Update(String name, String newValue, String oldId) {
+      this.name = name;
+      this.newValue = newValue;
+      this.oldId = oldId;
+    }
+
+    boolean isDelete() {
+      return newValue == null;
+    }
+
+    boolean isVerify() {
+      return newValue != null && newValue.isEmpty();
+    }
+  }
+
+  private final Repository repository;
+  private final Map<String, Update> updates = new TreeMap<>();
+
+  public RefTransaction() {
+    this(Repository.current());
+  }
+
+  RefTransaction(Repository repository) {
+    this.repository = repository;
+  }
+
+  public RefTransaction update(String name, String newId, String oldId) throws IOException {
+    return add(new Update(name, newId.equals(ZERO_ID) ? null : newId, oldId));
+  }
+
+  public RefTransaction create(String name, String newId) throws IOException {
+    return add(new Update(name, newId, ZERO_ID));
+  }
+
+  public RefTransaction delete(String name, String oldId) throws IOException {
+    return add(new Update(name, null, oldId));
+  }
+
+  // Only checks the current value; the ref is locked but not changed
+  public RefTransaction verify(String name, String oldId) throws IOException {
+    return add(new Update(name, "", oldId != null ? oldId : ZERO_ID));
+  }
+
+  public RefTransaction setSymbolic(String name, String target) throws IOException {
+    return add(new Update(name, "ref: " + target, null));
+  }
+
+  public boolean isEmpty() {
+    return updates.isEmpty();
+  }
+
+  private RefTransaction add(Update update) throws IOException {
+    checkRefName(update.name);
+    if (updates.containsKey(update.name)) {
+      throw new IOException("Multiple updates for ref '" + update.name + "' not allowed");
+    }
+    updates.put(update.name, update);
+    return this;
+  }
+
+  // Updates are handed over in name order, so stores taking per-ref locks cannot
+  // deadlock against each other
+  public void commit() throws IOException {
+    repository.call(() -> {
+      GitRepository.refStore().commit(updates.values());
+      return null;
+    });
+  }
+
+  // current is the ref's present id (a symbolic ref already followed), or null
+  static void checkOldValue(Update update, String current) throws IOException {
+    if (update.oldId == null) {
+      return;
+    }
+    if (update.oldId.equals(ZERO_ID)) {
+      if (current != null) {
+        throw new IOException("cannot lock ref '" + update.name + "': reference already exists");
+      }
+    } else if (current == null) {
+      throw new IOException("cannot lock ref '" + update.name + "': unable to resolve reference");
+    } else if (!current.equals(update.oldId)) {
+      throw new IOException("cannot lock ref '" + update.name + "': is at " + current + " but expected " + update.oldId);
+    }
+  }
+
+  // The subset of git's check-ref-format rules that matter for file-backed refs
+  static void checkRefName(String name) throws IOException {
+    boolean valid = name.equals("HEAD") || name.startsWith("refs/");
+    for (String component : name.split("/")) {
+      if (component.isEmpty() || component.startsWith(".") || component.endsWith(".lock")) {
+        valid = false;
+      }
+    }
+    for (int i = 0; i < name.length() && valid; i++) {
+      char c = name.charAt(i);
+      if (c <= ' ' || c == 0x7f || c == '~' || c == '^' || c == ':' || c == '?' || c == '*' || c == '[' || c == '\\') {
+        valid = false;
+      }
+    }
+    if (!valid || name.contains("..") || name.contains("@{") || name.endsWith(".")) {
+      throw new IOException("Invalid ref name: " + name);
+    }
+  }
+}
@@ -0,0 +1,439 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+// One immutable reftable file (ref section only), laid out like git's reftable v1:
+//
+//   header   'REFT' | version=1 | uint24 block_size | uint64 min/max update_index
+//   blocks   'r' | uint24 block_len | records | uint24 restart offsets | uint16 count
+//   footer   header copy | 5 x uint64 section positions (all 0) | CRC-32
+//
+// Records are sorted by name and prefix-compressed against the previous name, with
+// a full name ("restart") every RESTART_INTERVAL records. Blocks are padded to
+// block_size, so a lookup binary-searches the blocks by their first name, then the
+// restarts inside the block, then scans at most RESTART_INTERVAL records.
+public class Reftable {
+  static final int HEADER_SIZE = 24;
+  static final int FOOTER_SIZE = 68;
+  static final int DEFAULT_BLOCK_SIZE = 4096;
+  static final int RESTART_INTERVAL = 16;
+
+  static final int VALUE_DELETION = 0;
+  static final int VALUE_ID = 1;
+  static final int VALUE_PEELED = 2;
+  static final int VALUE_SYMREF = 3;
+
+  private static final byte[] MAGIC = { 'R', 'E', 'F', 'T' };
+
+  public static class Record {
+    final String name;
+    final int type;
+    final long updateIndex;
+    // Object id, or the target name for VALUE_SYMREF; null for deletions
+    final String value;
+    final String peeled;
+
+    Record(String name, int type, long updateIndex, String value, String peeled) {
+      this.name = name;
+      this.type = type;
+      this.updateIndex = updateIndex;
+      this.value = value;
+      this.peeled = peeled;
+    }
+
+    boolean isDeletion() {
+      return type == VALUE_DELETION;
+    }
+
+    // Value as GitRepository reports it: an id, or "ref: <target>"
+    String refValue() {
+      return type == VALUE_SYMREF ? "ref: " + value : value;
+    }
+  }
+
+  private final byte[] data;
+  private final int blockSize;
+  private final long minUpdateIndex;
+  private final long maxUpdateIndex;
+  private final int refEnd;
+  private final int blockCount;
+
+  private Reftable(byte[] data) throws IOException {
+    this.data = data;
+    if (data.length < HEADER_SIZE + FOOTER_SIZE || !Arrays.equals(data, 0, 4, MAGIC, 0, 4) || data[4] != 1) {
+      throw new IOException("Not a reftable file");
+    }
+    int footer = data.length - FOOTER_SIZE;
+    CRC32 crc = new CRC32();
+    crc.update(data, footer, FOOTER_SIZE - 4);
+    if ((int) crc.getValue() != (int) readUint(data, data.length - 4, 4)) {
+      throw new IOException("Reftable footer checksum mismatch");
+    }
+    blockSize = (int) readUint(data, 5, 3);
+    minUpdateIndex = readUint(data, 8, 8);
+    maxUpdateIndex = readUint(data, 16, 8);
+    refEnd = footer;
+    blockCount = refEnd <= HEADER_SIZE ? 0 : (refEnd + blockSize - 1) / blockSize;
+  }
+
+  public static Reftable open(File file) throws IOException {
+    return new Reftable(Files.readAllBytes(file.toPath()));
+  }
+
+  public long getMinUpdateIndex() {
+    return minUpdateIndex;
+  }
+
+  public long getMaxUpdateIndex() {
+    return maxUpdateIndex;
+  }
+
+  public int size() {
+    return data.length;
+  }
+
+  // The record for exactly this name (possibly a deletion), or null
+  public Record find(String name) {
+    byte[] key = name.getBytes(StandardCharsets.UTF_8);
+    Cursor cursor = seek(key);
+    if (cursor == null) {
+      return null;
+    }
+    while (cursor.hasNext()) {
+      int cmp = cursor.peekCompare(key);
+      if (cmp == 0) {
+        return cursor.next();
+      }
+      if (cmp > 0) {
+        return null;
+      }
+      cursor.skip();
+    }
+    return null;
+  }
+
+  // Every record whose name starts with prefix, in name order
+  public void scan(String prefix, Consumer<Record> consumer) {
+    byte[] key = prefix.getBytes(StandardCharsets.UTF_8);
+    Cursor cursor = seek(key);
+    if (cursor == null) {
+      return;
+    }
+    while (cursor.hasNext()) {
+      int cmp = cursor.peekCompare(key);
+      if (cmp < 0) {
+        cursor.skip();
+        continue;
+      }
+      Record record = cursor.next();
+      if (!record.name.startsWith(prefix)) {
+        return;
+      }
+      consumer.accept(record);
+    }
+  }
+
+  // Positions a cursor at the restart point at or before key
+  private Cursor seek(byte[] key) {
+    if (blockCount == 0) {
+      return null;
+    }
+    int low = 0;
+    int high = blockCount - 1;
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if (compareKeys(firstKey(mid), key) <= 0) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+
+    int blockStart = low * blockSize;
+    int blockEnd = blockStart + (int) readUint(data, typeOffset(low) + 1, 3);
+    int restartCount = (int) readUint(data, blockEnd - 2, 2);
+    int restartsStart = blockEnd - 2 - restartCount * 3;
+
+    int lowRestart = 0;
+    int highRestart = restartCount - 1;
+    while (lowRestart < highRestart) {
+      int mid = (lowRestart + highRestart + 1) >>> 1;
+      int offset = blockStart + (int) readUint(data, restartsStart + mid * 3, 3);
+      if (compareKeys(keyAt(offset), key) <= 0) {
+        lowRestart = mid;
+      } else {
+        highRestart = mid - 1;
+      }
+    }
+    int start = blockStart + (int) readUint(data, restartsStart + lowRestart * 3, 3);
+    return new Cursor(low, start, restartsStart);
+  }
+
+  private int typeOffset(int block) {
+    return block == 0 ? HEADER_SIZE : block * blockSize;
+  }
+
+  private byte[] firstKey(int block) {
+    return keyAt(typeOffset(block) + 4);
+  }
+
+  // Name of the restart record at offset (prefix length is always 0 there)
+  private byte[] keyAt(int offset) {
+    int[] pos = { offset };
+    readVarint(data, pos);
+    int suffixLength = (int) (readVarint(data, pos) >>> 3);
+    return Arrays.copyOfRange(data, pos[0], pos[0] + suffixLength);
+  }
+
+  // Walks the records from a restart point, continuing into the following blocks
+  private class Cursor {
+    int block;
+    final int[] pos = new int[1];
+    int recordsEnd;
+    byte[] lastKey = new byte[0];
+    byte[] peekedKey;
+
+    Cursor(int block, int start, int recordsEnd) {
+      this.block = block;
+      this.pos[0] = start;
+      this.recordsEnd = recordsEnd;
+    }
+
+    boolean hasNext() {
+      if (pos[0] < recordsEnd) {
+        return true;
+      }
+      if (block + 1 >= blockCount) {
+        return false;
+      }
+      block++;
+      int blockStart = block * blockSize;
+      if (data[blockStart] != 'r') {
+        return false;
+      }
+      int blockEnd = blockStart + (int) readUint(data, blockStart + 1, 3);
+      recordsEnd = blockEnd - 2 - (int) readUint(data, blockEnd - 2, 2) * 3;
+      pos[0] = blockStart + 4;
+      lastKey = new byte[0];
+      return pos[0] < recordsEnd;
+    }
+
+    int peekCompare(byte[] key) {
+      int saved = pos[0];
+      int prefixLength = (int) readVarint(data, pos);
+      int suffixLength = (int) (readVarint(data, pos) >>> 3);
+      peekedKey = new byte[prefixLength + suffixLength];
+      System.arraycopy(lastKey, 0, peekedKey, 0, prefixLength);
+      System.arraycopy(data, pos[0], peekedKey, prefixLength, suffixLength);
+      pos[0] = saved;
+      return compareKeys(peekedKey, key);
+    }
+
+    void skip() {
+      next();
+    }
+
+    Record next() {
+      int prefixLength = (int) readVarint(data, pos);
+      long lengthAndType = readVarint(data, pos);
+      int suffixLength = (int) (lengthAndType >>> 3);
+      int type = (int) (lengthAndType & 7);
+      byte[] key = new byte[prefixLength + suffixLength];
+      System.arraycopy(lastKey, 0, key, 0, prefixLength);
+      System.arraycopy(data, pos[0], key, prefixLength, suffixLength);
+      pos[0] += suffixLength;
+      lastKey = key;
+
+      long updateIndex = minUpdateIndex + readVarint(data, pos);
+      String value = null;
+      String peeled = null;
+      if (type == VALUE_ID || type == VALUE_PEELED) {
+        value = ObjectStore.toHex(data, pos[0]);
+        pos[0] += 20;
+        if (type == VALUE_PEELED) {
+          peeled = ObjectStore.toHex(data, pos[0]);
+          pos[0] += 20;
+        }
+      } else if (type == VALUE_SYMREF) {
+        int length = (int) readVarint(data, pos);
+        value = new String(data, pos[0], length, StandardCharsets.UTF_8);
+        pos[0] += length;
+      }
+      return new Record(new String(key, StandardCharsets.UTF_8), type, updateIndex, value, peeled);
+    }
+  }
+
+  // ========== WRITING ==========
+
+  // Writes the records (any order; names must be unique) to file, via a temporary
+  // file renamed into place
+  public static void write(File file, List<Record> records, long minUpdateIndex, long maxUpdateIndex) throws IOException {
+    List<Record> sorted = new ArrayList<>(records);
+    sorted.sort((a, b) -> compareKeys(a.name.getBytes(StandardCharsets.UTF_8), b.name.getBytes(StandardCharsets.UTF_8)));
+
+    int blockSize = DEFAULT_BLOCK_SIZE;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] header = new byte[HEADER_SIZE];
+    System.arraycopy(MAGIC, 0, header, 0, 4);
+    header[4] = 1;
+    writeUint(header, 5, 3, blockSize);
+    writeUint(header, 8, 8, minUpdateIndex);
+    writeUint(header, 16, 8, maxUpdateIndex);
+    out.write(header, 0, HEADER_SIZE);
+
+    BlockWriter block = new BlockWriter(out, 0, blockSize);
+    for (Record record : sorted) {
+      byte[] key = record.name.getBytes(StandardCharsets.UTF_8);
+      if (!block.add(key, record, minUpdateIndex)) {
+        block.finish(true);
+        block = new BlockWriter(out, out.size(), blockSize);
+        if (!block.add(key, record, minUpdateIndex)) {
+          throw new IOException("Ref name too long for a reftable block: " + record.name);
+        }
+      }
+    }
+    block.finish(false);
+
+    byte[] footer = new byte[FOOTER_SIZE];
+    System.arraycopy(header, 0, footer, 0, HEADER_SIZE);
+    CRC32 crc = new CRC32();
+    crc.update(footer, 0, FOOTER_SIZE - 4);
+    writeUint(footer, FOOTER_SIZE - 4, 4, crc.getValue());
+    out.write(footer, 0, FOOTER_SIZE);
+
+    File tmp = new File(file.getPath() + ".tmp");
+    Files.write(tmp.toPath(), out.toByteArray());
+    Files.move(tmp.toPath(), file.toPath(), java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static class BlockWriter {
+    final ByteArrayOutputStream out;
+    final int blockStart;
+    final int blockSize;
+    final ByteArrayOutputStream records = new ByteArrayOutputStream();
+    final List<Integer> restarts = new ArrayList<>();
+    byte[] lastKey = new byte[0];
+    int count;
+
+    BlockWriter(ByteArrayOutputStream out, int blockStart, int blockSize) {
+      this.out = out;
+      this.blockStart = blockStart;
+      this.blockSize = blockSize;
+    }
+
+    // Offset of the 'r' byte relative to the block start (the file header sits
+    // in front of it in the first block)
+    int typeOffset() {
+      return blockStart == 0 ? HEADER_SIZE : 0;
+    }
+
+    boolean add(byte[] key, Record record, long minUpdateIndex) {
+      boolean restart = count % RESTART_INTERVAL == 0;
+      int prefixLength = restart ? 0 : commonPrefix(lastKey, key);
+
+      ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+      writeVarint(encoded, prefixLength);
+      writeVarint(encoded, ((long) (key.length - prefixLength) << 3) | record.type);
+      encoded.write(key, prefixLength, key.length - prefixLength);
+      writeVarint(encoded, record.updateIndex - minUpdateIndex);
+      if (record.type == VALUE_ID || record.type == VALUE_PEELED) {
+        encoded.writeBytes(ObjectStore.fromHex(record.value));
+        if (record.type == VALUE_PEELED) {
+          encoded.writeBytes(ObjectStore.fromHex(record.peeled));
+        }
+      } else if (record.type == VALUE_SYMREF) {
+        byte[] target = record.value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(encoded, target.length);
+        encoded.writeBytes(target);
+      }
+
+      int restartCount = restarts.size() + (restart ? 1 : 0);
+      int length = typeOffset() + 4 + records.size() + encoded.size() + restartCount * 3 + 2;
+      if (length > blockSize) {
+        return false;
+      }
+      if (restart) {
+        restarts.add(typeOffset() + 4 + records.size());
+      }
+      records.writeBytes(encoded.toByteArray());
+      lastKey = key;
+      count++;
+      return true;
+    }
+
+    void finish(boolean pad) {
+      int blockLength = typeOffset() + 4 + records.size() + restarts.size() * 3 + 2;
+      byte[] head = new byte[4];
+      head[0] = 'r';
+      writeUint(head, 1, 3, blockLength);
+      out.write(head, 0, 4);
+      out.writeBytes(records.toByteArray());
+      byte[] trailer = new byte[restarts.size() * 3 + 2];
+      for (int i = 0; i < restarts.size(); i++) {
+        writeUint(trailer, i * 3, 3, restarts.get(i));
+      }
+      writeUint(trailer, restarts.size() * 3, 2, restarts.size());
+      out.write(trailer, 0, trailer.length);
+      if (pad) {
+        out.write(new byte[blockSize - blockLength], 0, blockSize - blockLength);
+      }
+    }
+  }
+
+  // ========== ENCODING ==========
+
+  private static int commonPrefix(byte[] a, byte[] b) {
+    int length = Math.min(a.length, b.length);
+    int i = 0;
+    while (i < length && a[i] == b[i]) {
+      i++;
+    }
+    return i;
+  }
+
+  static int compareKeys(byte[] a, byte[] b) {
+    return Arrays.compareUnsigned(a, b);
+  }
+
+  // Git's offset varint: 7 bits per byte, most significant first, with the
+  // continuation bit set and one subtracted on every byte but the last
+  static void writeVarint(ByteArrayOutputStream out, long value) {
+    byte[] buffer = new byte[10];
+    int pos = buffer.length - 1;
+    buffer[pos] = (byte) (value & 0x7f);
+    while ((value >>>= 7) != 0) {
+      buffer[--pos] = (byte) (0x80 | (--value & 0x7f));
+    }
+    out.write(buffer, pos, buffer.length - pos);
+  }
+
+  static long readVarint(byte[] data, int[] pos) {
+    int c = data[pos[0]++] & 0xff;
+    long value = c & 0x7f;
+    while ((c & 0x80) != 0) {
+      c = data[pos[0]++] & 0xff;
+      value = ((value + 1) << 7) | (c & 0x7f);
+    }
+    return value;
+  }
+
+  private static long readUint(byte[] data, int offset, int width) {
+    long value = 0;
+    for (int i = 0; i < width; i++) {
+      value = (value << 8) | (data[offset + i] & 0xff);
+    }
+    return value;
+  }
+
+  private static void writeUint(byte[] data, int offset, int width, long value) {
+    for (int i = width - 1; i >= 0; i--) {
+      data[offset + i] = (byte) value;
+      value >>>= 8;
+    }
+  }
+}
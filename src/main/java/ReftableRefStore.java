@@ -0,0 +1,355 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Ref backend for repositories created with init --ref-format=reftable. Refs live in
+// a stack of immutable Reftable files listed oldest first in .git/reftable/tables.list;
+// a newer table shadows older ones, and a deletion record hides the ref entirely.
+// Every transaction appends one small table, so an update costs a lookup plus a write
+// proportional to the batch, not to the number of refs. The stack is kept short by
+// merging the newest tables whenever one of them is no longer much smaller than the
+// sum of the tables above it, which keeps compaction cost logarithmic per update.
+//
+// HEAD and other pseudo-refs stay plain files handled by FilesRefStore.
+public class ReftableRefStore implements RefStore {
+  private final Repository repository;
+  private final File dir;
+  private final File list;
+  private final File lockFile;
+
+  // Tables never change once written, so open ones are shared by file name
+  private final Map<String, Reftable> open = new HashMap<>();
+
+  private final FilesRefStore files;
+  private List<String> names = List.of();
+  private List<Reftable> tables = List.of();
+  private long listModified = -1;
+  private long listSize = -1;
+  private boolean locked;
+
+  public ReftableRefStore(Repository repository, FilesRefStore files) {
+    this.repository = repository;
+    this.files = files;
+    this.dir = repository.gitFile("reftable");
+    this.list = new File(dir, "tables.list");
+    this.lockFile = new File(dir, "tables.list.lock");
+  }
+
+  static void init() throws IOException {
+    File dir = Repository.current().gitFile("reftable");
+    dir.mkdirs();
+    Files.write(new File(dir, "tables.list").toPath(), new byte[0]);
+  }
+
+  @Override
+  public String read(String name) throws IOException {
+    if (!name.startsWith("refs/")) {
+      return files.read(name);
+    }
+    List<Reftable> stack = stack();
+    for (int i = stack.size() - 1; i >= 0; i--) {
+      Reftable.Record record = stack.get(i).find(name);
+      if (record != null) {
+        return record.isDeletion() ? null : record.refValue();
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public Map<String, String> getRefs(String prefix) throws IOException {
+    Map<String, String> refs = new TreeMap<>();
+    for (Reftable table : stack()) {
+      table.scan(prefix, record -> {
+        if (record.isDeletion()) {
+          refs.remove(record.name);
+        } else {
+          refs.put(record.name, record.refValue());
+        }
+      });
+    }
+    return refs;
+  }
+
+  // Ref updates become one new table under tables.list.lock. Updates to HEAD are
+  // applied by the files backend afterwards, so the two parts are not atomic with
+  // each other (HEAD updates in a batch never carry an expected old value here).
+  @Override
+  public void commit(Collection<RefTransaction.Update> updates) throws IOException {
+    repository.call(() -> {
+      commitLocked(updates);
+      return null;
+    });
+  }
+
+  private void commitLocked(Collection<RefTransaction.Update> updates) throws IOException {
+    List<RefTransaction.Update> refUpdates = new ArrayList<>();
+    List<RefTransaction.Update> fileUpdates = new ArrayList<>();
+    for (RefTransaction.Update update : updates) {
+      (update.name.startsWith("refs/") ? refUpdates : fileUpdates).add(update);
+    }
+
+    if (!refUpdates.isEmpty()) {
+      lock(true);
+      try {
+        reload();
+        long updateIndex = maxUpdateIndex() + 1;
+        List<Reftable.Record> records = new ArrayList<>();
+        for (RefTransaction.Update update : refUpdates) {
+          RefTransaction.checkOldValue(update, currentValue(update.name));
+          if (!update.isVerify()) {
+            records.add(toRecord(update.name, update.newValue, updateIndex));
+          }
+        }
+        if (!records.isEmpty()) {
+          String name = tableName(updateIndex, updateIndex);
+          Reftable.write(new File(dir, name), records, updateIndex, updateIndex);
+          List<String> newNames = new ArrayList<>(names);
+          newNames.add(name);
+          writeList(newNames);
+        }
+      } finally {
+        unlock();
+      }
+    }
+
+    if (!fileUpdates.isEmpty()) {
+      files.commit(fileUpdates);
+    }
+    if (!refUpdates.isEmpty()) {
+      autoCompact();
+    }
+  }
+
+  // Merges the whole stack into one table without deletion records. There are no
+  // loose refs in this format, so all makes no difference.
+  @Override
+  public int pack(boolean all) throws IOException {
+    return repository.call(this::packStack);
+  }
+
+  private int packStack() throws IOException {
+    lock(true);
+    try {
+      reload();
+      if (tables.isEmpty()) {
+        return 0;
+      }
+      return compact(0, tables.size() - 1);
+    } finally {
+      unlock();
+    }
+  }
+
+  // ========== COMPACTION ==========
+
+  // Finds the longest run of newest tables where each table is at most twice the
+  // size of everything newer than it, and merges that run. Skipped when another
+  // writer holds the lock; that writer compacts after itself.
+  private void autoCompact() throws IOException {
+    if (!lock(false)) {
+      return;
+    }
+    try {
+      reload();
+      int last = tables.size() - 1;
+      if (last < 1) {
+        return;
+      }
+      int start = last;
+      long sum = tables.get(last).size();
+      while (start > 0 && tables.get(start - 1).size() <= 2 * sum) {
+        start--;
+        sum += tables.get(start).size();
+      }
+      if (start < last) {
+        compact(start, last);
+      }
+    } finally {
+      unlock();
+    }
+  }
+
+  // Replaces tables[from..to] with one table; returns the number of live refs in it.
+  // Deletion records are only needed to hide older tables, so they are dropped
+  // when the oldest table takes part. Caller holds the lock.
+  private int compact(int from, int to) throws IOException {
+    Map<String, Reftable.Record> merged = new TreeMap<>();
+    for (int i = from; i <= to; i++) {
+      tables.get(i).scan("", record -> merged.put(record.name, record));
+    }
+    if (from == 0) {
+      merged.values().removeIf(Reftable.Record::isDeletion);
+    }
+
+    List<String> newNames = new ArrayList<>(names.subList(0, from));
+    if (!merged.isEmpty() || from > 0) {
+      long min = tables.get(from).getMinUpdateIndex();
+      long max = tables.get(to).getMaxUpdateIndex();
+      String name = tableName(min, max);
+      Reftable.write(new File(dir, name), new ArrayList<>(merged.values()), min, max);
+      newNames.add(name);
+    }
+    newNames.addAll(names.subList(to + 1, names.size()));
+
+    List<String> replaced = new ArrayList<>(names.subList(from, to + 1));
+    writeList(newNames);
+    for (String name : replaced) {
+      new File(dir, name).delete();
+    }
+
+    int live = 0;
+    for (Reftable.Record record : merged.values()) {
+      if (!record.isDeletion()) {
+        live++;
+      }
+    }
+    return live;
+  }
+
+  // ========== STACK ==========
+
+  private synchronized List<Reftable> stack() throws IOException {
+    if (list.lastModified() != listModified || list.length() != listSize) {
+      reload();
+    }
+    return tables;
+  }
+
+  private synchronized void reload() throws IOException {
+    // A concurrent compaction may delete tables between reading the list and
+    // opening them; the list read after that names the replacement
+    for (int attempt = 0; ; attempt++) {
+      long modified = list.lastModified();
+      long size = list.length();
+      List<String> listed = readList();
+      try {
+        List<Reftable> opened = new ArrayList<>();
+        synchronized (open) {
+          for (String name : listed) {
+            Reftable table = open.get(name);
+            if (table == null) {
+              table = Reftable.open(new File(dir, name));
+              open.put(name, table);
+            }
+            opened.add(table);
+          }
+          open.keySet().retainAll(listed);
+        }
+        names = listed;
+        tables = opened;
+        listModified = modified;
+        listSize = size;
+        return;
+      } catch (NoSuchFileException e) {
+        if (attempt >= 3) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  private List<String> readList() throws IOException {
+    List<String> listed = new ArrayList<>();
+    try {
+      for (String line : Files.readAllLines(list.toPath())) {
+        if (!line.isBlank()) {
+          listed.add(line.trim());
+        }
+      }
+    } catch (NoSuchFileException e) {
+      throw new IOException("Missing " + list.getPath() + "; is this a reftable repository?");
+    }
+    return listed;
+  }
+
+  // Publishes a new stack by writing it into the held lock and renaming that over
+  // tables.list, which also releases the lock
+  private void writeList(List<String> newNames) throws IOException {
+    StringBuilder content = new StringBuilder();
+    for (String name : newNames) {
+      content.append(name).append("\n");
+    }
+    Files.write(lockFile.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+    Files.move(lockFile.toPath(), list.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    locked = false;
+    reload();
+  }
+
+  // Writers in this process queue on the repository's Writers lock; the lock file
+  // only has to keep other processes out
+  private boolean lock(boolean required) throws IOException {
+    ReentrantLock writers = repository.state(Writers.class, Writers::new).lock;
+    if (required) {
+      writers.lock();
+    } else if (!writers.tryLock()) {
+      return false;
+    }
+    try {
+      Files.createFile(lockFile.toPath());
+      locked = true;
+      return true;
+    } catch (FileAlreadyExistsException e) {
+      writers.unlock();
+      if (!required) {
+        return false;
+      }
+      throw new IOException("Unable to create '" + lockFile.getPath() + "': File exists.\n"
+          + "Another git process seems to be running in this repository.");
+    } catch (IOException | RuntimeException e) {
+      writers.unlock();
+      throw e;
+    }
+  }
+
+  private void unlock() {
+    if (locked) {
+      lockFile.delete();
+      locked = false;
+    }
+    repository.state(Writers.class, Writers::new).lock.unlock();
+  }
+
+  private static class Writers {
+    final ReentrantLock lock = new ReentrantLock();
+  }
+
+  // ========== RECORDS ==========
+
+  private long maxUpdateIndex() {
+    return tables.isEmpty() ? 0 : tables.get(tables.size() - 1).getMaxUpdateIndex();
+  }
+
+  // Current id of a ref, following a symbolic ref to its target
+  private String currentValue(String name) throws IOException {
+    String value = read(name);
+    if (value != null && value.startsWith("ref: ")) {
+      return GitRepository.readRef(value.substring(5));
+    }
+    return value;
+  }
+
+  private static Reftable.Record toRecord(String name, String value, long updateIndex) throws IOException {
+    if (value == null) {
+      return new Reftable.Record(name, Reftable.VALUE_DELETION, updateIndex, null, null);
+    }
+    if (value.startsWith("ref: ")) {
+      return new Reftable.Record(name, Reftable.VALUE_SYMREF, updateIndex, value.substring(5), null);
+    }
+    // Like packed-refs, annotated tags carry their peeled target
+    String peeled = name.startsWith("refs/tags/") ? PackedRefs.peel(value) : null;
+    return peeled != null
+        ? new Reftable.Record(name, Reftable.VALUE_PEELED, updateIndex, value, peeled)
+        : new Reftable.Record(name, Reftable.VALUE_ID, updateIndex, value, null);
+  }
+
+  private static String tableName(long min, long max) {
+    return String.format("0x%012x-0x%012x-%08x.ref", min, max, new Random().nextInt());
+  }
+}
@@ -0,0 +1,257 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+
+// Consolidates the object database, like git repack. The objects reachable from the
+// refs, HEAD, MERGE_HEAD, a stopped cherry-pick or rebase and the index are listed
+// with an ObjectWalk and written into one new pack, with deltas chosen by a
+// DeltaSearch. With -a that pack holds everything reachable and replaces the old
+// packs; otherwise it holds just the reachable loose objects. The pack and its .idx
+// are renamed into place before anything is deleted, and the packs to replace are
+// listed before the walk, so a pack another process adds meanwhile is left alone.
+//
+// Only objects present here are packed: in a partial clone, what the filter left
+// out stays with the promisor rather than being fetched by the repack. Objects an
+// alternate has are left to it, and copies of them here go once they are replaced.
+public class Repack {
+  private boolean all;
+  private boolean keepUnreachable;
+  private boolean delete;
+  private DeltaSearch deltaSearch;
+  // Unset: repack.writeBitmaps, true by default
+  private Boolean writeBitmaps;
+  private Set<String> reachable = Set.of();
+  private int objectCount;
+  private int deltaCount;
+
+  // -a: pack everything reachable, not only loose objects
+  public Repack setAll(boolean all) {
+    this.all = all;
+    return this;
+  }
+
+  // -A: as -a, but unreachable objects in replaced packs are kept as loose objects
+  public Repack setKeepUnreachable(boolean keepUnreachable) {
+    this.keepUnreachable = keepUnreachable;
+    this.all |= keepUnreachable;
+    return this;
+  }
+
+  // -d: delete the replaced packs, and loose objects that are now packed
+  public Repack setDelete(boolean delete) {
+    this.delete = delete;
+    return this;
+  }
+
+  // With -a, also write reachability bitmaps for the new pack (repack.writeBitmaps)
+  public Repack setWriteBitmaps(boolean writeBitmaps) {
+    this.writeBitmaps = writeBitmaps;
+    return this;
+  }
+
+  public Repack setDeltaSearch(DeltaSearch deltaSearch) {
+    this.deltaSearch = deltaSearch;
+    return this;
+  }
+
+  // Every object the last run found reachable, present or not
+  public Set<String> getReachable() {
+    return reachable;
+  }
+
+  public int getObjectCount() {
+    return objectCount;
+  }
+
+  public int getDeltaCount() {
+    return deltaCount;
+  }
+
+  // Returns the new pack's name, or null when there was nothing to pack
+  public String run() throws IOException {
+    ObjectStore.rescanPacks();
+    List<PackFile> oldPacks = all ? new ArrayList<>(ObjectStore.packs()) : List.of();
+    List<String> loose = ObjectStore.looseObjects();
+    Set<String> looseSet = new HashSet<>(loose);
+
+    List<ObjectWalk.Entry> objects = new ArrayList<>();
+    reachable = new HashSet<>();
+    boolean borrowing = !ObjectStore.alternates().isEmpty();
+    for (ObjectWalk.Entry entry : reachableObjects()) {
+      reachable.add(entry.id);
+      if ((all ? ObjectStore.hasObject(entry.id) : looseSet.contains(entry.id))
+          && !(borrowing && ObjectStore.inAlternates(entry.id))) {
+        objects.add(entry);
+      }
+    }
+    String name = null;
+    if (!objects.isEmpty()) {
+      PackWriter writer = writePack(objects, deltaSearch);
+      objectCount = writer.getObjectCount();
+      deltaCount = writer.getDeltaCount();
+      name = writer.getChecksum();
+    }
+    // A bitmap is only right for a pack holding everything its commits reach
+    boolean bitmaps = writeBitmaps != null ? writeBitmaps
+        : Config.snapshot().getBoolean("repack", null, "writeBitmaps", true);
+    if (name != null && all && bitmaps && !borrowing && !Promisor.isPartial() && !Shallow.isShallow()) {
+      writeBitmap(name, objects);
+    }
+    if (!delete) {
+      return name;
+    }
+
+    for (PackFile pack : oldPacks) {
+      // Repacking the same objects the same way gives the same name
+      if (pack.getChecksum().equals(name)) {
+        continue;
+      }
+      if (keepUnreachable) {
+        unpackUnreachable(pack);
+      }
+      deletePack(pack);
+    }
+    if (!oldPacks.isEmpty() && MultiPackIndex.indexFile().exists()) {
+      MultiPackIndex.write();
+    }
+    prunePacked(loose);
+    return name;
+  }
+
+  // Writes objects to a new pack in objects/pack; the writer has its name and counts
+  static PackWriter writePack(List<ObjectWalk.Entry> objects, DeltaSearch deltaSearch) throws IOException {
+    File dir = Repository.current().gitFile("objects/pack");
+    dir.mkdirs();
+    File tmpPack = File.createTempFile("tmp_pack_", null, dir);
+    try {
+      PackWriter writer = new PackWriter(objects).setDeltaSearch(deltaSearch);
+      try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmpPack), 1 << 16)) {
+        writer.write(out);
+      }
+      IndexPack.store(tmpPack, dir, writer.getEntries(), writer.getChecksum());
+      return writer;
+    } finally {
+      tmpPack.delete();
+    }
+  }
+
+  static void deletePack(PackFile pack) {
+    // The .idx goes first: readers only look for packs through it
+    pack.getIndexFile().delete();
+    pack.getPackFile().delete();
+    PackBitmap.bitmapFile(pack.getPackFile()).delete();
+  }
+
+  private static void writeBitmap(String name, List<ObjectWalk.Entry> objects) throws IOException {
+    Set<String> tips = new HashSet<>(GitRepository.getAllRefs().values());
+    String head = GitRepository.getHeadCommit();
+    if (head != null) {
+      tips.add(head);
+    }
+    File idx = Repository.current().gitFile("objects/pack/pack-" + name + ".idx");
+    PackBitmap.write(new PackFile(idx), objects, tips);
+  }
+
+  // Deletes those of the loose objects that a pack or an alternate now holds
+  static void prunePacked(Collection<String> loose) throws IOException {
+    ObjectStore.rescanPacks();
+    for (String id : loose) {
+      if (ObjectStore.findPacked(id) != null || ObjectStore.inAlternates(id)) {
+        deleteLoose(id);
+      }
+    }
+  }
+
+  // Writes the pack's unreachable objects out loose, dated as the pack is, so the
+  // prune grace period counts from when they were packed rather than from now
+  private void unpackUnreachable(PackFile pack) throws IOException {
+    long modified = pack.getPackFile().lastModified();
+    for (int i = 0; i < pack.getObjectCount(); i++) {
+      String id = pack.getObjectId(i);
+      if (!reachable.contains(id) && !ObjectStore.objectFile(id).exists()) {
+        ObjectStore.unpackObject(id, modified);
+      }
+    }
+  }
+
+  // ========== REACHABILITY ==========
+
+  // Everything reachable from the refs, HEAD, MERGE_HEAD, a stopped sequence and the index
+  static List<ObjectWalk.Entry> reachableObjects() throws IOException {
+    ObjectWalk walk = new ObjectWalk(new RevCommit.Pool());
+    for (String id : roots()) {
+      // Missing roots are gitlinks in the index, or left out of a partial clone
+      if (ObjectStore.hasObject(id)) {
+        walk.markStart(id);
+      }
+    }
+    return walk.objects();
+  }
+
+  // What keeps objects alive: HEAD, the refs, MERGE_HEAD, a stopped cherry-pick or
+  // rebase, and the index
+  static Set<String> roots() throws IOException {
+    Set<String> roots = new LinkedHashSet<>();
+    String head = GitRepository.getHeadCommit();
+    if (head != null) {
+      roots.add(head);
+    }
+    for (String id : GitRepository.getAllRefs().values()) {
+      if (!id.startsWith("ref: ")) {
+        roots.add(id);
+      }
+    }
+    String mergeHead = GitRepository.readMergeHead();
+    if (mergeHead != null) {
+      roots.add(mergeHead);
+    }
+    roots.addAll(Sequencer.referencedObjects());
+    for (Index.IndexEntry entry : Index.readIndex().values()) {
+      roots.add(entry.hash);
+    }
+    return roots;
+  }
+
+  // ========== PRUNE ==========
+
+  // Deletes the loose objects outside reachable that were last modified before expire
+  // (in milliseconds), and temporary files that old, which a writer that died left
+  // behind. Anything newer may belong to a command still running, so it stays.
+  // Returns how many objects were deleted.
+  public static int prune(Set<String> reachable, long expire) throws IOException {
+    int pruned = 0;
+    for (String id : ObjectStore.looseObjects()) {
+      if (!reachable.contains(id) && ObjectStore.objectFile(id).lastModified() < expire) {
+        deleteLoose(id);
+        pruned++;
+      }
+    }
+    File objects = Repository.current().gitFile("objects");
+    List<File> dirs = new ArrayList<>(List.of(new File(objects, "pack")));
+    File[] fanout = objects.listFiles((dir, name) -> name.length() == 2);
+    if (fanout != null) {
+      dirs.addAll(Arrays.asList(fanout));
+    }
+    for (File dir : dirs) {
+      File[] temporary = dir.listFiles((d, name) -> name.startsWith("tmp_"));
+      if (temporary != null) {
+        for (File file : temporary) {
+          if (file.lastModified() < expire) {
+            file.delete();
+          }
+        }
+      }
+    }
+    return pruned;
+  }
+
+  // Also removes its objects/xx directory once that is empty
+  private static void deleteLoose(String id) {
+    File file = ObjectStore.objectFile(id);
+    file.delete();
+    file.getParentFile().delete();
+  }
+}
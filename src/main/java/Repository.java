@@ -0,0 +1,145 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+// One repository: its worktree, its .git directory and every cache built from them
+// (parsed objects, index, packed refs or reftables, config, commit-graph). Handles are
+// independent of each other and of the process working directory, so one JVM can
+// serve many repositories from many threads; caches are synchronized per repository.
+//
+// The object, ref, index and config code finds the repository it works on through
+// current(). call() binds a repository to the calling thread (and threads it starts);
+// without a binding, current() is the repository in the working directory, which
+// is what the CLI uses. The public methods below bind themselves, so an embedder
+// only needs open() and these.
+public class Repository {
+  private static final InheritableThreadLocal<Repository> CURRENT = new InheritableThreadLocal<>();
+  private static Repository workingDirectory;
+
+  private final File workTree;
+  private final File gitDir;
+  private final Map<Class<?>, Object> state = new ConcurrentHashMap<>();
+
+  private Repository(File workTree) {
+    this.workTree = workTree.getAbsoluteFile();
+    this.gitDir = new File(this.workTree, ".git");
+  }
+
+  public static Repository open(File workTree) throws IOException {
+    Repository repository = new Repository(workTree);
+    if (!repository.gitDir.isDirectory()) {
+      throw new IOException("Not a git repository: " + workTree);
+    }
+    return repository;
+  }
+
+  public static Repository current() {
+    Repository repository = CURRENT.get();
+    if (repository != null) {
+      return repository;
+    }
+    synchronized (Repository.class) {
+      if (workingDirectory == null) {
+        workingDirectory = new Repository(new File(System.getProperty("user.dir")));
+      }
+      return workingDirectory;
+    }
+  }
+
+  public interface Action<T> {
+    T run() throws IOException;
+  }
+
+  // Runs action with this repository as current() on this thread
+  public <T> T call(Action<T> action) throws IOException {
+    Repository previous = CURRENT.get();
+    CURRENT.set(this);
+    try {
+      return action.run();
+    } finally {
+      if (previous != null) {
+        CURRENT.set(previous);
+      } else {
+        CURRENT.remove();
+      }
+    }
+  }
+
+  public File getWorkTree() {
+    return workTree;
+  }
+
+  public File getGitDir() {
+    return gitDir;
+  }
+
+  // path relative to .git, e.g. "refs/heads/main" or "objects/info/commit-graph"
+  public File gitFile(String path) {
+    return new File(gitDir, path);
+  }
+
+  // path relative to the worktree root, as stored in the index
+  public File workTreeFile(String path) {
+    return new File(workTree, path);
+  }
+
+  // Per-repository state of one class (its caches), created on first use
+  <T> T state(Class<T> type, Supplier<T> factory) {
+    return type.cast(state.computeIfAbsent(type, key -> factory.get()));
+  }
+
+  // ========== EMBEDDING API ==========
+
+  public Config getConfig() throws IOException {
+    return call(Config::snapshot);
+  }
+
+  // The ref backend; its methods bind this repository themselves
+  public RefStore getRefDatabase() throws IOException {
+    return call(GitRepository::refStore);
+  }
+
+  public RefTransaction newTransaction() {
+    return new RefTransaction(this);
+  }
+
+  public String readRef(String name) throws IOException {
+    return call(() -> GitRepository.readRef(name));
+  }
+
+  public Map<String, String> getRefs(String prefix) throws IOException {
+    return call(() -> GitRepository.getRefs(prefix));
+  }
+
+  public String getHead() throws IOException {
+    return call(GitRepository::getHeadCommit);
+  }
+
+  // A full id, ref name or rev-parse expression (main~2, HEAD^2) as an object id
+  public String resolve(String rev) throws IOException {
+    return call(() -> rev.matches("[0-9a-f]{40}") ? rev : new RevWalk().resolve(rev));
+  }
+
+  public ObjectStore.ObjectInfo readObject(String id) throws IOException {
+    return call(() -> ObjectStore.parseObject(id));
+  }
+
+  public ObjectStore.ObjectHeader readObjectHeader(String id) throws IOException {
+    return call(() -> ObjectStore.readHeader(id));
+  }
+
+  public String insertObject(String type, byte[] content) throws IOException {
+    return call(() -> ObjectStore.storeObject(type, content));
+  }
+
+  public Map<String, Index.IndexEntry> readIndex() throws IOException {
+    return call(Index::readIndex);
+  }
+
+  @Override
+  public String toString() {
+    return "Repository[" + workTree + "]";
+  }
+}
@@ -0,0 +1,179 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class RevCommit {
+  private static final RevCommit[] NO_PARENTS = new RevCommit[0];
+
+  public final String id;
+  // Position in the owning pool, used to index per-walk flag arrays
+  final int index;
+
+  RevCommit[] parents;
+  String tree;
+  long commitTime;
+  // Topological level from the commit-graph, 0 when the commit is not in it
+  int generation;
+  int graphPosition = -1;
+  boolean parsed;
+
+  RevCommit(String id, int index) {
+    this.id = id;
+    this.index = index;
+  }
+
+  public RevCommit[] getParents() {
+    return parents;
+  }
+
+  public long getCommitTime() {
+    return commitTime;
+  }
+
+  public String getTree() {
+    return tree;
+  }
+
+  // Reads only the header lines needed for walking: tree, parents and committer time
+  void parse(Pool pool) throws IOException {
+    if (parsed) {
+      return;
+    }
+    if (pool.graph != null) {
+      if (graphPosition < 0) {
+        graphPosition = pool.graph.findPosition(id);
+      }
+      if (graphPosition >= 0) {
+        parseFromGraph(pool);
+        return;
+      }
+    }
+
+    ObjectStore.ObjectInfo obj = ObjectStore.parseObject(id);
+    if (!obj.type.equals("commit")) {
+      throw new IOException("Not a commit object: " + id);
+    }
+
+    byte[] data = obj.content;
+    List<RevCommit> parentList = null;
+    int pos = 0;
+    while (pos < data.length && data[pos] != '\n') {
+      int lineEnd = pos;
+      while (lineEnd < data.length && data[lineEnd] != '\n') {
+        lineEnd++;
+      }
+      if (startsWith(data, pos, "tree ")) {
+        tree = new String(data, pos + 5, 40);
+      } else if (startsWith(data, pos, "parent ")) {
+        if (parentList == null) {
+          parentList = new ArrayList<>(2);
+        }
+        parentList.add(pool.lookup(new String(data, pos + 7, 40)));
+      } else if (startsWith(data, pos, "committer ")) {
+        commitTime = parseCommitTime(data, pos, lineEnd);
+      }
+      pos = lineEnd + 1;
+    }
+
+    parents = parentList == null || pool.shallow.contains(id) ? NO_PARENTS : parentList.toArray(NO_PARENTS);
+    parsed = true;
+  }
+
+  private void parseFromGraph(Pool pool) {
+    CommitGraph graph = pool.graph;
+    int[] parentPositions = graph.getParentPositions(graphPosition);
+    parents = parentPositions.length == 0 ? NO_PARENTS : new RevCommit[parentPositions.length];
+    for (int i = 0; i < parentPositions.length; i++) {
+      RevCommit parent = pool.lookup(graph.getId(parentPositions[i]));
+      parent.graphPosition = parentPositions[i];
+      parents[i] = parent;
+    }
+    if (pool.shallow.contains(id)) {
+      parents = NO_PARENTS;
+    }
+    tree = graph.getTree(graphPosition);
+    commitTime = graph.getCommitTime(graphPosition);
+    generation = graph.getGeneration(graphPosition);
+    parsed = true;
+  }
+
+  private static boolean startsWith(byte[] data, int pos, String prefix) {
+    if (pos + prefix.length() > data.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length(); i++) {
+      if (data[pos + i] != prefix.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // "committer Name <email> 1700000000 +0000" - the time follows the last '>'
+  private static long parseCommitTime(byte[] data, int start, int end) {
+    int pos = end - 1;
+    while (pos > start && data[pos] != '>') {
+      pos--;
+    }
+    pos += 2;
+    long time = 0;
+    while (pos < end && data[pos] >= '0' && data[pos] <= '9') {
+      time = time * 10 + (data[pos] - '0');
+      pos++;
+    }
+    return time;
+  }
+
+  // Hands out one RevCommit per id so flags and parsed state are shared across a walk
+  // Commits listed as shallow are parsed without parents, as roots.
+  public static class Pool {
+    private final Map<String, RevCommit> commits = new HashMap<>();
+    final CommitGraph graph;
+    final Set<String> shallow;
+
+    public Pool() {
+      this(null);
+    }
+
+    // shallow overrides the repository's own .git/shallow; UploadPack walks with the
+    // fetching side's view of the history
+    public Pool(Set<String> shallow) {
+      Set<String> own = Set.of();
+      CommitGraph loaded = null;
+      try {
+        own = Shallow.read();
+        loaded = CommitGraph.load();
+      } catch (IOException e) {
+        // A missing or unreadable graph only means commits are parsed from objects
+      }
+      this.shallow = shallow != null ? shallow : own;
+      graph = loaded;
+    }
+
+    public CommitGraph getGraph() {
+      return graph;
+    }
+
+    public RevCommit lookup(String id) {
+      RevCommit commit = commits.get(id);
+      if (commit == null) {
+        commit = new RevCommit(id, commits.size());
+        commits.put(id, commit);
+      }
+      return commit;
+    }
+
+    public RevCommit parse(String id) throws IOException {
+      RevCommit commit = lookup(id);
+      commit.parse(this);
+      return commit;
+    }
+
+    public int size() {
+      return commits.size();
+    }
+  }
+}
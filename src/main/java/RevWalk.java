@@ -0,0 +1,621 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+
+public class RevWalk {
+  private static final int SEEN = 1;
+  private static final int UNINTERESTING = 1 << 1;
+  private static final int ADDED = 1 << 2;
+
+  // Extra commits popped after only uninteresting ones remain, to tolerate clock skew
+  private static final int SLOP = 5;
+
+  private static final Comparator<RevCommit> BY_DATE = (a, b) -> {
+    int cmp = Long.compare(b.commitTime, a.commitTime);
+    return cmp != 0 ? cmp : Integer.compare(a.index, b.index);
+  };
+
+  private final RevCommit.Pool pool;
+  private final PriorityQueue<RevCommit> queue = new PriorityQueue<>(BY_DATE);
+  private int[] flags = new int[64];
+
+  private boolean hasUninteresting;
+  private boolean topoOrder;
+  private boolean dateOrder;
+  private boolean reverse;
+  private int maxCount = -1;
+  private long since = -1;
+  private long until = -1;
+
+  // Path limiting: only commits that change one of these paths are shown
+  private List<String> paths;
+  private List<int[][]> pathKeys;
+  private List<Map<String, String>> pathCache;
+  private boolean treeSame;
+
+  // Ids as marked, for walks over the objects they reach
+  private final List<String> startIds = new ArrayList<>();
+  private final List<String> uninterestingIds = new ArrayList<>();
+
+  private boolean started;
+  private int returned;
+  // Fully computed output when the walk has to be limited or sorted up front
+  private Iterator<RevCommit> prepared;
+
+  public RevWalk() {
+    this(new RevCommit.Pool());
+  }
+
+  public RevWalk(RevCommit.Pool pool) {
+    this.pool = pool;
+  }
+
+  public RevCommit.Pool getPool() {
+    return pool;
+  }
+
+  public void markStart(String id) throws IOException {
+    startIds.add(id);
+    RevCommit commit = pool.parse(id);
+    if ((getFlags(commit) & ADDED) == 0) {
+      addFlags(commit, ADDED | SEEN);
+      queue.add(commit);
+    }
+  }
+
+  public void markUninteresting(String id) throws IOException {
+    uninterestingIds.add(id);
+    RevCommit commit = pool.parse(id);
+    addFlags(commit, UNINTERESTING);
+    hasUninteresting = true;
+    if ((getFlags(commit) & ADDED) == 0) {
+      addFlags(commit, ADDED | SEEN);
+      queue.add(commit);
+    }
+  }
+
+  public List<String> getStarts() {
+    return startIds;
+  }
+
+  public List<String> getUninteresting() {
+    return uninterestingIds;
+  }
+
+  public void setTopoOrder(boolean topoOrder) {
+    this.topoOrder = topoOrder;
+  }
+
+  public void setDateOrder(boolean dateOrder) {
+    this.dateOrder = dateOrder;
+  }
+
+  public void setReverse(boolean reverse) {
+    this.reverse = reverse;
+  }
+
+  public void setMaxCount(int maxCount) {
+    this.maxCount = maxCount;
+  }
+
+  public void setSince(long since) {
+    this.since = since;
+  }
+
+  public void setUntil(long until) {
+    this.until = until;
+  }
+
+  public void setPathFilter(List<String> filterPaths) {
+    if (filterPaths == null || filterPaths.isEmpty()) {
+      paths = null;
+      return;
+    }
+    paths = new ArrayList<>();
+    pathKeys = new ArrayList<>();
+    pathCache = new ArrayList<>();
+    for (String path : filterPaths) {
+      String normalized = path.startsWith("./") ? path.substring(2) : path;
+      while (normalized.endsWith("/")) {
+        normalized = normalized.substring(0, normalized.length() - 1);
+      }
+      paths.add(normalized);
+
+      // A Bloom filter hit needs the path and each of its leading directories
+      List<int[]> keys = new ArrayList<>();
+      String prefix = normalized;
+      while (true) {
+        keys.add(BloomFilter.hashes(prefix));
+        int slash = prefix.lastIndexOf('/');
+        if (slash < 0) {
+          break;
+        }
+        prefix = prefix.substring(0, slash);
+      }
+      pathKeys.add(keys.toArray(new int[0][]));
+      pathCache.add(new HashMap<>());
+    }
+  }
+
+  // Consumes the revision and option arguments the walker understands and returns
+  // command specific flags to the caller. Anything after "--" limits the walk to paths.
+  public List<String> parseArguments(String[] args, int start) throws IOException {
+    List<String> rest = new ArrayList<>();
+    List<String> starts = new ArrayList<>();
+    List<String> excludes = new ArrayList<>();
+
+    for (int i = start; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.equals("--")) {
+        setPathFilter(Arrays.asList(args).subList(i + 1, args.length));
+        break;
+      } else if (arg.equals("-n") && i + 1 < args.length) {
+        maxCount = Integer.parseInt(args[++i]);
+      } else if (arg.startsWith("--max-count=")) {
+        maxCount = Integer.parseInt(arg.substring(12));
+      } else if (arg.matches("-n?[0-9]+")) {
+        maxCount = Integer.parseInt(arg.substring(arg.charAt(1) == 'n' ? 2 : 1));
+      } else if (arg.startsWith("--since=") || arg.startsWith("--after=")) {
+        since = parseDate(arg.substring(8));
+      } else if (arg.startsWith("--until=") || arg.startsWith("--before=")) {
+        until = parseDate(arg.substring(arg.indexOf('=') + 1));
+      } else if (arg.equals("--topo-order")) {
+        topoOrder = true;
+      } else if (arg.equals("--date-order")) {
+        dateOrder = true;
+      } else if (arg.equals("--reverse")) {
+        reverse = true;
+      } else if (arg.equals("--all")) {
+        String head = GitRepository.getHeadCommit();
+        if (head != null) {
+          starts.add(head);
+        }
+        for (String id : GitRepository.getAllRefs().values()) {
+          if (!id.startsWith("ref: ")) {
+            starts.add(resolve(id));
+          }
+        }
+      } else if (arg.startsWith("-")) {
+        rest.add(arg);
+      } else if (arg.startsWith("^")) {
+        excludes.add(resolve(arg.substring(1)));
+      } else if (arg.contains("...")) {
+        int sep = arg.indexOf("...");
+        String left = resolve(arg.substring(0, sep).isEmpty() ? "HEAD" : arg.substring(0, sep));
+        String right = resolve(arg.substring(sep + 3).isEmpty() ? "HEAD" : arg.substring(sep + 3));
+        starts.add(left);
+        starts.add(right);
+        excludes.addAll(new MergeBase(pool).findMergeBases(left, List.of(right), true));
+      } else if (arg.contains("..")) {
+        int sep = arg.indexOf("..");
+        excludes.add(resolve(arg.substring(0, sep).isEmpty() ? "HEAD" : arg.substring(0, sep)));
+        starts.add(resolve(arg.substring(sep + 2).isEmpty() ? "HEAD" : arg.substring(sep + 2)));
+      } else {
+        starts.add(resolve(arg));
+      }
+    }
+
+    if (starts.isEmpty() && excludes.isEmpty()) {
+      String head = GitRepository.getHeadCommit();
+      if (head != null) {
+        starts.add(head);
+      }
+    }
+    for (String id : starts) {
+      markStart(id);
+    }
+    for (String id : excludes) {
+      markUninteresting(id);
+    }
+    return rest;
+  }
+
+  // Resolves a ref or id followed by any number of ~N / ^N suffixes
+  public String resolve(String rev) throws IOException {
+    int suffix = rev.length();
+    for (int i = 0; i < rev.length(); i++) {
+      char c = rev.charAt(i);
+      if (c == '~' || c == '^') {
+        suffix = i;
+        break;
+      }
+    }
+
+    String id = GitRepository.resolveRef(rev.substring(0, suffix));
+    if (id == null) {
+      throw new IOException("Bad revision: " + rev);
+    }
+    // An annotated tag stands for the commit it points at
+    for (ObjectStore.ObjectInfo object = ObjectStore.parseObject(id); object.type.equals("tag");
+        object = ObjectStore.parseObject(id)) {
+      String content = new String(object.content, StandardCharsets.UTF_8);
+      if (!content.startsWith("object ")) {
+        throw new IOException("Malformed tag object: " + id);
+      }
+      id = content.substring(7, 47);
+    }
+
+    int pos = suffix;
+    while (pos < rev.length()) {
+      char op = rev.charAt(pos++);
+      int numStart = pos;
+      while (pos < rev.length() && Character.isDigit(rev.charAt(pos))) {
+        pos++;
+      }
+      int n = numStart == pos ? 1 : Integer.parseInt(rev.substring(numStart, pos));
+      if (op == '~') {
+        for (int i = 0; i < n; i++) {
+          RevCommit commit = pool.parse(id);
+          if (commit.parents.length == 0) {
+            throw new IOException("Bad revision: " + rev);
+          }
+          id = commit.parents[0].id;
+        }
+      } else if (op == '^') {
+        if (n == 0) {
+          continue;
+        }
+        RevCommit commit = pool.parse(id);
+        if (commit.parents.length < n) {
+          throw new IOException("Bad revision: " + rev);
+        }
+        id = commit.parents[n - 1].id;
+      } else {
+        throw new IOException("Bad revision: " + rev);
+      }
+    }
+    return id;
+  }
+
+  public RevCommit next() throws IOException {
+    if (!started) {
+      started = true;
+      if (hasUninteresting || topoOrder || dateOrder || reverse) {
+        prepared = prepare().iterator();
+      }
+    }
+    if (maxCount >= 0 && returned >= maxCount && !reverse) {
+      return null;
+    }
+
+    RevCommit commit;
+    if (prepared != null) {
+      commit = prepared.hasNext() ? prepared.next() : null;
+    } else {
+      commit = nextStreaming();
+    }
+    if (commit != null) {
+      returned++;
+    }
+    return commit;
+  }
+
+  public int count() throws IOException {
+    int count = 0;
+    while (next() != null) {
+      count++;
+    }
+    return count;
+  }
+
+  // Unlimited date-ordered walk: commits are emitted as soon as they are popped
+  private RevCommit nextStreaming() throws IOException {
+    while (!queue.isEmpty()) {
+      RevCommit commit = queue.poll();
+      if (since != -1 && commit.commitTime < since) {
+        continue;
+      }
+      addParents(followParents(commit), 0);
+      if (treeSame || (until != -1 && commit.commitTime > until)) {
+        continue;
+      }
+      return commit;
+    }
+    return null;
+  }
+
+  private List<RevCommit> prepare() throws IOException {
+    List<RevCommit> list = limitList();
+    if (topoOrder || dateOrder) {
+      list = sortTopologically(list);
+    }
+    if (reverse) {
+      if (maxCount >= 0 && list.size() > maxCount) {
+        list = new ArrayList<>(list.subList(0, maxCount));
+      }
+      Collections.reverse(list);
+    }
+    return list;
+  }
+
+  // Walks until every queued commit is uninteresting, then drops anything that was
+  // found to be reachable from an uninteresting commit after it had been collected
+  private List<RevCommit> limitList() throws IOException {
+    List<RevCommit> collected = new ArrayList<>();
+    int slop = SLOP;
+
+    while (!queue.isEmpty()) {
+      RevCommit commit = queue.poll();
+      if ((getFlags(commit) & UNINTERESTING) != 0) {
+        addParents(commit.parents, UNINTERESTING);
+        if (everybodyUninteresting()) {
+          if (--slop == 0) {
+            break;
+          }
+        } else {
+          slop = SLOP;
+        }
+        continue;
+      }
+      if (since != -1 && commit.commitTime < since) {
+        continue;
+      }
+      addParents(followParents(commit), 0);
+      if (!treeSame) {
+        collected.add(commit);
+      }
+    }
+
+    List<RevCommit> result = new ArrayList<>();
+    for (RevCommit commit : collected) {
+      if ((getFlags(commit) & UNINTERESTING) != 0) {
+        continue;
+      }
+      if (until != -1 && commit.commitTime > until) {
+        continue;
+      }
+      result.add(commit);
+    }
+    return result;
+  }
+
+  private void addParents(RevCommit[] parents, int inherited) throws IOException {
+    for (RevCommit parent : parents) {
+      int parentFlags = getFlags(parent);
+      if (inherited != 0 && (parentFlags & inherited) == 0) {
+        addFlags(parent, inherited);
+        if ((parentFlags & SEEN) != 0) {
+          markParentsUninteresting(parent);
+        }
+      }
+      if ((parentFlags & SEEN) != 0) {
+        continue;
+      }
+      parent.parse(pool);
+      addFlags(parent, SEEN);
+      queue.add(parent);
+    }
+  }
+
+  // A commit already popped and expanded was reached again from the uninteresting
+  // side, so push the flag down through the part of the graph already visited
+  private void markParentsUninteresting(RevCommit commit) {
+    Deque<RevCommit> stack = new ArrayDeque<>();
+    stack.push(commit);
+    while (!stack.isEmpty()) {
+      RevCommit current = stack.pop();
+      if (current.parents == null) {
+        continue;
+      }
+      for (RevCommit parent : current.parents) {
+        if ((getFlags(parent) & UNINTERESTING) != 0) {
+          continue;
+        }
+        addFlags(parent, UNINTERESTING);
+        stack.push(parent);
+      }
+    }
+  }
+
+  // Decides whether the commit is hidden by the path filter (treeSame) and which
+  // parents to continue through: a merge that matches one parent follows only it
+  private RevCommit[] followParents(RevCommit commit) throws IOException {
+    treeSame = false;
+    if (paths == null) {
+      return commit.parents;
+    }
+    if (commit.parents.length == 0) {
+      treeSame = true;
+      for (int i = 0; i < paths.size(); i++) {
+        if (lookupPath(commit.tree, i) != null) {
+          treeSame = false;
+        }
+      }
+      return commit.parents;
+    }
+
+    for (int i = 0; i < commit.parents.length; i++) {
+      RevCommit parent = commit.parents[i];
+      parent.parse(pool);
+      if (isTreeSame(commit, parent, i == 0)) {
+        treeSame = true;
+        return commit.parents.length == 1 ? commit.parents : new RevCommit[] { parent };
+      }
+    }
+    return commit.parents;
+  }
+
+  private boolean isTreeSame(RevCommit commit, RevCommit parent, boolean firstParent) throws IOException {
+    // Filters describe the diff against the first parent; a miss for every path
+    // settles it without opening a single tree
+    if (firstParent && commit.graphPosition >= 0 && pool.graph.hasBloomFilters()) {
+      BloomFilter filter = pool.graph.getBloomFilter(commit.graphPosition);
+      boolean maybeChanged = false;
+      for (int[][] keys : pathKeys) {
+        boolean hit = true;
+        for (int[] key : keys) {
+          if (!filter.mightContain(key)) {
+            hit = false;
+            break;
+          }
+        }
+        if (hit) {
+          maybeChanged = true;
+          break;
+        }
+      }
+      if (!maybeChanged) {
+        return true;
+      }
+    }
+
+    for (int i = 0; i < paths.size(); i++) {
+      if (!Objects.equals(lookupPath(commit.tree, i), lookupPath(parent.tree, i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Id of the entry at paths[index] inside the tree, or null when it does not exist
+  private String lookupPath(String treeId, int index) throws IOException {
+    Map<String, String> cache = pathCache.get(index);
+    String cached = cache.get(treeId);
+    if (cached != null) {
+      return cached.isEmpty() ? null : cached;
+    }
+
+    String path = paths.get(index);
+    String current = treeId;
+    int start = 0;
+    while (current != null) {
+      int slash = path.indexOf('/', start);
+      String name = slash < 0 ? path.substring(start) : path.substring(start, slash);
+      current = findTreeEntry(current, name);
+      if (slash < 0) {
+        break;
+      }
+      start = slash + 1;
+    }
+    cache.put(treeId, current == null ? "" : current);
+    return current;
+  }
+
+  private static String findTreeEntry(String treeId, String name) throws IOException {
+    ObjectStore.ObjectInfo obj = ObjectStore.parseObject(treeId);
+    if (!obj.type.equals("tree")) {
+      return null;
+    }
+    TreeIterator entries = new TreeIterator(obj.content);
+    return entries.find(name.getBytes()) ? entries.id() : null;
+  }
+
+  private boolean everybodyUninteresting() {
+    for (RevCommit commit : queue) {
+      if ((getFlags(commit) & UNINTERESTING) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Emits every child before its parents. Topo order follows one line of history
+  // as far as possible (LIFO); date order picks the newest ready commit (queue).
+  private List<RevCommit> sortTopologically(List<RevCommit> list) {
+    Map<RevCommit, Integer> indegree = new HashMap<>(list.size() * 2);
+    for (RevCommit commit : list) {
+      indegree.put(commit, 0);
+    }
+    for (RevCommit commit : list) {
+      for (RevCommit parent : commit.parents) {
+        Integer count = indegree.get(parent);
+        if (count != null) {
+          indegree.put(parent, count + 1);
+        }
+      }
+    }
+
+    Deque<RevCommit> stack = new ArrayDeque<>();
+    PriorityQueue<RevCommit> ready = new PriorityQueue<>(BY_DATE);
+    for (int i = list.size() - 1; i >= 0; i--) {
+      RevCommit commit = list.get(i);
+      if (indegree.get(commit) == 0) {
+        if (topoOrder) {
+          stack.push(commit);
+        } else {
+          ready.add(commit);
+        }
+      }
+    }
+
+    List<RevCommit> sorted = new ArrayList<>(list.size());
+    while (topoOrder ? !stack.isEmpty() : !ready.isEmpty()) {
+      RevCommit commit = topoOrder ? stack.pop() : ready.poll();
+      sorted.add(commit);
+      for (int i = commit.parents.length - 1; i >= 0; i--) {
+        RevCommit parent = commit.parents[i];
+        Integer count = indegree.get(parent);
+        if (count == null) {
+          continue;
+        }
+        indegree.put(parent, count - 1);
+        if (count - 1 == 0) {
+          if (topoOrder) {
+            stack.push(parent);
+          } else {
+            ready.add(parent);
+          }
+        }
+      }
+    }
+    return sorted;
+  }
+
+  // Accepts epoch seconds, @epoch, ISO dates/times (UTC unless they carry an offset)
+  // and "N <unit>s ago"
+  public static long parseDate(String value) throws IOException {
+    String text = value.trim();
+    try {
+      if (text.startsWith("@")) {
+        return Long.parseLong(text.substring(1));
+      }
+      if (text.matches("[0-9]+")) {
+        return Long.parseLong(text);
+      }
+      // "2 weeks ago", or "2.weeks.ago" as git's configs spell it
+      if (text.endsWith(" ago") || text.endsWith(".ago")) {
+        String[] parts = text.split("[ .]+");
+        long amount = Long.parseLong(parts[0]);
+        String unit = parts[1].endsWith("s") ? parts[1].substring(0, parts[1].length() - 1) : parts[1];
+        long seconds = switch (unit) {
+          case "second" -> 1;
+          case "minute" -> 60;
+          case "hour" -> 3600;
+          case "day" -> 86400;
+          case "week" -> 7 * 86400;
+          case "month" -> 30 * 86400;
+          case "year" -> 365 * 86400;
+          default -> throw new IOException("Unknown date unit: " + parts[1]);
+        };
+        return System.currentTimeMillis() / 1000 - amount * seconds;
+      }
+      if (text.length() == 10) {
+        return LocalDate.parse(text).atStartOfDay().toEpochSecond(ZoneOffset.UTC);
+      }
+      String iso = text.replace(' ', 'T');
+      try {
+        return OffsetDateTime.parse(iso).toEpochSecond();
+      } catch (DateTimeParseException e) {
+        return LocalDateTime.parse(iso).toEpochSecond(ZoneOffset.UTC);
+      }
+    } catch (RuntimeException e) {
+      throw new IOException("Invalid date: " + value);
+    }
+  }
+
+  private int getFlags(RevCommit commit) {
+    return commit.index < flags.length ? flags[commit.index] : 0;
+  }
+
+  private void addFlags(RevCommit commit, int bits) {
+    if (commit.index >= flags.length) {
+      flags = Arrays.copyOf(flags, Math.max(commit.index + 1, flags.length * 2));
+    }
+    flags[commit.index] |= bits;
+  }
+}
@@ -0,0 +1,316 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+// Replays a list of commits (cherry-pick and rebase). Every step is a TreeMerger run
+// whose result is stored straight into the object database as a new commit; the
+// worktree and index are written once, when the sequence finishes or stops on a
+// conflict. A stopped sequence is kept under .git/sequencer so it can be continued
+// or aborted.
+public class Sequencer {
+
+  public static final String CHERRY_PICK = "cherry-pick";
+  public static final String REBASE = "rebase";
+
+  private final String action;
+  // Reuse a commit whose parent is already the current tip instead of writing a new
+  // one: cherry-pick --ff, and always for rebase
+  private boolean fastForward;
+  private final RevCommit.Pool pool = new RevCommit.Pool();
+  // Branch being rewritten (refs/heads/...), or null when HEAD was detached
+  private String headName;
+  private String origHead;
+  // Tree currently written to the worktree
+  private String worktreeTree;
+  private Deque<String> todo = new ArrayDeque<>();
+
+  private Sequencer(String action) {
+    this.action = action;
+  }
+
+  public static boolean inProgress() {
+    return stateDir().exists();
+  }
+
+  public static void cherryPick(List<String> commits, boolean fastForward) throws IOException {
+    Sequencer sequencer = start(CHERRY_PICK);
+    sequencer.fastForward = fastForward;
+    sequencer.todo.addAll(commits);
+    sequencer.run(sequencer.origHead);
+  }
+
+  // Replays upstream..HEAD on top of onto, skipping merge commits like git does
+  public static void rebase(String upstream, String onto) throws IOException {
+    Sequencer sequencer = start(REBASE);
+    sequencer.fastForward = true;
+    String head = sequencer.origHead;
+    MergeBase mergeBase = new MergeBase(sequencer.pool);
+    if (onto.equals(mergeBase.findMergeBase(upstream, head))) {
+      System.out.println("Current branch " + (sequencer.headName != null ? shortName(sequencer.headName) : "HEAD")
+          + " is up to date.");
+      return;
+    }
+
+    RevWalk walk = new RevWalk(sequencer.pool);
+    walk.markStart(head);
+    walk.markUninteresting(upstream);
+    walk.setTopoOrder(true);
+    walk.setReverse(true);
+    RevCommit commit;
+    while ((commit = walk.next()) != null) {
+      if (commit.getParents().length <= 1) {
+        sequencer.todo.add(commit.id);
+      }
+    }
+    sequencer.run(onto);
+  }
+
+  // Picks up after the user resolved a conflict; resolvedTree is the tree written
+  // from the index. action is the command continuing, which must be the one that stopped.
+  public static void resume(String action, String resolvedTree) throws IOException {
+    Sequencer sequencer = load(action);
+    List<String> unmerged = GitRepository.getUnmergedPaths();
+    if (!unmerged.isEmpty()) {
+      throw new IOException("You must edit all merge conflicts and then mark them as resolved using git add: "
+          + String.join(", ", unmerged));
+    }
+
+    String current = GitRepository.getHeadCommit();
+    String stopped = sequencer.todo.removeFirst();
+    if (!resolvedTree.equals(sequencer.pool.parse(current).getTree())) {
+      current = sequencer.commit(resolvedTree, current, stopped);
+    }
+    sequencer.worktreeTree = resolvedTree;
+    GitRepository.clearMergeState();
+    sequencer.run(current);
+  }
+
+  // Puts the branch, worktree and index back to where they were before the sequence
+  public static void abort(String action) throws IOException {
+    Sequencer sequencer = load(action);
+    String origTree = sequencer.pool.parse(sequencer.origHead).getTree();
+    WorkTreeUpdater.update(sequencer.worktreeTree, origTree, Set.of(), true);
+    sequencer.finish(sequencer.origHead);
+    GitRepository.clearMergeState();
+  }
+
+  // Commits and trees a stopped sequence still refers to, which gc must keep
+  static List<String> referencedObjects() throws IOException {
+    List<String> ids = new ArrayList<>();
+    if (inProgress()) {
+      Sequencer sequencer = load(null);
+      ids.add(sequencer.origHead);
+      ids.add(sequencer.worktreeTree);
+      ids.addAll(sequencer.todo);
+    }
+    return ids;
+  }
+
+  private static Sequencer start(String action) throws IOException {
+    if (inProgress()) {
+      throw new IOException("A cherry-pick or rebase is already in progress (try --continue or --abort)");
+    }
+    if (GitRepository.readMergeHead() != null) {
+      throw new IOException("You have not concluded your merge (MERGE_HEAD exists).");
+    }
+    Sequencer sequencer = new Sequencer(action);
+    sequencer.origHead = GitRepository.getHeadCommit();
+    if (sequencer.origHead == null) {
+      throw new IOException("No commits yet");
+    }
+    String branch = GitRepository.getCurrentBranch();
+    sequencer.headName = branch != null ? "refs/heads/" + branch : null;
+    sequencer.worktreeTree = sequencer.pool.parse(sequencer.origHead).getTree();
+    return sequencer;
+  }
+
+  private void run(String current) throws IOException {
+    String currentTree = pool.parse(current).getTree();
+    while (!todo.isEmpty()) {
+      String id = todo.peekFirst();
+      RevCommit commit = pool.parse(id);
+      RevCommit[] parents = commit.getParents();
+      if (parents.length > 1) {
+        throw new IOException("Commit " + id + " is a merge but no -m option was given.");
+      }
+
+      // Already on top of the current tip: reuse the commit as is
+      if (fastForward && parents.length == 1 && parents[0].id.equals(current)) {
+        current = id;
+        currentTree = commit.getTree();
+        todo.removeFirst();
+        report(id, current);
+        continue;
+      }
+
+      String parentTree = parents.length == 1 ? pool.parse(parents[0].id).getTree() : null;
+      TreeMerger merger = new TreeMerger(pool, "HEAD", id.substring(0, 7) + " (" + subject(id) + ")");
+      String tree = merger.mergeTrees(parentTree, currentTree, commit.getTree());
+
+      if (merger.hasConflicts()) {
+        stop(current, tree, merger);
+        return;
+      }
+
+      todo.removeFirst();
+      if (tree.equals(currentTree)) {
+        System.out.println("dropping " + id.substring(0, 7) + " " + subject(id) + " -- patch contents already upstream");
+        continue;
+      }
+      current = commit(tree, current, id);
+      currentTree = tree;
+      report(id, current);
+    }
+
+    WorkTreeUpdater.update(worktreeTree, currentTree, Set.of());
+    finish(current);
+    if (action.equals(REBASE)) {
+      System.out.println("Successfully rebased and updated " + (headName != null ? headName : "detached HEAD") + ".");
+    }
+  }
+
+  private void report(String picked, String created) throws IOException {
+    if (action.equals(CHERRY_PICK)) {
+      String branch = headName != null ? shortName(headName) : "detached HEAD";
+      System.out.println("[" + branch + " " + created.substring(0, 7) + "] " + subject(picked));
+    }
+  }
+
+  // Writes the conflicted result to the worktree and saves the state. HEAD is left
+  // detached at the last commit that applied cleanly.
+  private void stop(String current, String conflictedTree, TreeMerger merger) throws IOException {
+    String currentTree = pool.parse(current).getTree();
+    WorkTreeUpdater.update(worktreeTree, currentTree, Set.of());
+    WorkTreeUpdater.update(currentTree, conflictedTree, merger.getConflicts().keySet());
+    worktreeTree = conflictedTree;
+    GitRepository.detachHead(current);
+    GitRepository.writeUnmergedPaths(new ArrayList<>(merger.getConflicts().keySet()));
+    save();
+
+    for (String conflict : merger.getConflicts().values()) {
+      System.out.println(conflict);
+    }
+    String stopped = todo.peekFirst();
+    System.out.println("error: could not apply " + stopped.substring(0, 7) + "... " + subject(stopped));
+    System.out.println("Resolve all conflicts manually, mark them as resolved with \"git add <file>\", then run \"git "
+        + action + " --continue\".");
+    System.out.println("To abort and get back to the state before \"git " + action + "\", run \"git " + action + " --abort\".");
+    throw new Main.Exit(1);
+  }
+
+  private void finish(String tip) throws IOException {
+    // Branch and HEAD move together, so an interrupted finish never leaves HEAD
+    // detached with the branch already rewritten
+    RefTransaction transaction = new RefTransaction();
+    if (headName != null) {
+      transaction.update(headName, tip, null).setSymbolic("HEAD", headName);
+    } else {
+      transaction.update("HEAD", tip, null);
+    }
+    transaction.commit();
+    deleteState();
+  }
+
+  // New commit keeping the original author and message; the committer is the current user
+  private String commit(String tree, String parent, String original) throws IOException {
+    String raw = new String(ObjectStore.parseObject(original).content, StandardCharsets.UTF_8);
+    int messageStart = raw.indexOf("\n\n");
+    String author = null;
+    for (String line : raw.substring(0, messageStart < 0 ? raw.length() : messageStart).split("\n")) {
+      if (line.startsWith("author ")) {
+        author = line;
+      }
+    }
+
+    String committer = Config.getUserName() + " <" + Config.getUserEmail() + ">";
+    long timestamp = System.currentTimeMillis() / 1000;
+
+    StringBuilder commitContent = new StringBuilder();
+    commitContent.append("tree ").append(tree).append("\n");
+    commitContent.append("parent ").append(parent).append("\n");
+    if (author != null) {
+      commitContent.append(author).append("\n");
+    }
+    commitContent.append("committer ").append(committer).append(" ").append(timestamp).append(" +0000").append("\n");
+    commitContent.append("\n");
+    if (messageStart >= 0) {
+      commitContent.append(raw.substring(messageStart + 2));
+    }
+
+    return ObjectStore.storeObject("commit", commitContent.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  private String subject(String id) throws IOException {
+    String raw = new String(ObjectStore.parseObject(id).content, StandardCharsets.UTF_8);
+    int messageStart = raw.indexOf("\n\n");
+    if (messageStart < 0) {
+      return "";
+    }
+    String message = raw.substring(messageStart + 2);
+    int end = message.indexOf('\n');
+    return end >= 0 ? message.substring(0, end) : message;
+  }
+
+  private static String shortName(String refName) {
+    return refName.startsWith("refs/heads/") ? refName.substring(11) : refName;
+  }
+
+  // ========== STATE ==========
+  private void save() throws IOException {
+    stateDir().mkdirs();
+    write("action", action);
+    write("fast-forward", String.valueOf(fastForward));
+    write("head-name", headName != null ? headName : "detached HEAD");
+    write("orig-head", origHead);
+    write("worktree", worktreeTree);
+    write("todo", String.join("\n", todo));
+  }
+
+  // With an action, refuses the state another command left behind
+  private static Sequencer load(String action) throws IOException {
+    if (!inProgress()) {
+      throw new IOException(action != null ? "No " + action + " in progress" : "No cherry-pick or rebase in progress");
+    }
+    String stopped = read("action");
+    if (action != null && !action.equals(stopped)) {
+      throw new IOException("No " + action + " in progress; a " + stopped + " is (try \"git " + stopped
+          + " --continue\" or \"git " + stopped + " --abort\")");
+    }
+    Sequencer sequencer = new Sequencer(stopped);
+    sequencer.fastForward = Boolean.parseBoolean(read("fast-forward"));
+    String headName = read("head-name");
+    sequencer.headName = headName.startsWith("refs/") ? headName : null;
+    sequencer.origHead = read("orig-head");
+    sequencer.worktreeTree = read("worktree");
+    for (String id : read("todo").split("\n")) {
+      if (!id.isEmpty()) {
+        sequencer.todo.add(id);
+      }
+    }
+    return sequencer;
+  }
+
+  private static File stateDir() {
+    return Repository.current().gitFile("sequencer");
+  }
+
+  private static void write(String name, String value) throws IOException {
+    Files.write(new File(stateDir(), name).toPath(), (value + "\n").getBytes());
+  }
+
+  private static String read(String name) throws IOException {
+    return Files.readString(new File(stateDir(), name).toPath()).trim();
+  }
+
+  private static void deleteState() {
+    File[] files = stateDir().listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    stateDir().delete();
+  }
+}
@@ -0,0 +1,77 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+// .git/shallow lists, one id per line, the commits of a shallow clone whose parents
+// were never fetched. RevCommit treats them as roots, so log, merge-base and every
+// walk stop there instead of failing on a missing parent. The commit-graph is not
+// used in a shallow repository, since its parent lists would disagree.
+public class Shallow {
+  private static class Cache {
+    Set<String> commits = Set.of();
+    long modified = -1;
+    long size = -1;
+  }
+
+  public static Set<String> read() throws IOException {
+    Cache cache = Repository.current().state(Cache.class, Cache::new);
+    File file = file();
+    synchronized (cache) {
+      if (!file.exists()) {
+        cache.commits = Set.of();
+        cache.modified = -1;
+        return cache.commits;
+      }
+      if (file.lastModified() == cache.modified && file.length() == cache.size) {
+        return cache.commits;
+      }
+      Set<String> commits = new TreeSet<>();
+      for (String line : Files.readAllLines(file.toPath(), StandardCharsets.US_ASCII)) {
+        if (!line.isBlank()) {
+          commits.add(line.trim());
+        }
+      }
+      cache.commits = Collections.unmodifiableSet(commits);
+      cache.modified = file.lastModified();
+      cache.size = file.length();
+      return cache.commits;
+    }
+  }
+
+  public static boolean isShallow() throws IOException {
+    return !read().isEmpty();
+  }
+
+  // Replaces the list; an empty one removes the file, making the repository complete
+  public static void write(Set<String> commits) throws IOException {
+    File file = file();
+    Cache cache = Repository.current().state(Cache.class, Cache::new);
+    synchronized (cache) {
+      cache.modified = -1;
+    }
+    if (commits.isEmpty()) {
+      Files.deleteIfExists(file.toPath());
+      return;
+    }
+    StringBuilder content = new StringBuilder();
+    for (String id : new TreeSet<>(commits)) {
+      content.append(id).append('\n');
+    }
+    File tmp = File.createTempFile("shallow", ".tmp", file.getParentFile());
+    try {
+      Files.writeString(tmp.toPath(), content, StandardCharsets.US_ASCII);
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      tmp.delete();
+    }
+  }
+
+  private static File file() {
+    return Repository.current().gitFile("shallow");
+  }
+}
@@ -0,0 +1,182 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+
+// A connection to the upload-pack or receive-pack side of a remote. git://host[:port]/path
+// opens a socket to a `serve` process (or git daemon) and sends the service request
+// line; anything else is a path (or file:// URL) to another worktree, whose side runs
+// on a thread of this process over a pair of pipes. Both speak the same pkt-line
+// protocol, so local transfers go through the same pack code as network ones.
+public class Transport {
+  static final int DEFAULT_PORT = 9418;
+  static final int CONNECT_TIMEOUT = 10_000;
+
+  public static class Connection implements Closeable {
+    final InputStream in;
+    final OutputStream out;
+    private final Closeable resource;
+    private Thread server;
+    private volatile Throwable failure;
+
+    private Connection(InputStream in, OutputStream out, Closeable resource) {
+      this.in = in;
+      this.out = out;
+      this.resource = resource;
+    }
+
+    // For local transfers the serving side's exception is more useful than the end
+    // of stream the client sees when that side gives up
+    private void checkServer() throws IOException {
+      if (failure instanceof IOException e) {
+        throw new IOException(e.getMessage(), e);
+      } else if (failure != null) {
+        throw new IOException(failure.toString(), failure);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        out.close();
+      } finally {
+        in.close();
+        resource.close();
+      }
+      if (server != null) {
+        try {
+          server.join();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+
+  static boolean isNetwork(String url) {
+    return url.startsWith("git://");
+  }
+
+  // service is "git-upload-pack" or "git-receive-pack"
+  public static Connection open(String url, String service) throws IOException {
+    return isNetwork(url) ? openSocket(url, service) : openLocal(url, service);
+  }
+
+  // ========== NETWORK ==========
+
+  private static Connection openSocket(String url, String service) throws IOException {
+    String rest = url.substring("git://".length());
+    int slash = rest.indexOf('/');
+    String authority = slash >= 0 ? rest.substring(0, slash) : rest;
+    String path = slash >= 0 ? rest.substring(slash) : "/";
+    String host = authority;
+    int port = DEFAULT_PORT;
+    int colon = authority.lastIndexOf(':');
+    if (colon >= 0 && !authority.endsWith("]")) {
+      host = authority.substring(0, colon);
+      port = Integer.parseInt(authority.substring(colon + 1));
+    }
+    if (host.startsWith("[") && host.endsWith("]")) {
+      host = host.substring(1, host.length() - 1);
+    }
+
+    Socket socket = new Socket();
+    try {
+      socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+      socket.setTcpNoDelay(true);
+    } catch (IOException e) {
+      socket.close();
+      throw new IOException("unable to connect to " + host + ":" + port + ": " + e.getMessage());
+    }
+    InputStream in = new BufferedInputStream(socket.getInputStream(), 1 << 16);
+    OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+    PktLine.write(out, service + " " + path + "\0host=" + authority + "\0");
+    out.flush();
+    return new Connection(in, out, socket);
+  }
+
+  // ========== LOCAL ==========
+
+  // The repository at a local URL; relative paths are taken from the worktree
+  static Repository openLocalRepository(String url) throws IOException {
+    String path = url.startsWith("file://") ? url.substring(7) : url;
+    File dir = new File(path);
+    if (!dir.isAbsolute()) {
+      dir = new File(Repository.current().getWorkTree(), path);
+    }
+    try {
+      return Repository.open(dir);
+    } catch (IOException e) {
+      throw new IOException("'" + url + "' does not appear to be a git repository");
+    }
+  }
+
+  private static Connection openLocal(String url, String service) throws IOException {
+    Repository repository = openLocalRepository(url);
+    Pipe toServer = Pipe.open();
+    Pipe toClient = Pipe.open();
+    InputStream serverIn = new BufferedInputStream(Channels.newInputStream(toServer.source()), 1 << 16);
+    OutputStream serverOut = new BufferedOutputStream(Channels.newOutputStream(toClient.sink()), 1 << 16);
+
+    Connection[] connection = new Connection[1];
+    InputStream in = new FilterInputStream(new BufferedInputStream(Channels.newInputStream(toClient.source()), 1 << 16)) {
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if (b < 0) {
+          connection[0].checkServer();
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] data, int offset, int length) throws IOException {
+        int n = super.read(data, offset, length);
+        if (n < 0) {
+          connection[0].checkServer();
+        }
+        return n;
+      }
+    };
+    OutputStream out = new BufferedOutputStream(Channels.newOutputStream(toServer.sink()), 1 << 16);
+    connection[0] = new Connection(in, out, () -> {});
+
+    Thread server = new Thread(() -> {
+      try {
+        if (service.equals("git-upload-pack")) {
+          new UploadPack(repository).serve(serverIn, serverOut);
+        } else {
+          new ReceivePack(repository).serve(serverIn, serverOut);
+        }
+      } catch (Throwable e) {
+        connection[0].failure = e;
+      } finally {
+        closeQuietly(serverOut);
+        closeQuietly(serverIn);
+      }
+    }, service);
+    server.setDaemon(true);
+    connection[0].server = server;
+    server.start();
+    return connection[0];
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException ignored) {
+      // The other side has gone already
+    }
+  }
+
+  // ========== HELPERS ==========
+
+  // Servers answer a request they cannot serve with an "ERR <message>" packet
+  static String checkError(String line) throws IOException {
+    if (line != null && line.startsWith("ERR ")) {
+      throw new IOException("remote error: " + line.substring(4));
+    }
+    return line;
+  }
+}
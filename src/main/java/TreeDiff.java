@@ -0,0 +1,67 @@
+import java.io.IOException;
+import java.util.Objects;
+
+// Walks two trees side by side in git tree order and reports every entry that
+// differs. Subtrees with equal ids are skipped without being read.
+public class TreeDiff {
+
+  public interface Visitor {
+    // Modes are 0 and ids null on the side where the path does not exist. Directory
+    // entries are reported before their contents. Returning false stops the walk.
+    boolean changed(String path, int oldMode, String oldId, int newMode, String newId) throws IOException;
+  }
+
+  public static boolean diff(String oldTree, String newTree, Visitor visitor) throws IOException {
+    return diff(oldTree, newTree, "", visitor);
+  }
+
+  private static boolean diff(String oldTree, String newTree, String prefix, Visitor visitor) throws IOException {
+    if (Objects.equals(oldTree, newTree)) {
+      return true;
+    }
+    TreeIterator oldEntries = oldTree != null ? TreeIterator.forTree(oldTree) : TreeIterator.empty();
+    TreeIterator newEntries = newTree != null ? TreeIterator.forTree(newTree) : TreeIterator.empty();
+    oldEntries.next();
+    newEntries.next();
+
+    while (oldEntries.hasEntry() || newEntries.hasEntry()) {
+      int cmp;
+      if (!oldEntries.hasEntry()) {
+        cmp = 1;
+      } else if (!newEntries.hasEntry()) {
+        cmp = -1;
+      } else {
+        cmp = oldEntries.compareTo(newEntries);
+      }
+
+      if (cmp == 0 && oldEntries.entryEquals(newEntries)) {
+        oldEntries.next();
+        newEntries.next();
+        continue;
+      }
+
+      String path = prefix + (cmp <= 0 ? oldEntries : newEntries).name();
+      int oldMode = cmp <= 0 ? oldEntries.mode() : 0;
+      String oldId = cmp <= 0 ? oldEntries.id() : null;
+      int newMode = cmp >= 0 ? newEntries.mode() : 0;
+      String newId = cmp >= 0 ? newEntries.id() : null;
+      if (!visitor.changed(path, oldMode, oldId, newMode, newId)) {
+        return false;
+      }
+
+      String oldSubtree = oldMode == TreeIterator.MODE_TREE ? oldId : null;
+      String newSubtree = newMode == TreeIterator.MODE_TREE ? newId : null;
+      if ((oldSubtree != null || newSubtree != null) && !diff(oldSubtree, newSubtree, path + "/", visitor)) {
+        return false;
+      }
+
+      if (cmp <= 0) {
+        oldEntries.next();
+      }
+      if (cmp >= 0) {
+        newEntries.next();
+      }
+    }
+    return true;
+  }
+}
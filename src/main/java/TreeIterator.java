@@ -0,0 +1,147 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Cursor over the raw bytes of a tree object. Each entry is exposed as offsets into
+// the shared buffer (mode as an int, name as a slice, id as a 20-byte offset) and
+// Strings are only created when a caller asks for them.
+public class TreeIterator {
+  public static final int MODE_TREE = 040000;
+  public static final int MODE_FILE = 0100644;
+
+  private final byte[] data;
+  private final int end;
+  private int pos;
+
+  private int mode;
+  private int nameOffset;
+  private int nameLength;
+  private int idOffset = -1;
+
+  public TreeIterator(byte[] data) {
+    this(data, 0, data.length);
+  }
+
+  public TreeIterator(byte[] data, int offset, int length) {
+    this.data = data;
+    this.pos = offset;
+    this.end = offset + length;
+  }
+
+  public static TreeIterator forTree(String treeHash) throws IOException {
+    ObjectStore.ObjectInfo obj = ObjectStore.parseObject(treeHash);
+    if (!obj.type.equals("tree")) {
+      throw new IOException("Not a tree object: " + treeHash);
+    }
+    return new TreeIterator(obj.content);
+  }
+
+  // An exhausted iterator, standing in for a tree that does not exist on one side
+  public static TreeIterator empty() {
+    return new TreeIterator(new byte[0]);
+  }
+
+  public boolean next() throws IOException {
+    if (pos >= end) {
+      idOffset = -1;
+      return false;
+    }
+
+    int value = 0;
+    while (pos < end && data[pos] != ' ') {
+      value = (value << 3) + (data[pos] - '0');
+      pos++;
+    }
+    mode = value;
+    nameOffset = ++pos;
+    while (pos < end && data[pos] != 0) {
+      pos++;
+    }
+    nameLength = pos - nameOffset;
+    idOffset = pos + 1;
+    pos = idOffset + 20;
+    if (pos > end) {
+      throw new IOException("Truncated tree entry");
+    }
+    return true;
+  }
+
+  public boolean hasEntry() {
+    return idOffset >= 0;
+  }
+
+  public int mode() {
+    return mode;
+  }
+
+  public boolean isTree() {
+    return mode == MODE_TREE;
+  }
+
+  public String modeString() {
+    return Integer.toOctalString(mode);
+  }
+
+  public byte[] buffer() {
+    return data;
+  }
+
+  public int nameOffset() {
+    return nameOffset;
+  }
+
+  public int nameLength() {
+    return nameLength;
+  }
+
+  public int idOffset() {
+    return idOffset;
+  }
+
+  public String name() {
+    return new String(data, nameOffset, nameLength, StandardCharsets.UTF_8);
+  }
+
+  public String id() {
+    return ObjectStore.toHex(data, idOffset);
+  }
+
+  public boolean nameEquals(byte[] name) {
+    return nameLength == name.length && Arrays.equals(data, nameOffset, nameOffset + nameLength, name, 0, name.length);
+  }
+
+  public boolean idEquals(TreeIterator other) {
+    return Arrays.equals(data, idOffset, idOffset + 20, other.data, other.idOffset, other.idOffset + 20);
+  }
+
+  public boolean entryEquals(TreeIterator other) {
+    return mode == other.mode && idEquals(other);
+  }
+
+  // Git tree order: names compare bytewise, with trees treated as if they end in '/'
+  public int compareTo(TreeIterator other) {
+    return compareNames(data, nameOffset, nameLength, isTree(), other.data, other.nameOffset, other.nameLength, other.isTree());
+  }
+
+  public static int compareNames(byte[] a, int aOffset, int aLength, boolean aTree,
+      byte[] b, int bOffset, int bLength, boolean bTree) {
+    int length = Math.min(aLength, bLength);
+    int cmp = Arrays.compareUnsigned(a, aOffset, aOffset + length, b, bOffset, bOffset + length);
+    if (cmp != 0) {
+      return cmp;
+    }
+    int aNext = aLength > length ? a[aOffset + length] & 0xff : (aTree ? '/' : 0);
+    int bNext = bLength > length ? b[bOffset + length] & 0xff : (bTree ? '/' : 0);
+    return Integer.compare(aNext, bNext);
+  }
+
+  // Advances to the entry with the given name; the tree must not have been iterated yet
+  public boolean find(byte[] name) throws IOException {
+    while (next()) {
+      if (nameEquals(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,227 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Three-way merge of trees done entirely in the object database. The base, ours and
+// theirs trees are walked together; any subtree whose id matches on two sides is
+// resolved without being read, so only the directories that actually differ are
+// loaded. Content conflicts are written into the result blobs with markers and
+// reported through getConflicts().
+public class TreeMerger {
+  private final RevCommit.Pool pool;
+  private final String oursLabel;
+  private final String theirsLabel;
+  // Conflicted path -> message, in the order they were found
+  private final Map<String, String> conflicts = new LinkedHashMap<>();
+
+  public TreeMerger(RevCommit.Pool pool, String oursLabel, String theirsLabel) {
+    this.pool = pool;
+    this.oursLabel = oursLabel;
+    this.theirsLabel = theirsLabel;
+  }
+
+  // Merges two commits and returns the resulting tree id
+  public String mergeCommits(String ours, String theirs) throws IOException {
+    MergeBase mergeBase = new MergeBase(pool);
+    List<String> bases = mergeBase.findMergeBases(ours, List.of(theirs), true);
+    return mergeTrees(baseTree(mergeBase, bases), pool.parse(ours).getTree(), pool.parse(theirs).getTree());
+  }
+
+  // Any of the trees may be null (treated as empty)
+  public String mergeTrees(String base, String ours, String theirs) throws IOException {
+    String tree = mergeTree(base, ours, theirs, "");
+    return tree != null ? tree : ObjectStore.storeObject("tree", new byte[0]);
+  }
+
+  public Map<String, String> getConflicts() {
+    return conflicts;
+  }
+
+  public boolean hasConflicts() {
+    return !conflicts.isEmpty();
+  }
+
+  // With several merge bases, merge the bases themselves into a virtual one first.
+  // Each next base is merged into the virtual base built so far, whose history is
+  // that of every base folded in, as ort does. Conflicts inside that merge stay in
+  // the virtual tree as markers.
+  private String baseTree(MergeBase mergeBase, List<String> bases) throws IOException {
+    if (bases.isEmpty()) {
+      return null;
+    }
+    String tree = pool.parse(bases.get(0)).getTree();
+    List<String> merged = new ArrayList<>(List.of(bases.get(0)));
+    for (int i = 1; i < bases.size(); i++) {
+      List<String> inner = mergeBase.findMergeBases(bases.get(i), merged, true);
+      TreeMerger virtual = new TreeMerger(pool, "Temporary merge branch 1", "Temporary merge branch 2");
+      tree = virtual.mergeTrees(baseTree(mergeBase, inner), tree, pool.parse(bases.get(i)).getTree());
+      merged.add(bases.get(i));
+    }
+    return tree;
+  }
+
+  // Returns the merged tree id, or null when the merged directory is empty
+  private String mergeTree(String base, String ours, String theirs, String prefix) throws IOException {
+    if (Objects.equals(ours, theirs) || Objects.equals(base, theirs)) {
+      return ours;
+    }
+    if (Objects.equals(base, ours)) {
+      return theirs;
+    }
+
+    TreeIterator baseEntries = base != null ? TreeIterator.forTree(base) : TreeIterator.empty();
+    TreeIterator oursEntries = ours != null ? TreeIterator.forTree(ours) : TreeIterator.empty();
+    TreeIterator theirsEntries = theirs != null ? TreeIterator.forTree(theirs) : TreeIterator.empty();
+    baseEntries.next();
+    oursEntries.next();
+    theirsEntries.next();
+
+    List<Entry> result = new ArrayList<>();
+    while (baseEntries.hasEntry() || oursEntries.hasEntry() || theirsEntries.hasEntry()) {
+      // Lowest name in tree order; a file and a directory with the same name sort
+      // apart, so every side present at this position has the same kind of entry
+      TreeIterator lowest = null;
+      for (TreeIterator it : new TreeIterator[] { baseEntries, oursEntries, theirsEntries }) {
+        if (it.hasEntry() && (lowest == null || it.compareTo(lowest) < 0)) {
+          lowest = it;
+        }
+      }
+      TreeIterator b = at(baseEntries, lowest);
+      TreeIterator o = at(oursEntries, lowest);
+      TreeIterator t = at(theirsEntries, lowest);
+      String name = lowest.name();
+
+      Entry merged = mergeEntry(b, o, t, name, prefix + name);
+      if (merged != null) {
+        result.add(merged);
+      }
+
+      if (b != null) {
+        baseEntries.next();
+      }
+      if (o != null) {
+        oursEntries.next();
+      }
+      if (t != null) {
+        theirsEntries.next();
+      }
+    }
+    return writeTree(result, prefix);
+  }
+
+  private static TreeIterator at(TreeIterator it, TreeIterator lowest) {
+    return it.hasEntry() && it.compareTo(lowest) == 0 ? it : null;
+  }
+
+  private Entry mergeEntry(TreeIterator b, TreeIterator o, TreeIterator t, String name, String path) throws IOException {
+    if (same(o, t) || same(b, t)) {
+      return o != null ? new Entry(o.mode(), name, o.id(), oursLabel) : null;
+    }
+    if (same(b, o)) {
+      return t != null ? new Entry(t.mode(), name, t.id(), theirsLabel) : null;
+    }
+
+    if (lowestIsTree(b, o, t)) {
+      String tree = mergeTree(id(b), id(o), id(t), path + "/");
+      return tree != null ? new Entry(TreeIterator.MODE_TREE, name, tree, oursLabel) : null;
+    }
+
+    if (o == null || t == null) {
+      TreeIterator kept = o != null ? o : t;
+      String deletedIn = o == null ? oursLabel : theirsLabel;
+      String modifiedIn = o == null ? theirsLabel : oursLabel;
+      conflicts.put(path, "CONFLICT (modify/delete): " + path + " deleted in " + deletedIn
+          + " and modified in " + modifiedIn + ".");
+      return new Entry(kept.mode(), name, kept.id(), modifiedIn);
+    }
+
+    // Both sides changed the file: take the mode change from whichever side made
+    // one, then merge the contents line by line
+    int mode = b != null && b.mode() == o.mode() ? t.mode() : o.mode();
+    byte[] baseContent = b != null ? ObjectStore.parseObject(b.id()).content : new byte[0];
+    LineMerger.Result content = LineMerger.merge(baseContent, ObjectStore.parseObject(o.id()).content,
+        ObjectStore.parseObject(t.id()).content, oursLabel, theirsLabel);
+    if (content.conflict) {
+      String kind = b == null ? "add/add" : "content";
+      conflicts.put(path, "CONFLICT (" + kind + "): Merge conflict in " + path);
+    }
+    return new Entry(mode, name, ObjectStore.storeObject("blob", content.content), oursLabel);
+  }
+
+  private static boolean same(TreeIterator a, TreeIterator b) {
+    if (a == null || b == null) {
+      return a == b;
+    }
+    return a.entryEquals(b);
+  }
+
+  private static boolean lowestIsTree(TreeIterator... entries) {
+    for (TreeIterator entry : entries) {
+      if (entry != null) {
+        return entry.isTree();
+      }
+    }
+    return false;
+  }
+
+  private static String id(TreeIterator entry) {
+    return entry != null ? entry.id() : null;
+  }
+
+  private String writeTree(List<Entry> entries, String prefix) throws IOException {
+    if (entries.isEmpty()) {
+      return null;
+    }
+
+    // A file added where the other side added a directory is moved aside
+    Set<String> directories = new HashSet<>();
+    for (Entry entry : entries) {
+      if (entry.mode == TreeIterator.MODE_TREE) {
+        directories.add(entry.name);
+      }
+    }
+    if (!directories.isEmpty()) {
+      boolean renamed = false;
+      for (Entry entry : entries) {
+        if (entry.mode != TreeIterator.MODE_TREE && directories.contains(entry.name)) {
+          String newName = entry.name + "~" + entry.side;
+          conflicts.put(prefix + entry.name, "CONFLICT (file/directory): directory in the way of "
+              + prefix + entry.name + " from " + entry.side + "; moving it to " + prefix + newName + " instead.");
+          entry.name = newName;
+          renamed = true;
+        }
+      }
+      if (renamed) {
+        entries.sort((x, y) -> {
+          byte[] a = x.name.getBytes(StandardCharsets.UTF_8);
+          byte[] b = y.name.getBytes(StandardCharsets.UTF_8);
+          return TreeIterator.compareNames(a, 0, a.length, x.mode == TreeIterator.MODE_TREE,
+              b, 0, b.length, y.mode == TreeIterator.MODE_TREE);
+        });
+      }
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (Entry entry : entries) {
+      out.write((Integer.toOctalString(entry.mode) + " " + entry.name + "\0").getBytes(StandardCharsets.UTF_8));
+      out.write(ObjectStore.fromHex(entry.id));
+    }
+    return ObjectStore.storeObject("tree", out.toByteArray());
+  }
+
+  private static class Entry {
+    final int mode;
+    String name;
+    final String id;
+    // Which side the entry was taken from, for naming files moved out of the way
+    final String side;
+
+    Entry(int mode, String name, String id, String side) {
+      this.mode = mode;
+      this.name = name;
+      this.id = id;
+      this.side = side;
+    }
+  }
+}
@@ -0,0 +1,496 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.*;
+
+// Sending side of a fetch. The fetcher reads the advertised refs, says which ids it
+// wants, then offers the commits it has in rounds ("have" lines) until this side
+// reports it is ready: every wanted commit reaches a commit both sides have. The
+// objects to send are then everything reachable from the wants but not from those
+// common commits.
+//
+// A shallow fetcher names the commits it has no parents for ("shallow" lines) and
+// may ask for a depth or a cutoff time. The history within that limit is then cut at
+// a new boundary sent back as "shallow <id>"; former shallow commits now inside it
+// come back as "unshallow <id>" and get their parents sent. Walks here treat both
+// the fetcher's shallow commits and the new boundary as roots, as the fetcher will.
+//
+// A partial clone sends a "filter <spec>" line and gets no blobs the filter excludes.
+// It later wants those blobs by id, so ids that no ref points at are accepted when an
+// advertised ref reaches them (uploadpack.allowFilter and
+// uploadpack.allowReachableSHA1InWant, both on by default). Any object at all is
+// served only with uploadpack.allowAnySHA1InWant, which is off by default.
+//
+// Every call binds the repository being served, so the fetching side can drive this
+// from its own repository's thread.
+public class UploadPack {
+  static final String AGENT = "dvcs/1.0";
+  private static final String CAPABILITIES = "multi_ack_detailed side-band-64k no-progress shallow deepen-since";
+
+  private final Repository repository;
+  private RevCommit.Pool pool;
+  private Map<String, String> advertised;
+  private final Set<String> wants = new LinkedHashSet<>();
+  private final Set<RevCommit> common = new LinkedHashSet<>();
+  // Commits the fetcher lacks parents for, plus the boundary of this fetch
+  private final Set<String> shallow = new HashSet<>();
+  // Parents of commits that stop being shallow; sent although not asked for
+  private final Set<String> extraWants = new LinkedHashSet<>();
+  private int depth;
+  private long deepenSince = -1;
+  private ObjectFilter filter;
+  // Everything the advertised refs reach, listed on the first want of another id
+  private Set<String> reachable;
+
+  public UploadPack(Repository repository) {
+    this.repository = repository;
+  }
+
+  public Repository getRepository() {
+    return repository;
+  }
+
+  // HEAD plus every ref under refs/, by name
+  public Map<String, String> advertise() throws IOException {
+    return repository.call(() -> {
+      Map<String, String> refs = new LinkedHashMap<>();
+      String head = GitRepository.getHeadCommit();
+      if (head != null) {
+        refs.put("HEAD", head);
+      }
+      refs.putAll(GitRepository.getAllRefs());
+      refs.values().removeIf(value -> value.startsWith("ref: "));
+      advertised = refs;
+      return refs;
+    });
+  }
+
+  // The branch HEAD points at (refs/heads/main), or null when it is detached
+  public String getHeadTarget() throws IOException {
+    return repository.call(() -> {
+      String head = GitRepository.readRef("HEAD");
+      return head != null && head.startsWith("ref: ") ? head.substring(5) : null;
+    });
+  }
+
+  public void want(String id) throws IOException {
+    if (advertised == null) {
+      advertise();
+    }
+    if (!advertised.containsValue(id) && !repository.call(() -> isAllowedWant(id))) {
+      throw new IOException("not our ref " + id);
+    }
+    wants.add(id);
+  }
+
+  // A want of an id no ref points at, as a partial clone sends for the blobs it lacks
+  private boolean isAllowedWant(String id) throws IOException {
+    if (!ObjectStore.hasObject(id)) {
+      return false;
+    }
+    if (allowAnyWant()) {
+      return true;
+    }
+    if (!allowReachableWant()) {
+      return false;
+    }
+    if (reachable == null) {
+      // A pool of its own: shallow lines may still follow the wants
+      Set<String> roots = Shallow.read();
+      ObjectWalk walk = new ObjectWalk(new RevCommit.Pool(new HashSet<>(roots)));
+      walk.setUseBitmaps(roots.isEmpty());
+      for (String tip : new LinkedHashSet<>(advertised.values())) {
+        walk.markStart(tip);
+      }
+      reachable = new HashSet<>();
+      for (ObjectWalk.Entry entry : walk.objects()) {
+        reachable.add(entry.id);
+      }
+    }
+    return reachable.contains(id);
+  }
+
+  // Returns the offered commits this repository has; they become the common base
+  public List<String> have(List<String> ids) throws IOException {
+    return repository.call(() -> {
+      List<String> acked = new ArrayList<>();
+      for (String id : ids) {
+        if (ObjectStore.hasObject(id) && ObjectStore.readHeader(id).type.equals("commit")) {
+          common.add(pool().parse(id));
+          acked.add(id);
+        }
+      }
+      return acked;
+    });
+  }
+
+  // True once each wanted commit has a common commit among its ancestors, so more
+  // have lines would not shrink what has to be sent
+  public boolean isReady() throws IOException {
+    if (common.isEmpty()) {
+      return false;
+    }
+    return repository.call(() -> {
+      for (String want : wants) {
+        String type = ObjectStore.readHeader(want).type;
+        if (type.equals("commit") && !reachesCommon(pool().parse(want))) {
+          return false;
+        }
+      }
+      return true;
+    });
+  }
+
+  // Commit-graph generations bound the search: a commit can only reach commits of a
+  // lower generation, so nothing at or below the lowest common generation needs to
+  // be expanded. Commits outside the graph fall back to commit time, which may stop
+  // early on clock skew; that only costs another round of have lines.
+  private boolean reachesCommon(RevCommit want) throws IOException {
+    int minGeneration = Integer.MAX_VALUE;
+    long minTime = Long.MAX_VALUE;
+    for (RevCommit commit : common) {
+      minGeneration = Math.min(minGeneration, commit.generation);
+      minTime = Math.min(minTime, commit.commitTime);
+    }
+
+    Deque<RevCommit> stack = new ArrayDeque<>();
+    Set<RevCommit> visited = new HashSet<>();
+    stack.push(want);
+    visited.add(want);
+    while (!stack.isEmpty()) {
+      RevCommit commit = stack.pop();
+      if (common.contains(commit)) {
+        return true;
+      }
+      boolean below = commit.generation > 0 && minGeneration > 0
+          ? commit.generation <= minGeneration
+          : commit.commitTime < minTime;
+      if (below) {
+        continue;
+      }
+      for (RevCommit parent : commit.getParents()) {
+        if (visited.add(parent)) {
+          parent.parse(pool());
+          stack.push(parent);
+        }
+      }
+    }
+    return false;
+  }
+
+  // ========== SHALLOW ==========
+
+  // A commit the fetcher has without its parents; unknown ids are ignored
+  public void clientShallow(String id) throws IOException {
+    if (pool != null) {
+      throw new IllegalStateException("shallow commits must be named before negotiation");
+    }
+    if (repository.call(() -> ObjectStore.hasObject(id))) {
+      shallow.add(id);
+    }
+  }
+
+  // Limits the history sent to depth commits below each want (depth > 0), or to
+  // commits made at or after since (epoch seconds). Returns the "shallow <id>" and
+  // "unshallow <id>" lines for the fetcher.
+  public List<String> deepen(int depth, long since) throws IOException {
+    return repository.call(() -> {
+      // The full history as this repository has it
+      RevCommit.Pool full = new RevCommit.Pool();
+      Set<RevCommit> boundary = new LinkedHashSet<>();
+      Set<RevCommit> visited = new HashSet<>();
+      Map<RevCommit, Integer> depths = new HashMap<>();
+      Deque<RevCommit> queue = new ArrayDeque<>();
+      for (String want : wants) {
+        if (ObjectStore.readHeader(want).type.equals("commit")) {
+          RevCommit commit = full.parse(want);
+          if (visited.add(commit)) {
+            depths.put(commit, 1);
+            queue.add(commit);
+          }
+        }
+      }
+      while (!queue.isEmpty()) {
+        RevCommit commit = queue.poll();
+        int level = depths.get(commit);
+        if (commit.getParents().length == 0) {
+          continue;
+        }
+        boolean cut = depth > 0 && level >= depth;
+        for (RevCommit parent : commit.getParents()) {
+          parent.parse(full);
+          cut |= since >= 0 && parent.getCommitTime() < since;
+        }
+        if (cut) {
+          boundary.add(commit);
+          continue;
+        }
+        // Breadth first, so each commit is reached at its smallest depth
+        for (RevCommit parent : commit.getParents()) {
+          if (visited.add(parent)) {
+            depths.put(parent, level + 1);
+            queue.add(parent);
+          }
+        }
+      }
+
+      List<String> lines = new ArrayList<>();
+      for (RevCommit commit : boundary) {
+        if (!shallow.contains(commit.id)) {
+          lines.add("shallow " + commit.id);
+        }
+      }
+      for (RevCommit commit : visited) {
+        if (shallow.contains(commit.id) && !boundary.contains(commit) && commit.getParents().length > 0) {
+          lines.add("unshallow " + commit.id);
+          for (RevCommit parent : commit.getParents()) {
+            extraWants.add(parent.id);
+          }
+        }
+      }
+      for (RevCommit commit : boundary) {
+        shallow.add(commit.id);
+      }
+      return lines;
+    });
+  }
+
+  // Leaves the blobs this filter excludes out of the pack, except those wanted by id
+  public void setFilter(ObjectFilter filter) {
+    this.filter = filter;
+  }
+
+  // Objects reachable from the wants but not from the common commits
+  public List<ObjectWalk.Entry> objects() throws IOException {
+    return repository.call(() -> {
+      ObjectWalk walk = new ObjectWalk(pool());
+      // Bitmaps know nothing of shallow boundaries
+      walk.setUseBitmaps(shallow.isEmpty());
+      for (String want : wants) {
+        walk.markStart(want);
+      }
+      for (String want : extraWants) {
+        walk.markStart(want);
+      }
+      for (RevCommit commit : common) {
+        walk.markUninteresting(commit.id);
+      }
+      List<ObjectWalk.Entry> objects = walk.objects();
+      if (filter != null) {
+        objects.removeIf(entry -> entry.type.equals("blob") && !wants.contains(entry.id) && !isIncluded(entry.id));
+      }
+      return objects;
+    });
+  }
+
+  private boolean isIncluded(String blob) {
+    try {
+      return !filter.omitsAllBlobs() && filter.includesBlob(ObjectStore.readHeader(blob).size);
+    } catch (IOException e) {
+      // Sending it makes PackWriter report the actual problem
+      return true;
+    }
+  }
+
+  // ========== PROTOCOL ==========
+
+  // Serves one fetch in git's protocol v0: the ref advertisement, the want lines, have
+  // rounds answered with multi_ack_detailed ACKs, then the pack, split into
+  // side-band-64k packets when the client asked for that. A want that cannot be served
+  // is answered with an ERR packet.
+  public void serve(InputStream in, OutputStream out) throws IOException {
+    repository.call(() -> {
+      advertise(out);
+      String capabilities;
+      try {
+        capabilities = readWants(in);
+      } catch (IOException e) {
+        PktLine.write(out, "ERR upload-pack: " + e.getMessage() + "\n");
+        out.flush();
+        throw e;
+      }
+      if (capabilities == null) {
+        return null;
+      }
+      if (depth > 0 || deepenSince >= 0) {
+        for (String line : deepen(depth, deepenSince)) {
+          PktLine.write(out, line + "\n");
+        }
+        PktLine.writeFlush(out);
+        out.flush();
+      }
+      negotiate(in, out, capabilities);
+      sendPack(out, capabilities);
+      return null;
+    });
+  }
+
+  private void advertise(OutputStream out) throws IOException {
+    Map<String, String> refs = advertise();
+    String capabilities = CAPABILITIES;
+    if (Config.snapshot().getBoolean("uploadpack", null, "allowFilter", true)) {
+      capabilities += " filter";
+    }
+    if (allowAnyWant()) {
+      capabilities += " allow-tip-sha1-in-want allow-reachable-sha1-in-want";
+    } else if (allowReachableWant()) {
+      capabilities += " allow-reachable-sha1-in-want";
+    }
+    String headTarget = getHeadTarget();
+    if (headTarget != null && refs.containsKey("HEAD")) {
+      capabilities += " symref=HEAD:" + headTarget;
+    }
+    capabilities += " agent=" + AGENT;
+
+    boolean first = true;
+    for (Map.Entry<String, String> ref : refs.entrySet()) {
+      String line = ref.getValue() + " " + ref.getKey();
+      PktLine.write(out, (first ? line + "\0" + capabilities : line) + "\n");
+      first = false;
+    }
+    if (first) {
+      PktLine.write(out, RefTransaction.ZERO_ID + " capabilities^{}\0" + capabilities + "\n");
+    }
+    PktLine.writeFlush(out);
+    out.flush();
+  }
+
+  // Returns the capabilities the client asked for, or null when it wants nothing.
+  // Shallow, deepen and filter lines come after the wants.
+  private String readWants(InputStream in) throws IOException {
+    String capabilities = null;
+    String line;
+    while ((line = readLineOrEnd(in)) != null) {
+      if (line.startsWith("shallow ")) {
+        clientShallow(line.substring(8).trim());
+        continue;
+      } else if (line.startsWith("deepen-since ")) {
+        deepenSince = Long.parseLong(line.substring(13).trim());
+        continue;
+      } else if (line.startsWith("deepen ")) {
+        depth = Integer.parseInt(line.substring(7).trim());
+        continue;
+      } else if (line.startsWith("filter ")) {
+        if (!Config.snapshot().getBoolean("uploadpack", null, "allowFilter", true)) {
+          throw new IOException("filtering capability not negotiated");
+        }
+        setFilter(ObjectFilter.parse(line.substring(7).trim()));
+        continue;
+      } else if (!line.startsWith("want ")) {
+        throw new IOException("protocol error: expected want, got '" + line + "'");
+      }
+      String id = line.substring(5, Math.min(line.length(), 45));
+      if (capabilities == null) {
+        capabilities = line.length() > 46 ? line.substring(46) : "";
+      }
+      want(id);
+    }
+    return capabilities;
+  }
+
+  // Answers have lines as git's upload-pack does; returns once the client says done
+  private void negotiate(InputStream in, OutputStream out, String capabilities) throws IOException {
+    boolean detailed = PktLine.hasCapability(capabilities, "multi_ack_detailed");
+    boolean multiAck = detailed || PktLine.hasCapability(capabilities, "multi_ack");
+    String last = null;
+    boolean gotCommon = false;
+    boolean gotOther = false;
+    boolean sentReady = false;
+
+    while (true) {
+      String line = PktLine.read(in);
+      if (line == null) {
+        if (detailed && gotCommon && !gotOther && !sentReady && isReady()) {
+          PktLine.write(out, "ACK " + last + " ready\n");
+          sentReady = true;
+        }
+        if (common.isEmpty() || multiAck) {
+          PktLine.write(out, "NAK\n");
+        }
+        out.flush();
+        gotCommon = false;
+        gotOther = false;
+      } else if (line.startsWith("have ")) {
+        String id = line.substring(5).trim();
+        if (!have(List.of(id)).isEmpty()) {
+          gotCommon = true;
+          last = id;
+          if (detailed) {
+            PktLine.write(out, "ACK " + id + " common\n");
+          } else if (multiAck) {
+            PktLine.write(out, "ACK " + id + " continue\n");
+          } else if (common.size() == 1) {
+            PktLine.write(out, "ACK " + id + "\n");
+          }
+        } else {
+          gotOther = true;
+          if (multiAck && last != null && !sentReady && isReady()) {
+            PktLine.write(out, "ACK " + id + (detailed ? " ready\n" : " continue\n"));
+            sentReady = detailed;
+          }
+        }
+      } else if (line.equals("done")) {
+        if (common.isEmpty()) {
+          PktLine.write(out, "NAK\n");
+        } else if (multiAck) {
+          PktLine.write(out, "ACK " + last + "\n");
+        }
+        out.flush();
+        return;
+      } else {
+        throw new IOException("protocol error: expected have or done, got '" + line + "'");
+      }
+    }
+  }
+
+  private void sendPack(OutputStream out, String capabilities) throws IOException {
+    boolean sideBand = PktLine.hasCapability(capabilities, "side-band-64k");
+    boolean progress = sideBand && !PktLine.hasCapability(capabilities, "no-progress");
+    List<ObjectWalk.Entry> objects = objects();
+    PackWriter writer = new PackWriter(objects);
+    if (!sideBand) {
+      writer.write(out);
+      out.flush();
+      return;
+    }
+    if (progress) {
+      PktLine.SideBandOutputStream.progress(out, "Enumerating objects: " + objects.size() + ", done.\n");
+    }
+    PktLine.SideBandOutputStream data = new PktLine.SideBandOutputStream(out);
+    writer.write(data);
+    data.flush();
+    if (progress) {
+      PktLine.SideBandOutputStream.progress(out, "Total " + writer.getObjectCount() + " (delta 0), reused "
+          + writer.getReusedCount() + " (delta 0)\n");
+    }
+    PktLine.writeFlush(out);
+    out.flush();
+  }
+
+  private static boolean allowAnyWant() throws IOException {
+    return Config.snapshot().getBoolean("uploadpack", null, "allowAnySHA1InWant", false);
+  }
+
+  private static boolean allowReachableWant() throws IOException {
+    return Config.snapshot().getBoolean("uploadpack", null, "allowReachableSHA1InWant", true);
+  }
+
+  // A pkt-line, or null at a flush packet or the end of the stream
+  static String readLineOrEnd(InputStream in) throws IOException {
+    try {
+      return PktLine.read(in);
+    } catch (EOFException e) {
+      return null;
+    }
+  }
+
+  private RevCommit.Pool pool() throws IOException {
+    if (pool == null) {
+      Set<String> roots = new HashSet<>(Shallow.read());
+      roots.addAll(shallow);
+      pool = new RevCommit.Pool(roots);
+    }
+    return pool;
+  }
+}
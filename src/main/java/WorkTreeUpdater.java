@@ -0,0 +1,164 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+
+// Moves the worktree and index from one tree to another, touching only the paths
+// that differ between the two. Used to materialize merge results once the merge
+// itself has been done in the object database.
+public class WorkTreeUpdater {
+
+  private static class Change {
+    final String path;
+    final String oldId;
+    final int oldMode;
+    final String newId;
+    final int newMode;
+
+    Change(String path, String oldId, int oldMode, String newId, int newMode) {
+      this.path = path;
+      this.oldId = oldId;
+      this.oldMode = oldMode;
+      this.newId = newId;
+      this.newMode = newMode;
+    }
+  }
+
+  // Paths in keepIndex are written to the worktree, but their index entry is left at
+  // the old version (used for conflicted files, which the user still has to resolve)
+  public static void update(String fromTree, String toTree, Set<String> keepIndex) throws IOException {
+    update(fromTree, toTree, keepIndex, false);
+  }
+
+  // With force, local modifications on the touched paths are discarded instead of
+  // aborting (used when throwing away a stopped operation)
+  public static void update(String fromTree, String toTree, Set<String> keepIndex, boolean force) throws IOException {
+    List<Change> changes = new ArrayList<>();
+    TreeDiff.diff(fromTree, toTree, (path, oldMode, oldId, newMode, newId) -> {
+      String oldFile = oldMode != 0 && oldMode != TreeIterator.MODE_TREE ? oldId : null;
+      String newFile = newMode != 0 && newMode != TreeIterator.MODE_TREE ? newId : null;
+      if (oldFile != null || newFile != null) {
+        changes.add(new Change(path, oldFile, oldMode, newFile, newMode));
+      }
+      return true;
+    });
+    if (changes.isEmpty()) {
+      return;
+    }
+
+    Map<String, Index.IndexEntry> index = Index.readIndex();
+    if (!force) {
+      checkClean(changes, index);
+    }
+
+    List<String> blobs = new ArrayList<>();
+    for (Change change : changes) {
+      if (change.newId != null) {
+        blobs.add(change.newId);
+      }
+    }
+    Promisor.prefetch(blobs);
+
+    // Deletions first so a directory can replace a file (and the other way round)
+    for (Change change : changes) {
+      if (change.newId == null) {
+        File file = Repository.current().workTreeFile(change.path);
+        Files.deleteIfExists(file.toPath());
+        removeEmptyParents(file);
+      }
+    }
+    for (Change change : changes) {
+      if (change.newId != null) {
+        File file = Repository.current().workTreeFile(change.path);
+        if (file.getParentFile() != null) {
+          file.getParentFile().mkdirs();
+        }
+        Files.write(file.toPath(), ObjectStore.parseObject(change.newId).content);
+      }
+    }
+
+    for (Change change : changes) {
+      boolean keep = keepIndex.contains(change.path);
+      String id = keep ? change.oldId : change.newId;
+      if (id == null) {
+        index.remove(change.path);
+      } else {
+        String mode = Integer.toOctalString(keep ? change.oldMode : change.newMode);
+        index.put(change.path, new Index.IndexEntry(mode, id, change.path));
+      }
+    }
+    Index.writeIndex(index);
+  }
+
+  // Refuses to overwrite local modifications or untracked files on the touched paths;
+  // nothing outside those paths is looked at
+  private static void checkClean(List<Change> changes, Map<String, Index.IndexEntry> index) throws IOException {
+    List<String> dirty = new ArrayList<>();
+    for (Change change : changes) {
+      File file = Repository.current().workTreeFile(change.path);
+      Index.IndexEntry entry = index.get(change.path);
+      if (entry != null && !entry.hash.equals(change.oldId) && !entry.hash.equals(change.newId)) {
+        dirty.add(change.path);
+      } else if (file.isFile()) {
+        String hash = blobHash(Files.readAllBytes(file.toPath()));
+        if (!hash.equals(change.oldId) && !hash.equals(change.newId)) {
+          dirty.add(change.path);
+        }
+      }
+    }
+
+    if (!dirty.isEmpty()) {
+      throw overwritten(dirty);
+    }
+  }
+
+  // A merge commit is written from the merged tree, so anything staged would be
+  // folded into it; like git, refuse while the index differs from HEAD at all
+  public static void checkIndexMatches(String headTree) throws IOException {
+    Map<String, Index.IndexEntry> index = new HashMap<>(Index.readIndex());
+    List<String> dirty = new ArrayList<>();
+    TreeDiff.diff(null, headTree, (path, oldMode, oldId, newMode, newId) -> {
+      if (newMode != TreeIterator.MODE_TREE) {
+        Index.IndexEntry entry = index.remove(path);
+        if (entry == null || !entry.hash.equals(newId)) {
+          dirty.add(path);
+        }
+      }
+      return true;
+    });
+    dirty.addAll(index.keySet());
+    if (!dirty.isEmpty()) {
+      Collections.sort(dirty);
+      throw overwritten(dirty);
+    }
+  }
+
+  private static IOException overwritten(List<String> paths) {
+    StringBuilder message = new StringBuilder("Your local changes to the following files would be overwritten by merge:\n");
+    for (String path : paths) {
+      message.append("\t").append(path).append("\n");
+    }
+    message.append("Please commit your changes or stash them before you merge.\nAborting");
+    return new IOException(message.toString());
+  }
+
+  private static void removeEmptyParents(File file) {
+    File dir = file.getAbsoluteFile().getParentFile();
+    File root = Repository.current().getWorkTree();
+    while (dir != null && !dir.equals(root)) {
+      String[] remaining = dir.list();
+      if (remaining == null || remaining.length > 0 || !dir.delete()) {
+        break;
+      }
+      dir = dir.getParentFile();
+    }
+  }
+
+  private static String blobHash(byte[] content) {
+    byte[] header = ("blob " + content.length + "\0").getBytes();
+    byte[] full = new byte[header.length + content.length];
+    System.arraycopy(header, 0, full, 0, header.length);
+    System.arraycopy(content, 0, full, header.length, content.length);
+    return ObjectStore.sha1Hash(full);
+  }
+}
@@ -0,0 +1,113 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+// Bundles written from one repository and unbundled into another: a full history,
+// then an incremental bundle whose prerequisites the receiver must already have
+public class BundleTest {
+  public static void main(String[] args) throws IOException {
+    Repository source = TestSupport.newRepository();
+    Repository target = TestSupport.newRepository();
+    List<String> history = fullBundle(source, target);
+    incrementalBundle(source, target, history);
+    badBundles();
+    TestSupport.passed("BundleTest");
+  }
+
+  private static List<String> fullBundle(Repository source, Repository target) throws IOException {
+    List<String> history = new ArrayList<>();
+    String parent = null;
+    for (int i = 1; i <= 3; i++) {
+      String[] parents = parent != null ? new String[] { parent } : new String[0];
+      parent = TestSupport.commit(source, 1000 * i, "c" + i, parents);
+      history.add(parent);
+    }
+    TestSupport.git(source, "update-ref", "refs/heads/main", history.get(2));
+    TestSupport.git(source, "update-ref", "refs/tags/v1", history.get(0));
+
+    File file = new File(TestSupport.tempDir(), "full.bundle");
+    TestSupport.git(source, "bundle", "create", file.getPath(), "--all");
+    Bundle.Header header = readHeader(file);
+    TestSupport.check(header.prerequisites.isEmpty(), "full bundle has no prerequisites");
+    TestSupport.checkEquals(history.get(2), header.refs.get("refs/heads/main"), "main in the bundle");
+    TestSupport.checkEquals(history.get(0), header.refs.get("refs/tags/v1"), "tag in the bundle");
+    TestSupport.checkEquals(history.get(2), header.refs.get("HEAD"), "HEAD in the bundle");
+
+    String verified = TestSupport.git(target, "bundle", "verify", file.getPath());
+    TestSupport.check(verified.contains("The bundle records a complete history."), "verify reports a complete history");
+    String heads = TestSupport.git(target, "bundle", "unbundle", file.getPath());
+    TestSupport.check(heads.contains(history.get(2) + " refs/heads/main\n"), "unbundle lists main");
+    for (String commit : history) {
+      for (String id : objectsOf(source, commit)) {
+        TestSupport.check(target.readObject(id) != null, "unbundled " + id);
+      }
+    }
+    return history;
+  }
+
+  private static void incrementalBundle(Repository source, Repository target, List<String> history)
+      throws IOException {
+    String c4 = TestSupport.commit(source, 4000, "c4", history.get(2));
+    String c5 = TestSupport.commit(source, 5000, "c5", c4);
+    TestSupport.git(source, "update-ref", "refs/heads/main", c5);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int count = source.call(() -> Bundle.create(out, List.of(history.get(2) + "..main")));
+    TestSupport.checkEquals(6, count, "only c4 and c5 with their trees and blobs");
+    byte[] bundle = out.toByteArray();
+    Bundle.Header header = Bundle.readHeader(new ByteArrayInputStream(bundle));
+    TestSupport.checkEquals(Map.of(history.get(2), "c3"), header.prerequisites, "c3 is the prerequisite");
+    TestSupport.checkEquals(Map.of("refs/heads/main", c5), header.refs, "only main in the bundle");
+
+    // A repository without c3 is refused before any of the pack is stored
+    Repository empty = TestSupport.newRepository();
+    try {
+      empty.call(() -> Bundle.read(new ByteArrayInputStream(bundle), true));
+      TestSupport.check(false, "a bundle must not be unbundled without its prerequisites");
+    } catch (IOException e) {
+      TestSupport.check(e.getMessage().contains("lacks these prerequisite commits:\n" + history.get(2) + " c3"),
+          "missing prerequisite reported: " + e.getMessage());
+    }
+    TestSupport.check(!empty.call(() -> ObjectStore.hasObject(c5)), "nothing stored from a refused bundle");
+
+    File file = new File(TestSupport.tempDir(), "incremental.bundle");
+    Files.write(file.toPath(), bundle);
+    TestSupport.git(target, "bundle", "unbundle", file.getPath());
+    for (String commit : List.of(c4, c5)) {
+      for (String id : objectsOf(source, commit)) {
+        TestSupport.check(target.readObject(id) != null, "unbundled " + id);
+      }
+    }
+  }
+
+  private static void badBundles() {
+    expectBadHeader("# v3 git bundle\n\n", "not a v2 bundle file", "unknown version");
+    expectBadHeader(Bundle.SIGNATURE + "\nnot-an-id refs/heads/main\n\n", "unrecognized bundle header line",
+        "malformed ref line");
+    expectBadHeader(Bundle.SIGNATURE + "\n" + "a".repeat(40) + " refs/heads/main\n", "ends early", "truncated header");
+  }
+
+  private static void expectBadHeader(String text, String fragment, String what) {
+    try {
+      Bundle.readHeader(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)));
+      TestSupport.check(false, what + ": no error");
+    } catch (IOException e) {
+      TestSupport.check(e.getMessage().contains(fragment), what + ": " + e.getMessage());
+    }
+  }
+
+  private static Bundle.Header readHeader(File file) throws IOException {
+    try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+      return Bundle.readHeader(in);
+    }
+  }
+
+  // The commit with its tree and the single blob TestSupport.commit puts in it
+  private static Set<String> objectsOf(Repository repository, String commit) throws IOException {
+    String tree = repository.call(() -> new RevCommit.Pool().parse(commit).getTree());
+    TreeIterator entries = repository.call(() -> TreeIterator.forTree(tree));
+    entries.next();
+    return Set.of(commit, tree, entries.id());
+  }
+}
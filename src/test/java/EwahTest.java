@@ -0,0 +1,179 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// EWAH bitmaps encoded and decoded over runs, literals and their edges, and a
+// repacked repository's reachability bitmaps checked against a plain object walk
+public class EwahTest {
+  public static void main(String[] args) throws IOException {
+    roundTrips();
+    layout();
+    corrupt();
+    packBitmaps();
+    TestSupport.passed("EwahTest");
+  }
+
+  private static void roundTrips() throws IOException {
+    List<BitSet> cases = new ArrayList<>();
+    cases.add(new BitSet());
+    for (int bit : new int[] { 0, 63, 64, 127, 4095 }) {
+      BitSet single = new BitSet();
+      single.set(bit);
+      cases.add(single);
+    }
+    BitSet ones = new BitSet();
+    ones.set(0, 64 * 1000);
+    cases.add(ones);
+    BitSet partial = new BitSet();
+    partial.set(0, 64 * 1000 + 17);
+    cases.add(partial);
+    // Zero run, one run, literals, zero run, one run ending mid-word
+    BitSet runs = new BitSet();
+    runs.set(64 * 300, 64 * 700);
+    runs.set(64 * 700 + 3);
+    runs.set(64 * 701 + 60);
+    runs.set(64 * 2000, 64 * 2100 + 5);
+    cases.add(runs);
+    Random random = new Random(1);
+    for (double density : new double[] { 0.0005, 0.05, 0.5, 0.95, 0.9999 }) {
+      BitSet bits = new BitSet();
+      for (int i = 0; i < 50000; i++) {
+        if (random.nextDouble() < density) {
+          bits.set(i);
+        }
+      }
+      cases.add(bits);
+    }
+
+    // All written back to back, as in a .bitmap file, then read in order
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    for (BitSet bits : cases) {
+      Ewah.write(out, bits);
+    }
+    out.flush();
+    ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+    int[] pos = { 0 };
+    for (BitSet bits : cases) {
+      TestSupport.checkEquals(bits, Ewah.read(buffer, pos), "bitmap of " + bits.cardinality() + " bits");
+    }
+    TestSupport.checkEquals(buffer.limit(), pos[0], "every bitmap consumed");
+  }
+
+  // The words as git lays them out, and runs compressed to a marker word
+  private static void layout() throws IOException {
+    BitSet ones = new BitSet();
+    ones.set(0, 64 * 100000);
+    ByteBuffer buffer = encode(ones);
+    TestSupport.checkEquals(64 * 100000, buffer.getInt(0), "size in bits");
+    TestSupport.checkEquals(1, buffer.getInt(4), "a run of ones is one word");
+    TestSupport.checkEquals(1L | 100000L << 1, buffer.getLong(8), "marker of 100000 one words");
+    TestSupport.checkEquals(0, buffer.getInt(16), "last marker index");
+
+    BitSet literal = new BitSet();
+    literal.set(64 * 2 + 5);
+    buffer = encode(literal);
+    TestSupport.checkEquals(2, buffer.getInt(4), "marker and one literal");
+    TestSupport.checkEquals(2L << 1 | 1L << 33, buffer.getLong(8), "two zero words then one literal");
+    TestSupport.checkEquals(1L << 5, buffer.getLong(16), "literal word");
+
+    // Other writers may pad past the size with zero words
+    ByteBuffer padded = ByteBuffer.allocate(4 + 4 + 3 * 8 + 4);
+    padded.putInt(64).putInt(3).putLong(1L << 33).putLong(0x81L).putLong(4L << 1).putInt(2);
+    BitSet expected = new BitSet();
+    expected.set(0);
+    expected.set(7);
+    TestSupport.checkEquals(expected, Ewah.read(padded, new int[] { 0 }), "zero padding ignored");
+  }
+
+  private static void corrupt() {
+    ByteBuffer tooMany = ByteBuffer.allocate(20);
+    tooMany.putInt(64).putInt(1000);
+    expectCorrupt(tooMany, "word count past the end");
+    ByteBuffer literalsPastEnd = ByteBuffer.allocate(4 + 4 + 8 + 4);
+    literalsPastEnd.putInt(64).putInt(1).putLong(5L << 33).putInt(0);
+    expectCorrupt(literalsPastEnd, "literals past the last word");
+    ByteBuffer negative = ByteBuffer.allocate(12);
+    negative.putInt(-1).putInt(0).putInt(0);
+    expectCorrupt(negative, "negative size");
+  }
+
+  private static void expectCorrupt(ByteBuffer buffer, String what) {
+    try {
+      Ewah.read(buffer, new int[] { 0 });
+      TestSupport.check(false, what + ": no error");
+    } catch (IOException e) {
+      TestSupport.checkEquals("Corrupt EWAH bitmap", e.getMessage(), what);
+    }
+  }
+
+  // main: 60 commits, each changing one of a few files; side branches off at 20 and
+  // shares most of main's trees and blobs
+  private static void packBitmaps() throws IOException {
+    Repository repository = TestSupport.newRepository();
+    Map<String, String> files = new TreeMap<>();
+    List<String> main = new ArrayList<>();
+    String parent = null;
+    for (int i = 0; i < 60; i++) {
+      files.put("file" + i % 7 + ".txt", "version " + i);
+      String tree = TestSupport.tree(repository, files);
+      String[] parents = parent != null ? new String[] { parent } : new String[0];
+      parent = TestSupport.commit(repository, tree, 1000 * (i + 1), "m" + i, parents);
+      main.add(parent);
+    }
+    String side = TestSupport.commit(repository, 100000, "side", main.get(20));
+    TestSupport.git(repository, "update-ref", "refs/heads/main", main.get(59));
+    TestSupport.git(repository, "update-ref", "refs/heads/side", side);
+    TestSupport.git(repository, "repack", "-a", "-d", "-b");
+
+    String[] idx = repository.gitFile("objects/pack").list((dir, name) -> name.endsWith(".idx"));
+    TestSupport.checkEquals(1, idx.length, "one pack after repack -a -d");
+    PackFile pack = new PackFile(repository.gitFile("objects/pack/" + idx[0]));
+    PackBitmap bitmap = pack.getBitmap();
+    TestSupport.check(bitmap != null, "bitmap written");
+    TestSupport.checkEquals(pack.getObjectCount(), bitmap.getObjectCount(), "a bit per packed object");
+
+    for (String tip : List.of(main.get(59), side)) {
+      BitSet bits = bitmap.reachableFrom(tip);
+      TestSupport.check(bits != null, "tip " + tip + " has a bitmap");
+      Map<String, String> fromBitmap = new HashMap<>();
+      for (int bit = bits.nextSetBit(0); bit >= 0; bit = bits.nextSetBit(bit + 1)) {
+        fromBitmap.put(bitmap.objectAt(bit), bitmap.typeAt(bit));
+      }
+      TestSupport.checkEquals(walk(repository, false, tip, null), fromBitmap, "bitmap of " + tip + " matches a walk");
+    }
+
+    // Walks with and without bitmaps agree, also with an uninteresting side
+    for (String[] range : new String[][] { { main.get(59), side }, { side, main.get(40) },
+        { main.get(59), main.get(10) } }) {
+      TestSupport.checkEquals(walk(repository, false, range[0], range[1]).keySet(),
+          walk(repository, true, range[0], range[1]).keySet(), range[1] + ".." + range[0] + " with bitmaps");
+    }
+  }
+
+  // Object id -> type for everything start reaches that uninteresting does not
+  private static Map<String, String> walk(Repository repository, boolean useBitmaps, String start,
+      String uninteresting) throws IOException {
+    return repository.call(() -> {
+      ObjectWalk walk = new ObjectWalk(new RevCommit.Pool());
+      walk.setUseBitmaps(useBitmaps);
+      walk.markStart(start);
+      if (uninteresting != null) {
+        walk.markUninteresting(uninteresting);
+      }
+      Map<String, String> objects = new HashMap<>();
+      for (ObjectWalk.Entry entry : walk.objects()) {
+        objects.put(entry.id, entry.type);
+      }
+      return objects;
+    });
+  }
+
+  private static ByteBuffer encode(BitSet bits) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    Ewah.write(out, bits);
+    out.flush();
+    return ByteBuffer.wrap(bytes.toByteArray());
+  }
+}
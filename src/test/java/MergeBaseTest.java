@@ -0,0 +1,144 @@
+import java.io.IOException;
+import java.util.*;
+
+// Merge bases and ancestry on small hand-built histories, each checked with and
+// without a commit-graph, including commits dated before their own parents
+public class MergeBaseTest {
+  public static void main(String[] args) throws IOException {
+    linearHistory();
+    forkedHistory();
+    crissCross();
+    unrelatedHistories();
+    clockSkew();
+    TestSupport.passed("MergeBaseTest");
+  }
+
+  // A - B - C
+  private static void linearHistory() throws IOException {
+    Repository repository = TestSupport.newRepository();
+    String a = TestSupport.commit(repository, 1000, "a");
+    String b = TestSupport.commit(repository, 2000, "b", a);
+    String c = TestSupport.commit(repository, 3000, "c", b);
+    TestSupport.git(repository, "update-ref", "refs/heads/main", c);
+
+    for (boolean graph : new boolean[] { false, true }) {
+      withGraph(repository, graph, mergeBase -> {
+        TestSupport.check(mergeBase.isAncestor(a, c), "a is an ancestor of c");
+        TestSupport.check(mergeBase.isAncestor(c, c), "a commit is its own ancestor");
+        TestSupport.check(!mergeBase.isAncestor(c, a), "c is not an ancestor of a");
+        TestSupport.checkEquals(b, mergeBase.findMergeBase(b, c), "merge base of b and c");
+        TestSupport.checkEquals(a, mergeBase.findMergeBase(c, a), "merge base of c and a");
+      });
+    }
+  }
+
+  //       C1
+  //      /
+  // A - B - D1 - D2
+  private static void forkedHistory() throws IOException {
+    Repository repository = TestSupport.newRepository();
+    String a = TestSupport.commit(repository, 1000, "a");
+    String b = TestSupport.commit(repository, 2000, "b", a);
+    String c1 = TestSupport.commit(repository, 3000, "c1", b);
+    String d1 = TestSupport.commit(repository, 3100, "d1", b);
+    String d2 = TestSupport.commit(repository, 3200, "d2", d1);
+    String merge = TestSupport.commit(repository, 4000, "merge", c1, d2);
+    TestSupport.git(repository, "update-ref", "refs/heads/main", merge);
+
+    for (boolean graph : new boolean[] { false, true }) {
+      withGraph(repository, graph, mergeBase -> {
+        TestSupport.checkEquals(b, mergeBase.findMergeBase(c1, d2), "merge base of the two branches");
+        TestSupport.checkEquals(List.of(b), mergeBase.findMergeBases(c1, List.of(d2), true), "all merge bases");
+        TestSupport.check(!mergeBase.isAncestor(c1, d2), "c1 is not an ancestor of d2");
+        TestSupport.check(mergeBase.isAncestor(c1, merge), "c1 is an ancestor of the merge");
+        TestSupport.check(mergeBase.isAncestor(d1, merge), "d1 is an ancestor of the merge");
+        TestSupport.checkEquals(List.of(b), mergeBase.findOctopusMergeBases(List.of(c1, d2, merge)),
+            "octopus merge base");
+      });
+    }
+  }
+
+  // Two merges of the same pair in opposite orders have both sides as merge bases:
+  //
+  //     P - M1
+  //   /   X
+  // X - Q - M2
+  private static void crissCross() throws IOException {
+    Repository repository = TestSupport.newRepository();
+    String x = TestSupport.commit(repository, 1000, "x");
+    String p = TestSupport.commit(repository, 2000, "p", x);
+    String q = TestSupport.commit(repository, 2100, "q", x);
+    String m1 = TestSupport.commit(repository, 3000, "m1", p, q);
+    String m2 = TestSupport.commit(repository, 3100, "m2", q, p);
+    TestSupport.git(repository, "update-ref", "refs/heads/one", m1);
+    TestSupport.git(repository, "update-ref", "refs/heads/two", m2);
+
+    for (boolean graph : new boolean[] { false, true }) {
+      withGraph(repository, graph, mergeBase -> {
+        TestSupport.checkEquals(Set.of(p, q), new HashSet<>(mergeBase.findMergeBases(m1, List.of(m2), true)),
+            "criss-cross merge bases");
+        TestSupport.checkEquals(1, mergeBase.findMergeBases(m1, List.of(m2), false).size(),
+            "a single merge base when not asking for all");
+      });
+    }
+  }
+
+  private static void unrelatedHistories() throws IOException {
+    Repository repository = TestSupport.newRepository();
+    String a = TestSupport.commit(repository, 1000, "a");
+    String b = TestSupport.commit(repository, 2000, "b");
+    TestSupport.git(repository, "update-ref", "refs/heads/a", a);
+    TestSupport.git(repository, "update-ref", "refs/heads/b", b);
+
+    for (boolean graph : new boolean[] { false, true }) {
+      withGraph(repository, graph, mergeBase -> {
+        TestSupport.checkEquals(null, mergeBase.findMergeBase(a, b), "no merge base");
+        TestSupport.check(!mergeBase.isAncestor(a, b), "a is not an ancestor of b");
+      });
+    }
+  }
+
+  // A run of commits dated long before the commit they descend from must still be
+  // walked through rather than taken as too old to matter
+  private static void clockSkew() throws IOException {
+    Repository repository = TestSupport.newRepository();
+    String root = TestSupport.commit(repository, 1000, "root");
+    String base = TestSupport.commit(repository, 100000, "base", root);
+    String tip = base;
+    for (int i = 0; i < 8; i++) {
+      tip = TestSupport.commit(repository, 500 + i, "skewed" + i, tip);
+    }
+    String side = TestSupport.commit(repository, 200000, "side", base);
+    String skewedTip = tip;
+    TestSupport.git(repository, "update-ref", "refs/heads/main", skewedTip);
+    TestSupport.git(repository, "update-ref", "refs/heads/side", side);
+
+    for (boolean graph : new boolean[] { false, true }) {
+      withGraph(repository, graph, mergeBase -> {
+        TestSupport.check(mergeBase.isAncestor(base, skewedTip), "base is an ancestor of the skewed tip");
+        TestSupport.check(mergeBase.isAncestor(root, skewedTip), "root is an ancestor of the skewed tip");
+        TestSupport.check(!mergeBase.isAncestor(side, skewedTip), "side is not an ancestor of the skewed tip");
+        TestSupport.checkEquals(base, mergeBase.findMergeBase(skewedTip, side), "merge base across the skew");
+        TestSupport.checkEquals(base, mergeBase.findMergeBase(side, skewedTip), "merge base the other way");
+      });
+    }
+  }
+
+  private interface Checks {
+    void run(MergeBase mergeBase) throws IOException;
+  }
+
+  // Runs checks on a fresh pool, after writing a commit-graph or removing it
+  private static void withGraph(Repository repository, boolean graph, Checks checks) throws IOException {
+    if (graph) {
+      TestSupport.git(repository, "commit-graph", "write");
+      TestSupport.check(repository.gitFile("objects/info/commit-graph").isFile(), "commit-graph written");
+    } else {
+      repository.gitFile("objects/info/commit-graph").delete();
+    }
+    repository.call(() -> {
+      checks.run(new MergeBase(new RevCommit.Pool()));
+      return null;
+    });
+  }
+}
@@ -0,0 +1,124 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.*;
+
+// A multi-pack-index over several packs: every packed object found at its pack and
+// offset, incremental writes, an object in two packs listed from the newer, and the
+// index rebuilt when repack deletes its packs
+public class MultiPackIndexTest {
+  public static void main(String[] args) throws IOException {
+    Repository repository = TestSupport.newRepository();
+    String tip = addCommits(repository, null, 0);
+    tip = addCommits(repository, tip, 1);
+    TestSupport.checkEquals(2, write(repository), "both packs read for a new index");
+    checkIndex(repository, 2);
+
+    tip = addCommits(repository, tip, 2);
+    TestSupport.checkEquals(1, write(repository), "only the new pack read");
+    MultiPackIndex midx = checkIndex(repository, 3);
+    for (String id : List.of("0".repeat(40), "f".repeat(40), "8".repeat(40))) {
+      TestSupport.check(midx.findPosition(id) < 0, "no position for " + id);
+    }
+
+    duplicates(repository);
+
+    // Deleting the covered packs rewrites the index from the one pack left
+    TestSupport.git(repository, "repack", "-a", "-d");
+    checkIndex(repository, 1);
+    TestSupport.checkEquals(0, write(repository), "nothing new to read");
+    TestSupport.checkEquals(tip, repository.readRef("refs/heads/main"), "history intact");
+
+    corrupt(repository);
+    TestSupport.passed("MultiPackIndexTest");
+  }
+
+  // Ten commits on top of parent, packed into a pack of their own
+  private static String addCommits(Repository repository, String parent, int batch) throws IOException {
+    for (int i = 0; i < 10; i++) {
+      String[] parents = parent != null ? new String[] { parent } : new String[0];
+      parent = TestSupport.commit(repository, 1000 * (batch * 10 + i + 1), "b" + batch + "c" + i, parents);
+    }
+    TestSupport.git(repository, "update-ref", "refs/heads/main", parent);
+    TestSupport.git(repository, "repack", "-d");
+    return parent;
+  }
+
+  private static int write(Repository repository) throws IOException {
+    return repository.call(MultiPackIndex::write);
+  }
+
+  private static MultiPackIndex open(Repository repository) throws IOException {
+    return repository.call(() -> MultiPackIndex.open(repository.gitFile("objects/pack")));
+  }
+
+  // Every object of every pack found at its offset there, and nothing else listed
+  private static MultiPackIndex checkIndex(Repository repository, int packCount) throws IOException {
+    MultiPackIndex midx = open(repository);
+    TestSupport.check(midx != null, "index written");
+    List<String> names = midx.getPackNames();
+    TestSupport.checkEquals(packCount, names.size(), "packs covered");
+    List<String> sorted = new ArrayList<>(names);
+    Collections.sort(sorted);
+    TestSupport.checkEquals(sorted, names, "pack names sorted");
+
+    Set<String> ids = new HashSet<>();
+    for (int packId = 0; packId < names.size(); packId++) {
+      PackFile pack = new PackFile(repository.gitFile("objects/pack/" + names.get(packId)));
+      for (int i = 0; i < pack.getObjectCount(); i++) {
+        String id = pack.getObjectId(i);
+        ids.add(id);
+        int position = midx.findPosition(id);
+        TestSupport.check(position >= 0, id + " listed");
+        TestSupport.checkEquals(id, midx.getObjectId(position), "id at the position of " + id);
+        TestSupport.checkEquals(packId, midx.getPackId(position), "pack of " + id);
+        TestSupport.checkEquals(pack.getOffset(i), midx.getOffset(position), "offset of " + id);
+        TestSupport.check(repository.readObject(id) != null, id + " readable through the index");
+      }
+    }
+    TestSupport.checkEquals(ids.size(), midx.getObjectCount(), "object count");
+    TestSupport.checkEquals(List.of(), repository.call(midx::verify), "verify finds no problems");
+    return midx;
+  }
+
+  // repack -a without -d leaves the old packs next to one holding all their objects
+  private static void duplicates(Repository repository) throws IOException {
+    Set<String> before = Set.copyOf(open(repository).getPackNames());
+    TestSupport.git(repository, "repack", "-a");
+    String newest = null;
+    for (String name : repository.gitFile("objects/pack").list((dir, name) -> name.endsWith(".idx"))) {
+      if (!before.contains(name)) {
+        newest = name;
+      }
+    }
+    TestSupport.check(newest != null, "a fourth pack written");
+    // Newer by a margin the file system cannot round away
+    File packFile = repository.gitFile("objects/pack/" + newest.replace(".idx", ".pack"));
+    packFile.setLastModified(System.currentTimeMillis() + 60_000);
+
+    TestSupport.checkEquals(1, write(repository), "only the new pack read");
+    MultiPackIndex midx = open(repository);
+    int newestId = midx.getPackNames().indexOf(newest);
+    PackFile pack = new PackFile(repository.gitFile("objects/pack/" + newest));
+    TestSupport.checkEquals(pack.getObjectCount(), midx.getObjectCount(), "each object listed once");
+    for (int i = 0; i < pack.getObjectCount(); i++) {
+      int position = midx.findPosition(pack.getObjectId(i));
+      TestSupport.checkEquals(newestId, midx.getPackId(position), "copy in the newest pack listed");
+      TestSupport.checkEquals(pack.getOffset(i), midx.getOffset(position), "offset in the newest pack");
+    }
+    TestSupport.checkEquals(List.of(), repository.call(midx::verify), "verify with duplicates");
+  }
+
+  private static void corrupt(Repository repository) throws IOException {
+    File file = repository.gitFile("objects/pack/multi-pack-index");
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      long position = raf.length() - 30;
+      raf.seek(position);
+      int b = raf.read();
+      raf.seek(position);
+      raf.write(b ^ 0xff);
+    }
+    List<String> problems = repository.call(() -> open(repository).verify());
+    TestSupport.check(problems.contains("incorrect checksum"), "corruption found: " + problems);
+  }
+}
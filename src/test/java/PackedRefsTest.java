@@ -0,0 +1,131 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Packing refs into packed-refs and deleting refs that live there, including a
+// delete racing a pack-refs --all
+public class PackedRefsTest {
+  public static void main(String[] args) throws Exception {
+    packTagsAndBranches();
+    deletePackedRefs();
+    lockedRefStaysLoose();
+    concurrentPackAndDelete();
+    TestSupport.passed("PackedRefsTest");
+  }
+
+  private static void packTagsAndBranches() throws IOException {
+    Repository repository = TestSupport.newRepository();
+    String a = TestSupport.commit(repository, 1000, "a");
+    String b = TestSupport.commit(repository, 2000, "b", a);
+    TestSupport.git(repository, "update-ref", "refs/heads/main", b);
+    TestSupport.git(repository, "update-ref", "refs/heads/topic/x", a);
+    TestSupport.git(repository, "update-ref", "refs/tags/v1", a);
+    repository.newTransaction().setSymbolic("refs/remotes/origin/HEAD", "refs/heads/main").commit();
+
+    TestSupport.git(repository, "pack-refs");
+    PackedRefs packed = repository.call(PackedRefs::load);
+    TestSupport.checkEquals(a, packed.get("refs/tags/v1"), "tag packed");
+    TestSupport.check(!repository.gitFile("refs/tags/v1").exists(), "loose tag pruned");
+    TestSupport.checkEquals(null, packed.get("refs/heads/main"), "branches stay loose without --all");
+
+    TestSupport.git(repository, "pack-refs", "--all");
+    packed = repository.call(PackedRefs::load);
+    TestSupport.checkEquals(b, packed.get("refs/heads/main"), "main packed");
+    TestSupport.checkEquals(a, packed.get("refs/heads/topic/x"), "nested branch packed");
+    TestSupport.check(!repository.gitFile("refs/heads/main").exists(), "loose main pruned");
+    TestSupport.check(!repository.gitFile("refs/heads/topic").exists(), "emptied directory removed");
+    TestSupport.checkEquals(null, packed.get("refs/remotes/origin/HEAD"), "symbolic ref not packed");
+    TestSupport.check(repository.gitFile("refs/remotes/origin/HEAD").isFile(), "symbolic ref stays loose");
+
+    TestSupport.checkEquals(b, repository.readRef("refs/heads/main"), "packed ref read back");
+    TestSupport.checkEquals(Set.of("refs/heads/main", "refs/heads/topic/x"),
+        repository.getRefs("refs/heads/").keySet(), "packed refs listed");
+
+    // A loose ref written after packing wins over the packed value
+    TestSupport.git(repository, "update-ref", "refs/heads/main", a);
+    TestSupport.checkEquals(a, repository.readRef("refs/heads/main"), "loose value overrides packed");
+  }
+
+  private static void deletePackedRefs() throws IOException {
+    Repository repository = TestSupport.newRepository();
+    String a = TestSupport.commit(repository, 1000, "a");
+    String b = TestSupport.commit(repository, 2000, "b", a);
+    TestSupport.git(repository, "update-ref", "refs/heads/main", b);
+    TestSupport.git(repository, "update-ref", "refs/heads/packed-only", a);
+    TestSupport.git(repository, "update-ref", "refs/heads/both", a);
+    TestSupport.git(repository, "pack-refs", "--all");
+    TestSupport.git(repository, "update-ref", "refs/heads/both", b);
+
+    TestSupport.git(repository, "update-ref", "-d", "refs/heads/packed-only");
+    TestSupport.git(repository, "update-ref", "-d", "refs/heads/both");
+    PackedRefs packed = repository.call(PackedRefs::load);
+    TestSupport.checkEquals(null, packed.get("refs/heads/packed-only"), "packed-only ref removed from packed-refs");
+    TestSupport.checkEquals(null, packed.get("refs/heads/both"), "packed copy of a loose ref removed");
+    TestSupport.check(!repository.gitFile("refs/heads/both").exists(), "loose copy removed");
+    TestSupport.checkEquals(null, repository.readRef("refs/heads/both"), "deleted ref does not reappear");
+    TestSupport.checkEquals(b, repository.readRef("refs/heads/main"), "other packed refs kept");
+    TestSupport.check(!repository.gitFile("packed-refs.lock").exists(), "packed-refs lock released");
+  }
+
+  // A ref whose lock is held by another writer while packing is packed but not
+  // pruned, since that writer may be about to change it
+  private static void lockedRefStaysLoose() throws IOException {
+    Repository repository = TestSupport.newRepository();
+    String a = TestSupport.commit(repository, 1000, "a");
+    TestSupport.git(repository, "update-ref", "refs/heads/busy", a);
+    File lock = repository.gitFile("refs/heads/busy.lock");
+    Files.createFile(lock.toPath());
+
+    TestSupport.git(repository, "pack-refs", "--all");
+    TestSupport.check(repository.gitFile("refs/heads/busy").isFile(), "locked ref not pruned");
+    TestSupport.check(lock.isFile(), "other writer's lock left alone");
+    TestSupport.checkEquals(a, repository.readRef("refs/heads/busy"), "locked ref still readable");
+    lock.delete();
+  }
+
+  // Branches are created and deleted while another thread keeps packing. A deleted
+  // ref must never come back from packed-refs and a live one must never be lost.
+  private static void concurrentPackAndDelete() throws Exception {
+    Repository repository = TestSupport.newRepository();
+    String a = TestSupport.commit(repository, 1000, "a");
+    String b = TestSupport.commit(repository, 2000, "b", a);
+    TestSupport.git(repository, "update-ref", "refs/heads/main", b);
+
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread packer = new Thread(() -> {
+      try {
+        for (int i = 0; i < 30; i++) {
+          repository.getRefDatabase().pack(true);
+        }
+      } catch (Throwable t) {
+        failure.set(t);
+      }
+    });
+    packer.start();
+    for (int i = 0; i < 30; i++) {
+      String name = "refs/heads/branch" + i;
+      repository.newTransaction().create(name, a).commit();
+      TestSupport.checkEquals(a, repository.readRef(name), "created ref visible");
+      repository.newTransaction().update(name, b, a).commit();
+      TestSupport.checkEquals(b, repository.readRef(name), "updated ref visible");
+      if (i % 2 == 0) {
+        repository.newTransaction().delete(name, b).commit();
+        TestSupport.checkEquals(null, repository.readRef(name), "deleted ref gone");
+      }
+    }
+    packer.join();
+    if (failure.get() != null) {
+      throw new AssertionError("pack-refs failed", failure.get());
+    }
+
+    repository.getRefDatabase().pack(true);
+    Map<String, String> refs = repository.getRefs("refs/heads/");
+    for (int i = 0; i < 30; i++) {
+      String name = "refs/heads/branch" + i;
+      TestSupport.checkEquals(i % 2 == 0 ? null : b, refs.get(name), name + " after the race");
+    }
+    TestSupport.checkEquals(b, refs.get("refs/heads/main"), "main after the race");
+  }
+}
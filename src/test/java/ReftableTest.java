@@ -0,0 +1,124 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+
+// Reftable files written and read back directly, and a reftable repository's refs
+// through updates, deletions and compaction
+public class ReftableTest {
+  public static void main(String[] args) throws IOException {
+    roundTrip();
+    emptyTable();
+    refStore();
+    TestSupport.passed("ReftableTest");
+  }
+
+  // Enough records for several blocks, with every kind of value
+  private static void roundTrip() throws IOException {
+    File file = new File(TestSupport.tempDir(), "refs.ref");
+    List<Reftable.Record> records = new ArrayList<>();
+    Map<String, String> ids = new TreeMap<>();
+    for (int i = 0; i < 3000; i++) {
+      String name = String.format("refs/heads/branch-%05d", i);
+      String id = String.format("%040x", i * 7919L + 1);
+      ids.put(name, id);
+      records.add(new Reftable.Record(name, Reftable.VALUE_ID, 5, id, null));
+    }
+    String tagId = "1".repeat(40);
+    String peeledId = "2".repeat(40);
+    records.add(new Reftable.Record("refs/tags/v1.0", Reftable.VALUE_PEELED, 6, tagId, peeledId));
+    records.add(new Reftable.Record("refs/remotes/origin/HEAD", Reftable.VALUE_SYMREF, 6, "refs/remotes/origin/main", null));
+    records.add(new Reftable.Record("refs/heads/gone", Reftable.VALUE_DELETION, 7, null, null));
+    // Written in any order; the writer sorts
+    Collections.shuffle(records, new Random(42));
+    Reftable.write(file, records, 5, 7);
+
+    Reftable table = Reftable.open(file);
+    TestSupport.check(table.size() > 2 * Reftable.DEFAULT_BLOCK_SIZE, "table spans several blocks");
+    TestSupport.checkEquals(5L, table.getMinUpdateIndex(), "min update index");
+    TestSupport.checkEquals(7L, table.getMaxUpdateIndex(), "max update index");
+    for (Map.Entry<String, String> ref : ids.entrySet()) {
+      Reftable.Record record = table.find(ref.getKey());
+      TestSupport.check(record != null, "found " + ref.getKey());
+      TestSupport.checkEquals(ref.getValue(), record.value, "id of " + ref.getKey());
+      TestSupport.checkEquals(5L, record.updateIndex, "update index of " + ref.getKey());
+    }
+
+    Reftable.Record tag = table.find("refs/tags/v1.0");
+    TestSupport.checkEquals(tagId, tag.value, "tag id");
+    TestSupport.checkEquals(peeledId, tag.peeled, "peeled tag id");
+    Reftable.Record symref = table.find("refs/remotes/origin/HEAD");
+    TestSupport.checkEquals("ref: refs/remotes/origin/main", symref.refValue(), "symbolic ref");
+    TestSupport.check(table.find("refs/heads/gone").isDeletion(), "deletion record kept");
+
+    TestSupport.checkEquals(null, table.find("refs/heads/a"), "name before the first record");
+    TestSupport.checkEquals(null, table.find("refs/heads/branch-00010x"), "name between records");
+    TestSupport.checkEquals(null, table.find("refs/zzz"), "name after the last record");
+
+    List<String> scanned = new ArrayList<>();
+    table.scan("refs/heads/branch-012", record -> scanned.add(record.name));
+    TestSupport.checkEquals(100, scanned.size(), "records under a prefix");
+    TestSupport.checkEquals("refs/heads/branch-01200", scanned.get(0), "first scanned record");
+    TestSupport.checkEquals("refs/heads/branch-01299", scanned.get(99), "last scanned record");
+    List<String> all = new ArrayList<>();
+    table.scan("", record -> all.add(record.name));
+    TestSupport.checkEquals(records.size(), all.size(), "every record scanned");
+    List<String> sorted = new ArrayList<>(all);
+    Collections.sort(sorted);
+    TestSupport.checkEquals(sorted, all, "records scanned in name order");
+  }
+
+  private static void emptyTable() throws IOException {
+    File file = new File(TestSupport.tempDir(), "empty.ref");
+    Reftable.write(file, List.of(), 1, 1);
+    Reftable table = Reftable.open(file);
+    TestSupport.checkEquals(null, table.find("refs/heads/main"), "nothing in an empty table");
+    List<String> names = new ArrayList<>();
+    table.scan("", record -> names.add(record.name));
+    TestSupport.check(names.isEmpty(), "empty table scans nothing");
+  }
+
+  private static void refStore() throws IOException {
+    Repository repository = TestSupport.newRepository("reftable");
+    TestSupport.check(repository.gitFile("reftable/tables.list").isFile(), "reftable repository created");
+    String a = TestSupport.commit(repository, 1000, "a");
+    String b = TestSupport.commit(repository, 2000, "b", a);
+
+    RefTransaction transaction = repository.newTransaction();
+    for (int i = 0; i < 200; i++) {
+      transaction.create(String.format("refs/heads/topic-%03d", i), a);
+    }
+    transaction.commit();
+    repository.newTransaction().update("refs/heads/topic-007", b, a).commit();
+    repository.newTransaction().delete("refs/heads/topic-013", a).commit();
+    repository.newTransaction().setSymbolic("refs/remotes/origin/HEAD", "refs/heads/topic-000").commit();
+
+    for (int pass = 0; pass < 2; pass++) {
+      String when = pass == 0 ? " before compaction" : " after compaction";
+      TestSupport.checkEquals(b, repository.readRef("refs/heads/topic-007"), "updated ref" + when);
+      TestSupport.checkEquals(a, repository.readRef("refs/heads/topic-008"), "untouched ref" + when);
+      TestSupport.checkEquals(null, repository.readRef("refs/heads/topic-013"), "deleted ref" + when);
+      TestSupport.checkEquals(199, repository.getRefs("refs/heads/").size(), "ref count" + when);
+      TestSupport.checkEquals("ref: refs/heads/topic-000", repository.readRef("refs/remotes/origin/HEAD"),
+          "symbolic ref" + when);
+      TestSupport.git(repository, "pack-refs");
+    }
+    TestSupport.checkEquals(1, tables(repository).size(), "one table after compaction");
+
+    // A deletion must survive being compacted away with the record it deletes
+    repository.newTransaction().delete("refs/heads/topic-100", a).commit();
+    TestSupport.git(repository, "pack-refs");
+    TestSupport.checkEquals(null, repository.readRef("refs/heads/topic-100"), "deleted ref stays deleted");
+    TestSupport.check(!repository.gitFile("refs/heads/topic-100").exists(), "no loose ref written");
+  }
+
+  private static List<String> tables(Repository repository) throws IOException {
+    List<String> names = new ArrayList<>();
+    for (String line : Files.readAllLines(repository.gitFile("reftable/tables.list").toPath())) {
+      if (!line.isEmpty()) {
+        names.add(line);
+      }
+    }
+    return names;
+  }
+}
@@ -0,0 +1,127 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+// Shared setup for the tests in this directory. There is no test framework here:
+// each test is a class whose main() runs its checks in order and stops at the first
+// failure with an AssertionError. Repositories are made in fresh temporary
+// directories and bound with Repository.call(), so a test never touches the working
+// directory. To run one:
+//
+//   javac -d out src/main/java/*.java src/test/java/*.java && java -ea -cp out MergeBaseTest
+class TestSupport {
+  private static final List<File> TEMP_DIRS = new ArrayList<>();
+  private static int checks;
+
+  static {
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      for (File dir : TEMP_DIRS) {
+        deleteRecursively(dir);
+      }
+    }));
+  }
+
+  static File tempDir() throws IOException {
+    File dir = Files.createTempDirectory("git-test").toFile();
+    TEMP_DIRS.add(dir);
+    return dir;
+  }
+
+  static Repository newRepository() throws IOException {
+    return newRepository("files");
+  }
+
+  static Repository newRepository(String refFormat) throws IOException {
+    File dir = tempDir();
+    new File(dir, ".git").mkdir();
+    Repository repository = Repository.open(dir);
+    git(repository, "init", "--ref-format=" + refFormat);
+    return repository;
+  }
+
+  // Runs a command in repository as the CLI would and returns what it printed to
+  // stdout; a non-zero exit fails the test with what it printed to stderr
+  static String git(Repository repository, String... args) throws IOException {
+    PrintStream savedOut = System.out;
+    PrintStream savedErr = System.err;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(out, true, StandardCharsets.UTF_8));
+    System.setErr(new PrintStream(err, true, StandardCharsets.UTF_8));
+    int code;
+    try {
+      code = repository.call(() -> Main.run(args));
+    } finally {
+      System.out.flush();
+      System.setOut(savedOut);
+      System.setErr(savedErr);
+    }
+    check(code == 0, "git " + String.join(" ", args) + " exited with " + code + ":\n" + err.toString(StandardCharsets.UTF_8));
+    return out.toString(StandardCharsets.UTF_8);
+  }
+
+  // ========== OBJECTS ==========
+
+  static String blob(Repository repository, String content) throws IOException {
+    return repository.insertObject("blob", content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  // A tree of regular files, name -> content
+  static String tree(Repository repository, Map<String, String> files) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (Map.Entry<String, String> file : new TreeMap<>(files).entrySet()) {
+      out.write(("100644 " + file.getKey() + "\0").getBytes(StandardCharsets.UTF_8));
+      out.write(ObjectStore.fromHex(blob(repository, file.getValue())));
+    }
+    return repository.insertObject("tree", out.toByteArray());
+  }
+
+  // A commit dated time (seconds since the epoch) for both author and committer
+  static String commit(Repository repository, String tree, long time, String message, String... parents)
+      throws IOException {
+    StringBuilder text = new StringBuilder("tree " + tree + "\n");
+    for (String parent : parents) {
+      text.append("parent ").append(parent).append("\n");
+    }
+    text.append("author A U Thor <author@example.com> ").append(time).append(" +0000\n");
+    text.append("committer A U Thor <author@example.com> ").append(time).append(" +0000\n");
+    text.append("\n").append(message).append("\n");
+    return repository.insertObject("commit", text.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  // A commit whose tree holds one file named after message, so every commit differs
+  static String commit(Repository repository, long time, String message, String... parents) throws IOException {
+    return commit(repository, tree(repository, Map.of(message + ".txt", message)), time, message, parents);
+  }
+
+  // ========== CHECKS ==========
+
+  static void check(boolean condition, String message) {
+    checks++;
+    if (!condition) {
+      throw new AssertionError(message);
+    }
+  }
+
+  static void checkEquals(Object expected, Object actual, String what) {
+    check(Objects.equals(expected, actual), what + ": expected " + expected + " but was " + actual);
+  }
+
+  static void passed(String test) {
+    System.out.println(test + ": " + checks + " checks passed");
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+}
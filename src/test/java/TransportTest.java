@@ -0,0 +1,177 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// pkt-line framing and side-band multiplexing, then a git:// server answering a raw
+// request and a clone over TCP
+public class TransportTest {
+  public static void main(String[] args) throws Exception {
+    pktLines();
+    pktLineErrors();
+    sideBand();
+    server();
+    TestSupport.passed("TransportTest");
+  }
+
+  private static void pktLines() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PktLine.write(out, "want 1234\n");
+    PktLine.write(out, "");
+    PktLine.writeFlush(out);
+    byte[] big = new byte[PktLine.MAX_PACKET - 4];
+    Arrays.fill(big, (byte) 'x');
+    PktLine.writePacket(out, big, 0, -1, big.length);
+    TestSupport.checkEquals("000ewant 1234\n00040000", new String(out.toByteArray(), 0, 22, StandardCharsets.US_ASCII),
+        "encoded lines");
+
+    InputStream in = new ByteArrayInputStream(out.toByteArray());
+    TestSupport.checkEquals("want 1234", PktLine.read(in), "line without its newline");
+    TestSupport.checkEquals("", PktLine.read(in), "empty packet");
+    TestSupport.checkEquals(null, PktLine.read(in), "flush packet");
+    TestSupport.check(Arrays.equals(big, PktLine.readPacket(in)), "largest packet round trip");
+    TestSupport.checkEquals(-1, in.read(), "nothing left");
+
+    TestSupport.checkEquals("multi_ack side-band-64k", PktLine.capabilities("1234 HEAD\0multi_ack side-band-64k"),
+        "capabilities after the NUL");
+    TestSupport.check(PktLine.hasCapability("multi_ack agent=x/1", "agent"), "capability with a value");
+    TestSupport.check(!PktLine.hasCapability("multi_ack_detailed", "multi_ack"), "no prefix match");
+  }
+
+  private static void pktLineErrors() {
+    expectError(() -> PktLine.writePacket(new ByteArrayOutputStream(), new byte[PktLine.MAX_PACKET], 0, -1,
+        PktLine.MAX_PACKET), "Packet too long", "oversized packet refused");
+    expectError(() -> PktLine.read(stream("zzzz")), "bad line length", "non-hex length");
+    expectError(() -> PktLine.read(stream("0002")), "bad line length", "length below the header size");
+    expectError(() -> PktLine.read(stream("000ashort")), "hung up", "truncated packet");
+  }
+
+  private static void sideBand() throws IOException {
+    ByteArrayOutputStream wire = new ByteArrayOutputStream();
+    PktLine.SideBandOutputStream data = new PktLine.SideBandOutputStream(wire);
+    byte[] pack = new byte[3 * PktLine.MAX_SIDEBAND_DATA + 123];
+    new Random(7).nextBytes(pack);
+    data.write(pack, 0, 1000);
+    data.flush();
+    PktLine.SideBandOutputStream.progress(wire, "Counting objects: 50%\rCounting objects: 100%\n");
+    data.write(pack, 1000, pack.length - 1000);
+    data.flush();
+    PktLine.writeFlush(wire);
+
+    ByteArrayOutputStream progress = new ByteArrayOutputStream();
+    InputStream in = new PktLine.SideBandInputStream(new ByteArrayInputStream(wire.toByteArray()), progress);
+    TestSupport.check(Arrays.equals(pack, in.readAllBytes()), "band 1 reassembled around a progress packet");
+    TestSupport.checkEquals("remote: Counting objects: 50%\rremote: Counting objects: 100%\n",
+        progress.toString(StandardCharsets.UTF_8), "progress prefixed per update");
+
+    ByteArrayOutputStream failing = new ByteArrayOutputStream();
+    PktLine.SideBandOutputStream.error(failing, "repository corrupt");
+    expectError(() -> new PktLine.SideBandInputStream(new ByteArrayInputStream(failing.toByteArray()), null).read(),
+        "remote error: repository corrupt", "error band raised");
+  }
+
+  private static void server() throws Exception {
+    Repository source = TestSupport.newRepository();
+    String c1 = TestSupport.commit(source, 1000, "c1");
+    String c2 = TestSupport.commit(source, 2000, "c2", c1);
+    TestSupport.git(source, "update-ref", "refs/heads/main", c2);
+    TestSupport.git(source, "update-ref", "refs/tags/v1", c1);
+    File base = source.getWorkTree().getParentFile();
+    String path = "/" + source.getWorkTree().getName();
+
+    int port;
+    try (ServerSocket probe = new ServerSocket(0)) {
+      port = probe.getLocalPort();
+    }
+    GitServer server = new GitServer(base, false);
+    int listenPort = port;
+    Thread thread = new Thread(() -> {
+      try {
+        server.run(new InetSocketAddress("127.0.0.1", listenPort));
+      } catch (IOException e) {
+        // The test fails on connecting
+      }
+    }, "test-git-server");
+    thread.setDaemon(true);
+    // The server logs each connection to stderr
+    PrintStream savedErr = System.err;
+    System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+    try {
+      thread.start();
+      waitForPort(port);
+      serve(source, port, path, c1, c2);
+    } finally {
+      System.setErr(savedErr);
+    }
+  }
+
+  private static void serve(Repository source, int port, String path, String c1, String c2) throws IOException {
+    // The advertisement, then a flush with no wants ends the conversation
+    try (Socket socket = new Socket("127.0.0.1", port)) {
+      OutputStream out = socket.getOutputStream();
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      PktLine.write(out, "git-upload-pack " + path + "\0host=localhost\0");
+      out.flush();
+      Map<String, String> refs = new HashMap<>();
+      String first = PktLine.read(in);
+      TestSupport.check(PktLine.hasCapability(PktLine.capabilities(first), "side-band-64k"), "side-band-64k offered");
+      for (String line = first; line != null; line = PktLine.read(in)) {
+        int nul = line.indexOf('\0');
+        String ref = nul >= 0 ? line.substring(0, nul) : line;
+        refs.put(ref.substring(41), ref.substring(0, 40));
+      }
+      TestSupport.checkEquals(c2, refs.get("HEAD"), "HEAD advertised");
+      TestSupport.checkEquals(c2, refs.get("refs/heads/main"), "main advertised");
+      TestSupport.checkEquals(c1, refs.get("refs/tags/v1"), "tag advertised");
+      PktLine.writeFlush(out);
+      out.flush();
+      TestSupport.checkEquals(-1, in.read(), "server hangs up after an empty want list");
+    }
+
+    try (Socket socket = new Socket("127.0.0.1", port)) {
+      OutputStream out = socket.getOutputStream();
+      PktLine.write(out, "git-upload-pack /no-such-repository\0host=localhost\0");
+      out.flush();
+      String reply = PktLine.read(socket.getInputStream());
+      TestSupport.check(reply.startsWith("ERR "), "missing repository answered with ERR: " + reply);
+    }
+
+    File dir = new File(TestSupport.tempDir(), "clone");
+    TestSupport.git(source, "clone", "git://127.0.0.1:" + port + path, dir.getPath());
+    Repository clone = Repository.open(dir);
+    TestSupport.checkEquals(c2, clone.readRef("refs/remotes/origin/main"), "branch cloned over git://");
+    TestSupport.checkEquals(c1, clone.readRef("refs/tags/v1"), "tag cloned over git://");
+    TestSupport.check(clone.readObject(c1) != null, "history cloned over git://");
+  }
+
+  private static void waitForPort(int port) throws InterruptedException {
+    for (int attempt = 0; attempt < 500; attempt++) {
+      try {
+        new Socket("127.0.0.1", port).close();
+        return;
+      } catch (IOException e) {
+        Thread.sleep(10);
+      }
+    }
+    throw new AssertionError("server did not start on port " + port);
+  }
+
+  private interface Failing {
+    void run() throws IOException;
+  }
+
+  private static void expectError(Failing action, String fragment, String what) {
+    try {
+      action.run();
+      TestSupport.check(false, what + ": no error");
+    } catch (IOException e) {
+      TestSupport.check(e.getMessage().contains(fragment), what + ": " + e.getMessage());
+    }
+  }
+
+  private static InputStream stream(String text) {
+    return new ByteArrayInputStream(text.getBytes(StandardCharsets.US_ASCII));
+  }
+}
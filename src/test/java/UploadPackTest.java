@@ -0,0 +1,148 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+// Want/have negotiation on the sending side, and a local clone then fetch that only
+// transfers what the clone lacks
+public class UploadPackTest {
+  public static void main(String[] args) throws IOException {
+    negotiation();
+    wantChecks();
+    cloneAndFetch();
+    TestSupport.passed("UploadPackTest");
+  }
+
+  // c1 - c2 - c3 - c4 - c5 (main)
+  //             \
+  //              s1 (side)
+  private static void negotiation() throws IOException {
+    Repository repository = TestSupport.newRepository();
+    List<String> main = chain(repository, 5, "c", null);
+    String s1 = TestSupport.commit(repository, 3500, "s1", main.get(2));
+    TestSupport.git(repository, "update-ref", "refs/heads/main", main.get(4));
+    TestSupport.git(repository, "update-ref", "refs/heads/side", s1);
+
+    UploadPack uploadPack = new UploadPack(repository);
+    Map<String, String> advertised = uploadPack.advertise();
+    TestSupport.checkEquals(main.get(4), advertised.get("HEAD"), "HEAD advertised");
+    TestSupport.checkEquals(main.get(4), advertised.get("refs/heads/main"), "main advertised");
+    TestSupport.checkEquals(s1, advertised.get("refs/heads/side"), "side advertised");
+    TestSupport.checkEquals("refs/heads/main", uploadPack.getHeadTarget(), "HEAD target");
+
+    uploadPack.want(main.get(4));
+    TestSupport.check(!uploadPack.isReady(), "not ready before any have");
+    TestSupport.checkEquals(List.of(), uploadPack.have(List.of("f".repeat(40))), "unknown have not acked");
+    TestSupport.check(!uploadPack.isReady(), "not ready after an unknown have");
+    // A commit the fetcher has that is not in main's history does not make it ready
+    TestSupport.checkEquals(List.of(s1), uploadPack.have(List.of(s1)), "side commit acked");
+    TestSupport.check(!uploadPack.isReady(), "not ready when the common commit is off main");
+    TestSupport.checkEquals(List.of(main.get(2)), uploadPack.have(List.of(main.get(2))), "c3 acked");
+    TestSupport.check(uploadPack.isReady(), "ready once main reaches a common commit");
+
+    Set<String> expected = new HashSet<>();
+    for (String commit : main.subList(3, 5)) {
+      expected.addAll(objectsOf(repository, commit));
+    }
+    TestSupport.checkEquals(expected, ids(uploadPack.objects()), "only c4 and c5 with their trees and blobs");
+
+    // Without any common commit, everything main reaches is sent
+    UploadPack fresh = new UploadPack(repository);
+    fresh.want(main.get(4));
+    Set<String> everything = new HashSet<>();
+    for (String commit : main) {
+      everything.addAll(objectsOf(repository, commit));
+    }
+    TestSupport.checkEquals(everything, ids(fresh.objects()), "full history without haves");
+  }
+
+  private static void wantChecks() throws IOException {
+    Repository repository = TestSupport.newRepository();
+    List<String> main = chain(repository, 2, "w", null);
+    TestSupport.git(repository, "update-ref", "refs/heads/main", main.get(1));
+    String dangling = TestSupport.blob(repository, "not reachable from any ref");
+    String reachableBlob = TestSupport.blob(repository, "w1");
+
+    UploadPack uploadPack = new UploadPack(repository);
+    uploadPack.want(reachableBlob);
+    try {
+      uploadPack.want(dangling);
+      TestSupport.check(false, "an unreachable object must not be served");
+    } catch (IOException e) {
+      TestSupport.check(e.getMessage().startsWith("not our ref"), "unreachable want refused: " + e.getMessage());
+    }
+  }
+
+  private static void cloneAndFetch() throws IOException {
+    Repository source = TestSupport.newRepository();
+    List<String> history = chain(source, 4, "f", null);
+    TestSupport.git(source, "update-ref", "refs/heads/main", history.get(3));
+
+    File dir = new File(TestSupport.tempDir(), "clone");
+    TestSupport.git(source, "clone", "file://" + source.getWorkTree().getPath(), dir.getPath());
+    Repository clone = Repository.open(dir);
+    TestSupport.checkEquals(history.get(3), clone.readRef("refs/remotes/origin/main"), "remote branch after clone");
+    TestSupport.checkEquals(history.get(3), clone.getHead(), "HEAD after clone");
+    for (String commit : history) {
+      TestSupport.check(clone.readObject(commit) != null, "cloned " + commit);
+    }
+
+    List<String> more = chain(source, 2, "g", history.get(3));
+    TestSupport.git(source, "update-ref", "refs/heads/main", more.get(1));
+    Set<String> packsBefore = packNames(clone);
+    TestSupport.git(clone, "fetch");
+    TestSupport.checkEquals(more.get(1), clone.readRef("refs/remotes/origin/main"), "remote branch after fetch");
+
+    Set<String> received = new HashSet<>();
+    for (String name : packNames(clone)) {
+      if (!packsBefore.contains(name)) {
+        PackFile pack = new PackFile(clone.gitFile("objects/pack/" + name));
+        for (int i = 0; i < pack.getObjectCount(); i++) {
+          received.add(pack.getObjectId(i));
+        }
+      }
+    }
+    Set<String> expected = new HashSet<>();
+    for (String commit : more) {
+      expected.addAll(objectsOf(source, commit));
+    }
+    TestSupport.checkEquals(expected, received, "fetch sent only the two new commits' objects");
+
+    // Nothing new: nothing is sent
+    Set<String> packsAfter = packNames(clone);
+    TestSupport.git(clone, "fetch");
+    TestSupport.checkEquals(packsAfter, packNames(clone), "up-to-date fetch adds no pack");
+  }
+
+  // count commits in a line on top of parent (or a new root), each dated after the last
+  private static List<String> chain(Repository repository, int count, String prefix, String parent)
+      throws IOException {
+    List<String> commits = new ArrayList<>();
+    for (int i = 1; i <= count; i++) {
+      String[] parents = parent != null ? new String[] { parent } : new String[0];
+      parent = TestSupport.commit(repository, 1000 * i, prefix + i, parents);
+      commits.add(parent);
+    }
+    return commits;
+  }
+
+  // The commit with its tree and the single blob TestSupport.commit puts in it
+  private static Set<String> objectsOf(Repository repository, String commit) throws IOException {
+    String tree = repository.call(() -> new RevCommit.Pool().parse(commit).getTree());
+    TreeIterator entries = repository.call(() -> TreeIterator.forTree(tree));
+    entries.next();
+    return Set.of(commit, tree, entries.id());
+  }
+
+  private static Set<String> ids(List<ObjectWalk.Entry> entries) {
+    Set<String> ids = new HashSet<>();
+    for (ObjectWalk.Entry entry : entries) {
+      ids.add(entry.id);
+    }
+    return ids;
+  }
+
+  private static Set<String> packNames(Repository repository) {
+    String[] names = repository.gitFile("objects/pack").list((dir, name) -> name.endsWith(".idx"));
+    return names != null ? new HashSet<>(Arrays.asList(names)) : new HashSet<>();
+  }
+}